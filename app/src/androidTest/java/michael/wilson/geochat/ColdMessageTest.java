@@ -0,0 +1,52 @@
+package michael.wilson.geochat;
+
+import android.app.Instrumentation;
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A comment pushed to a thread's topic while the app's process is cold: nothing has initialized 'Toolkit', so the message
+ * handler must do it before building the notification.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ColdMessageTest
+{
+    @Test
+    public void commentDelta_withNoContext_showsNotification() throws Exception
+    {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+
+        // as a process started only to deliver the message
+        Field global = Toolkit.class.getDeclaredField("CONTEXT");
+        global.setAccessible(true);
+        global.set(null, null);
+
+        Comment comment = new Comment();
+        comment.setCommentID("cold1");
+        comment.setCommentText("Is it still on?");
+        comment.setCommentDate("01/06/2020");
+        comment.setCommentUser("another-device");
+        comment.setCommentTime(new Date(1591000000000L));
+        Map<String, String> payload = ThreadTopics.ENCODE_DELTA(new PostSummary("3-cold", "Concert in the park", "Tonight at 8",
+                51.5, -0.12, null), comment, ThreadCache.NO_WATERMARK);
+
+        long shown = Metrics.GET_COUNT(Metrics.COUNTER_NOTIFS_SHOWN);
+        FirebaseNotifyReciever.ON_MESSAGE(context, payload, null, null);
+        instrumentation.waitForIdleSync();
+
+        assertNotNull(global.get(null));
+        if (Metrics.IS_ENABLED()) assertEquals(shown + 1, Metrics.GET_COUNT(Metrics.COUNTER_NOTIFS_SHOWN));
+    }
+}
@@ -0,0 +1,122 @@
+package michael.wilson.geochat;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Leak and heap check: opens, rotates, and closes 'DiscussionActivity' repeatedly, then checks no instance is still
+ * reachable once the garbage collector has run. Firebase requests are usually still in flight when each activity closes,
+ * which is exactly when a listener holding the activity would leak it. If anything is retained, a heap dump is written
+ * to the app's files directory for inspection.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscussionLeakTest
+{
+    private static final int CYCLES = 20;
+
+    private static final String TAG = "DiscussionLeakTest";
+
+    private Context context;
+
+    @Before
+    public void setUp()
+    {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable()
+        {
+            @Override
+            public void run() { Toolkit.INITIALIZE_APP(context); }
+        });
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // collects until every reference is cleared, or gives up after a few rounds
+    private static int collect(List<WeakReference<DiscussionActivity>> _refs) throws InterruptedException
+    {
+        int retained = 0;
+        for (int round = 0; round < 10; round++)
+        {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            Thread.sleep(200);
+            retained = 0;
+            for (WeakReference<DiscussionActivity> ref : _refs) if (ref.get() != null) retained++;
+            if (retained == 0) break;
+        }
+        return retained;
+    }
+
+    @Test
+    public void openRotateClose_retainsNoActivities() throws Exception
+    {
+        final List<WeakReference<DiscussionActivity>> refs = new ArrayList<>();
+        ActivityScenario.ActivityAction<DiscussionActivity> track = new ActivityScenario.ActivityAction<DiscussionActivity>()
+        {
+            @Override
+            public void perform(DiscussionActivity _activity) { refs.add(new WeakReference<>(_activity)); }
+        };
+
+        // warm up once so class loading and the image caches do not count as growth
+        ActivityScenario.launch(postIntent(-1)).close();
+        collect(refs);
+        long heapBefore = usedHeap(), nativeBefore = Debug.getNativeHeapAllocatedSize();
+
+        for (int i = 0; i < CYCLES; i++)
+        {
+            ActivityScenario<DiscussionActivity> scenario = ActivityScenario.launch(postIntent(i));
+            scenario.onActivity(track);
+            scenario.recreate();
+            scenario.onActivity(track);
+            scenario.close();
+        }
+
+        int retained = collect(refs);
+        long heapGrowth = usedHeap() - heapBefore, nativeGrowth = Debug.getNativeHeapAllocatedSize() - nativeBefore;
+        Log.i(TAG, "activities=" + refs.size() + " retained=" + retained + " heap_growth_kb=" + heapGrowth / 1024
+                + " native_growth_kb=" + nativeGrowth / 1024);
+
+        if (retained > 0) dumpHeap();
+        assertEquals(2 * CYCLES, refs.size());
+        assertEquals("DiscussionActivity instances still reachable", 0, retained);
+    }
+
+    private Intent postIntent(int _i)
+    {
+        PostSummary summary = new PostSummary("leak-test-" + _i, "Leak test " + _i, "Body", 51.5, -0.12, null);
+        return Toolkit.OPEN_POST_INTENT(summary.getDocID(), summary);
+    }
+
+    private void dumpHeap()
+    {
+        File file = new File(context.getFilesDir(), "discussion-leak.hprof");
+        try
+        {
+            Debug.dumpHprofData(file.getPath());
+            Log.i(TAG, "heap dump written to " + file.getPath());
+        }
+        catch (IOException ex) { Log.w(TAG, "unable to dump heap: " + ex.getMessage()); }
+    }
+}
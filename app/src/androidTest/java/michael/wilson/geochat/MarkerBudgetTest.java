@@ -0,0 +1,171 @@
+package michael.wilson.geochat;
+
+import android.Manifest;
+import android.os.Debug;
+import android.util.Log;
+import android.view.Choreographer;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Heap and frame time of the main map with 50k loaded posts, with and without the marker budget (see 'MarkerSet').
+ * Each run shows the posts around the camera, then pans back and forth while timing every frame. Results are logged
+ * under the 'MarkerBudgetTest' tag, the assertions only check the budget is respected.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MarkerBudgetTest
+{
+    private static final int POSTS = 50000, PAN_STEPS = 12;
+    private static final long PAN_STEP_MS = 250;
+
+    private static final String TAG = "MarkerBudgetTest";
+
+    @Rule
+    public GrantPermissionRule permissions = GrantPermissionRule.grant(Manifest.permission.ACCESS_FINE_LOCATION);
+
+    /** Records the time between consecutive frames */
+    private static class FrameTimer implements Choreographer.FrameCallback
+    {
+        final List<Long> intervals = new ArrayList<>();
+        long last;
+        boolean running = true;
+
+        @Override
+        public void doFrame(long _frameTimeNanos)
+        {
+            if (last != 0) intervals.add((_frameTimeNanos - last) / 1000);
+            last = _frameTimeNanos;
+            if (running) Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private static List<PostSummary> posts(double _lat, double _lng)
+    {
+        Random random = new Random(7);
+        List<PostSummary> posts = new ArrayList<>(POSTS);
+        for (int i = 0; i < POSTS; i++)
+        {
+            PostSummary post = new PostSummary("bench" + i, "post number " + i, null, _lat + random.nextDouble() * 2 - 1,
+                    _lng + random.nextDouble() * 2 - 1, null);
+            post.setActivity(random.nextInt(3), 0);
+            post.setDetails("2020-01-01", "bench");
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // shows the posts with the given budget, pans, and logs heap and frame times
+    private void measure(final ActivityScenario<MainActivity> _scenario, final int _budget) throws InterruptedException
+    {
+        final LatLng[] center = new LatLng[1];
+        final FrameTimer timer = new FrameTimer();
+        _scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>()
+        {
+            @Override
+            public void perform(MainActivity _activity)
+            {
+                GoogleMap map = _activity.mapController.getMap();
+                map.moveCamera(CameraUpdateFactory.zoomTo(15));
+                center[0] = map.getCameraPosition().target;
+                _activity.mapController.setMarkerBudget(_budget);
+                _activity.mapController.show(posts(center[0].latitude, center[0].longitude));
+            }
+        });
+        Thread.sleep(2000);
+        long javaHeap = usedHeap(), nativeHeap = Debug.getNativeHeapAllocatedSize();
+
+        _scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>()
+        {
+            @Override
+            public void perform(MainActivity _activity) { Choreographer.getInstance().postFrameCallback(timer); }
+        });
+        for (int step = 0; step < PAN_STEPS; step++)
+        {
+            final double offset = (step % 2 == 0 ? 0.01 : -0.01) * (1 + step / 4);
+            _scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>()
+            {
+                @Override
+                public void perform(MainActivity _activity)
+                {
+                    LatLng target = new LatLng(center[0].latitude + offset, center[0].longitude + offset);
+                    _activity.mapController.getMap().animateCamera(CameraUpdateFactory.newLatLng(target), (int)PAN_STEP_MS, null);
+                }
+            });
+            Thread.sleep(PAN_STEP_MS);
+        }
+        final int[] counts = new int[2];
+        _scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>()
+        {
+            @Override
+            public void perform(MainActivity _activity)
+            {
+                timer.running = false;
+                counts[0] = _activity.mapController.postCount();
+                counts[1] = _activity.mapController.markerCount();
+            }
+        });
+
+        long[] frames = new long[timer.intervals.size()];
+        int janky = 0;
+        for (int i = 0; i < frames.length; i++)
+        {
+            frames[i] = timer.intervals.get(i);
+            if (frames[i] > 2 * 16667) janky++;
+        }
+        Arrays.sort(frames);
+        Log.i(TAG, "budget=" + _budget + " posts=" + counts[0] + " markers=" + counts[1] + " java_heap=" + javaHeap / 1024
+                + "KB native_heap=" + nativeHeap / 1024 + "KB frames=" + frames.length + " p50=" + frames[frames.length / 2]
+                + "us p90=" + frames[frames.length * 9 / 10] + "us max=" + frames[frames.length - 1] + "us janky=" + janky);
+
+        if (_budget > 0) assertTrue(counts[1] <= _budget);
+        else assertTrue(counts[1] > MarkerSet.DEFAULT_BUDGET);
+    }
+
+    @Test
+    public void fiftyThousandPosts_withAndWithoutBudget() throws Exception
+    {
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class))
+        {
+            final boolean[] ready = new boolean[1];
+            for (int i = 0; i < 100 && !ready[0]; i++)
+            {
+                Thread.sleep(100);
+                scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>()
+                {
+                    @Override
+                    public void perform(MainActivity _activity) { ready[0] = _activity.mapController.isReady(); }
+                });
+            }
+            assertTrue("map never became ready", ready[0]);
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+            measure(scenario, MarkerSet.DEFAULT_BUDGET);
+            measure(scenario, 0);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package michael.wilson.geochat;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Source;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A limited write made while firebase can not reach the server: it must fail as offline, and must not be left in firebase's
+ * write queue, where it would reach the server later without being charged to the write limits ledger.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineWriteTest
+{
+    private static final long TIMEOUT_S = 30;
+
+    @Before
+    public void setUp()
+    {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable()
+        {
+            @Override
+            public void run() { Toolkit.INITIALIZE_APP(context); }
+        });
+    }
+
+    @Test
+    public void limitedWrite_offline_failsAndQueuesNothing() throws Exception
+    {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        DocumentReference doc = Toolkit.GET_POST("offline-test").collection(FirestorePost.COMMENTS_COLLECTION_NAME).document();
+        Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put(FirestorePost.COMMENT_TEXT_KEY, "Sent offline");
+        hashMap.put(FirestorePost.COMMENT_USER_KEY, "offline-test");
+        List<WriteLimits.Charge> charges = Toolkit.WRITE_LIMITS.charges(WriteLimits.KIND_COMMENT, "offline-test", 0);
+
+        long offline = Metrics.GET_COUNT(Metrics.COUNTER_WRITES_OFFLINE);
+        Tasks.await(db.disableNetwork(), TIMEOUT_S, TimeUnit.SECONDS);
+        try
+        {
+            Task<Void> write = Toolkit.WRITE_LIMITED(charges, doc, hashMap);
+            try
+            {
+                Tasks.await(write, TIMEOUT_S, TimeUnit.SECONDS);
+                fail("an offline limited write succeeded");
+            }
+            catch (ExecutionException ex) { assertTrue(String.valueOf(ex.getCause()), Toolkit.IS_OFFLINE((Exception)ex.getCause())); }
+
+            // a queued write would show up in the local cache straight away
+            assertFalse(inCache(doc));
+            if (Metrics.IS_ENABLED()) assertEquals(offline + 1, Metrics.GET_COUNT(Metrics.COUNTER_WRITES_OFFLINE));
+        }
+        finally { Tasks.await(db.enableNetwork(), TIMEOUT_S, TimeUnit.SECONDS); }
+    }
+
+    // firebase fails a cache read of a document it does not hold
+    private static boolean inCache(DocumentReference _doc) throws Exception
+    {
+        try
+        {
+            DocumentSnapshot snapshot = Tasks.await(_doc.get(Source.CACHE), TIMEOUT_S, TimeUnit.SECONDS);
+            return snapshot.exists();
+        }
+        catch (ExecutionException ex) { return false; }
+    }
+}
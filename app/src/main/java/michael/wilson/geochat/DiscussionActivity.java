@@ -1,7 +1,8 @@
 package michael.wilson.geochat;
 
-import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Observer;
+import androidx.lifecycle.ViewModelProviders;
 import android.content.Context;
 import android.os.Bundle;
 import android.view.View;
@@ -9,6 +10,7 @@ import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import com.google.android.gms.maps.CameraUpdateFactory;
@@ -20,19 +22,16 @@ import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.MapStyleOptions;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.DocumentSnapshot;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 /** This activity must be started with an intent containing the unique identifier of a post Firebase document
  * This activity allows the user to:
  * > See a particular post's tile, body, location, and comments
  * > If the user created this post, they are given the option to delete it
  * > Submit a comment
+ *
+ * The post is held by a 'DiscussionViewModel', so it survives rotation, and no firebase listener references this activity
+ * A discussion opened before is shown from the thread cache first, then again once its new comments are fetched
  */
 public class DiscussionActivity extends AppCompatActivity implements OnMapReadyCallback
 {
@@ -46,17 +45,29 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
     TextView titleTxt, bodyTxt, dateTxt;
     View mapView;
     Button delButt;
+    ImageView postImage;
 
-    // The document reference to the post being shown
-    DocumentReference docRef;
+    // Storage path of the post's full-size image, only loaded if the user taps the thumbnail
+    String fullImagePath;
+
+    // Storage path of the post's thumbnail while it waits for a tap (not loaded straight away on a slow network)
+    String thumbPath;
+
+    // Holds the post being shown, and talks to firebase on this activity's behalf
+    DiscussionViewModel viewModel;
+
+    // Position to show on the mini-map once it is ready (known early if a post summary was passed in)
+    LatLng pendingPosition;
+
+    // True once 'reportFullyDrawn()' has been called
+    boolean fullyDrawn;
 
     /** Called when the activity is created
      * > Pairs the minimap view with this class's 'onMapReady()' callback
      * > Hides most of this activity's views
-     * > Gets firebase document reference from identifier stored in the intent
-     * > Updates textviews and minimap with data from firebase
-     * > Shows the previously hidden views (Except DELETE button if user is not the owner)
-     * > Passes comment data to 'handleComments(...)' which populates comment section with said data
+     * > If the intent carries a post summary (e.g. from a notification), shows it straight away
+     * > Asks the view model to load the post with the identifier stored in the intent (it is only fetched once per discussion)
+     * > Shows the post (see 'showPost(...)') whenever the view model publishes it
      */
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -72,6 +83,7 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
         dateTxt =  findViewById(R.id.postDate);
         delButt = findViewById(R.id.buttDelPost);
         mapView = findViewById(R.id.miniMap);
+        postImage = findViewById(R.id.postImage);
 
         // hide most views
         titleTxt.setVisibility(View.INVISIBLE);
@@ -82,59 +94,105 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
 
         // get unique firebase doc id stored within intent
         String tag = getIntent().getStringExtra(Toolkit.KEY_DISCUSS_TAG);
-        Toolkit.LOG("Post Loaded: "+tag);
+        Toolkit.LOG("Post Loaded: ", tag);
+
+        // render the summary (if any) while the full post and its comments load
+        PostSummary summary = Toolkit.READ_SUMMARY(getIntent());
+        if (summary != null) showSummary(summary);
 
-        // get firebase document
-        docRef = Toolkit.GET_POST(tag);
+        // load the post (kept by the view model across configuration changes)
+        viewModel = ViewModelProviders.of(this).get(DiscussionViewModel.class);
+        viewModel.load(tag);
 
-        // get data from firebase document and populate appropriate views
-        docRef.get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>()
+        // the observer is removed automatically when this activity is destroyed
+        viewModel.getPost().observe(this, new Observer<FirestorePost>()
         {
             @Override
-            public void onComplete(@NonNull Task<DocumentSnapshot> task)
+            public void onChanged(FirestorePost _post)
             {
-                if (task.isSuccessful())
+                try { showPost(_post); }
+                catch (Exception ex) { Toolkit.TOAST(R.string.post_load_err); }
+                viewModel.onShown();
+
+                // the full post with its comments (cached or fetched) marks the end of opening the discussion (measured by the benchmark module)
+                if (!fullyDrawn)
                 {
-                    try
-                    {
-                        FirestorePost tmp = task.getResult().toObject(FirestorePost.class);
-
-                        // update textviews with data from firebase
-                        titleTxt.setText(tmp.getTitle());
-                        bodyTxt.setText(tmp.getBody());
-                        dateTxt.setText(tmp.getDate());
-
-                        // update marker position, color, and title, from firebase data
-                        LatLng position = new LatLng(tmp.getLat(), tmp.getLng());
-                        int markerIconResource = R.mipmap.mcl_marker;
-                        if (tmp.getUserID().equals(Toolkit.GET_DEVICE_ID()))
-                        {
-                            markerIconResource = R.mipmap.mcl_marker_blue; // if owner, set marker to blue
-                            delButt.setVisibility(View.VISIBLE); // if owner, show 'DELETE' button
-                        }
-                        if (marker != null)
-                        {
-                            marker.setPosition(position);
-                            marker.setTitle(tmp.getTitle());
-                            marker.setIcon(BitmapDescriptorFactory.fromResource(markerIconResource));
-                        }
-                        if (miniMap != null) miniMap.moveCamera(CameraUpdateFactory.newLatLng(position));
-
-                        // show views which were previously hidden
-                        titleTxt.setVisibility(View.VISIBLE);
-                        bodyTxt.setVisibility(View.VISIBLE);
-                        dateTxt.setVisibility(View.VISIBLE);
-                        mapView.setVisibility(View.VISIBLE);
-
-                        // pass comment data to be handled
-                        handleComments(tmp.getComments());
-                    }
-                    catch (Exception ex) { Toolkit.TOAST(R.string.post_load_err); }
+                    fullyDrawn = true;
+                    reportFullyDrawn();
                 }
-                else  Toolkit.TOAST(R.string.post_load_err);
             }
         });
+    }
 
+    /** Called when the activity becomes visible, comments pushed to the thread are shown from now on (see 'ThreadTopics') */
+    @Override
+    protected void onStart()
+    {
+        super.onStart();
+        viewModel.onStart();
+    }
+
+    /** Called when the activity is no longer visible, pushed comments show a notification instead */
+    @Override
+    protected void onStop()
+    {
+        viewModel.onStop();
+        super.onStop();
+    }
+
+    /** Shows a post loaded from firebase
+     * > Updates textviews and minimap with the post's data
+     * > Shows the previously hidden views (Except DELETE button if user is not the owner)
+     * > Passes comment data to 'handleComments(...)' which populates comment section with said data
+     *
+     * @param _post - The post's data
+     */
+    void showPost(FirestorePost _post)
+    {
+        // update textviews with data from firebase
+        titleTxt.setText(_post.getTitle());
+        bodyTxt.setText(_post.getBody());
+        dateTxt.setText(_post.getDate());
+
+        // update marker position, color, and title, from firebase data
+        LatLng position = new LatLng(_post.getLat(), _post.getLng());
+        int markerIconResource = R.mipmap.mcl_marker;
+        if (_post.getUserID().equals(Toolkit.GET_DEVICE_ID()))
+        {
+            markerIconResource = R.mipmap.mcl_marker_blue; // if owner, set marker to blue
+            delButt.setVisibility(View.VISIBLE); // if owner, show 'DELETE' button
+        }
+        if (marker != null)
+        {
+            marker.setPosition(position);
+            marker.setTitle(_post.getTitle());
+            marker.setIcon(BitmapDescriptorFactory.fromResource(markerIconResource));
+        }
+        if (miniMap != null) miniMap.moveCamera(CameraUpdateFactory.newLatLng(position));
+        else pendingPosition = position;
+
+        // show the image's thumbnail (never the full-size image) if the post has one, only the first time it is shown
+        // (on a slow network, a placeholder is shown until it is tapped, see 'FetchPolicy.fullFidelity()')
+        if (_post.getThumb() != null && postImage.getVisibility() != View.VISIBLE)
+        {
+            fullImagePath = _post.getImage();
+            postImage.setVisibility(View.VISIBLE);
+            if (Toolkit.FETCH_POLICY.fullFidelity()) loadThumb(_post.getThumb());
+            else
+            {
+                thumbPath = _post.getThumb();
+                postImage.setImageResource(android.R.drawable.ic_menu_gallery);
+            }
+        }
+
+        // show views which were previously hidden
+        titleTxt.setVisibility(View.VISIBLE);
+        bodyTxt.setVisibility(View.VISIBLE);
+        dateTxt.setVisibility(View.VISIBLE);
+        mapView.setVisibility(View.VISIBLE);
+
+        // pass comment data to be handled
+        handleComments(_post.getComments());
     }
 
     /** Called when the mini-map is ready
@@ -150,41 +208,79 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
         miniMap.setMapStyle(MapStyleOptions.loadRawResourceStyle(this, R.raw.mapstheme));
         miniMap.moveCamera(CameraUpdateFactory.zoomTo(15.0f));
         miniMap.setMyLocationEnabled(true);
-        LatLng tmpLoc = new LatLng(0.0, 0.0);
+        LatLng tmpLoc = pendingPosition != null ? pendingPosition : new LatLng(0.0, 0.0);
         marker = miniMap.addMarker(new MarkerOptions().position(tmpLoc).title("[TITLE HERE]"));
         miniMap.moveCamera(CameraUpdateFactory.newLatLng(tmpLoc));
     }
 
+    /** Shows a post summary while the full post is being fetched
+     * > Sets the title and body (snippet) textviews and shows them
+     * > Moves the mini-map to the post's location (or remembers it until the mini-map is ready)
+     * > Shows the latest comment (e.g. the one a notification was about, possibly shortened) as the only comment so far
+     *
+     * @param _summary - Summary of the post being shown
+     */
+    void showSummary(PostSummary _summary)
+    {
+        if (_summary.getTitle() != null) titleTxt.setText(_summary.getTitle());
+        if (_summary.getSnippet() != null) bodyTxt.setText(_summary.getSnippet());
+        titleTxt.setVisibility(View.VISIBLE);
+        bodyTxt.setVisibility(View.VISIBLE);
+
+        pendingPosition = new LatLng(_summary.getLat(), _summary.getLng());
+        if (miniMap != null)
+        {
+            if (marker != null) marker.setPosition(pendingPosition);
+            miniMap.moveCamera(CameraUpdateFactory.newLatLng(pendingPosition));
+        }
+        mapView.setVisibility(View.VISIBLE);
+
+        // replaced by every comment once the post is shown
+        if (_summary.getLatestComment() != null)
+        {
+            Comment latest = new Comment();
+            latest.setCommentText(_summary.getLatestComment());
+            ArrayList<Comment> comments = new ArrayList<>();
+            comments.add(latest);
+            handleComments(comments);
+        }
+    }
+
     /** Updates the comment section with data from an list of 'Comment' objects
      *
      * @param _commentsData - Array of 'Comment' objects to be handled
      * */
     void handleComments(ArrayList<Comment> _commentsData)
     {
-        CommentListAdapter listAdapter = new CommentListAdapter(getApplicationContext(), R.layout.comment_layout, _commentsData);
-        ListView commentListView = findViewById(R.id.commentList);
-        commentListView.setAdapter(listAdapter);
-
-        // set the listview's height equal to the total height of all the views contained within it
-        int numberOfItems = listAdapter.getCount();
-        int totalItemsHeight = 0;
-        for (int itemPos = 0; itemPos < numberOfItems; itemPos++)
+        JankWatchdog.ENTER(JankTracker.CALLBACK_COMMENT_RENDER);
+        try
         {
-            View item = listAdapter.getView(itemPos, null, commentListView);
-            item.measure(0, 0);
-            totalItemsHeight += (item.getMeasuredHeight());
+            CommentListAdapter listAdapter = new CommentListAdapter(getApplicationContext(), R.layout.comment_layout, _commentsData);
+            ListView commentListView = findViewById(R.id.commentList);
+            commentListView.setAdapter(listAdapter);
+
+            // set the listview's height equal to the total height of all the views contained within it
+            int numberOfItems = listAdapter.getCount();
+            int totalItemsHeight = 0;
+            for (int itemPos = 0; itemPos < numberOfItems; itemPos++)
+            {
+                View item = listAdapter.getView(itemPos, null, commentListView);
+                item.measure(0, 0);
+                totalItemsHeight += (item.getMeasuredHeight());
+            }
+            int totalDividersHeight = commentListView.getDividerHeight() * (numberOfItems - 1);
+            ViewGroup.LayoutParams params = commentListView.getLayoutParams();
+            params.height = totalItemsHeight + totalDividersHeight;
+            commentListView.setLayoutParams(params);
+            commentListView.requestLayout();
         }
-        int totalDividersHeight = commentListView.getDividerHeight() * (numberOfItems - 1);
-        ViewGroup.LayoutParams params = commentListView.getLayoutParams();
-        params.height = totalItemsHeight + totalDividersHeight;
-        commentListView.setLayoutParams(params);
-        commentListView.requestLayout();
+        finally { JankWatchdog.EXIT(JankTracker.CALLBACK_COMMENT_RENDER); }
     }
 
     /** Called when the button to submit a comment ('SUBMIT') is clicked
      *  > Gets the comment string stored in the 'Add a comment' textbox
      *  > Hides the keyboard and clears the comment textbox
-     *  > Adds the new comment to Firebase
+     *  > Hands the comment to the view model, which adds it to Firebase (see 'DiscussionViewModel.submitComment(...)')
      *
      * @param _v - Button clicked (not used)
      */
@@ -211,61 +307,35 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
         commentTxtBox.clearFocus();
         commentTxtBox.setText("");
 
-        // update firebase with new comment
-        docRef.get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>()
+        // update firebase with new comment (the comment section is redrawn when the view model publishes the updated post)
+        viewModel.submitComment(commentStr);
+    }
+
+    /** Called when the post's image is clicked
+     * > Loads the thumbnail if only its placeholder is shown
+     * > Else replaces the thumbnail with the full-size image (sampled down to the view's size)
+     *
+     * @param _v - Image clicked (not used)
+     */
+    public void onImageClick(View _v)
+    {
+        if (thumbPath != null)
         {
-            @Override
-            public void onComplete(@NonNull Task<DocumentSnapshot> task)
-            {
-                if (task.isSuccessful())
-                {
-                    try
-                    {
-                        // Create new comment object from user input, current date, and phone id
-                        Comment tmpComment = new Comment();
-                        tmpComment.setCommentDate(Toolkit.GET_DATE());
-                        tmpComment.setCommentText(commentStr);
-                        tmpComment.setCommentUser(Toolkit.GET_DEVICE_ID());
-
-                        // get current comment list, add the new comment to it, and then put that data into a hashmap
-                        FirestorePost tmp = task.getResult().toObject(FirestorePost.class);
-                        tmp.addComment(tmpComment);
-                        Map<String, Object> hashMap = new HashMap<>();
-                        hashMap.put(FirestorePost.COMMENTS_KEY, tmp.getComments());
-
-                        // update firebase with new comment data
-                        docRef.update(hashMap).addOnCompleteListener(new OnCompleteListener<Void>()
-                        {
-                            @Override
-                            public void onComplete(@NonNull Task<Void> task)
-                            {
-                                if (task.isSuccessful())
-                                {
-                                    docRef.get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>()
-                                    {
-                                        @Override
-                                        public void onComplete(@NonNull Task<DocumentSnapshot> task)
-                                        {
-                                            if (task.isSuccessful())
-                                            {
-                                                // update comment section views with data from firebase
-                                                handleComments(task.getResult().toObject(FirestorePost.class).getComments());
-                                                Toolkit.TOAST(R.string.comment_succ);
-                                            }
-                                            else Toolkit.TOAST(R.string.comment_err);
-                                        }
-                                    });
-                                }
-                                else Toolkit.TOAST(R.string.comment_err);
-                            }
-                        });
-                    }
-                    catch (Exception ex) { Toolkit.TOAST(R.string.comment_err); }
-                }
-                else Toolkit.TOAST(R.string.comment_err);
-            }
-        });
+            loadThumb(thumbPath);
+            thumbPath = null;
+        }
+        else if (fullImagePath != null)
+        {
+            ImagePipeline.LOAD(fullImagePath, postImage, postImage.getWidth(), postImage.getHeight());
+            fullImagePath = null;
+        }
+    }
 
+    // loads the post's thumbnail into the image view
+    private void loadThumb(String _path)
+    {
+        ImagePipeline.LOAD(_path, postImage, getResources().getDisplayMetrics().widthPixels,
+                getResources().getDimensionPixelSize(R.dimen.post_image_height));
     }
 
     /** Called when the 'DELETE' button is clicked
@@ -276,7 +346,7 @@ public class DiscussionActivity extends AppCompatActivity implements OnMapReadyC
      * */
     public void onDeleteButt(View _v)
     {
-        Toolkit.DELETE_POST(docRef);
+        if (viewModel.getDocRef() != null) Toolkit.DELETE_POST(viewModel.getDocRef());
         finish();
     }
 }
@@ -0,0 +1,438 @@
+package michael.wilson.geochat;
+
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.ViewModel;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Holds the post shown by 'DiscussionActivity' and submits its comments
+ * > The post is fetched once per discussion, a recreated activity (e.g. after rotation) is given it straight away
+ * > A discussion opened before is shown from disk first (see 'ThreadCache'), then only comments newer than the cached ones are fetched
+ * > Each comment is its own document in the post's comments collection, so submitting one never rewrites the others
+ * > Firebase listeners only reference this view model, so a slow request never keeps a closed activity alive
+ * > A comment submitted just before the activity closes is still written (and counted), only the redraw is skipped
+ * > On slower networks comments are fetched in pages (the thread is shown at the first page and once complete, not at every
+ *   page), and on a slow one the post is shown before its comments arrive (see 'FetchPolicy')
+ * > Commenting follows the thread, and comments pushed to it while the discussion is on screen are shown without a fetch
+ *   (see 'ThreadTopics' and 'DELIVER(...)')
+ * > Every page fetched is given to 'Toolkit.RECORDER' while recording, and read from 'Toolkit.PLAYER' instead of firebase while a
+ *   tape is played (see 'FirestoreTape')
+ */
+public class DiscussionViewModel extends ViewModel
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Reads and writes the thread cache off the main thread (one thread, so writes of the same thread never interleave)
+    private static final ExecutorService DISK_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // The post being shown, null until loaded
+    private final MutableLiveData<FirestorePost> post = new MutableLiveData<>();
+
+    // The document reference to the post being shown
+    private DocumentReference docRef;
+
+    // Set once the owning activity is finished for good
+    private boolean cleared = false;
+
+    // The thread merged with the pages fetched since it was last shown, null if it is shown (see 'onSynced(...)')
+    private FirestorePost unshown;
+
+    // Start of 'load(...)', until the post is first shown (from disk or from firebase), 0 once shown
+    private long renderStart;
+
+    // View models whose discussion is on screen, by post id (only used on the main thread)
+    private static final Map<String, DiscussionViewModel> SHOWN = new HashMap<>();
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** Returns the post being shown */
+    public LiveData<FirestorePost> getPost() { return post; }
+
+    /** Returns the document reference to the post being shown (null until 'load(...)' is called) */
+    public DocumentReference getDocRef() { return docRef; }
+
+    /** Loads a post, does nothing if this view model has already loaded it
+     * > Shows the cached thread (if any, else the thread saved in an offline pack) as soon as it is read from disk
+     * > Then fetches the post's document and the comments newer than the cached ones (see 'sync(...)')
+     *
+     * @param _tag - Unique firebase document identifier of the post
+     */
+    public void load(final String _tag)
+    {
+        if (docRef != null && docRef.getId().equals(_tag)) return;
+
+        docRef = Toolkit.GET_POST(_tag);
+        renderStart = Metrics.BEGIN(Metrics.SECTION_THREAD_RENDER);
+
+        final ThreadCache cache = Toolkit.THREAD_CACHE;
+        if (cache == null)
+        {
+            sync(null, 0);
+            return;
+        }
+        DISK_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FirestorePost cached = cache.get(_tag);
+                if (cached != null)
+                {
+                    Metrics.INCREMENT(Metrics.COUNTER_THREAD_CACHE_HITS);
+                    post.postValue(cached);
+                }
+                else
+                {
+                    // a thread saved in an offline pack is shown until the sync arrives (or instead, offline), it only holds the
+                    // newest comments so the sync still fetches them all
+                    FirestorePost packed = Toolkit.PACKED_THREAD(_tag);
+                    if (packed != null) post.postValue(packed);
+                }
+
+                // firebase calls its listeners on the main thread, wherever the request is made from
+                sync(cached == null ? null : cached.getComments(), 0);
+            }
+        });
+    }
+
+    /** Adds a comment to the post
+     *  > Adds the new comment to the post's comments collection and records it in the post's activity counter
+     *    (held back or refused if this device commented too much recently, refused offline, see 'Toolkit.SCHEDULE_WRITE(...)')
+     *  > Fetches the comments written since the last sync, so the new one (and other users' new ones) are shown
+     *  > Records how long the whole submit (write, then sync) took in 'Metrics'
+     *
+     * @param _text - The comment's text
+     */
+    public void submitComment(final String _text)
+    {
+        final DocumentReference doc = docRef;
+        final String userID = Toolkit.GET_DEVICE_ID();
+
+        // the server sets the comment's time, so every client orders comments (and sets watermarks) the same way
+        final Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put(FirestorePost.COMMENT_TEXT_KEY, _text);
+        hashMap.put(FirestorePost.COMMENT_DATE_KEY, Toolkit.GET_DATE());
+        hashMap.put(FirestorePost.COMMENT_USER_KEY, userID);
+        hashMap.put(FirestorePost.COMMENT_TIME_KEY, FieldValue.serverTimestamp());
+
+        // a burst of comments is spread out rather than refused (see 'WriteLimits')
+        Toolkit.SCHEDULE_WRITE(WriteLimits.KIND_COMMENT, userID, 0, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long submitStart = Metrics.BEGIN(Metrics.SECTION_COMMENT_SUBMIT);
+                List<WriteLimits.Charge> charges = Toolkit.WRITE_LIMITS.charges(WriteLimits.KIND_COMMENT, userID, 0);
+                Toolkit.WRITE_LIMITED(charges, doc.collection(FirestorePost.COMMENTS_COLLECTION_NAME).document(), hashMap)
+                        .addOnCompleteListener(new OnCompleteListener<Void>()
+                {
+                    @Override
+                    public void onComplete(@NonNull Task<Void> task)
+                    {
+                        if (task.isSuccessful())
+                        {
+                            Toolkit.RECORD_ACTIVITY(doc);
+                            Toolkit.FOLLOW_THREAD(doc.getId());
+                            Metrics.INCREMENT(Metrics.COUNTER_COMMENTS_SUBMITTED);
+                            Toolkit.TOAST(R.string.comment_succ);
+                            if (!cleared && doc == docRef)
+                            {
+                                FirestorePost shown = post.getValue();
+                                sync(shown == null ? null : shown.getComments(), submitStart);
+                            }
+                        }
+                        else if (Toolkit.IS_LIMITED(task.getException()))
+                        {
+                            Metrics.INCREMENT(Metrics.COUNTER_COMMENTS_ERR);
+                            Toolkit.TOAST(R.string.write_refused);
+                        }
+                        else if (Toolkit.IS_OFFLINE(task.getException()))
+                        {
+                            Metrics.INCREMENT(Metrics.COUNTER_COMMENTS_ERR);
+                            Toolkit.TOAST(R.string.write_offline);
+                        }
+                        else onCommentErr();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Records the time from 'load(...)' until the post is first shown, called by 'DiscussionActivity' each time it shows one */
+    public void onShown()
+    {
+        if (renderStart == 0) return;
+        Metrics.END(Metrics.SECTION_THREAD_RENDER, renderStart);
+        renderStart = 0;
+    }
+
+    /** Called when the owning activity becomes visible, and when it stops being visible
+     * > While visible, comments pushed to the thread are given to this view model (see 'DELIVER(...)')
+     */
+    public void onStart() { if (docRef != null) SHOWN.put(docRef.getId(), this); }
+    public void onStop() { if (docRef != null && SHOWN.get(docRef.getId()) == this) SHOWN.remove(docRef.getId()); }
+
+    /** Gives a comment pushed to a thread's topic to its discussion, if it is on screen (called on the main thread)
+     * > The comment is shown and cached straight away if it follows the newest comment shown
+     * > Else (a message was missed, or the comment did not fit in it) the comments from the watermark are fetched
+     *
+     * @param _delta - The comment pushed (see 'ThreadTopics')
+     * @return False if the discussion is not on screen or still loading (a notification is shown instead)
+     */
+    public static boolean DELIVER(ThreadTopics.Delta _delta)
+    {
+        DiscussionViewModel viewModel = SHOWN.get(_delta.getDocID());
+        return viewModel != null && viewModel.apply(_delta);
+    }
+
+    /** Called when the owning activity is finished for good, later results are no longer published */
+    @Override
+    protected void onCleared()
+    {
+        cleared = true;
+        onStop();
+    }
+
+    // shows a pushed comment, or fetches the comments from the watermark if it does not follow the ones shown
+    private boolean apply(ThreadTopics.Delta _delta)
+    {
+        FirestorePost shown = post.getValue();
+        if (shown == null) return false;
+
+        ArrayList<Comment> merged = ThreadTopics.APPLY(shown.getComments(), _delta);
+        if (merged == null)
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_COMMENT_DELTA_GAPS);
+            sync(shown.getComments(), 0);
+            return true;
+        }
+        Metrics.INCREMENT(Metrics.COUNTER_COMMENT_DELTAS);
+
+        final String docID = docRef.getId();
+        final FirestorePost updated = COPY(shown, merged);
+        post.setValue(updated);
+        if (Toolkit.THREAD_CACHE != null)
+        {
+            final ThreadCache cache = Toolkit.THREAD_CACHE;
+            DISK_EXECUTOR.execute(new Runnable()
+            {
+                @Override
+                public void run() { cache.put(docID, updated); }
+            });
+        }
+        return true;
+    }
+
+    // fetches the post's document and the comments from the watermark of '_known' on, then shows and caches the merged thread
+    // ('_submitStart' is the start of a comment submit this sync finishes, 0 if none)
+    private void sync(final List<Comment> _known, final long _submitStart)
+    {
+        sync(_known, _submitStart, Toolkit.FETCH_POLICY.commentPageSize(), null, true);
+    }
+
+    // fetches one page of comments ('_pageSize' of them, 0 for all) from the watermark of '_known' on, and the post's document
+    // unless the previous page already did ('_header'), caches the merged thread, shows it if it is the sync's first or last
+    // page, then fetches the next page if any (from the tape being played instead of firebase, if any)
+    private void sync(final List<Comment> _known, final long _submitStart, final int _pageSize, Task<DocumentSnapshot> _header,
+                      final boolean _firstPage)
+    {
+        final DocumentReference doc = docRef;
+        final long syncStart = Metrics.BEGIN(Metrics.SECTION_THREAD_SYNC);
+        final long sent = SystemClock.uptimeMillis();
+
+        // comments at exactly the watermark are fetched again, in case several were written in the same millisecond
+        final long watermark = ThreadCache.WATERMARK(_known);
+        final String key = FirestoreTape.KEY_THREAD(doc.getId(), watermark, _pageSize);
+
+        if (Toolkit.PLAYER != null)
+        {
+            Toolkit.PLAYER.read(key, new FirestoreTape.Callback()
+            {
+                @Override
+                public void onAnswer(FirestoreTape.Exchange _answer)
+                {
+                    JankWatchdog.ENTER(JankTracker.CALLBACK_THREAD_SYNC);
+                    try
+                    {
+                        // the answer's documents are shared by every read of it, the post is copied before comments are merged in
+                        FirestorePost tmp = null;
+                        List<Comment> fetched = null;
+                        if (!_answer.isFailed())
+                        {
+                            fetched = new ArrayList<>();
+                            for (FirestoreTape.Document document : _answer.getDocuments())
+                            {
+                                if (document.getPost() != null) tmp = COPY(document.getPost(), document.getPost().getComments());
+                                else fetched.add(document.getComment());
+                            }
+                        }
+                        onSynced(doc, _known, _submitStart, _pageSize, watermark, null, true, _firstPage, syncStart, sent, tmp,
+                                !_answer.isFailed() && tmp == null, false, fetched);
+                    }
+                    finally { JankWatchdog.EXIT(JankTracker.CALLBACK_THREAD_SYNC); }
+                }
+            });
+            return;
+        }
+
+        Query delta = doc.collection(FirestorePost.COMMENTS_COLLECTION_NAME);
+        if (watermark != ThreadCache.NO_WATERMARK) delta = delta.whereGreaterThanOrEqualTo(FirestorePost.COMMENT_TIME_KEY, new Date(watermark));
+        delta = delta.orderBy(FirestorePost.COMMENT_TIME_KEY);
+        if (_pageSize > 0) delta = delta.limit(_pageSize);
+
+        final boolean fetchHeader = _header == null;
+        final Task<DocumentSnapshot> header = fetchHeader ? doc.get() : _header;
+
+        // on a slow network, the post is shown as soon as its document arrives (unless a cached thread already is)
+        if (fetchHeader && !Toolkit.FETCH_POLICY.fullFidelity())
+        {
+            header.addOnSuccessListener(new OnSuccessListener<DocumentSnapshot>()
+            {
+                @Override
+                public void onSuccess(DocumentSnapshot _snapshot)
+                {
+                    FirestorePost tmp = _snapshot.toObject(FirestorePost.class);
+                    if (tmp == null || cleared || doc != docRef || post.getValue() != null) return;
+                    tmp.setComments(ThreadCache.MERGE(_known, new ArrayList<Comment>(), tmp.getComments()));
+                    post.setValue(tmp);
+                }
+            });
+        }
+
+        Tasks.whenAllComplete(header, delta.get()).addOnCompleteListener(new OnCompleteListener<List<Task<?>>>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<List<Task<?>>> task)
+            {
+                JankWatchdog.ENTER(JankTracker.CALLBACK_THREAD_SYNC);
+                try
+                {
+                    Task<?> comments = task.getResult().get(1);
+                    DocumentSnapshot snapshot = header.isSuccessful() ? header.getResult() : null;
+                    FirestorePost tmp = snapshot != null ? snapshot.toObject(FirestorePost.class) : null;
+                    boolean deleted = snapshot != null && !snapshot.exists();
+                    boolean fromCache = snapshot != null && snapshot.getMetadata().isFromCache();
+                    List<Comment> fetched = null;
+                    if (comments.isSuccessful())
+                    {
+                        fromCache |= ((QuerySnapshot)comments.getResult()).getMetadata().isFromCache();
+                        fetched = new ArrayList<>();
+                        for (DocumentSnapshot document : (QuerySnapshot)comments.getResult())
+                        {
+                            Comment comment = document.toObject(Comment.class);
+                            comment.setCommentID(document.getId());
+                            fetched.add(comment);
+                        }
+                    }
+
+                    // recorded before the comments are merged into the post (a deleted post is an answer without it)
+                    if (Toolkit.RECORDER != null)
+                    {
+                        List<FirestoreTape.Document> documents = null;
+                        if (fetched != null && (tmp != null || deleted))
+                        {
+                            documents = new ArrayList<>();
+                            if (tmp != null) documents.add(new FirestoreTape.Document(doc.getId(), tmp));
+                            for (Comment comment : fetched) documents.add(new FirestoreTape.Document(comment.getCommentID(), comment));
+                        }
+                        Toolkit.RECORD_READ(key, sent, documents);
+                    }
+                    onSynced(doc, _known, _submitStart, _pageSize, watermark, header, fetchHeader, _firstPage, syncStart, sent, tmp,
+                            deleted && !fromCache, fromCache, fetched);
+                }
+                finally { JankWatchdog.EXIT(JankTracker.CALLBACK_THREAD_SYNC); }
+            }
+        });
+    }
+
+    // caches a page of the thread fetched by 'sync(...)' and shows it if it is the first or the last, then fetches the next page
+    // if any ('_post' is null if it could not be read or '_deleted', '_fetched' is null if the comments could not be read,
+    // '_header' is null if every page fetches it, '_fromCache' is true if firebase answered from its local cache, i.e. offline)
+    private void onSynced(final DocumentReference _doc, List<Comment> _known, long _submitStart, int _pageSize, long _watermark,
+                          Task<DocumentSnapshot> _header, boolean _fetchedHeader, boolean _firstPage, long _syncStart, long _sent,
+                          final FirestorePost _post, boolean _deleted, boolean _fromCache, List<Comment> _fetched)
+    {
+        // offline, firebase answers with whatever part of the thread it happened to keep: the thread already shown (cached, or
+        // from a pack) is kept instead, and a partial thread is never written to the cache (its watermark would hide the rest)
+        boolean shown = post.getValue() != null || unshown != null;
+        if (_fromCache && shown) _fetched = null;
+        if (_post == null || _fetched == null)
+        {
+            // a missing document means the post was deleted, its cached thread is of no use anymore
+            if (_deleted && Toolkit.THREAD_CACHE != null) Toolkit.THREAD_CACHE.remove(_doc.getId());
+            if (!cleared) Toolkit.TOAST(!_deleted && shown ? R.string.pack_offline : R.string.post_load_err);
+
+            // the pages fetched before this one are still shown
+            if (!_deleted && !cleared && _doc == docRef && unshown != null) post.setValue(unshown);
+            unshown = null;
+            return;
+        }
+
+        long bytes = _fetchedHeader ? ThreadCache.ESTIMATE_BYTES(_post) : 0;
+        for (Comment comment : _fetched) bytes += ThreadCache.ESTIMATE_BYTES(comment);
+        if (!_fromCache)
+        {
+            Metrics.ADD(Metrics.COUNTER_THREAD_BYTES_DOWN, bytes);
+            Toolkit.FETCH_POLICY.onResponse(bytes, SystemClock.uptimeMillis() - _sent);
+        }
+        final ArrayList<Comment> merged = ThreadCache.MERGE(_known, _fetched, _post.getComments());
+        _post.setComments(merged);
+        Metrics.END(Metrics.SECTION_THREAD_SYNC, _syncStart);
+
+        // every time the post is published the whole comment section is redrawn, so a long thread fetched in many pages is only
+        // shown at its first page (something to read straight away) and once complete
+        int next = FetchPolicy.NEXT_PAGE(_fetched.size(), _pageSize, _watermark, ThreadCache.WATERMARK(merged));
+        if (!cleared && _doc == docRef && (_firstPage || next == FetchPolicy.NO_PAGE))
+        {
+            post.setValue(_post);
+            unshown = null;
+            if (_submitStart != 0) Metrics.END(Metrics.SECTION_COMMENT_SUBMIT, _submitStart);
+        }
+        else unshown = _post;
+        if (Toolkit.THREAD_CACHE != null && !_fromCache)
+        {
+            final ThreadCache cache = Toolkit.THREAD_CACHE;
+            DISK_EXECUTOR.execute(new Runnable()
+            {
+                @Override
+                public void run() { cache.put(_doc.getId(), _post); }
+            });
+        }
+        if (_fromCache) return;
+
+        // the cached thread is complete up to the page just fetched, so a discussion closed mid-way resumes from there
+        if (next != FetchPolicy.NO_PAGE && !cleared && _doc == docRef) sync(merged, 0, next, _header, false);
+    }
+
+    // returns a copy of a post with other comments (the original may still be shown, or being written to the cache)
+    private static FirestorePost COPY(FirestorePost _post, ArrayList<Comment> _comments)
+    {
+        return new FirestorePost(_post.getTitle(), _post.getBody(), _post.getDate(), _post.getUserID(), _post.getUserToken(),
+                _post.getImage(), _post.getThumb(), _post.getLat(), _post.getLng(), _post.getCommentCount(), _post.getLastActivity(),
+                _post.getCell(), _comments);
+    }
+
+    // called when a comment could not be submitted
+    private void onCommentErr()
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_COMMENTS_ERR);
+        Toolkit.TOAST(R.string.comment_err);
+    }
+}
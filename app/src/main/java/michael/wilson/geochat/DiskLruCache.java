@@ -0,0 +1,186 @@
+package michael.wilson.geochat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A size-bounded cache of byte blobs stored as files in one directory
+ * > Each key is stored in its own file (named by the key's SHA-1), written atomically via a temporary file
+ * > When the total size goes over 'maxBytes', the least recently used entries are deleted
+ * > Recency survives restarts through the files' last-modified times
+ */
+public class DiskLruCache
+{
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes;
+
+    // file name -> size, in access order (eldest first)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Constructor, opens (or creates) a cache directory and indexes the files already in it
+     *
+     * @param _dir - Directory used only by this cache
+     * @param _maxBytes - Maximum total size of all entries
+     */
+    public DiskLruCache(File _dir, long _maxBytes)
+    {
+        this.dir = _dir;
+        this.maxBytes = _maxBytes;
+        if (!_dir.exists()) _dir.mkdirs();
+
+        File[] files = _dir.listFiles();
+        if (files == null) files = new File[0];
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File _a, File _b) { return Long.compare(_a.lastModified(), _b.lastModified()); }
+        });
+        for (File file : files)
+        {
+            if (file.getName().endsWith(TMP_SUFFIX)) file.delete();
+            else
+            {
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+        trim();
+    }
+
+    /** Returns the blob stored for a key, or null if there is none
+     *
+     * @param _key - The entry's key
+     */
+    public synchronized byte[] get(String _key)
+    {
+        String name = FILE_NAME(_key);
+        if (entries.get(name) == null) return null;
+        File file = new File(dir, name);
+        try
+        {
+            byte[] data = READ_FULLY(file);
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        }
+        catch (IOException ex)
+        {
+            removeEntry(name);
+            return null;
+        }
+    }
+
+    /** Returns true if there is an entry for the given key (does not count as a use) */
+    public synchronized boolean contains(String _key) { return entries.containsKey(FILE_NAME(_key)); }
+
+    /** Stores a blob for a key, replacing any previous entry, then evicts old entries if over the size limit
+     *
+     * @param _key - The entry's key
+     * @param _data - The blob to store
+     * @return True if it was stored
+     */
+    public synchronized boolean put(String _key, byte[] _data)
+    {
+        if (_data.length > maxBytes) return false;
+        String name = FILE_NAME(_key);
+        File tmp = new File(dir, name + TMP_SUFFIX), file = new File(dir, name);
+        try (OutputStream out = new FileOutputStream(tmp))
+        {
+            out.write(_data);
+        }
+        catch (IOException ex)
+        {
+            tmp.delete();
+            return false;
+        }
+        removeEntry(name);
+        if (!tmp.renameTo(file))
+        {
+            tmp.delete();
+            return false;
+        }
+        entries.put(name, (long)_data.length);
+        totalBytes += _data.length;
+        trim();
+        return true;
+    }
+
+    /** Removes the entry for a key, if any */
+    public synchronized void remove(String _key) { removeEntry(FILE_NAME(_key)); }
+
+    /** Returns the total size of all entries in bytes */
+    public synchronized long size() { return totalBytes; }
+
+    /** Returns the number of entries */
+    public synchronized int count() { return entries.size(); }
+
+    private void removeEntry(String _name)
+    {
+        Long size = entries.remove(_name);
+        if (size != null)
+        {
+            totalBytes -= size;
+            new File(dir, _name).delete();
+        }
+    }
+
+    // deletes the least recently used entries until the cache fits
+    private void trim()
+    {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        while (totalBytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+        for (String name : evicted) new File(dir, name).delete();
+    }
+
+    /** Returns the file name used for a key (hex SHA-1, so any key is a safe file name) */
+    public static String FILE_NAME(String _key)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(_key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex) { throw new IllegalStateException(ex); }
+    }
+
+    /** Reads a whole file into memory */
+    public static byte[] READ_FULLY(File _file) throws IOException
+    {
+        byte[] data = new byte[(int)_file.length()];
+        try (InputStream in = new FileInputStream(_file))
+        {
+            int read = 0;
+            while (read < data.length)
+            {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) throw new IOException("Unexpected end of file");
+                read += n;
+            }
+        }
+        return data;
+    }
+}
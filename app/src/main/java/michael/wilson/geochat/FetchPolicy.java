@@ -0,0 +1,165 @@
+package michael.wilson.geochat;
+
+import java.util.Locale;
+
+/** Decides how much to download at once, from the latency and throughput seen on the current network
+ * > Every finished request reports its size and duration ('onResponse(...)'): small responses measure latency, larger ones
+ *   throughput (their duration minus the latency), both smoothed. Time per byte is smoothed rather than bytes per second,
+ *   so a network getting slower is noticed within a few responses (a fast sample would otherwise dominate the average)
+ * > A new network ('onNetwork(...)') starts over from the link's own bandwidth estimate, if it has one
+ * > The network's tier is how long a typical page ('TIER_PROBE_BYTES') is expected to take:
+ *   fast networks get everything at once, as before;
+ *   medium networks get comments in pages of 'COMMENT_PAGE_MEDIUM' and prefetch less;
+ *   slow networks show a discussion as soon as its post arrives (comments follow in small pages, thumbnails only on tap),
+ *   load only the most active posts when the map is zoomed out, fetch fewer regions at once, and never prefetch
+ * > Metered networks prefetch as if they were one tier slower
+ *
+ * Thread safe, a discussion opened from the thread cache asks for its page size off the main thread.
+ * Plain java so it can be tested (and networks simulated) off-device.
+ */
+public class FetchPolicy
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Network tiers
+    public static final int TIER_FAST = 0, TIER_MEDIUM = 1, TIER_SLOW = 2;
+    public static final String[] TIER_NAMES = {"fast", "medium", "slow"};
+
+    // A network is fast if 'TIER_PROBE_BYTES' are expected within 'FAST_MS', medium within 'MEDIUM_MS', slow otherwise
+    public static final long TIER_PROBE_BYTES = 32 * 1024, FAST_MS = 400, MEDIUM_MS = 2000;
+
+    // Comments fetched per page (0 is every comment at once)
+    public static final int COMMENT_PAGE_FAST = 0, COMMENT_PAGE_MEDIUM = 100, COMMENT_PAGE_SLOW = 25;
+
+    // Returned by 'NEXT_PAGE(...)' when a thread has no more comments to fetch
+    public static final int NO_PAGE = -1;
+
+    // Posts loaded when the map is zoomed out too far for regions, on a slow network (the most active first)
+    public static final int REFRESH_LIMIT_SLOW = 200;
+
+    // Region fetches at once on a slow network (concurrent fetches share the bandwidth, so the nearest region arrives later)
+    public static final int MAX_IN_FLIGHT_SLOW = 2;
+
+    // Assumed before anything is measured: a mediocre mobile network
+    public static final long DEFAULT_LATENCY_MS = 150, DEFAULT_BYTES_PER_SECOND = 128 * 1024;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Responses up to this size measure latency only (their transfer time is lost in the noise)
+    private static final long SMALL_BYTES = 2 * 1024;
+
+    // Weight of a new measurement in the smoothed estimates
+    private static final double ALPHA = 0.3;
+
+    // Prefetch budget of each tier
+    private static final long[] PREFETCH_BYTES = {RegionScheduler.PREFETCH_BUDGET_BYTES, RegionScheduler.PREFETCH_BUDGET_BYTES / 4, 0};
+
+    private double latencyMs = DEFAULT_LATENCY_MS, msPerByte = 1000.0 / DEFAULT_BYTES_PER_SECOND;
+    private int latencySamples, throughputSamples;
+    private boolean metered;
+
+    /** Called when the device switches to another network (or the current one changes), forgets what was measured
+     *
+     * @param _metered - True if the network is metered (most cellular plans, hotspots)
+     * @param _downKbps - The link's own estimate of its bandwidth in kilobits per second, 0 if it has none
+     */
+    public synchronized void onNetwork(boolean _metered, long _downKbps)
+    {
+        metered = _metered;
+        latencyMs = DEFAULT_LATENCY_MS;
+        msPerByte = 1000.0 / (_downKbps > 0 ? _downKbps * 1000 / 8 : DEFAULT_BYTES_PER_SECOND);
+        latencySamples = 0;
+        throughputSamples = 0;
+    }
+
+    /** Called when the metered state of the current network changes (e.g. the hotspot's owner changed it), keeps the estimates */
+    public synchronized void setMetered(boolean _metered) { metered = _metered; }
+
+    /** Called when a request finished
+     *
+     * @param _bytes - Size of the response (an estimate is good enough)
+     * @param _durationMs - Time from sending the request until the whole response arrived
+     */
+    public synchronized void onResponse(long _bytes, long _durationMs)
+    {
+        double duration = Math.max(_durationMs, 1);
+        if (_bytes <= SMALL_BYTES)
+        {
+            latencyMs = latencySamples++ == 0 ? duration : latencyMs + ALPHA * (duration - latencyMs);
+            return;
+        }
+
+        // the latency is subtracted, but never more than most of the duration (the latency estimate may be off)
+        double transferMs = Math.max(duration - latencyMs, duration / 4);
+        double sample = transferMs / _bytes;
+        msPerByte = throughputSamples++ == 0 ? sample : msPerByte + ALPHA * (sample - msPerByte);
+    }
+
+    /** Returns how long a request for '_bytes' is expected to take, in milliseconds */
+    public synchronized long expectedMs(long _bytes) { return Math.round(latencyMs + _bytes * msPerByte); }
+
+    /** Returns the current network's tier ('TIER_*') */
+    public int tier()
+    {
+        long probe = expectedMs(TIER_PROBE_BYTES);
+        if (probe <= FAST_MS) return TIER_FAST;
+        return probe <= MEDIUM_MS ? TIER_MEDIUM : TIER_SLOW;
+    }
+
+    public synchronized boolean isMetered() { return metered; }
+
+    /** Returns false if only the essentials should be downloaded before something is shown (slow networks)
+     * > A discussion is shown as soon as its post arrives, without waiting for its comments
+     * > Thumbnails are only loaded when tapped
+     */
+    public boolean fullFidelity() { return tier() != TIER_SLOW; }
+
+    /** Returns how many comments to fetch per page (0 is every comment at once) */
+    public int commentPageSize()
+    {
+        switch (tier())
+        {
+            case TIER_FAST: return COMMENT_PAGE_FAST;
+            case TIER_MEDIUM: return COMMENT_PAGE_MEDIUM;
+            default: return COMMENT_PAGE_SLOW;
+        }
+    }
+
+    /** Returns how many posts to load when the map is zoomed out too far for regions (0 is every post) */
+    public int refreshLimit() { return tier() == TIER_SLOW ? REFRESH_LIMIT_SLOW : 0; }
+
+    /** Returns how many regions to fetch at once (see 'RegionScheduler.setLimits(...)') */
+    public int maxInFlight() { return tier() == TIER_SLOW ? MAX_IN_FLIGHT_SLOW : RegionScheduler.MAX_IN_FLIGHT; }
+
+    /** Returns how many prefetched-but-unseen region bytes to allow (see 'RegionScheduler.setLimits(...)'), one tier less if metered */
+    public long prefetchBudgetBytes()
+    {
+        int tier = tier() + (isMetered() ? 1 : 0);
+        return PREFETCH_BYTES[Math.min(tier, TIER_SLOW)];
+    }
+
+    /** Returns whether (and how many) comments to fetch next, after a page of them came back
+     * > Only a full page can have more behind it
+     * > The next page starts at the newest comment fetched, a page which did not move past the previous one (a full page of
+     *   comments written in the same millisecond) would be fetched forever, the rest is then fetched at once
+     *
+     * @param _fetched - Comments in the page that came back
+     * @param _pageSize - Comments asked for (0 is every comment)
+     * @param _watermark - Newest comment time before the page
+     * @param _newWatermark - Newest comment time after the page
+     * @return 'NO_PAGE' if the thread is complete, else the size of the next page (0 is every remaining comment)
+     */
+    public static int NEXT_PAGE(int _fetched, int _pageSize, long _watermark, long _newWatermark)
+    {
+        if (_pageSize == 0 || _fetched < _pageSize) return NO_PAGE;
+        return _newWatermark == _watermark ? 0 : _pageSize;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "network tier=" + TIER_NAMES[tier()] + " metered=" + metered + " latency_ms=" + Math.round(latencyMs)
+                + " throughput_kbps=" + String.format(Locale.US, "%.0f", 8 / msPerByte) + " latency_samples=" + latencySamples
+                + " throughput_samples=" + throughputSamples;
+    }
+}
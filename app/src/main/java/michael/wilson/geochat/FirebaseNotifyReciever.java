@@ -1,7 +1,10 @@
 package michael.wilson.geochat;
 
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 
@@ -15,8 +18,11 @@ public class FirebaseNotifyReciever extends FirebaseMessagingService
     // counter to give each notification a unique identifier
     static int intentNum = 0;
 
+    // comments pushed to a thread are given to its discussion on the main thread
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
     /** Called when Firebase Cloud Messaging sends a new token
-     * > Sets the global user token when a new token is dispatched
+     * > Sets the global user token and writes it to the token registry, so notifications about older posts reach the new token
      *
      * @param _token - New token
      * */
@@ -24,29 +30,70 @@ public class FirebaseNotifyReciever extends FirebaseMessagingService
     public void onNewToken(@NonNull String _token)
     {
         super.onNewToken(_token);
-        Toolkit.SET_USER_TOKEN(_token);
+        Toolkit.REGISTER_TOKEN(this, _token);
+    }
+
+    /** Called when a message from Firebase Cloud Messaging is reveived (see 'ON_MESSAGE(...)') */
+    @Override
+    public void onMessageReceived(@NonNull RemoteMessage _remoteMessage)
+    {
+        RemoteMessage.Notification notification = _remoteMessage.getNotification();
+        ON_MESSAGE(this, _remoteMessage.getData(), notification == null ? null : notification.getTitle(),
+                notification == null ? null : notification.getBody());
     }
 
-    /** Called when a message from Firebase Cloud Messaging is reveived
-     * > Gets data from the message
+    /** Handles a message from Firebase Cloud Messaging
+     * > Initializes what the backend needs first: comment pushes carry data only, so they are delivered even when the app's
+     *   process was killed, and then nothing else has initialized it
      * > If the message was sent by this same phone, do not display it
      * > If the message was sent from a different phone, display it
+     * > If the message carries a post summary, it is forwarded so 'DiscussionActivity' can render it immediately
+     * > If the message is a comment pushed to a thread (see 'ThreadTopics') and the discussion is on screen, the comment is shown
+     *   there instead of as a notification
      *
-     * @param _remoteMessage - Incoming message from Firebase
+     * @param _context - Any context, e.g. the service's
+     * @param _data - The message's data payload
+     * @param _title - Title of the message's notification, null if it has none
+     * @param _body - Body of the message's notification, null if it has none
      * */
-    @Override
-    public void onMessageReceived(@NonNull RemoteMessage _remoteMessage)
+    static void ON_MESSAGE(final Context _context, final Map<String, String> _data, String _title, String _body)
     {
-        Map<String, String> data = _remoteMessage.getData();
-        RemoteMessage.Notification notification = _remoteMessage.getNotification();
+        Toolkit.INITIALIZE_BACKGROUND(_context);
+        long start = Metrics.BEGIN(Metrics.SECTION_NOTIFICATION);
+        Metrics.INCREMENT(Metrics.COUNTER_NOTIFS_RECEIVED);
 
-        if (!Toolkit.GET_DEVICE_ID().equals(data.get(Toolkit.KEY_NOTIFPAYLOAD_SENDER)))
+        if (!Toolkit.GET_DEVICE_ID().equals(_data.get(Toolkit.KEY_NOTIFPAYLOAD_SENDER)))
         {
-            String docID = data.get(Toolkit.KEY_NOTIFPAYLOAD_DOCID);
-            Intent i = Toolkit.OPEN_POST_INTENT(docID);
-            PendingIntent pintent = PendingIntent.getActivity(getBaseContext(), intentNum, i, PendingIntent.FLAG_UPDATE_CURRENT);
-            Toolkit.NOTIFY(notification.getTitle(), notification.getBody(), pintent);
-            intentNum++;
+            final ThreadTopics.Delta delta = ThreadTopics.DECODE_DELTA(_data);
+            if (delta == null) SHOW_NOTIFICATION(_context, _data, _title, _body);
+            else
+            {
+                // comment pushes carry data only, the notification is built from the post's summary
+                MAIN_HANDLER.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (DiscussionViewModel.DELIVER(delta)) return;
+                        PostSummary summary = NotifyPayload.DECODE(_data);
+                        String title = summary == null || summary.getTitle() == null ? "" : summary.getTitle();
+                        SHOW_NOTIFICATION(_context, _data, _context.getString(R.string.comment_notif_title, title),
+                                summary == null ? null : summary.getLatestComment());
+                    }
+                });
+            }
         }
+        Metrics.END(Metrics.SECTION_NOTIFICATION, start);
+    }
+
+    // shows a notification opening the post the message is about
+    private static void SHOW_NOTIFICATION(Context _context, Map<String, String> _data, String _title, String _body)
+    {
+        String docID = _data.get(Toolkit.KEY_NOTIFPAYLOAD_DOCID);
+        Intent i = Toolkit.OPEN_POST_INTENT(docID, NotifyPayload.DECODE(_data));
+        PendingIntent pintent = PendingIntent.getActivity(_context, intentNum, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        Toolkit.NOTIFY(_title, _body, pintent);
+        intentNum++;
+        Metrics.INCREMENT(Metrics.COUNTER_NOTIFS_SHOWN);
     }
 }
@@ -0,0 +1,400 @@
+package michael.wilson.geochat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Records what firebase answers to the app's reads and plays it back, so runs can be reproduced and compared
+ * > A tape holds the exchanges of a session: the read made (its key, see the 'KEY_*' methods), when it was made, how long
+ *   firebase took to answer, and the documents answered (posts, or comments), or that it failed
+ * > While 'Toolkit.RECORDER' is set, the view models give it every answer they decode, it is then written to a file
+ *   (versioned binary, gzipped)
+ * > While 'Toolkit.PLAYER' is set, the view models read from it instead of firebase: a read gets the next answer recorded
+ *   for its key, after the recorded time divided by the speed (0 answers at once), and the usual code indexes and draws it
+ * > A read made more often than recorded gets the last answer again, a read never recorded fails (like an offline device)
+ *
+ * Plain java so tapes can be played back (and benchmarked) off-device, without the network.
+ */
+public class FirestoreTape
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // First bytes of every tape ("GCFT"), and the current version of the format
+    public static final int MAGIC = 0x47434654, VERSION = 1;
+
+    /** Runs answers later: a 'Handler' on the main thread in the app, a simulated clock off-device */
+    public interface Scheduler
+    {
+        void schedule(Runnable _task, long _delayMs);
+    }
+
+    /** Receives the answer to a read */
+    public interface Callback
+    {
+        void onAnswer(Exchange _answer);
+    }
+
+    /** A document answered: a post (with the comments kept in its document), or a comment */
+    public static class Document
+    {
+        private final String id;
+        private final FirestorePost post;
+        private final Comment comment;
+
+        public Document(String _id, FirestorePost _post) { this(_id, _post, null); }
+        public Document(String _id, Comment _comment) { this(_id, null, _comment); }
+
+        private Document(String _id, FirestorePost _post, Comment _comment)
+        {
+            this.id = _id;
+            this.post = _post;
+            this.comment = _comment;
+        }
+
+        public String getID() {return id;}
+        public FirestorePost getPost() {return post;}
+        public Comment getComment() {return comment;}
+    }
+
+    /** A read and its answer */
+    public static class Exchange
+    {
+        private final String key;
+        private final long sentMs, durationMs;
+        private final List<Document> documents;
+
+        Exchange(String _key, long _sentMs, long _durationMs, List<Document> _documents)
+        {
+            this.key = _key;
+            this.sentMs = _sentMs;
+            this.durationMs = _durationMs;
+            this.documents = _documents;
+        }
+
+        public String getKey() {return key;}
+
+        /** When the read was made, in milliseconds from the start of the recording */
+        public long getSentMs() {return sentMs;}
+
+        /** How long firebase took to answer */
+        public long getDurationMs() {return durationMs;}
+
+        public boolean isFailed() {return documents == null;}
+
+        /** Returns the documents answered (null if the read failed), shared by every read given this answer so never changed */
+        public List<Document> getDocuments() {return documents;}
+    }
+
+    /** Collects the exchanges of a session
+     * > Each exchange is encoded as it is recorded, so the app may go on changing the objects it recorded
+     * > Thread safe
+     */
+    public static class Recorder
+    {
+        private final long start;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count;
+
+        /** Constructor
+         *
+         * @param _start - Time the recording starts (any clock, as long as 'record(...)' is given times of the same one)
+         */
+        public Recorder(long _start) { this.start = _start; }
+
+        /** Records an answer
+         *
+         * @param _key - The read (see the 'KEY_*' methods)
+         * @param _sent - Time the read was made
+         * @param _answered - Time the answer arrived
+         * @param _documents - Documents answered, null if the read failed
+         */
+        public synchronized void record(String _key, long _sent, long _answered, List<Document> _documents)
+        {
+            try
+            {
+                writeExchange(out, new Exchange(_key, Math.max(0, _sent - start), Math.max(0, _answered - _sent), _documents));
+                count++;
+            }
+            catch (IOException ex)
+            {
+                // can not happen when writing to memory
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /** Number of exchanges recorded */
+        public synchronized int size() { return count; }
+
+        /** Size of the exchanges recorded, before compression */
+        public synchronized int bytes() { return bytes.size(); }
+
+        /** Writes the tape (recording can go on afterwards), the stream is not closed */
+        public synchronized void write(OutputStream _out) throws IOException
+        {
+            GZIPOutputStream zip = new GZIPOutputStream(_out);
+            DataOutputStream data = new DataOutputStream(zip);
+            data.writeInt(MAGIC);
+            data.writeShort(VERSION);
+            data.writeInt(count);
+            bytes.writeTo(data);
+            data.flush();
+            zip.finish();
+        }
+    }
+
+    /** Answers reads from a tape
+     * > Reads may be made from any thread, they are answered on the scheduler's thread
+     */
+    public static class Player
+    {
+        private final List<Exchange> exchanges;
+        private final Scheduler scheduler;
+        private final double speed;
+
+        // Exchanges by key in recorded order, and how many reads of each key were answered
+        private final Map<String, List<Exchange>> byKey = new HashMap<>();
+        private final Map<String, Integer> reads = new HashMap<>();
+        private int answered, missed;
+
+        /** Constructor
+         *
+         * @param _exchanges - The tape (see 'READ(...)')
+         * @param _scheduler - Runs the answers
+         * @param _speed - How many times faster than recorded answers arrive (1 for the recorded timing, 0 for at once)
+         */
+        public Player(List<Exchange> _exchanges, Scheduler _scheduler, double _speed)
+        {
+            this.exchanges = _exchanges;
+            this.scheduler = _scheduler;
+            this.speed = _speed;
+            for (Exchange exchange : _exchanges)
+            {
+                List<Exchange> recorded = byKey.get(exchange.key);
+                if (recorded == null) byKey.put(exchange.key, recorded = new ArrayList<>());
+                recorded.add(exchange);
+            }
+        }
+
+        /** Answers a read as it was recorded
+         * > Each read of a key gets the next answer recorded for it (the last one again once every answer was given),
+         *   after the recorded duration divided by the speed
+         * > A key never recorded fails at once
+         *
+         * @param _key - The read (see the 'KEY_*' methods)
+         * @param _callback - Given the answer, on the scheduler's thread
+         */
+        public synchronized void read(String _key, final Callback _callback)
+        {
+            List<Exchange> recorded = byKey.get(_key);
+            final Exchange answer;
+            if (recorded == null)
+            {
+                missed++;
+                answer = new Exchange(_key, 0, 0, null);
+            }
+            else
+            {
+                Integer done = reads.get(_key);
+                int next = done == null ? 0 : done;
+                reads.put(_key, next + 1);
+                answer = recorded.get(Math.min(next, recorded.size() - 1));
+                answered++;
+            }
+            scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run() { _callback.onAnswer(answer); }
+            }, scale(answer.durationMs));
+        }
+
+        /** Plays the whole session as recorded, whether or not anything reads it (e.g. to drive a benchmark)
+         * > Every answer arrives at its recorded time (sent plus duration) divided by the speed, in recorded order for equal times
+         *
+         * @param _callback - Given every answer, on the scheduler's thread
+         */
+        public void play(final Callback _callback)
+        {
+            for (final Exchange exchange : exchanges)
+            {
+                scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run() { _callback.onAnswer(exchange); }
+                }, scale(exchange.sentMs + exchange.durationMs));
+            }
+        }
+
+        /** Number of reads answered from the tape, and of reads which were never recorded */
+        public synchronized int getAnswered() { return answered; }
+        public synchronized int getMissed() { return missed; }
+
+        /** Number of exchanges on the tape */
+        public int size() { return exchanges.size(); }
+
+        private long scale(long _ms) { return speed <= 0 ? 0 : Math.round(_ms / speed); }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Kinds of documents
+    private static final int KIND_POST = 0, KIND_COMMENT = 1;
+
+    // Longest string (or encoded post) read back, anything longer means the tape is corrupt
+    private static final int MAX_FIELD_BYTES = 16 * 1024 * 1024;
+
+    /** Key of the read of one region's posts (see 'RegionScheduler') */
+    public static String KEY_REGION(long _cell) { return "region/" + _cell; }
+
+    /** Key of the read of every post ('_limit' most active ones of each shard, 0 for all) */
+    public static String KEY_ALL(int _limit) { return "all/" + _limit; }
+
+    /** Key of the read of the '_k' most active posts of each region in view (hot mode)
+     * > '_cells' is the viewport's covering (see 'GeoCell.COVERING(...)'), named by its first and last region, or null if the
+     *   viewport was too wide and the most active posts of each shard in '_bounds' were read instead
+     */
+    public static String KEY_HOT(long[] _cells, GeoBounds _bounds, int _k)
+    {
+        if (_cells == null)
+        {
+            return "hot/" + _bounds.getSouth() + "/" + _bounds.getWest() + "/" + _bounds.getNorth() + "/" + _bounds.getEast() + "/" + _k;
+        }
+        return "hot/" + _cells[0] + "/" + _cells[_cells.length - 1] + "/" + _k;
+    }
+
+    /** Key of the read of a post's document and one page of its comments ('_pageSize' of them from '_watermark' on, 0 for all) */
+    public static String KEY_THREAD(String _docID, long _watermark, int _pageSize)
+    {
+        return "thread/" + _docID + "/" + _watermark + "/" + _pageSize;
+    }
+
+    /** Reads a tape written by 'Recorder.write(...)'
+     *
+     * @param _in - The tape (not closed)
+     * @return Its exchanges, in recorded order
+     * @throws IOException - If it is not a tape, is of another version, or is truncated
+     */
+    public static List<Exchange> READ(InputStream _in) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(_in)));
+        if (in.readInt() != MAGIC) throw new IOException("not a firestore tape");
+        if (in.readShort() != VERSION) throw new IOException("unknown firestore tape version");
+        int count = in.readInt();
+        if (count < 0) throw new IOException("negative exchange count");
+        List<Exchange> exchanges = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) exchanges.add(readExchange(in));
+        return exchanges;
+    }
+
+    // key, sent, duration, document count (-1 if failed), then each document: id, kind, and the post (as 'ThreadCache' stores
+    // it) or the comment's fields
+    private static void writeExchange(DataOutputStream _out, Exchange _exchange) throws IOException
+    {
+        writeString(_out, _exchange.key);
+        _out.writeLong(_exchange.sentMs);
+        _out.writeLong(_exchange.durationMs);
+        if (_exchange.documents == null)
+        {
+            _out.writeInt(-1);
+            return;
+        }
+        _out.writeInt(_exchange.documents.size());
+        for (Document document : _exchange.documents)
+        {
+            writeString(_out, document.id);
+            if (document.post != null)
+            {
+                _out.writeByte(KIND_POST);
+                byte[] post = ThreadCache.ENCODE(document.post);
+                _out.writeInt(post.length);
+                _out.write(post);
+            }
+            else
+            {
+                Comment comment = document.comment;
+                _out.writeByte(KIND_COMMENT);
+                writeString(_out, comment.getCommentText());
+                writeString(_out, comment.getCommentDate());
+                writeString(_out, comment.getCommentUser());
+                _out.writeLong(comment.getCommentTime() == null ? -1 : comment.getCommentTime().getTime());
+            }
+        }
+    }
+
+    private static Exchange readExchange(DataInputStream _in) throws IOException
+    {
+        String key = readString(_in);
+        long sentMs = _in.readLong(), durationMs = _in.readLong();
+        int count = _in.readInt();
+        if (count < 0) return new Exchange(key, sentMs, durationMs, null);
+
+        List<Document> documents = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++)
+        {
+            String id = readString(_in);
+            int kind = _in.readByte();
+            if (kind == KIND_POST)
+            {
+                byte[] post = new byte[length(_in)];
+                _in.readFully(post);
+                documents.add(new Document(id, ThreadCache.DECODE(post)));
+            }
+            else if (kind == KIND_COMMENT)
+            {
+                Comment comment = new Comment();
+                comment.setCommentID(id);
+                comment.setCommentText(readString(_in));
+                comment.setCommentDate(readString(_in));
+                comment.setCommentUser(readString(_in));
+                long time = _in.readLong();
+                if (time >= 0) comment.setCommentTime(new Date(time));
+                documents.add(new Document(id, comment));
+            }
+            else throw new IOException("unknown document kind " + kind);
+        }
+        return new Exchange(key, sentMs, durationMs, Collections.unmodifiableList(documents));
+    }
+
+    // length-prefixed utf-8, -1 for null (as 'ThreadCache')
+    private static void writeString(DataOutputStream _out, String _s) throws IOException
+    {
+        if (_s == null)
+        {
+            _out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = _s.getBytes(StandardCharsets.UTF_8);
+        _out.writeInt(bytes.length);
+        _out.write(bytes);
+    }
+
+    private static String readString(DataInputStream _in) throws IOException
+    {
+        int length = _in.readInt();
+        if (length < 0) return null;
+        if (length > MAX_FIELD_BYTES) throw new IOException("string too long");
+        byte[] bytes = new byte[length];
+        _in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int length(DataInputStream _in) throws IOException
+    {
+        int length = _in.readInt();
+        if (length < 0 || length > MAX_FIELD_BYTES) throw new IOException("bad document length");
+        return length;
+    }
+}
@@ -0,0 +1,31 @@
+package michael.wilson.geochat;
+
+/** A latitude/longitude rectangle, usually the visible region of the map
+ * Plain java so it can be used by components tested off-device (see 'HotPostRanker')
+ * > If 'west' is greater than 'east' the rectangle crosses the antimeridian
+ */
+public class GeoBounds
+{
+    private final double south, west, north, east;
+
+    public GeoBounds(double _south, double _west, double _north, double _east)
+    {
+        this.south = _south;
+        this.west = _west;
+        this.north = _north;
+        this.east = _east;
+    }
+
+    public double getSouth() {return south;}
+    public double getWest() {return west;}
+    public double getNorth() {return north;}
+    public double getEast() {return east;}
+
+    /** Returns true if the given point lies inside these bounds */
+    public boolean contains(double _lat, double _lng)
+    {
+        if (_lat < south || _lat > north) return false;
+        if (west <= east) return _lng >= west && _lng <= east;
+        return _lng >= west || _lng <= east;
+    }
+}
@@ -0,0 +1,132 @@
+package michael.wilson.geochat;
+
+/** A fixed grid over the globe, used to split the map into regions that can be fetched (and cached) independently
+ * > At level 'L' the globe is cut into square cells 360/2^L degrees wide, 2^L columns by 2^(L-1) rows
+ * > A cell is identified by a single long: its level, row, and column packed together, so ids of different levels never collide
+ * > Columns wrap around the antimeridian, rows are clamped at the poles
+ *
+ * Plain java so it can be used by components tested off-device (see 'RegionScheduler').
+ */
+public class GeoCell
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Bit layout of an id: | level (8) | row (28) | column (28) |
+    private static final int COORD_BITS = 28;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Deepest level supported (cells roughly 60cm wide)
+    public static final int MAX_LEVEL = 26;
+
+    // Level posts are stored (and regions are fetched) at, cells are ~0.18 degrees (about 19km) wide
+    public static final int REGION_LEVEL = 11;
+
+    /** Returns the width (and height) of a cell at the given level, in degrees */
+    public static double SIZE_DEGREES(int _level) { return 360.0 / (1L << _level); }
+
+    /** Returns the number of columns at the given level */
+    public static int COLUMNS(int _level) { return 1 << _level; }
+
+    /** Returns the number of rows at the given level */
+    public static int ROWS(int _level) { return _level == 0 ? 1 : 1 << (_level - 1); }
+
+    /** Returns the id of the cell holding a point
+     *
+     * @param _lat - Latitude of the point
+     * @param _lng - Longitude of the point
+     * @param _level - Level of the cell, between 0 and 'MAX_LEVEL'
+     * @return The cell's id
+     */
+    public static long ID(double _lat, double _lng, int _level)
+    {
+        double size = SIZE_DEGREES(_level);
+        int column = (int)Math.floor((_lng + 180.0) / size);
+        int row = (int)Math.floor((_lat + 90.0) / size);
+        return OF(_level, column, row);
+    }
+
+    /** Returns the id of a cell given its column and row (columns wrap around, rows are clamped)
+     *
+     * @param _level - Level of the cell
+     * @param _column - Column of the cell (west to east)
+     * @param _row - Row of the cell (south to north)
+     * @return The cell's id
+     */
+    public static long OF(int _level, int _column, int _row)
+    {
+        int columns = COLUMNS(_level);
+        int column = ((_column % columns) + columns) % columns;
+        int row = Math.max(0, Math.min(ROWS(_level) - 1, _row));
+        return (long)_level << (2 * COORD_BITS) | (long)row << COORD_BITS | column;
+    }
+
+    /** Returns the level, column, or row of a cell */
+    public static int LEVEL(long _id) { return (int)(_id >>> (2 * COORD_BITS)); }
+    public static int COLUMN(long _id) { return (int)(_id & COORD_MASK); }
+    public static int ROW(long _id) { return (int)((_id >>> COORD_BITS) & COORD_MASK); }
+
+    /** Returns the neighbour of a cell, '_dx' columns east and '_dy' rows north of it */
+    public static long NEIGHBOUR(long _id, int _dx, int _dy) { return OF(LEVEL(_id), COLUMN(_id) + _dx, ROW(_id) + _dy); }
+
+    /** Returns the cell at a coarser level which contains the given cell
+     *
+     * @param _id - The cell
+     * @param _level - Level of the parent, at most the cell's own level
+     * @return The parent cell's id
+     */
+    public static long PARENT(long _id, int _level)
+    {
+        int shift = LEVEL(_id) - _level;
+        return OF(_level, COLUMN(_id) >> shift, ROW(_id) >> shift);
+    }
+
+    /** Returns the bounds of a cell */
+    public static GeoBounds BOUNDS(long _id)
+    {
+        double size = SIZE_DEGREES(LEVEL(_id));
+        double west = COLUMN(_id) * size - 180.0, south = ROW(_id) * size - 90.0;
+        return new GeoBounds(south, west, Math.min(90.0, south + size), west + size);
+    }
+
+    /** Returns the latitude or longitude of a cell's centre */
+    public static double CENTER_LAT(long _id) { return Math.min(90.0, (ROW(_id) + 0.5) * SIZE_DEGREES(LEVEL(_id)) - 90.0); }
+    public static double CENTER_LNG(long _id) { return (COLUMN(_id) + 0.5) * SIZE_DEGREES(LEVEL(_id)) - 180.0; }
+
+    /** Returns the ids of every cell that overlaps the given bounds
+     * > Handles bounds crossing the antimeridian (see 'GeoBounds')
+     *
+     * @param _bounds - Bounds to cover
+     * @param _level - Level of the cells
+     * @param _maxCells - Largest number of cells the caller can handle
+     * @return The cells' ids (row by row, west to east), or null if more than '_maxCells' cells would be needed
+     */
+    public static long[] COVERING(GeoBounds _bounds, int _level, int _maxCells)
+    {
+        double size = SIZE_DEGREES(_level);
+        int columns = COLUMNS(_level);
+        int south = clampRow((int)Math.floor((_bounds.getSouth() + 90.0) / size), _level);
+        int north = clampRow((int)Math.floor((_bounds.getNorth() + 90.0) / size), _level);
+        int west = (int)Math.floor((_bounds.getWest() + 180.0) / size);
+        int east = (int)Math.floor((_bounds.getEast() + 180.0) / size);
+
+        // number of columns from west to east, going east (wrapping at the antimeridian)
+        int width;
+        if (_bounds.getWest() <= _bounds.getEast()) width = Math.min(columns, east - west + 1);
+        else width = Math.min(columns, ((east - west) % columns + columns) % columns + 1);
+
+        long total = (long)width * (north - south + 1);
+        if (total > _maxCells) return null;
+
+        long[] cells = new long[(int)total];
+        int n = 0;
+        for (int row = south; row <= north; row++)
+        {
+            for (int i = 0; i < width; i++) cells[n++] = OF(_level, west + i, row);
+        }
+        return cells;
+    }
+
+    private static int clampRow(int _row, int _level) { return Math.max(0, Math.min(ROWS(_level) - 1, _row)); }
+}
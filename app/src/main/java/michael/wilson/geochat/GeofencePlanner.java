@@ -0,0 +1,289 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Decides which posts get a geofence (so the user is told when they walk past them), and when that choice is redone
+ * > A plan fences the nearest posts and the most active ones around a location, up to 'MAX_FENCES'
+ * > The plan also has a refresh circle around where it was made, leaving it (an exit geofence) is what triggers a new plan,
+ *   so the location is never polled. The circle stops short of the nearest post left out, so that post can not be entered
+ *   before a new plan has fenced it (unless posts are so dense the circle would be smaller than 'MIN_REFRESH_RADIUS_M')
+ * > Entering fences raises one alert listing every post entered recently, a post alerts at most once per 'ALERT_COOLDOWN_MS'
+ * > The whole state can be saved as a string, since geofence events may arrive in a freshly started process
+ *
+ * Plain java so it can be tested off-device (with recorded or generated location traces).
+ */
+public class GeofencePlanner
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Largest number of post geofences registered at once (the OS allows 100 per app, one is the refresh circle)
+    public static final int MAX_FENCES = 90;
+
+    // Radius of a post's geofence
+    public static final float FENCE_RADIUS_M = 150;
+
+    // Only posts this close to the user are considered (also the radius posts are fetched in)
+    public static final double CANDIDATE_RADIUS_M = 5000;
+
+    // Bounds of the refresh circle, a small one re-plans often, a large one lets posts go unfenced for longer
+    public static final float MIN_REFRESH_RADIUS_M = 300, MAX_REFRESH_RADIUS_M = 2000;
+
+    // A plan older than this is redone at the next geofence event, to pick up new posts
+    public static final long MAX_PLAN_AGE_MS = 6 * 60 * 60 * 1000L;
+
+    // A post alerts at most once in this time
+    public static final long ALERT_COOLDOWN_MS = 24 * 60 * 60 * 1000L;
+
+    // Posts entered within this time of each other are shown in the same notification
+    public static final long COALESCE_WINDOW_MS = 30 * 60 * 1000L;
+
+    /** A post's geofence */
+    public static class Fence
+    {
+        public final String docID, title;
+        public final double lat, lng;
+
+        Fence(String _docID, String _title, double _lat, double _lng)
+        {
+            this.docID = _docID;
+            this.title = _title;
+            this.lat = _lat;
+            this.lng = _lng;
+        }
+    }
+
+    /** The posts to fence, and the circle to leave before planning again */
+    public static class Plan
+    {
+        public final double lat, lng;
+        public final float refreshRadius;
+        public final long time;
+        public final List<Fence> fences;
+
+        Plan(double _lat, double _lng, float _refreshRadius, long _time, List<Fence> _fences)
+        {
+            this.lat = _lat;
+            this.lng = _lng;
+            this.refreshRadius = _refreshRadius;
+            this.time = _time;
+            this.fences = _fences;
+        }
+    }
+
+    /** What to notify the user of */
+    public static class Alert
+    {
+        // posts entered within the coalescing window, newest first, and how many of them are new in this alert
+        public final List<Fence> posts;
+        public final int fresh;
+
+        Alert(List<Fence> _posts, int _fresh)
+        {
+            this.posts = _posts;
+            this.fresh = _fresh;
+        }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private static final double EARTH_RADIUS_M = 6371000;
+
+    // Separates fields and records of the saved state (titles have them replaced by spaces)
+    private static final char FIELD = '\t', RECORD = '\n';
+
+    // The current plan, null before the first one
+    private Plan plan;
+
+    // docID -> time the post last alerted, and the posts of the current alert (newest first)
+    private final Map<String, Long> alerted = new HashMap<>();
+    private final List<Fence> coalesced = new ArrayList<>();
+
+    public Plan getPlan() { return plan; }
+
+    /** Makes a new plan around a location (and keeps it as the current one)
+     *
+     * @param _posts - Posts around the location (those further than 'CANDIDATE_RADIUS_M' are ignored)
+     * @param _lat - Latitude of the user
+     * @param _lng - Longitude of the user
+     * @param _now - Current time in milliseconds
+     */
+    public Plan plan(List<PostSummary> _posts, final double _lat, final double _lng, long _now)
+    {
+        final Map<PostSummary, Double> distance = new HashMap<>();
+        List<PostSummary> byDistance = new ArrayList<>();
+        for (PostSummary post : _posts)
+        {
+            double d = DISTANCE_M(_lat, _lng, post.getLat(), post.getLng());
+            if (d > CANDIDATE_RADIUS_M) continue;
+            distance.put(post, d);
+            byDistance.add(post);
+        }
+        Collections.sort(byDistance, new Comparator<PostSummary>()
+        {
+            @Override
+            public int compare(PostSummary _a, PostSummary _b) { return Double.compare(distance.get(_a), distance.get(_b)); }
+        });
+
+        // half the fences go to the nearest posts, the rest to the most active ones (then the nearest of what is left)
+        List<PostSummary> chosen = new ArrayList<>(byDistance.subList(0, Math.min(byDistance.size(), MAX_FENCES / 2)));
+        List<PostSummary> rest = new ArrayList<>(byDistance.subList(chosen.size(), byDistance.size()));
+        List<PostSummary> byActivity = new ArrayList<>(rest);
+        Collections.sort(byActivity, new Comparator<PostSummary>()
+        {
+            @Override
+            public int compare(PostSummary _a, PostSummary _b)
+            {
+                if (_a.getCommentCount() != _b.getCommentCount()) return Long.compare(_b.getCommentCount(), _a.getCommentCount());
+                return Long.compare(_b.getLastActivity(), _a.getLastActivity());
+            }
+        });
+        for (PostSummary post : byActivity)
+        {
+            if (chosen.size() >= MAX_FENCES || post.getCommentCount() == 0) break;
+            chosen.add(post);
+        }
+        rest.removeAll(chosen);
+        while (chosen.size() < MAX_FENCES && !rest.isEmpty()) chosen.add(rest.remove(0));
+
+        // stop the refresh circle short of the nearest post left out ('rest' is still sorted by distance)
+        float refreshRadius = MAX_REFRESH_RADIUS_M;
+        if (!rest.isEmpty()) refreshRadius = (float)Math.min(refreshRadius, distance.get(rest.get(0)) - FENCE_RADIUS_M);
+        refreshRadius = Math.max(refreshRadius, MIN_REFRESH_RADIUS_M);
+
+        List<Fence> fences = new ArrayList<>(chosen.size());
+        for (PostSummary post : chosen) fences.add(new Fence(post.getDocID(), post.getTitle(), post.getLat(), post.getLng()));
+        plan = new Plan(_lat, _lng, refreshRadius, _now, fences);
+        return plan;
+    }
+
+    /** Returns true if a new plan should be made for a location (there is none, the user left its refresh circle, or it is too old) */
+    public boolean needsRefresh(double _lat, double _lng, long _now)
+    {
+        if (plan == null) return true;
+        if (_now - plan.time > MAX_PLAN_AGE_MS) return true;
+        return DISTANCE_M(plan.lat, plan.lng, _lat, _lng) > plan.refreshRadius;
+    }
+
+    /** Called when the user enters post geofences
+     *
+     * @param _docIDs - Posts whose geofence was entered
+     * @param _now - Current time in milliseconds
+     * @return The alert to show (replacing the previous one), or null if every post already alerted recently
+     */
+    public Alert onEnter(List<String> _docIDs, long _now)
+    {
+        // forget posts which left the coalescing window
+        for (int i = coalesced.size() - 1; i >= 0; i--)
+        {
+            Long time = alerted.get(coalesced.get(i).docID);
+            if (time == null || _now - time > COALESCE_WINDOW_MS) coalesced.remove(i);
+        }
+
+        List<Fence> fresh = new ArrayList<>();
+        for (String docID : _docIDs)
+        {
+            Long last = alerted.get(docID);
+            if (last != null && _now - last < ALERT_COOLDOWN_MS) continue;
+            Fence fence = fence(docID);
+            if (fence == null) continue;
+            alerted.put(docID, _now);
+            fresh.add(fence);
+        }
+        if (fresh.isEmpty()) return null;
+
+        coalesced.addAll(0, fresh);
+        return new Alert(new ArrayList<>(coalesced), fresh.size());
+    }
+
+    /** Forgets alerts older than the cooldown, so the saved state does not grow forever */
+    public void prune(long _now)
+    {
+        List<String> old = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : alerted.entrySet()) if (_now - entry.getValue() >= ALERT_COOLDOWN_MS) old.add(entry.getKey());
+        for (String docID : old) alerted.remove(docID);
+    }
+
+    /** Returns the state (plan and alert history) as a string, see 'DECODE(...)' */
+    public String encode()
+    {
+        StringBuilder out = new StringBuilder();
+        if (plan != null)
+        {
+            out.append('P').append(FIELD).append(plan.lat).append(FIELD).append(plan.lng).append(FIELD).append(plan.refreshRadius)
+                    .append(FIELD).append(plan.time).append(RECORD);
+            for (Fence fence : plan.fences) append(out, 'F', fence);
+        }
+        for (Map.Entry<String, Long> entry : alerted.entrySet())
+        {
+            out.append('A').append(FIELD).append(entry.getKey()).append(FIELD).append(entry.getValue()).append(RECORD);
+        }
+        for (Fence fence : coalesced) append(out, 'C', fence);
+        return out.toString();
+    }
+
+    /** Restores a state saved by 'encode()', an unreadable state gives an empty planner (so a new plan is made) */
+    public static GeofencePlanner DECODE(String _state)
+    {
+        GeofencePlanner planner = new GeofencePlanner();
+        if (_state == null) return planner;
+        try
+        {
+            List<Fence> fences = new ArrayList<>();
+            String[] header = null;
+            for (String line : _state.split(String.valueOf(RECORD)))
+            {
+                String[] f = line.split(String.valueOf(FIELD), -1);
+                switch (f[0])
+                {
+                    case "P": header = f; break;
+                    case "F": fences.add(readFence(f)); break;
+                    case "A": planner.alerted.put(f[1], Long.parseLong(f[2])); break;
+                    case "C": planner.coalesced.add(readFence(f)); break;
+                    default: break;
+                }
+            }
+            if (header != null)
+            {
+                planner.plan = new Plan(Double.parseDouble(header[1]), Double.parseDouble(header[2]), Float.parseFloat(header[3]),
+                        Long.parseLong(header[4]), fences);
+            }
+            return planner;
+        }
+        catch (RuntimeException ex) { return new GeofencePlanner(); }
+    }
+
+    /** Returns the distance between two points in meters (great circle) */
+    public static double DISTANCE_M(double _lat1, double _lng1, double _lat2, double _lng2)
+    {
+        double dLat = Math.toRadians(_lat2 - _lat1), dLng = Math.toRadians(_lng2 - _lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(_lat1)) * Math.cos(Math.toRadians(_lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // the fence of a post in the current plan, null if it is not fenced
+    private Fence fence(String _docID)
+    {
+        if (plan == null) return null;
+        for (Fence fence : plan.fences) if (fence.docID.equals(_docID)) return fence;
+        return null;
+    }
+
+    private static void append(StringBuilder _out, char _type, Fence _fence)
+    {
+        _out.append(_type).append(FIELD).append(_fence.docID).append(FIELD).append(_fence.lat).append(FIELD).append(_fence.lng)
+                .append(FIELD).append(clean(_fence.title)).append(RECORD);
+    }
+
+    private static Fence readFence(String[] _fields)
+    {
+        return new Fence(_fields[1], _fields[4], Double.parseDouble(_fields[2]), Double.parseDouble(_fields[3]));
+    }
+
+    private static String clean(String _s) { return _s == null ? "" : _s.replace(FIELD, ' ').replace(RECORD, ' '); }
+}
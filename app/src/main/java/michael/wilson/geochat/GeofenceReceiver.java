@@ -0,0 +1,33 @@
+package michael.wilson.geochat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.location.GeofencingEvent;
+
+/** Receives geofence events (and the end of a reboot, which clears every geofence) and hands them to 'NearbyAlerts' */
+public class GeofenceReceiver extends BroadcastReceiver
+{
+    /** Called when a geofence is entered or left, or when the device has finished booting
+     * > Initializes only what the backend needs here (this usually runs in a freshly started process, which has no use for the
+     *   app's caches, packs, or network watcher)
+     * > After a reboot, registers the geofences again if the user turned nearby alerts on
+     * > Otherwise passes the event to 'NearbyAlerts.ON_EVENT(...)', which finishes the broadcast once done
+     *
+     * @param _context - The receiver's context
+     * @param _intent - The geofencing event, or the boot broadcast
+     */
+    @Override
+    public void onReceive(Context _context, Intent _intent)
+    {
+        Toolkit.INITIALIZE_BACKGROUND(_context);
+        JankWatchdog.ENTER(JankTracker.CALLBACK_NOTIFICATION);
+        if (Intent.ACTION_BOOT_COMPLETED.equals(_intent.getAction()))
+        {
+            if (NearbyAlerts.IS_ENABLED(_context)) NearbyAlerts.START(_context);
+        }
+        else NearbyAlerts.ON_EVENT(_context, GeofencingEvent.fromIntent(_intent), goAsync());
+        JankWatchdog.EXIT(JankTracker.CALLBACK_NOTIFICATION);
+    }
+}
@@ -0,0 +1,53 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Picks the most active posts inside a viewport
+ * > Posts are ranked by comment count, ties are broken by the most recent activity
+ * > Uses a bounded min-heap, so ranking 'n' posts costs O(n log k) and keeps only 'k' posts in memory
+ */
+public class HotPostRanker
+{
+    // Orders posts from least to most active
+    public static final Comparator<PostSummary> BY_ACTIVITY = new Comparator<PostSummary>()
+    {
+        @Override
+        public int compare(PostSummary _a, PostSummary _b)
+        {
+            int c = Long.compare(_a.getCommentCount(), _b.getCommentCount());
+            return c != 0 ? c : Long.compare(_a.getLastActivity(), _b.getLastActivity());
+        }
+    };
+
+    /** Returns the '_k' most active posts inside '_bounds', most active first
+     *
+     * @param _posts - Candidate posts
+     * @param _bounds - Viewport to filter by (null for no filter)
+     * @param _k - Maximum number of posts to return
+     * @return The most active posts, sorted from most to least active
+     */
+    public static List<PostSummary> TOP_K(Iterable<PostSummary> _posts, GeoBounds _bounds, int _k)
+    {
+        List<PostSummary> result = new ArrayList<>();
+        if (_k <= 0) return result;
+
+        PriorityQueue<PostSummary> heap = new PriorityQueue<>(_k, BY_ACTIVITY);
+        for (PostSummary post : _posts)
+        {
+            if (_bounds != null && !_bounds.contains(post.getLat(), post.getLng())) continue;
+            if (heap.size() < _k) heap.add(post);
+            else if (BY_ACTIVITY.compare(post, heap.peek()) > 0)
+            {
+                heap.poll();
+                heap.add(post);
+            }
+        }
+        result.addAll(heap);
+        Collections.sort(result, Collections.reverseOrder(BY_ACTIVITY));
+        return result;
+    }
+}
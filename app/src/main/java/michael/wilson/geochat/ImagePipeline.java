@@ -0,0 +1,432 @@
+package michael.wilson.geochat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+import androidx.annotation.NonNull;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Uploads and loads post images
+ * > Uploads: the picked image is downscaled and re-encoded on a background thread into a full-size (max 'FULL_MAX_EDGE')
+ *   and a thumbnail (max 'THUMB_MAX_EDGE') version, kept in the app's own storage (see 'PREPARE(...)'), which are later
+ *   uploaded to Firebase Storage (see 'UPLOAD(...)')
+ * > Loads: images are looked up in a memory LRU of decoded bitmaps, then in a disk LRU of encoded bytes, and only then
+ *   downloaded. Concurrent loads of the same image share one download. Decoding uses 'inSampleSize' for the target view
+ * > Decode/encode times, bytes transferred, and cache hits are recorded in 'Metrics'
+ *
+ * Only thumbnails are ever shown in lists and discussions, full-size images are loaded only when the user asks for them.
+ */
+public class ImagePipeline
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Longest edge (in pixels) of uploaded images and thumbnails, and their JPEG quality
+    private static final int FULL_MAX_EDGE = 1280, THUMB_MAX_EDGE = 320, FULL_QUALITY = 80, THUMB_QUALITY = 70;
+
+    // Largest download accepted for any image
+    private static final long MAX_DOWNLOAD_BYTES = 4 * 1024 * 1024;
+
+    // Size of the on-disk image cache
+    private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+
+    // Folders in Firebase Storage
+    private static final String FULL_FOLDER = "images/", THUMB_FOLDER = "thumbs/";
+
+    // Folder (in the app's cache directory) holding prepared images until they are uploaded
+    private static final String PREPARED_FOLDER = "uploads";
+
+    // Background threads for decoding, encoding, and disk access
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final RequestCoalescer<String, byte[]> DOWNLOADS = new RequestCoalescer<>();
+
+    private static LruCache<String, Bitmap> MEMORY_CACHE;
+    private static DiskLruCache DISK_CACHE;
+    private static Context CONTEXT;
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** A picked image, downscaled and re-encoded into the app's own storage, ready to be uploaded (see 'PREPARE(...)') */
+    public static class PreparedImage
+    {
+        private final File full, thumb;
+
+        PreparedImage(File _full, File _thumb)
+        {
+            this.full = _full;
+            this.thumb = _thumb;
+        }
+
+        /** Deletes the prepared files, once uploaded or if the post is dropped */
+        public void delete()
+        {
+            full.delete();
+            thumb.delete();
+        }
+    }
+
+    /** Called once a picked image is prepared */
+    public interface PrepareCallback
+    {
+        void onPrepared(PreparedImage _image);
+
+        /** The image could not be read or decoded (e.g. its provider no longer lets the app read it) */
+        void onFailed();
+    }
+
+    /** Called once an upload finishes */
+    public interface UploadCallback
+    {
+        /** Both versions were uploaded, the paths are what gets stored on the post */
+        void onUploaded(String _imagePath, String _thumbPath);
+        void onFailed();
+    }
+
+    /** Initializes the caches (safe to call more than once)
+     *
+     * @param _context - Any context, the application context is kept
+     */
+    public static synchronized void INITIALIZE(Context _context)
+    {
+        if (CONTEXT != null) return;
+        CONTEXT = _context.getApplicationContext();
+
+        // use an eighth of the available heap for decoded bitmaps
+        int memoryCacheBytes = (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        MEMORY_CACHE = new LruCache<String, Bitmap>(memoryCacheBytes)
+        {
+            @Override
+            protected int sizeOf(String _key, Bitmap _bitmap) { return _bitmap.getByteCount(); }
+        };
+        DISK_CACHE = new DiskLruCache(new File(CONTEXT.getCacheDir(), "images"), DISK_CACHE_BYTES);
+
+        // images prepared by a previous process were never uploaded (their posts went with that process)
+        File[] leftovers = new File(CONTEXT.getCacheDir(), PREPARED_FOLDER).listFiles();
+        if (leftovers != null) for (File file : leftovers) file.delete();
+    }
+
+    /** Downscales and re-encodes a picked image into the app's own storage (off the main thread)
+     * > Must be called while the activity the image was picked in is alive: the permission to read a picked image's uri
+     *   only lasts as long as that activity
+     *
+     * @param _uri - Content uri of the picked image
+     * @param _callback - Called on the main thread when done
+     */
+    public static void PREPARE(final Uri _uri, final PrepareCallback _callback)
+    {
+        EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PreparedImage prepared = null;
+                try
+                {
+                    long decodeStart = Metrics.BEGIN(Metrics.SECTION_IMAGE_DECODE);
+                    Bitmap full = decodeUri(_uri, FULL_MAX_EDGE);
+                    Metrics.END(Metrics.SECTION_IMAGE_DECODE, decodeStart);
+                    if (full == null) throw new IOException("Unable to decode image");
+
+                    long encodeStart = Metrics.BEGIN(Metrics.SECTION_IMAGE_ENCODE);
+                    int[] thumbSize = ImageSizing.SCALED_SIZE(full.getWidth(), full.getHeight(), THUMB_MAX_EDGE);
+                    Bitmap thumb = Bitmap.createScaledBitmap(full, thumbSize[0], thumbSize[1], true);
+                    byte[] fullBytes = encode(full, FULL_QUALITY), thumbBytes = encode(thumb, THUMB_QUALITY);
+                    Metrics.END(Metrics.SECTION_IMAGE_ENCODE, encodeStart);
+                    full.recycle();
+                    thumb.recycle();
+
+                    File folder = new File(CONTEXT.getCacheDir(), PREPARED_FOLDER);
+                    if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Unable to create " + folder);
+                    String name = UUID.randomUUID().toString();
+                    prepared = new PreparedImage(new File(folder, name + ".jpg"), new File(folder, name + "_thumb.jpg"));
+                    write(prepared.full, fullBytes);
+                    write(prepared.thumb, thumbBytes);
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    Toolkit.LOG("Image prepare failed: ", ex.getMessage());
+                    if (prepared != null) prepared.delete();
+                    prepared = null;
+                }
+
+                final PreparedImage result = prepared;
+                MAIN_HANDLER.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (result != null) _callback.onPrepared(result);
+                        else _callback.onFailed();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Uploads a prepared image (see 'PREPARE(...)'), then deletes its files
+     *
+     * @param _image - The prepared image
+     * @param _callback - Called on the main thread when done
+     */
+    public static void UPLOAD(final PreparedImage _image, final UploadCallback _callback)
+    {
+        EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final byte[] fullBytes = read(_image.full), thumbBytes = read(_image.thumb);
+                    _image.delete();
+
+                    String name = UUID.randomUUID().toString() + ".jpg";
+                    final String imagePath = FULL_FOLDER + name, thumbPath = THUMB_FOLDER + name;
+
+                    // keep our own thumbnail, the author is likely to look at the post straight away
+                    DISK_CACHE.put(thumbPath, thumbBytes);
+
+                    final StorageReference storage = FirebaseStorage.getInstance().getReference();
+                    storage.child(thumbPath).putBytes(thumbBytes).addOnCompleteListener(new OnCompleteListener<UploadTask.TaskSnapshot>()
+                    {
+                        @Override
+                        public void onComplete(@NonNull Task<UploadTask.TaskSnapshot> task)
+                        {
+                            if (!task.isSuccessful())
+                            {
+                                _callback.onFailed();
+                                return;
+                            }
+                            Metrics.ADD(Metrics.COUNTER_IMAGE_BYTES_UP, thumbBytes.length);
+                            storage.child(imagePath).putBytes(fullBytes).addOnCompleteListener(new OnCompleteListener<UploadTask.TaskSnapshot>()
+                            {
+                                @Override
+                                public void onComplete(@NonNull Task<UploadTask.TaskSnapshot> task)
+                                {
+                                    if (task.isSuccessful())
+                                    {
+                                        Metrics.ADD(Metrics.COUNTER_IMAGE_BYTES_UP, fullBytes.length);
+                                        _callback.onUploaded(imagePath, thumbPath);
+                                    }
+                                    else _callback.onFailed();
+                                }
+                            });
+                        }
+                    });
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    Toolkit.LOG("Image upload failed: ", ex.getMessage());
+                    _image.delete();
+                    MAIN_HANDLER.post(new Runnable()
+                    {
+                        @Override
+                        public void run() { _callback.onFailed(); }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Shows a small preview of a picked (local) image, decoded off the main thread
+     *
+     * @param _uri - Content uri of the picked image
+     * @param _view - View to show the preview in
+     * @param _maxEdge - Longest edge (pixels) of the preview
+     */
+    public static void PREVIEW(final Uri _uri, final ImageView _view, final int _maxEdge)
+    {
+        _view.setTag(_uri);
+        final WeakReference<ImageView> viewRef = new WeakReference<>(_view);
+        EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final Bitmap bitmap = decodeUri(_uri, _maxEdge);
+                    if (bitmap == null) return;
+                    MAIN_HANDLER.post(new Runnable()
+                    {
+                        @Override
+                        public void run() { showIfCurrent(viewRef, _uri, bitmap); }
+                    });
+                }
+                catch (IOException ex) { Toolkit.LOG("Image preview failed: ", ex.getMessage()); }
+            }
+        });
+    }
+
+    /** Loads an image from the caches or Firebase Storage into an image view
+     * > The view's tag is set to the path, so a recycled view never shows a stale image
+     * > The view is only held weakly while loading, so a slow download never keeps a closed activity alive
+     *
+     * @param _path - Storage path of the image (use a post's thumbnail path wherever possible)
+     * @param _view - View to show the image in
+     * @param _reqWidth - Width (pixels) the image will be shown at
+     * @param _reqHeight - Height (pixels) the image will be shown at
+     */
+    public static void LOAD(final String _path, final ImageView _view, final int _reqWidth, final int _reqHeight)
+    {
+        _view.setTag(_path);
+        final WeakReference<ImageView> viewRef = new WeakReference<>(_view);
+        final String memoryKey = _path + "@" + _reqWidth + "x" + _reqHeight;
+        Bitmap cached = MEMORY_CACHE.get(memoryKey);
+        if (cached != null)
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_IMAGE_MEMORY_HITS);
+            _view.setImageBitmap(cached);
+            return;
+        }
+
+        final RequestCoalescer.Callback<byte[]> onBytes = new RequestCoalescer.Callback<byte[]>()
+        {
+            @Override
+            public void onResult(final byte[] _bytes)
+            {
+                if (_bytes == null) return;
+                EXECUTOR.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        long decodeStart = Metrics.BEGIN(Metrics.SECTION_IMAGE_DECODE);
+                        final Bitmap bitmap = decodeBytes(_bytes, _reqWidth, _reqHeight);
+                        Metrics.END(Metrics.SECTION_IMAGE_DECODE, decodeStart);
+                        if (bitmap == null) return;
+                        MEMORY_CACHE.put(memoryKey, bitmap);
+                        MAIN_HANDLER.post(new Runnable()
+                        {
+                            @Override
+                            public void run() { showIfCurrent(viewRef, _path, bitmap); }
+                        });
+                    }
+                });
+            }
+        };
+
+        EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                byte[] onDisk = DISK_CACHE.get(_path);
+                if (onDisk != null)
+                {
+                    Metrics.INCREMENT(Metrics.COUNTER_IMAGE_DISK_HITS);
+                    onBytes.onResult(onDisk);
+                    return;
+                }
+                if (!DOWNLOADS.join(_path, onBytes)) return;
+
+                // first caller for this image, download it (everyone else waits on the same download)
+                Metrics.INCREMENT(Metrics.COUNTER_IMAGE_MISSES);
+                FirebaseStorage.getInstance().getReference().child(_path).getBytes(MAX_DOWNLOAD_BYTES)
+                        .addOnCompleteListener(EXECUTOR, new OnCompleteListener<byte[]>()
+                {
+                    @Override
+                    public void onComplete(@NonNull Task<byte[]> task)
+                    {
+                        byte[] bytes = task.isSuccessful() ? task.getResult() : null;
+                        if (bytes != null)
+                        {
+                            Metrics.ADD(Metrics.COUNTER_IMAGE_BYTES_DOWN, bytes.length);
+                            DISK_CACHE.put(_path, bytes);
+                        }
+                        DOWNLOADS.complete(_path, bytes);
+                    }
+                });
+            }
+        });
+    }
+
+    // shows a bitmap in a view, unless the view has been collected or has since been asked to show something else
+    private static void showIfCurrent(WeakReference<ImageView> _viewRef, Object _tag, Bitmap _bitmap)
+    {
+        ImageView view = _viewRef.get();
+        if (view != null && _tag.equals(view.getTag())) view.setImageBitmap(_bitmap);
+    }
+
+    // decodes a content uri, sampled down close to '_maxEdge' and then scaled to fit it exactly
+    private static Bitmap decodeUri(Uri _uri, int _maxEdge) throws IOException
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = CONTEXT.getContentResolver().openInputStream(_uri)) { BitmapFactory.decodeStream(in, null, options); }
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        int[] target = ImageSizing.SCALED_SIZE(options.outWidth, options.outHeight, _maxEdge);
+        options.inSampleSize = ImageSizing.IN_SAMPLE_SIZE(options.outWidth, options.outHeight, target[0], target[1]);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled;
+        try (InputStream in = CONTEXT.getContentResolver().openInputStream(_uri)) { sampled = BitmapFactory.decodeStream(in, null, options); }
+        if (sampled == null) return null;
+
+        int[] size = ImageSizing.SCALED_SIZE(sampled.getWidth(), sampled.getHeight(), _maxEdge);
+        if (size[0] == sampled.getWidth() && size[1] == sampled.getHeight()) return sampled;
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, size[0], size[1], true);
+        sampled.recycle();
+        return scaled;
+    }
+
+    // decodes encoded image bytes, sampled down for the size they will be shown at
+    private static Bitmap decodeBytes(byte[] _bytes, int _reqWidth, int _reqHeight)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(_bytes, 0, _bytes.length, options);
+        options.inSampleSize = ImageSizing.IN_SAMPLE_SIZE(options.outWidth, options.outHeight, _reqWidth, _reqHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(_bytes, 0, _bytes.length, options);
+    }
+
+    private static void write(File _file, byte[] _bytes) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(_file)) { out.write(_bytes); }
+    }
+
+    private static byte[] read(File _file) throws IOException
+    {
+        byte[] bytes = new byte[(int)_file.length()];
+        try (FileInputStream in = new FileInputStream(_file))
+        {
+            int n = 0;
+            while (n < bytes.length)
+            {
+                int r = in.read(bytes, n, bytes.length - n);
+                if (r < 0) throw new IOException("Unexpected end of " + _file);
+                n += r;
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(Bitmap _bitmap, int _quality)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _bitmap.compress(Bitmap.CompressFormat.JPEG, _quality, out);
+        return out.toByteArray();
+    }
+}
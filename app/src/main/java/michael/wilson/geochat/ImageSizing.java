@@ -0,0 +1,38 @@
+package michael.wilson.geochat;
+
+/** Size calculations for decoding and downscaling images
+ * Plain java (no Bitmap) so the maths can be tested off-device
+ */
+public class ImageSizing
+{
+    /** Returns the largest power-of-two 'inSampleSize' which keeps the decoded image at least as big as requested
+     *
+     * @param _srcWidth - Width of the encoded image
+     * @param _srcHeight - Height of the encoded image
+     * @param _reqWidth - Width it will be shown at
+     * @param _reqHeight - Height it will be shown at
+     * @return Value for 'BitmapFactory.Options.inSampleSize' (1 or more)
+     */
+    public static int IN_SAMPLE_SIZE(int _srcWidth, int _srcHeight, int _reqWidth, int _reqHeight)
+    {
+        int sampleSize = 1;
+        if (_reqWidth <= 0 || _reqHeight <= 0) return sampleSize;
+        while (_srcWidth / (sampleSize * 2) >= _reqWidth && _srcHeight / (sampleSize * 2) >= _reqHeight) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /** Returns the size an image should be scaled to so its longest edge is at most '_maxEdge' (images are never upscaled)
+     *
+     * @param _width - Current width
+     * @param _height - Current height
+     * @param _maxEdge - Maximum length of the longest edge
+     * @return {width, height}
+     */
+    public static int[] SCALED_SIZE(int _width, int _height, int _maxEdge)
+    {
+        int longest = Math.max(_width, _height);
+        if (longest <= _maxEdge) return new int[]{_width, _height};
+        double scale = (double)_maxEdge / longest;
+        return new int[]{Math.max(1, (int)Math.round(_width * scale)), Math.max(1, (int)Math.round(_height * scale))};
+    }
+}
@@ -0,0 +1,332 @@
+package michael.wilson.geochat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Finds what blocks the main thread, and which of the app's callbacks was running when it did
+ * > The app's heavy main thread callbacks are bracketed with 'enter(...)' and 'exit(...)' (see 'JankWatchdog'), the time spent
+ *   in each one (minus nested callbacks) is what findings are attributed to
+ * > A main thread message (see 'beginMessage(...)') longer than 'LONG_MESSAGE_MS' is a finding, blamed on the callback which
+ *   took most of it (or on the message's handler if no callback ran). Without message boundaries, every outermost callback
+ *   counts as a message
+ * > A frame arriving late is a finding, blamed on the longest message since the previous frame
+ * > A message still running after 'STALL_MS' (or a ping the main thread did not answer in time) is a stall, an ANR in the making
+ * > Disk and network access on the main thread are reported by the caller (StrictMode) and counted
+ * > Findings with the same kind and blame are merged, the report ranks them by total time blocked
+ *
+ * Every time is in nanoseconds (of 'System.nanoTime()', which is also what frame times are measured with).
+ * Thread safe, the main thread records and a watchdog thread checks for stalls.
+ * Plain java so it can be tested off-device.
+ */
+public class JankTracker
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Kinds of finding
+    public static final int KIND_LONG_MESSAGE = 0, KIND_DROPPED_FRAMES = 1, KIND_STALL = 2, KIND_DISK_READ = 3, KIND_DISK_WRITE = 4,
+            KIND_NETWORK = 5;
+    public static final String[] KIND_NAMES = {"long_message", "dropped_frames", "stall", "disk_read", "disk_write", "network"};
+
+    // The app's main thread callbacks findings are attributed to
+    public static final int CALLBACK_REFRESH = 0, CALLBACK_REGION_FETCH = 1, CALLBACK_MARKER_UPDATE = 2, CALLBACK_COMMENT_RENDER = 3,
+            CALLBACK_THREAD_SYNC = 4, CALLBACK_NOTIFICATION = 5;
+    public static final String[] CALLBACK_NAMES = {"refresh", "region_fetch", "marker_update", "comment_render", "thread_sync",
+            "notification"};
+
+    // Blame of a finding which happened outside every callback (and outside any known handler)
+    public static final String OTHER = "other";
+
+    // A message longer than this is a finding (a few frames lost, and input feels sluggish)
+    public static final long LONG_MESSAGE_MS = 50;
+
+    // A message running longer than this is a stall (input is reported as not responding after 5 seconds)
+    public static final long STALL_MS = 2000;
+
+    // Different blames kept at most, later ones are merged into 'OTHER' (handler names are not a closed set)
+    public static final int MAX_FINDINGS = 200;
+
+    /** Findings of one kind with the same blame, merged */
+    public static class Finding
+    {
+        public final int kind;
+        public final String blame;
+        public long count, blockedNanos, maxNanos, frames;
+
+        Finding(int _kind, String _blame)
+        {
+            this.kind = _kind;
+            this.blame = _blame;
+        }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private static final long MS = 1000000L;
+
+    // Callbacks running on the main thread, innermost last, and when the innermost one last started or resumed
+    private final int[] stack = new int[16];
+    private int depth;
+    private long segmentStart;
+
+    // The running message, if any (implicit if it is an outermost callback rather than a looper message)
+    private boolean running, implicit, stalled;
+    private long messageStart;
+    private String messageTarget;
+
+    // The watchdog ping a stall was last reported for (so a ping left unanswered is reported once)
+    private long stalledPing;
+
+    // Time spent in each callback during the running message
+    private final long[] spent = new long[CALLBACK_NAMES.length];
+
+    // Longest message since the last frame, and what it was blamed on
+    private long frameBlameNanos;
+    private String frameBlame;
+    private long lastFrame;
+
+    private final long frameIntervalNanos;
+    private final Map<String, Finding> findings = new HashMap<>();
+
+    /** Constructor
+     *
+     * @param _frameIntervalNanos - Time between two frames of the display (16.7ms at 60Hz)
+     */
+    public JankTracker(long _frameIntervalNanos)
+    {
+        this.frameIntervalNanos = _frameIntervalNanos;
+    }
+
+    /** Called when a callback starts running on the main thread */
+    public synchronized void enter(int _callback, long _now)
+    {
+        if (!running)
+        {
+            beginMessage(null, _now);
+            implicit = true;
+        }
+        if (depth > 0) spent[stack[depth - 1]] += _now - segmentStart;
+        if (depth < stack.length) stack[depth] = _callback;
+        depth++;
+        segmentStart = _now;
+    }
+
+    /** Called when a callback returns (callbacks left without 'exit(...)' are dropped at the end of their message) */
+    public synchronized void exit(int _callback, long _now)
+    {
+        if (depth == 0) return;
+        int top = stack[Math.min(depth, stack.length) - 1];
+        spent[top] += _now - segmentStart;
+        segmentStart = _now;
+        depth--;
+        if (depth == 0 && implicit) endMessage(_now);
+    }
+
+    /** Called when the main thread's looper starts dispatching a message
+     *
+     * @param _target - What the looper logs for the message (its handler and callback), kept to blame it if no callback runs
+     * @param _now - Current time
+     */
+    public synchronized void beginMessage(String _target, long _now)
+    {
+        if (running) endMessage(_now);
+        running = true;
+        messageStart = _now;
+        messageTarget = _target;
+        implicit = false;
+        stalled = false;
+        depth = 0;
+        for (int c = 0; c < spent.length; c++) spent[c] = 0;
+    }
+
+    /** Called when the main thread's looper has dispatched a message */
+    public synchronized void endMessage(long _now)
+    {
+        if (!running) return;
+        if (depth > 0) spent[stack[Math.min(depth, stack.length) - 1]] += _now - segmentStart;
+        long duration = _now - messageStart;
+        running = false;
+        depth = 0;
+        boolean isLong = duration >= LONG_MESSAGE_MS * MS;
+        if (!isLong && duration <= frameBlameNanos) return;
+
+        String blame = blame();
+        if (isLong) record(KIND_LONG_MESSAGE, blame, duration, 0);
+        if (duration > frameBlameNanos)
+        {
+            frameBlameNanos = duration;
+            frameBlame = blame;
+        }
+    }
+
+    /** Called for every frame (with the frame's time, as given to a 'Choreographer' callback) */
+    public synchronized void frame(long _frameTime)
+    {
+        if (lastFrame != 0 && _frameTime > lastFrame)
+        {
+            long dropped = Math.round((double)(_frameTime - lastFrame) / frameIntervalNanos) - 1;
+            if (dropped > 0)
+            {
+                record(KIND_DROPPED_FRAMES, frameBlame != null ? frameBlame : OTHER, dropped * frameIntervalNanos, dropped);
+            }
+        }
+        lastFrame = _frameTime;
+        frameBlame = null;
+        frameBlameNanos = 0;
+    }
+
+    /** Forgets the last frame (frames are not expected while the app is in the background) */
+    public synchronized void pauseFrames() { lastFrame = 0; }
+
+    /** Checks whether the main thread is stuck (called by a watchdog thread), a stall is reported once per message or ping
+     *
+     * @param _pingSince - When the watchdog asked the main thread to answer, 0 if it answered
+     * @param _now - Current time
+     * @return True if a stall was reported
+     */
+    public synchronized boolean checkStall(long _pingSince, long _now)
+    {
+        long since;
+        if (running)
+        {
+            if (stalled || _now - messageStart < STALL_MS * MS) return false;
+            stalled = true;
+            since = messageStart;
+        }
+        else
+        {
+            if (_pingSince == 0 || _pingSince == stalledPing || _now - _pingSince < STALL_MS * MS) return false;
+            since = _pingSince;
+        }
+        stalledPing = _pingSince;
+        // blamed on what is running right now, not on what took most of the message so far
+        String blame = OTHER;
+        if (depth > 0) blame = CALLBACK_NAMES[stack[Math.min(depth, stack.length) - 1]];
+        else if (running && !implicit) blame = TARGET(messageTarget);
+        record(KIND_STALL, blame, _now - since, 0);
+        return true;
+    }
+
+    /** Records disk or network access on the main thread
+     *
+     * @param _kind - 'KIND_DISK_READ', 'KIND_DISK_WRITE', or 'KIND_NETWORK'
+     * @param _blame - Where it happened (see 'FIRST_APP_FRAME(...)')
+     */
+    public synchronized void violation(int _kind, String _blame) { record(_kind, _blame != null ? _blame : OTHER, 0, 0); }
+
+    /** Returns every finding, the most time blocked first (then the most frequent) */
+    public synchronized List<Finding> report()
+    {
+        List<Finding> ranked = new ArrayList<>();
+        for (Finding finding : findings.values())
+        {
+            Finding copy = new Finding(finding.kind, finding.blame);
+            copy.count = finding.count;
+            copy.blockedNanos = finding.blockedNanos;
+            copy.maxNanos = finding.maxNanos;
+            copy.frames = finding.frames;
+            ranked.add(copy);
+        }
+        Collections.sort(ranked, new Comparator<Finding>()
+        {
+            @Override
+            public int compare(Finding _a, Finding _b)
+            {
+                if (_a.blockedNanos != _b.blockedNanos) return Long.compare(_b.blockedNanos, _a.blockedNanos);
+                return Long.compare(_b.count, _a.count);
+            }
+        });
+        return ranked;
+    }
+
+    /** Forgets every finding */
+    public synchronized void reset() { findings.clear(); }
+
+    /** Writes the report, one finding per line, the most time blocked first
+     *
+     * @param _out - Where to write the report
+     */
+    public void writeReport(Writer _out) throws IOException
+    {
+        _out.write("# main thread (kind blame count blocked_ms max_ms dropped_frames)\n");
+        for (Finding finding : report())
+        {
+            _out.write(KIND_NAMES[finding.kind] + " " + finding.blame + " " + finding.count + " " + finding.blockedNanos / MS + " "
+                    + finding.maxNanos / MS + " " + finding.frames + "\n");
+        }
+        _out.flush();
+    }
+
+    /** Returns the report as a string (see 'writeReport(...)') */
+    public String reportString()
+    {
+        StringWriter out = new StringWriter();
+        try { writeReport(out); }
+        catch (IOException ex) { /* StringWriter never throws */ }
+        return out.toString();
+    }
+
+    /** Returns the handler of a message as the looper logs it (">>>>> Dispatching to Handler (class) {id} callback: what")
+     *
+     * @return The handler's class, or 'OTHER' if the line is not in that form
+     */
+    public static String TARGET(String _line)
+    {
+        if (_line == null) return OTHER;
+        int open = _line.indexOf('('), close = _line.indexOf(')', open + 1);
+        if (open < 0 || close < 0) return OTHER;
+        return _line.substring(open + 1, close);
+    }
+
+    /** Returns the first frame of a stack trace inside the app's code ("Class.method:line"), or 'OTHER' if there is none
+     *
+     * @param _stack - The stack trace (of a StrictMode violation)
+     * @param _package - The app's package ("michael.wilson.geochat")
+     */
+    public static String FIRST_APP_FRAME(StackTraceElement[] _stack, String _package)
+    {
+        if (_stack == null) return OTHER;
+        for (StackTraceElement frame : _stack)
+        {
+            String cls = frame.getClassName();
+            if (!cls.startsWith(_package + ".") || cls.startsWith(JankTracker.class.getName())) continue;
+            return cls.substring(_package.length() + 1) + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+        }
+        return OTHER;
+    }
+
+    // the callback which took most of the running message, else the message's handler
+    private String blame()
+    {
+        int worst = -1;
+        for (int c = 0; c < spent.length; c++) if (spent[c] > 0 && (worst < 0 || spent[c] > spent[worst])) worst = c;
+        if (worst >= 0) return CALLBACK_NAMES[worst];
+        return implicit ? OTHER : TARGET(messageTarget);
+    }
+
+    private void record(int _kind, String _blame, long _nanos, long _frames)
+    {
+        String key = _kind + " " + _blame;
+        Finding finding = findings.get(key);
+        if (finding == null)
+        {
+            if (findings.size() >= MAX_FINDINGS && !OTHER.equals(_blame))
+            {
+                record(_kind, OTHER, _nanos, _frames);
+                return;
+            }
+            finding = new Finding(_kind, _blame);
+            findings.put(key, finding);
+        }
+        finding.count++;
+        finding.blockedNanos += _nanos;
+        finding.maxNanos = Math.max(finding.maxNanos, _nanos);
+        finding.frames += _frames;
+    }
+}
@@ -0,0 +1,193 @@
+package michael.wilson.geochat;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.strictmode.DiskReadViolation;
+import android.os.strictmode.DiskWriteViolation;
+import android.os.strictmode.NetworkViolation;
+import android.os.strictmode.Violation;
+import android.util.Printer;
+import android.view.Choreographer;
+import android.view.WindowManager;
+import java.util.concurrent.Executor;
+
+/** Watches the main thread for long messages, dropped frames, stalls, and disk or network access (see 'JankTracker')
+ * > The app's heavy main thread callbacks call 'ENTER(...)' and 'EXIT(...)', which is what findings are blamed on
+ * > While an activity is started: every frame is timed ('Choreographer'), and a watchdog thread pings the main thread
+ *   every 'PING_MS' to find stalls
+ * > Debug builds also time every looper message (the looper builds a log line per message, too costly for release builds)
+ *   and report disk and network access on the main thread (StrictMode, without its log or crash penalties)
+ * > The report is part of the metrics screen and of the metrics file (see 'Toolkit.DUMP_METRICS()')
+ */
+public class JankWatchdog
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // How often the watchdog thread pings the main thread
+    private static final long PING_MS = 500;
+
+    private static JankTracker TRACKER;
+    private static Thread MAIN;
+    private static Handler MAIN_HANDLER;
+
+    // Activities started (frames and pings only run while one is), and when the unanswered ping was sent (0 if answered)
+    private static int STARTED = 0;
+    private static volatile boolean FOREGROUND = false;
+    private static volatile long PING_SINCE = 0;
+
+    // The app's package, StrictMode findings are blamed on its first frame in the violation's stack
+    private static String PACKAGE;
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** Starts watching the main thread (does nothing if already started)
+     *
+     * @param _context - Any context, called on the main thread
+     * @param _full - Also time every looper message and report disk and network access (debug builds)
+     */
+    public static void START(Context _context, boolean _full)
+    {
+        if (TRACKER != null || Looper.myLooper() != Looper.getMainLooper()) return;
+        Application app = (Application)_context.getApplicationContext();
+        PACKAGE = app.getPackageName();
+        float refreshRate = ((WindowManager)app.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRefreshRate();
+        TRACKER = new JankTracker((long)(1000000000L / Math.max(refreshRate, 30f)));
+        MAIN = Thread.currentThread();
+        MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+        if (_full)
+        {
+            Looper.getMainLooper().setMessageLogging(new Printer()
+            {
+                @Override
+                public void println(String _line)
+                {
+                    if (_line.startsWith(">>>>>")) TRACKER.beginMessage(_line, System.nanoTime());
+                    else if (_line.startsWith("<<<<<")) TRACKER.endMessage(System.nanoTime());
+                }
+            });
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().detectDiskReads().detectDiskWrites().detectNetwork()
+                    .penaltyListener(new Executor()
+                    {
+                        @Override
+                        public void execute(Runnable _r) { _r.run(); }
+                    }, new StrictMode.OnThreadViolationListener()
+                    {
+                        @Override
+                        public void onThreadViolation(Violation _v) { onViolation(_v); }
+                    }).build());
+        }
+
+        app.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks()
+        {
+            @Override
+            public void onActivityStarted(Activity _activity) { if (STARTED++ == 0) foreground(true); }
+
+            @Override
+            public void onActivityStopped(Activity _activity) { if (--STARTED == 0) foreground(false); }
+
+            @Override public void onActivityCreated(Activity _activity, Bundle _state) { }
+            @Override public void onActivityResumed(Activity _activity) { }
+            @Override public void onActivityPaused(Activity _activity) { }
+            @Override public void onActivitySaveInstanceState(Activity _activity, Bundle _state) { }
+            @Override public void onActivityDestroyed(Activity _activity) { }
+        });
+
+        Thread watchdog = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { watch(); }
+        }, "jank-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /** Marks the start and the end of one of the app's main thread callbacks (calls from other threads are ignored)
+     *
+     * @param _callback - One of the 'JankTracker.CALLBACK_*' identifiers
+     */
+    public static void ENTER(int _callback) { if (TRACKER != null && Thread.currentThread() == MAIN) TRACKER.enter(_callback, System.nanoTime()); }
+    public static void EXIT(int _callback) { if (TRACKER != null && Thread.currentThread() == MAIN) TRACKER.exit(_callback, System.nanoTime()); }
+
+    /** Returns the report (ranked by time blocked, see 'JankTracker.writeReport(...)'), empty if not started */
+    public static String REPORT() { return TRACKER == null ? "" : TRACKER.reportString(); }
+
+    /** Forgets every finding */
+    public static void RESET() { if (TRACKER != null) TRACKER.reset(); }
+
+    // a frame callback re-posting itself while the app is in the foreground
+    private static final Choreographer.FrameCallback FRAME = new Choreographer.FrameCallback()
+    {
+        @Override
+        public void doFrame(long _frameTimeNanos)
+        {
+            if (!FOREGROUND) return;
+            TRACKER.frame(_frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    // answers the watchdog's ping
+    private static final Runnable PONG = new Runnable()
+    {
+        @Override
+        public void run() { PING_SINCE = 0; }
+    };
+
+    // called on the main thread when the first activity starts or the last one stops
+    private static void foreground(boolean _foreground)
+    {
+        synchronized (JankWatchdog.class)
+        {
+            FOREGROUND = _foreground;
+            JankWatchdog.class.notifyAll();
+        }
+        if (_foreground) Choreographer.getInstance().postFrameCallback(FRAME);
+        else
+        {
+            Choreographer.getInstance().removeFrameCallback(FRAME);
+            TRACKER.pauseFrames();
+        }
+    }
+
+    // the watchdog thread: pings the main thread and checks it answers, sleeps while the app is in the background
+    private static void watch()
+    {
+        try
+        {
+            while (true)
+            {
+                synchronized (JankWatchdog.class)
+                {
+                    while (!FOREGROUND) JankWatchdog.class.wait();
+                }
+                if (PING_SINCE == 0)
+                {
+                    PING_SINCE = System.nanoTime();
+                    MAIN_HANDLER.post(PONG);
+                }
+                Thread.sleep(PING_MS);
+                if (TRACKER.checkStall(PING_SINCE, System.nanoTime()))
+                {
+                    Toolkit.LOG("Main thread stalled at ", JankTracker.FIRST_APP_FRAME(MAIN.getStackTrace(), PACKAGE));
+                }
+            }
+        }
+        catch (InterruptedException ex) { /* the process is going away */ }
+    }
+
+    private static void onViolation(Violation _v)
+    {
+        int kind;
+        if (_v instanceof DiskReadViolation) kind = JankTracker.KIND_DISK_READ;
+        else if (_v instanceof DiskWriteViolation) kind = JankTracker.KIND_DISK_WRITE;
+        else if (_v instanceof NetworkViolation) kind = JankTracker.KIND_NETWORK;
+        else return;
+        TRACKER.violation(kind, JankTracker.FIRST_APP_FRAME(_v.getStackTrace(), PACKAGE));
+    }
+}
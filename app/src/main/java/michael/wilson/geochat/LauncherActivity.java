@@ -69,13 +69,14 @@ public class LauncherActivity extends AppCompatActivity
 
     /** Called when all permissions are enabled and the user is ready to continue.
      * > If the app was launched normally, it will start 'MainActivity'.
-     * > If the app was launched from a notification, it will start 'DiscussionActivity' and pass the appropriate data. */
+     * > If the app was launched from a notification, it will start 'DiscussionActivity' and pass the appropriate data
+     *   (including the post summary carried by the notification, so the post can be shown without waiting on firebase). */
     void continueToApp()
     {
         Intent i = getIntent();
         if (i.getStringExtra(Toolkit.KEY_NOTIFPAYLOAD_SENDER) != null)
         {
-            startActivity(Toolkit.OPEN_POST_INTENT(i.getStringExtra(Toolkit.KEY_NOTIFPAYLOAD_DOCID)));
+            startActivity(Toolkit.OPEN_POST_INTENT(i.getStringExtra(Toolkit.KEY_NOTIFPAYLOAD_DOCID), Toolkit.READ_SUMMARY(i)));
         }
         else startActivity(new Intent(LauncherActivity.this, MainActivity.class));
     }
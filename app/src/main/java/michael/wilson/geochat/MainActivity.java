@@ -1,13 +1,23 @@
 package michael.wilson.geochat;
 
+import androidx.annotation.NonNull;
+import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.FragmentActivity;
+import android.Manifest;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Bundle;
 import android.os.Looper;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.Switch;
+import androidx.lifecycle.Observer;
+import androidx.lifecycle.ViewModelProviders;
+import java.util.List;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationCallback;
@@ -25,12 +35,19 @@ import com.google.android.gms.maps.model.Marker;
 
 /** The heart of the application, all other activities stem from here
  * Provides the user with the ability to:
- * > See all posts on the map
+ * > See all posts on the map (loaded region by region as the map is moved)
  * > Select a post to view it
  * > Add a new post to the map
  * > Change the map to satellite mode
- * > View their own location */
-public class MainActivity extends FragmentActivity implements OnMapReadyCallback, GoogleMap.OnInfoWindowClickListener
+ * > Show only the most active posts in view ('hot' mode)
+ * > Search loaded posts by keyword and jump to them
+ * > View their own location
+ * > Be told about discussions they walk past, even with the app closed ('NEARBY', see 'NearbyAlerts')
+ *
+ * The map belongs to a 'MapController' that lets go of it when this activity is destroyed, and the loaded posts live in a
+ * 'MapViewModel', so rotating the screen redraws the same posts without downloading them again */
+public class MainActivity extends FragmentActivity implements OnMapReadyCallback, GoogleMap.OnInfoWindowClickListener,
+        GoogleMap.OnCameraIdleListener, GoogleMap.OnCameraMoveListener
 {
     // objects used to fetch the user location
     FusedLocationProviderClient fusedLocationClient;
@@ -43,60 +60,156 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
     // uesd to store the last user location
     Location userLocation;
 
+    // owns the map for the lifetime of this activity
+    MapController mapController;
+
+    // true once 'reportFullyDrawn()' has been called
+    boolean fullyDrawn;
+
+    // holds the loaded posts across configuration changes
+    MapViewModel mapViewModel;
+
     // The switch for enabling/disabling satellite mode
     Switch satelliteModeSwitch;
 
+    // The switch for enabling/disabling hot mode
+    Switch hotModeSwitch;
+
+    // The switch for enabling/disabling nearby alerts
+    Switch nearbySwitch;
+
+    // unique identifier for the background location permission request (asked for when nearby alerts are turned on)
+    final int BACKGROUND_LOCATION_REQUESTCODE = 70;
+
     // keep track if satellite mode is enabled
     static boolean mapSatelliteMode = false;
 
+    // keep track if hot mode is enabled (only the most active posts in view are drawn)
+    static boolean mapHotMode = false;
+
+    // maximum number of posts drawn in hot mode
+    final int HOT_POST_LIMIT = 25;
+
+    // maximum number of search results shown, and the zoom level used when jumping to one
+    final int SEARCH_RESULT_LIMIT = 20;
+    final float SEARCH_RESULT_ZOOM = 15.0f;
+
     // constant key values for shared preferences
-    final String KEY_CAMERA_LAT = "camera_lat", KEY_CAMERA_LNG = "camera_lng", KEY_CAMERA_ZOOM = "camera_zoom", KEY_MAPMODE = "mapmode";
+    final String KEY_CAMERA_LAT = "camera_lat", KEY_CAMERA_LNG = "camera_lng", KEY_CAMERA_ZOOM = "camera_zoom", KEY_MAPMODE = "mapmode",
+            KEY_HOTMODE = "hotmode";
 
     /** Called when the activity is created
+     * > Creates the map controller and gets the (possibly retained) post view model
      * > Sets the satellite-mode switch to be un-clickable
      * > Pairs the map-fragment view with the 'onMapReady()' callback in this class
+     * > Long-pressing the post button opens the metrics screen ('MetricsActivity'), in release builds too since they record
+     *   metrics as well
      */
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mapController = new MapController(this, this);
+        mapViewModel = ViewModelProviders.of(this).get(MapViewModel.class);
         satelliteModeSwitch = findViewById(R.id.darkModeSwitch);
         satelliteModeSwitch.setEnabled(false);
+        hotModeSwitch = findViewById(R.id.hotModeSwitch);
+        hotModeSwitch.setEnabled(false);
+        nearbySwitch = findViewById(R.id.nearbySwitch);
+        nearbySwitch.setChecked(NearbyAlerts.IS_ENABLED(this));
         SupportMapFragment mapFragment = (SupportMapFragment) getSupportFragmentManager().findFragmentById(R.id.map);
         mapFragment.getMapAsync(this);
+
+        findViewById(R.id.buttPost).setOnLongClickListener(new View.OnLongClickListener()
+        {
+            @Override
+            public boolean onLongClick(View _v)
+            {
+                startActivity(new Intent(MainActivity.this, MetricsActivity.class));
+                return true;
+            }
+        });
     }
 
     /** Called when the main google map is ready
      * > Initializes the main map
      * > Calls 'setupLocationLoop()' which starts the location updates
      * > Gets the maps's camera data from shared preferences
-     * > Calls 'REFRESH_MAP()' which downloads all post data from firebase
-     * > Sets the  satellite-mode switch to be clickable
+     * > Draws the posts held by the view model whenever they change
+     * > Calls 'refreshMap()' which downloads post data from firebase, unless the view model already has posts
+     * > Sets the  satellite-mode and hot-mode switches to be clickable
      *
      * @param _googleMap - Freshly instantiated map object
      */
     @Override
     public void onMapReady(GoogleMap _googleMap)
     {
-        Toolkit.MAP = _googleMap;
-        Toolkit.MAP.setMapStyle(MapStyleOptions.loadRawResourceStyle(this, R.raw.mapstheme));
-        Toolkit.MAP.setOnInfoWindowClickListener(this);
-        Toolkit.MAP.setMyLocationEnabled(true);
+        mapController.attach(_googleMap);
+        _googleMap.setMapStyle(MapStyleOptions.loadRawResourceStyle(this, R.raw.mapstheme));
+        _googleMap.setOnInfoWindowClickListener(this);
+        _googleMap.setOnCameraIdleListener(this);
+        _googleMap.setOnCameraMoveListener(this);
+        _googleMap.setMyLocationEnabled(true);
         setupLocationLoop();
 
         SharedPreferences prefs = getPreferences(0);
         LatLng pos = new LatLng(prefs.getFloat(KEY_CAMERA_LAT, 0.0f), prefs.getFloat(KEY_CAMERA_LNG, 0.0f));
         float zoom = prefs.getFloat(KEY_CAMERA_ZOOM, 1.0f);
-        Toolkit.MAP.moveCamera(CameraUpdateFactory.newLatLngZoom(pos, zoom));
+        _googleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(pos, zoom));
         mapSatelliteMode = prefs.getBoolean(KEY_MAPMODE, false);
         satelliteModeSwitch.setChecked(mapSatelliteMode);
-        if (mapSatelliteMode) Toolkit.MAP.setMapType(GoogleMap.MAP_TYPE_HYBRID);
-        else Toolkit.MAP.setMapType(GoogleMap.MAP_TYPE_NORMAL);
+        if (mapSatelliteMode) _googleMap.setMapType(GoogleMap.MAP_TYPE_HYBRID);
+        else _googleMap.setMapType(GoogleMap.MAP_TYPE_NORMAL);
+        mapHotMode = prefs.getBoolean(KEY_HOTMODE, false);
+        hotModeSwitch.setChecked(mapHotMode);
+
+        // the observer is removed automatically when this activity is destroyed
+        mapViewModel.getPosts().observe(this, new Observer<List<PostSummary>>()
+        {
+            @Override
+            public void onChanged(List<PostSummary> _posts)
+            {
+                JankWatchdog.ENTER(JankTracker.CALLBACK_MARKER_UPDATE);
+                mapController.show(_posts);
+                JankWatchdog.EXIT(JankTracker.CALLBACK_MARKER_UPDATE);
 
-        Toolkit.REFRESH_MAP();
+                // the first posts on the map mark the end of startup (measured by the benchmark module)
+                if (!fullyDrawn)
+                {
+                    fullyDrawn = true;
+                    reportFullyDrawn();
+                }
+            }
+        });
+        if (!mapViewModel.hasPosts()) refreshMap(true);
 
         satelliteModeSwitch.setEnabled(true);
+        hotModeSwitch.setEnabled(true);
+    }
+
+    /** Called whenever the map's camera moves
+     * > Creates markers for posts coming into view (evicting far away ones, see 'MarkerSet')
+     * > Outside of hot mode, lets the view model track the camera so it can prefetch the regions it is heading towards
+     */
+    @Override
+    public void onCameraMove()
+    {
+        JankWatchdog.ENTER(JankTracker.CALLBACK_MARKER_UPDATE);
+        mapController.updateMarkers();
+        JankWatchdog.EXIT(JankTracker.CALLBACK_MARKER_UPDATE);
+        if (!mapHotMode && mapController.isReady()) mapViewModel.onCameraMove(mapController.visibleBounds());
+    }
+
+    /** Called when the map's camera stops moving
+     * > Loads the regions in view (see 'MapViewModel.onCameraIdle(...)')
+     * > In hot mode, redraws the most active posts for the new viewport (only downloading if it shows regions not fetched last time)
+     */
+    @Override
+    public void onCameraIdle()
+    {
+        mapController.updateMarkers();
+        refreshMap(false);
     }
 
     /** Called when the user clicks on a marker's info window
@@ -117,11 +230,12 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
     protected void onRestart()
     {
         super.onRestart();
-        Toolkit.REFRESH_MAP();
+        refreshMap(true);
     }
 
     /** Called when the activity is destroyed
      * > Stops the location update loop
+     * > (The map itself is released by 'mapController')
      */
     @Override
     protected void onDestroy()
@@ -138,15 +252,16 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
     {
         super.onPause();
 
-        if (Toolkit.MAP != null)
+        if (mapController.isReady())
         {
-            CameraPosition camera = Toolkit.MAP.getCameraPosition();
+            CameraPosition camera = mapController.getMap().getCameraPosition();
             SharedPreferences prefs = getPreferences(0);
             SharedPreferences.Editor editor = prefs.edit();
             editor.putFloat(KEY_CAMERA_LAT, (float)camera.target.latitude);
             editor.putFloat(KEY_CAMERA_LNG, (float)camera.target.longitude);
             editor.putFloat(KEY_CAMERA_ZOOM, camera.zoom);
             editor.putBoolean(KEY_MAPMODE, mapSatelliteMode);
+            editor.putBoolean(KEY_HOTMODE, mapHotMode);
             editor.apply();
         }
     }
@@ -158,14 +273,152 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
      * */
     public void mapModeSwitch(View _v)
     {
-        if (Toolkit.MAP != null)
+        if (mapController.isReady())
         {
             mapSatelliteMode = ((Switch)_v).isChecked();
-            if (mapSatelliteMode) Toolkit.MAP.setMapType(GoogleMap.MAP_TYPE_HYBRID);
-            else  Toolkit.MAP.setMapType(GoogleMap.MAP_TYPE_NORMAL);
+            if (mapSatelliteMode) mapController.getMap().setMapType(GoogleMap.MAP_TYPE_HYBRID);
+            else  mapController.getMap().setMapType(GoogleMap.MAP_TYPE_NORMAL);
         }
     }
 
+    /** Called when the user clicks the hot-mode switch
+     * > Toggles hot mode and refreshes the map
+     *
+     * @param _v - Switch view clicked
+     * */
+    public void hotModeSwitch(View _v)
+    {
+        mapHotMode = ((Switch)_v).isChecked();
+        refreshMap(true);
+    }
+
+    /** Called when the user clicks the nearby-alerts switch
+     * > Turning it on asks for background location (without it, geofences only trigger while the app is open), then
+     *   registers geofences around nearby posts (see 'NearbyAlerts')
+     * > Turning it off removes them
+     *
+     * @param _v - Switch view clicked
+     * */
+    public void nearbySwitch(View _v)
+    {
+        if (!((Switch)_v).isChecked()) NearbyAlerts.STOP(getApplicationContext());
+        else if (checkSelfPermission(Manifest.permission.ACCESS_BACKGROUND_LOCATION) != PackageManager.PERMISSION_GRANTED)
+        {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_BACKGROUND_LOCATION},
+                    BACKGROUND_LOCATION_REQUESTCODE);
+        }
+        else NearbyAlerts.START(getApplicationContext());
+    }
+
+    /** Called once the user answers the background location request
+     * > Nearby alerts are turned on either way, without the permission they only trigger while the app is open
+     *
+     * @param _requestCode - Unique identifier for the request
+     * @param _permissions - Permissions being allowed/denied
+     * @param _grantResults - Result data of the request
+     */
+    @Override
+    public void onRequestPermissionsResult(int _requestCode, @NonNull String[] _permissions, @NonNull int[] _grantResults)
+    {
+        super.onRequestPermissionsResult(_requestCode, _permissions, _grantResults);
+        if (_requestCode == BACKGROUND_LOCATION_REQUESTCODE) NearbyAlerts.START(getApplicationContext());
+    }
+
+    /** Called when the user clicks the search button
+     * > Asks the user for keywords
+     * > Searches every loaded post ('SEARCH') or only the posts in view ('IN VIEW') and shows the results
+     *
+     * @param _v - Button clicked (not used)
+     * */
+    public void searchButt(View _v)
+    {
+        final EditText queryBox = new EditText(this);
+        queryBox.setHint(R.string.txtbox_search);
+        queryBox.setSingleLine(true);
+
+        new AlertDialog.Builder(this)
+                .setView(queryBox)
+                .setPositiveButton(R.string.butt_search, new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface _dialog, int _which) { showSearchResults(queryBox.getText().toString(), false); }
+                })
+                .setNeutralButton(R.string.butt_search_inview, new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface _dialog, int _which) { showSearchResults(queryBox.getText().toString(), true); }
+                })
+                .show();
+    }
+
+    /** Called when the user clicks the save area button
+     * > Asks the user to confirm, then downloads the posts in view (and their newest comments) into an offline pack,
+     *   so the map and discussions of the area still work without a network (see 'Toolkit.DOWNLOAD_PACK(...)')
+     *
+     * @param _v - Button clicked (not used)
+     * */
+    public void savePackButt(View _v)
+    {
+        if (!mapController.isReady()) return;
+        final GeoBounds bounds = mapController.visibleBounds();
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.pack_download_confirm)
+                .setPositiveButton(R.string.butt_save, new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface _dialog, int _which)
+                    {
+                        Toolkit.TOAST(Toolkit.DOWNLOAD_PACK(bounds) ? R.string.pack_download_start : R.string.pack_area_err);
+                    }
+                })
+                .show();
+    }
+
+    /** Searches 'SEARCH_INDEX' and lists the results, selecting a result moves the map's camera to that post
+     *
+     * @param _query - Keywords to search for
+     * @param _inView - If true, only posts inside the visible region of the map are returned
+     * */
+    void showSearchResults(String _query, boolean _inView)
+    {
+        if (!mapController.isReady()) return;
+        GeoBounds bounds = _inView ? mapController.visibleBounds() : null;
+        final List<PostSummary> results = Toolkit.SEARCH_INDEX.search(_query, bounds, SEARCH_RESULT_LIMIT);
+        if (results.isEmpty())
+        {
+            Toolkit.TOAST(R.string.search_no_results);
+            return;
+        }
+
+        String[] titles = new String[results.size()];
+        for (int i = 0; i < titles.length; i++) titles[i] = results.get(i).getTitle();
+        new AlertDialog.Builder(this).setItems(titles, new DialogInterface.OnClickListener()
+        {
+            @Override
+            public void onClick(DialogInterface _dialog, int _which)
+            {
+                GoogleMap map = mapController.getMap();
+                if (map == null) return;
+                PostSummary result = results.get(_which);
+                float zoom = Math.max(map.getCameraPosition().zoom, SEARCH_RESULT_ZOOM);
+                map.animateCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(result.getLat(), result.getLng()), zoom));
+            }
+        }).show();
+    }
+
+    /** Refreshes the map with either the posts in view (region by region), or in hot mode, only the most active posts in view
+     *
+     * @param _force - If false, posts (or regions) already loaded are reused instead of downloading them again
+     */
+    void refreshMap(boolean _force)
+    {
+        if (!mapController.isReady()) return;
+        GeoBounds bounds = mapController.visibleBounds();
+        if (mapHotMode) mapViewModel.refreshHot(bounds, HOT_POST_LIMIT, _force);
+        else if (_force) mapViewModel.reloadRegions(bounds);
+        else mapViewModel.onCameraIdle(bounds);
+    }
+
     /** Called when the user clicks the button to add a new post
      * > If the user has enabled location, starts the 'PostActivity' and passes location data
      * > If the user does not have location enables, displays a toast message
@@ -0,0 +1,181 @@
+package michael.wilson.geochat;
+
+import android.content.Context;
+import android.os.SystemClock;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.OnLifecycleEvent;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import java.util.List;
+
+/** Owns the main map for exactly as long as the activity showing it
+ * > The map is never held statically, a static map would keep it (and through its listeners, the activity) alive
+ * > Draws the posts published by 'MapViewModel', the posts themselves live in the view model and survive rotation
+ * > Only keeps markers near the viewport, up to a budget (see 'MarkerSet'), so tens of thousands of loaded posts stay cheap
+ * > When its lifecycle is destroyed, the map's listeners and markers are dropped along with the map itself
+ */
+public class MapController implements LifecycleObserver
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Posts with at least this many comments are highlighted on the map
+    private static final int HOT_COMMENT_THRESHOLD = 5;
+
+    private final Lifecycle lifecycle;
+
+    // Application context, used for marker strings (never the activity itself)
+    private final Context context;
+
+    // The map, null until 'attach(...)' and after destruction
+    private GoogleMap map;
+
+    // Every post shown, and the live markers of those near the viewport
+    private final MarkerSet<Marker> markers = new MarkerSet<>(new MarkerSet.Renderer<Marker>()
+    {
+        @Override
+        public Marker add(MarkerSet<Marker> _set, int _slot) { return addPostMarker(_set, _slot); }
+
+        @Override
+        public void remove(Marker _marker)
+        {
+            _marker.remove();
+            Metrics.INCREMENT(Metrics.COUNTER_MARKERS_REMOVED);
+        }
+    }, MarkerSet.DEFAULT_BUDGET);
+
+    // This device's id, used to colour the markers of this user's posts
+    private String deviceID;
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** Creates a controller bound to the given activity's lifecycle
+     *
+     * @param _owner - The activity showing the map
+     * @param _context - Any context (only its application context is kept)
+     */
+    public MapController(LifecycleOwner _owner, Context _context)
+    {
+        this.lifecycle = _owner.getLifecycle();
+        this.context = _context.getApplicationContext();
+        lifecycle.addObserver(this);
+    }
+
+    /** Hands the controller a freshly created map (ignored if the activity is already destroyed) */
+    public void attach(GoogleMap _map)
+    {
+        if (lifecycle.getCurrentState() != Lifecycle.State.DESTROYED) map = _map;
+    }
+
+    /** Returns the map, or null if it is not ready (or already destroyed) */
+    public GoogleMap getMap() { return map; }
+
+    /** Returns true if the map is ready to be used */
+    public boolean isReady() { return map != null; }
+
+    /** Returns the visible region of the map as 'GeoBounds' (the map must be ready) */
+    public GeoBounds visibleBounds()
+    {
+        LatLngBounds visible = map.getProjection().getVisibleRegion().latLngBounds;
+        return new GeoBounds(visible.southwest.latitude, visible.southwest.longitude, visible.northeast.latitude, visible.northeast.longitude);
+    }
+
+    /** Replaces the posts drawn on the map
+     * > Markers of posts that are still shown (and unchanged) are kept, then the markers in view are brought up to date
+     *
+     * @param _posts - Posts to draw (see 'MapViewModel.SUMMARIZE(...)')
+     */
+    public void show(List<PostSummary> _posts)
+    {
+        if (map == null || _posts == null) return;
+        deviceID = Toolkit.GET_DEVICE_ID();
+        markers.setPosts(_posts);
+        updateMarkers();
+    }
+
+    /** Creates markers for the posts that came into view, evicting far away ones if over budget
+     * > Call whenever the camera moves
+     */
+    public void updateMarkers()
+    {
+        if (map == null) return;
+        long start = Metrics.BEGIN(Metrics.SECTION_MARKER_UPDATE);
+        markers.update(visibleBounds(), SystemClock.uptimeMillis());
+        Metrics.END(Metrics.SECTION_MARKER_UPDATE, start);
+    }
+
+    /** Changes the largest number of live markers (0 for no limit), and applies it */
+    public void setMarkerBudget(int _budget)
+    {
+        markers.setBudget(_budget);
+        updateMarkers();
+    }
+
+    /** Returns the number of posts shown, and the number of them that currently have a marker */
+    public int postCount() { return markers.size(); }
+    public int markerCount() { return markers.liveCount(); }
+
+    /** Called when the activity is destroyed
+     * > Removes the map's listeners (which point back at the activity) and its markers, then lets go of the map
+     */
+    @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+    void onDestroy()
+    {
+        if (map != null)
+        {
+            map.setOnInfoWindowClickListener(null);
+            map.setOnCameraIdleListener(null);
+            map.setOnCameraMoveListener(null);
+            map.clear();
+            markers.reset();
+            map = null;
+        }
+        lifecycle.removeObserver(this);
+    }
+
+    /** Adds a marker for a post
+     * > The marker is blue if this user created the post, otherwise red
+     * > Busy posts (at least 'HOT_COMMENT_THRESHOLD' comments) are drawn on top and show their comment count, quiet posts are faded
+     *
+     * @param _set - The posts shown
+     * @param _slot - The post's slot in '_set', its id is stored as the marker's tag
+     * @return The new marker
+     */
+    private Marker addPostMarker(MarkerSet<Marker> _set, int _slot)
+    {
+        long commentCount = _set.getCommentCount(_slot);
+        MarkerOptions options = new MarkerOptions();
+        options.position(new LatLng(_set.getLat(_slot), _set.getLng(_slot)));
+        options.title(_set.getTitle(_slot));
+        boolean hot = commentCount >= HOT_COMMENT_THRESHOLD;
+        if (commentCount > 0) options.snippet(context.getString(R.string.marker_snippet_activity, _set.getDate(_slot), commentCount));
+        else options.snippet(_set.getDate(_slot));
+        options.alpha(hot ? 1.0f : 0.8f);
+
+        // if this user created the post, make the marker blue, otherwise make it red
+        if (deviceID != null && deviceID.equals(_set.getUserID(_slot)))
+        {
+            options.icon(BitmapDescriptorFactory.fromResource(R.mipmap.mcl_marker_blue));
+            options.zIndex(hot ? 3 : 1);
+        }
+        else
+        {
+            options.icon(BitmapDescriptorFactory.fromResource(R.mipmap.mcl_marker));
+            options.zIndex(hot ? 2 : 0);
+        }
+
+        long insertStart = Metrics.BEGIN(Metrics.SECTION_MARKER_INSERT);
+        Marker marker = map.addMarker(options);
+        Metrics.END(Metrics.SECTION_MARKER_INSERT, insertStart);
+        Metrics.INCREMENT(Metrics.COUNTER_MARKERS_ADDED);
+
+        // set the marker's tag equal to the document's id
+        marker.setTag(_set.getDocID(_slot));
+        return marker;
+    }
+}
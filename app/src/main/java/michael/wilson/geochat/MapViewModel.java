@@ -0,0 +1,521 @@
+package michael.wilson.geochat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.ViewModel;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Holds the posts shown on the main map, so they survive configuration changes (e.g. rotating the screen)
+ * > 'MainActivity' observes 'getPosts()' and hands every new list to its 'MapController' to draw
+ * > A recreated activity is given the last list straight away instead of downloading every post again
+ * > Firebase listeners only reference this view model (never an activity), and results arriving after it was cleared,
+ *   or after a newer request was made, are dropped
+ * > Normally posts are loaded region by region as the camera moves (see 'RegionScheduler'), zoomed out too far for that,
+ *   every post is loaded instead
+ * > In hot mode, only the most active posts of each region in view are fetched, and kept, so panning over regions already
+ *   fetched is re-ranked locally
+ * > Every fetch is timed for 'Toolkit.FETCH_POLICY', which sets how many regions are fetched at once, how much is prefetched,
+ *   and how many posts are loaded when zoomed out, on the current network
+ * > Every answer is given to 'Toolkit.RECORDER' while recording, and read from 'Toolkit.PLAYER' instead of firebase while a
+ *   tape is played (see 'FirestoreTape')
+ */
+public class MapViewModel extends ViewModel
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // The posts currently drawn on the map
+    private final MutableLiveData<List<PostSummary>> posts = new MutableLiveData<>();
+
+    // Most active posts of each region fetched last in hot mode, and how many were fetched per region
+    private Map<Long, List<PostSummary>> hotCells;
+    private int hotK;
+
+    // Most regions fetched at once in hot mode, a wider viewport gets the most active posts of each shard in view instead
+    private static final int HOT_MAX_CELLS = 32;
+
+    // Incremented by every request (and when cleared), so only the newest request's result is used
+    private int generation;
+
+    // Set once the owning activity is finished for good
+    private boolean cleared = false;
+
+    // Posts of every region loaded so far (regions are evicted by the scheduler when its cache is full)
+    private final Map<Long, List<PostSummary>> regionPosts = new HashMap<>();
+
+    // True while the map is driven by regions (false in hot mode), and while it shows every post instead of regions
+    // (the viewport needed too many regions)
+    private boolean regionMode = false, showingAll = false;
+
+    // Decides which regions to fetch, see 'RegionScheduler'
+    private final RegionScheduler regions = new RegionScheduler(new RegionScheduler.Fetcher()
+    {
+        @Override
+        public void fetch(RegionScheduler.Request _request) { fetchRegion(_request); }
+
+        @Override
+        public void evict(long _cell) { regionPosts.remove(_cell); }
+    }, GeoCell.REGION_LEVEL);
+
+    // Runs the scheduler's debounced plans, times are 'SystemClock.uptimeMillis()'
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable tick = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!regions.tick(SystemClock.uptimeMillis())) showAll();
+            scheduleTick();
+        }
+    };
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** Returns the posts to draw on the map */
+    public LiveData<List<PostSummary>> getPosts() { return posts; }
+
+    /** Returns true if posts have been loaded before (e.g. by the activity's previous instance) */
+    public boolean hasPosts() { return posts.getValue() != null; }
+
+    /** Called whenever the map's camera moves (outside of hot mode), see 'RegionScheduler.onCameraMove(...)'
+     *
+     * @param _bounds - The visible region of the map
+     */
+    public void onCameraMove(GeoBounds _bounds)
+    {
+        regionMode = true;
+        applyPolicy();
+        regions.onCameraMove(_bounds, SystemClock.uptimeMillis());
+        scheduleTick();
+    }
+
+    /** Called when the map's camera stops moving (outside of hot mode)
+     * > Fetches the regions in view (and cancels fetches for regions the camera has left)
+     * > If the viewport needs too many regions, loads every post instead
+     *
+     * @param _bounds - The visible region of the map
+     */
+    public void onCameraIdle(GeoBounds _bounds)
+    {
+        boolean wasRegionMode = regionMode;
+        regionMode = true;
+        applyPolicy();
+        if (!regions.onCameraIdle(_bounds, SystemClock.uptimeMillis())) showAll();
+        else if (!wasRegionMode) publishRegions(); // coming back from hot mode, show the regions already loaded
+        scheduleTick();
+    }
+
+    /** Drops every loaded region and loads the regions in view again
+     *
+     * @param _bounds - The visible region of the map
+     */
+    public void reloadRegions(GeoBounds _bounds)
+    {
+        regions.reset();
+        regionPosts.clear();
+        showingAll = false;
+        onCameraIdle(_bounds);
+    }
+
+    /** Returns the region scheduler's counters (wasted fetches, time until posts appear, ...) */
+    public RegionScheduler.Stats getRegionStats() { return regions.getStats(); }
+
+    /** Loads every post from firebase (only the most active ones on a slow network, see 'FetchPolicy.refreshLimit()')
+     * > Adds each post to 'Toolkit.SEARCH_INDEX'
+     */
+    public void refresh()
+    {
+        hotCells = null;
+        fetch(++generation, null, null, 0);
+    }
+
+    /** Loads only the most active posts in the given viewport
+     * > Gets the '_k' most commented posts of each region covering the viewport (a post outside the top '_k' of its region can
+     *   not be in the top '_k' of the viewport, unless the region is only partly in view)
+     * > A viewport needing more than 'HOT_MAX_CELLS' regions gets the '_k' most commented posts of each shard in view instead
+     * > Ranks the posts inside the viewport by activity and keeps the top '_k'
+     * > If every region in view was fetched last time (and '_force' is false), nothing is downloaded
+     *
+     * @param _bounds - The visible region of the map
+     * @param _k - Maximum number of posts to draw
+     * @param _force - If true, always fetch fresh data
+     */
+    public void refreshHot(GeoBounds _bounds, int _k, boolean _force)
+    {
+        regionMode = false;
+        showingAll = false;
+        int request = ++generation;
+        long[] cells = GeoCell.COVERING(_bounds, GeoCell.REGION_LEVEL, HOT_MAX_CELLS);
+        if (!_force && cells != null && hotCells != null && _k <= hotK)
+        {
+            List<PostSummary> cached = new ArrayList<>();
+            for (long cell : cells)
+            {
+                List<PostSummary> region = hotCells.get(cell);
+                if (region == null)
+                {
+                    cached = null;
+                    break;
+                }
+                cached.addAll(region);
+            }
+            if (cached != null)
+            {
+                posts.setValue(HotPostRanker.TOP_K(cached, _bounds, _k));
+                return;
+            }
+        }
+        fetch(request, _bounds, cells, _k);
+    }
+
+    /** Called when the owning activity is finished for good, drops any result still on its way */
+    @Override
+    protected void onCleared()
+    {
+        generation++;
+        cleared = true;
+        hotCells = null;
+        handler.removeCallbacks(tick);
+        regions.reset();
+    }
+
+    // shows every post, used when zoomed out too far for regions
+    private void showAll()
+    {
+        if (showingAll) return;
+        showingAll = true;
+        refresh();
+    }
+
+    // fits the scheduler's limits to the current network
+    private void applyPolicy()
+    {
+        regions.setLimits(Toolkit.FETCH_POLICY.maxInFlight(), Toolkit.FETCH_POLICY.prefetchBudgetBytes());
+    }
+
+    private void scheduleTick()
+    {
+        handler.removeCallbacks(tick);
+        long deadline = regions.nextDeadline();
+        if (deadline >= 0) handler.postAtTime(tick, deadline);
+    }
+
+    // queries firebase (or the tape being played) for the posts in one region and hands them to the scheduler
+    private void fetchRegion(final RegionScheduler.Request _request)
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_REGION_FETCHES);
+        if (_request.isPrefetch()) Metrics.INCREMENT(Metrics.COUNTER_REGION_PREFETCHES);
+        final long fetchStart = Metrics.BEGIN(Metrics.SECTION_REGION_FETCH);
+        final String key = FirestoreTape.KEY_REGION(_request.getCell());
+
+        if (Toolkit.PLAYER != null)
+        {
+            Toolkit.PLAYER.read(key, new FirestoreTape.Callback()
+            {
+                @Override
+                public void onAnswer(FirestoreTape.Exchange _answer)
+                {
+                    JankWatchdog.ENTER(JankTracker.CALLBACK_REGION_FETCH);
+                    try { onRegionLoaded(_request, _answer.getDocuments(), false, fetchStart); }
+                    finally { JankWatchdog.EXIT(JankTracker.CALLBACK_REGION_FETCH); }
+                }
+            });
+            return;
+        }
+
+        // a region lies inside a single shard (plus the posts created before sharding)
+        List<Query> queries = new ArrayList<>();
+        for (CollectionReference collection : Toolkit.GET_POST_COLLECTIONS(GeoCell.BOUNDS(_request.getCell())))
+        {
+            queries.add(collection.whereEqualTo(FirestorePost.CELL_KEY, _request.getCell()));
+        }
+        Toolkit.FAN_OUT(queries).addOnCompleteListener(new OnCompleteListener<List<QuerySnapshot>>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<List<QuerySnapshot>> task)
+            {
+                JankWatchdog.ENTER(JankTracker.CALLBACK_REGION_FETCH);
+                try
+                {
+                    // a result nobody wants any more is not even decoded (unless it is being recorded)
+                    List<FirestoreTape.Document> documents = null;
+                    boolean wanted = !cleared && !_request.isCancelled();
+                    if (task.isSuccessful() && (wanted || Toolkit.RECORDER != null)) documents = DECODE(task.getResult());
+                    Toolkit.RECORD_READ(key, _request.getStartTime(), documents);
+                    onRegionLoaded(_request, documents, task.isSuccessful() && FROM_CACHE(task.getResult()), fetchStart);
+                }
+                finally { JankWatchdog.EXIT(JankTracker.CALLBACK_REGION_FETCH); }
+            }
+        });
+    }
+
+    // hands the posts of a region to the scheduler, and shows them if it still wants them ('_documents' is null if the fetch failed,
+    // '_fromCache' is true if firebase answered from its local cache, i.e. offline)
+    private void onRegionLoaded(RegionScheduler.Request _request, List<FirestoreTape.Document> _documents, boolean _fromCache,
+                                long _fetchStart)
+    {
+        // firebase reads can not be aborted, a cancelled request's result is simply dropped
+        if (cleared || _request.isCancelled())
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_REGION_DROPPED);
+            return;
+        }
+        if (_documents == null) Metrics.INCREMENT(Metrics.COUNTER_REFRESH_ERR);
+
+        // offline, firebase answers from its local cache (only the posts it happened to keep), a region saved in a pack is shown
+        // from the pack instead (until the regions are reloaded)
+        List<PostSummary> packed = _documents == null || _fromCache ? Toolkit.PACKED_REGION(_request.getCell()) : null;
+        if (packed != null || _documents == null)
+        {
+            if (packed != null && regions.onLoaded(_request, 0, SystemClock.uptimeMillis()))
+            {
+                regionPosts.put(_request.getCell(), packed);
+                publishRegions();
+            }
+            else regions.onFailed(_request, SystemClock.uptimeMillis());
+            return;
+        }
+
+        List<PostSummary> loaded = LOAD(_documents);
+        long bytes = ESTIMATE_BYTES(_documents);
+        Metrics.END(Metrics.SECTION_REGION_FETCH, _fetchStart);
+
+        // an answer from the cache says nothing about the network
+        if (!_fromCache) Toolkit.FETCH_POLICY.onResponse(bytes, SystemClock.uptimeMillis() - _request.getStartTime());
+
+        if (regions.onLoaded(_request, bytes, SystemClock.uptimeMillis()))
+        {
+            regionPosts.put(_request.getCell(), loaded);
+            publishRegions();
+        }
+        else Metrics.INCREMENT(Metrics.COUNTER_REGION_DROPPED);
+    }
+
+    // shows the posts of every loaded region
+    private void publishRegions()
+    {
+        if (!regionMode) return;
+        showingAll = false;
+        generation++; // a full refresh still on its way would overwrite these
+        List<PostSummary> all = new ArrayList<>();
+        for (List<PostSummary> region : regionPosts.values()) all.addAll(region);
+        posts.setValue(all);
+    }
+
+    // queries firebase (or the tape being played) for every post (or the most active posts of each region in '_cells' when '_bounds'
+    // is set, of each shard covering '_bounds' if '_cells' is null) and publishes the result
+    private void fetch(final int _request, final GeoBounds _bounds, final long[] _cells, final int _k)
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_REFRESH);
+        final long refreshStart = Metrics.BEGIN(Metrics.SECTION_REFRESH);
+        final long sent = SystemClock.uptimeMillis();
+
+        // on a slow network, a zoomed out map only gets each shard's most active posts
+        int limit = _bounds == null ? Toolkit.FETCH_POLICY.refreshLimit() : 0;
+        final String key = _bounds == null ? FirestoreTape.KEY_ALL(limit) : FirestoreTape.KEY_HOT(_cells, _bounds, _k);
+
+        if (Toolkit.PLAYER != null)
+        {
+            Toolkit.PLAYER.read(key, new FirestoreTape.Callback()
+            {
+                @Override
+                public void onAnswer(FirestoreTape.Exchange _answer)
+                {
+                    JankWatchdog.ENTER(JankTracker.CALLBACK_REFRESH);
+                    try { onFetched(_request, _bounds, _cells, _k, _answer.getDocuments(), false, refreshStart, sent); }
+                    finally { JankWatchdog.EXIT(JankTracker.CALLBACK_REFRESH); }
+                }
+            });
+            return;
+        }
+
+        // hot mode asks each region (each lies inside a single shard, plus the posts created before sharding) for its most
+        // commented posts
+        List<Query> queries = new ArrayList<>();
+        if (_cells != null)
+        {
+            for (long cell : _cells)
+            {
+                for (CollectionReference collection : Toolkit.GET_POST_COLLECTIONS(GeoCell.BOUNDS(cell)))
+                {
+                    queries.add(collection.whereEqualTo(FirestorePost.CELL_KEY, cell)
+                            .orderBy(FirestorePost.COMMENT_COUNT_KEY, Query.Direction.DESCENDING).limit(_k));
+                }
+            }
+        }
+        else for (CollectionReference collection : Toolkit.GET_POST_COLLECTIONS(_bounds))
+        {
+            if (_bounds != null) queries.add(collection.orderBy(FirestorePost.COMMENT_COUNT_KEY, Query.Direction.DESCENDING).limit(_k));
+            else queries.add(limit == 0 ? collection
+                    : collection.orderBy(FirestorePost.LAST_ACTIVITY_KEY, Query.Direction.DESCENDING).limit(limit));
+        }
+
+        Toolkit.FAN_OUT(queries).addOnCompleteListener(new OnCompleteListener<List<QuerySnapshot>>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<List<QuerySnapshot>> task)
+            {
+                JankWatchdog.ENTER(JankTracker.CALLBACK_REFRESH);
+                try
+                {
+                    if (_request != generation && Toolkit.RECORDER == null) return;
+                    List<FirestoreTape.Document> documents = task.isSuccessful() ? DECODE(task.getResult()) : null;
+                    Toolkit.RECORD_READ(key, sent, documents);
+                    onFetched(_request, _bounds, _cells, _k, documents, task.isSuccessful() && FROM_CACHE(task.getResult()), refreshStart,
+                            sent);
+                }
+                finally { JankWatchdog.EXIT(JankTracker.CALLBACK_REFRESH); }
+            }
+        });
+    }
+
+    // publishes the posts of a full refresh or a hot mode fetch ('_documents' is null if the fetch failed, '_fromCache' is true if
+    // firebase answered from its local cache, i.e. offline), unless a newer request was made
+    private void onFetched(int _request, GeoBounds _bounds, long[] _cells, int _k, List<FirestoreTape.Document> _documents,
+                           boolean _fromCache, long _refreshStart, long _sent)
+    {
+        if (_request != generation) return;
+        if (_documents == null || _fromCache)
+        {
+            if (_documents == null) Metrics.INCREMENT(Metrics.COUNTER_REFRESH_ERR);
+
+            // offline, the posts saved in packs are shown instead (of what firebase's cache happened to keep)
+            List<PostSummary> packed = Toolkit.PACKED_POSTS();
+            if (!packed.isEmpty())
+            {
+                Toolkit.TOAST(R.string.pack_offline);
+                posts.setValue(_bounds != null ? HotPostRanker.TOP_K(packed, _bounds, _k) : packed);
+                return;
+            }
+            if (_documents == null)
+            {
+                Toolkit.TOAST(R.string.firebase_connect_err);
+                return;
+            }
+        }
+
+        List<PostSummary> loaded = LOAD(_documents);
+        Toolkit.SEARCH_INDEX.compact();
+
+        // an answer from the cache says nothing about the network
+        if (!_fromCache) Toolkit.FETCH_POLICY.onResponse(ESTIMATE_BYTES(_documents), SystemClock.uptimeMillis() - _sent);
+
+        if (_bounds != null)
+        {
+            // kept by region, so a viewport over regions already fetched is ranked without a download (a region without posts is
+            // kept too)
+            hotCells = null;
+            if (_cells != null)
+            {
+                hotCells = new HashMap<>();
+                hotK = _k;
+                for (long cell : _cells) hotCells.put(cell, new ArrayList<PostSummary>());
+                for (PostSummary post : loaded)
+                {
+                    List<PostSummary> region = hotCells.get(GeoCell.ID(post.getLat(), post.getLng(), GeoCell.REGION_LEVEL));
+                    if (region != null) region.add(post);
+                }
+            }
+            posts.setValue(HotPostRanker.TOP_K(loaded, _bounds, _k));
+        }
+        else posts.setValue(loaded);
+        Metrics.END(Metrics.SECTION_REFRESH, _refreshStart);
+    }
+
+    /** Decodes the results of a query fanned out over several shards (see 'MERGE(...)')
+     * > Posts created before regions existed have no region ('cell' field) and can not be fetched by region, the loadgen module's
+     *   'CellMigration' gives them one
+     */
+    static List<FirestoreTape.Document> DECODE(List<QuerySnapshot> _results)
+    {
+        List<FirestoreTape.Document> documents = new ArrayList<>();
+        for (QueryDocumentSnapshot document : MERGE(_results))
+        {
+            long decodeStart = Metrics.BEGIN(Metrics.SECTION_DECODE);
+            FirestorePost tmp = document.toObject(FirestorePost.class);
+            Metrics.END(Metrics.SECTION_DECODE, decodeStart);
+            Metrics.INCREMENT(Metrics.COUNTER_POSTS_DECODED);
+            documents.add(new FirestoreTape.Document(document.getId(), tmp));
+        }
+        return documents;
+    }
+
+    /** Adds decoded posts to 'Toolkit.SEARCH_INDEX' and returns their summaries (see 'SUMMARIZE(...)') */
+    static List<PostSummary> LOAD(List<FirestoreTape.Document> _documents)
+    {
+        List<PostSummary> loaded = new ArrayList<>(_documents.size());
+        for (FirestoreTape.Document document : _documents)
+        {
+            FirestorePost tmp = document.getPost();
+            Toolkit.SEARCH_INDEX.add(document.getID(), tmp.getTitle(), tmp.getBody(), tmp.getLat(), tmp.getLng());
+            loaded.add(SUMMARIZE(document.getID(), tmp));
+        }
+        return loaded;
+    }
+
+    /** Returns the summary of a post needed to draw (and rank) its map marker
+     *
+     * @param _id - The post's firebase document id
+     * @param _post - The post's data
+     * @return Summary holding the post's id, title, location, activity, date, and owner
+     */
+    static PostSummary SUMMARIZE(String _id, FirestorePost _post)
+    {
+        PostSummary summary = new PostSummary(_id, _post.getTitle(), null, _post.getLat(), _post.getLng(), null);
+        summary.setActivity(_post.getCommentCount(), _post.getLastActivity());
+        summary.setDetails(_post.getDate(), _post.getUserID());
+        return summary;
+    }
+
+    /** Merges the results of a query fanned out over several shards (see 'Toolkit.FAN_OUT(...)')
+     * > A post present in more than one result (e.g. while being copied out of the legacy collection) is kept once
+     */
+    static List<QueryDocumentSnapshot> MERGE(List<QuerySnapshot> _results)
+    {
+        List<QueryDocumentSnapshot> merged = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (QuerySnapshot result : _results)
+        {
+            for (QueryDocumentSnapshot document : result) if (seen.add(document.getId())) merged.add(document);
+        }
+        return merged;
+    }
+
+    /** Returns true if any result of a query fanned out over several shards came from firebase's local cache (i.e. offline) */
+    static boolean FROM_CACHE(List<QuerySnapshot> _results)
+    {
+        for (QuerySnapshot result : _results) if (result.getMetadata().isFromCache()) return true;
+        return false;
+    }
+
+    /** Returns a rough estimate of how many bytes decoded posts took to download */
+    static long ESTIMATE_BYTES(List<FirestoreTape.Document> _documents)
+    {
+        long bytes = 0;
+        for (FirestoreTape.Document document : _documents) bytes += ESTIMATE_BYTES(document.getPost());
+        return bytes;
+    }
+
+    /** Returns a rough estimate of how many bytes a post takes to download */
+    static long ESTIMATE_BYTES(FirestorePost _post)
+    {
+        long chars = length(_post.getTitle()) + length(_post.getBody()) + length(_post.getDate()) + length(_post.getUserID());
+        return 128 + 2 * chars;
+    }
+
+    private static int length(String _str) { return _str == null ? 0 : _str.length(); }
+}
@@ -0,0 +1,318 @@
+package michael.wilson.geochat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps at most 'budget' live map markers for any number of loaded posts
+ * > Post data is kept in parallel primitive arrays (one slot per post), not one object graph per post
+ * > Every post inside the viewport gets a marker, if more posts are in view than the budget allows, the busiest win
+ * > When the budget is full, markers outside the viewport are evicted, furthest from the viewport and longest unseen first
+ * > Evicted markers are recreated (through the 'Renderer') as soon as their post comes back into view
+ * > A budget of 0 means no limit (every post keeps its marker)
+ *
+ * Plain java so it can be tested off-device, the 'Renderer' creates and removes the actual markers.
+ *
+ * @param <M> - Type of the marker handles (a google maps 'Marker' in the app)
+ */
+public class MarkerSet<M>
+{
+    /** Creates and removes the actual markers */
+    public interface Renderer<M>
+    {
+        /** Creates a marker for the post in the given slot (see the 'get*' methods) */
+        M add(MarkerSet<M> _set, int _slot);
+
+        /** Removes a marker */
+        void remove(M _marker);
+    }
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Default number of live markers
+    public static final int DEFAULT_BUDGET = 400;
+
+    // How long (seconds) a marker has to stay unseen to count as much towards eviction as being one viewport further away
+    public static final double RECENCY_SECONDS = 30.0;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private final Renderer<M> renderer;
+    private int budget;
+
+    // Per-post columns
+    private String[] ids = new String[0], titles = new String[0], dates = new String[0], userIDs = new String[0];
+    private double[] lats = new double[0], lngs = new double[0];
+    private long[] commentCounts = new long[0], lastSeen = new long[0];
+    private Object[] markers = new Object[0];
+    private int count, live;
+
+    // Reused between updates so a camera frame does not allocate per post
+    private int[] scratch = new int[0];
+    private boolean[] wanted = new boolean[0];
+
+    /** Creates an empty marker set
+     *
+     * @param _renderer - Creates and removes the actual markers
+     * @param _budget - Largest number of live markers (0 for no limit)
+     */
+    public MarkerSet(Renderer<M> _renderer, int _budget)
+    {
+        this.renderer = _renderer;
+        this.budget = _budget;
+    }
+
+    /** Replaces the posts in this set
+     * > Posts that are still present keep their marker, markers of posts that are gone are removed
+     * > No markers are created, call 'update(...)' afterwards
+     *
+     * @param _posts - Every loaded post
+     */
+    public void setPosts(List<PostSummary> _posts)
+    {
+        Map<String, Integer> oldSlots = new HashMap<>();
+        for (int i = 0; i < count; i++) if (markers[i] != null) oldSlots.put(ids[i], i);
+
+        int n = _posts.size();
+        String[] newIds = new String[n], newTitles = new String[n], newDates = new String[n], newUserIDs = new String[n];
+        double[] newLats = new double[n], newLngs = new double[n];
+        long[] newCommentCounts = new long[n], newLastSeen = new long[n];
+        Object[] newMarkers = new Object[n];
+        int newLive = 0;
+        for (int i = 0; i < n; i++)
+        {
+            PostSummary post = _posts.get(i);
+            newIds[i] = post.getDocID();
+            newTitles[i] = post.getTitle();
+            newDates[i] = post.getDate();
+            newUserIDs[i] = post.getUserID();
+            newLats[i] = post.getLat();
+            newLngs[i] = post.getLng();
+            newCommentCounts[i] = post.getCommentCount();
+
+            // keep the old marker, unless what it shows has changed
+            Integer old = oldSlots.remove(post.getDocID());
+            if (old == null) continue;
+            newLastSeen[i] = lastSeen[old];
+            if (lats[old] == newLats[i] && lngs[old] == newLngs[i] && commentCounts[old] == newCommentCounts[i])
+            {
+                newMarkers[i] = markers[old];
+                markers[old] = null;
+                newLive++;
+            }
+        }
+        for (int i = 0; i < count; i++) if (markers[i] != null) removeMarker(i);
+
+        ids = newIds;
+        titles = newTitles;
+        dates = newDates;
+        userIDs = newUserIDs;
+        lats = newLats;
+        lngs = newLngs;
+        commentCounts = newCommentCounts;
+        lastSeen = newLastSeen;
+        markers = newMarkers;
+        count = n;
+        live = newLive;
+        if (scratch.length < n)
+        {
+            scratch = new int[n];
+            wanted = new boolean[n];
+        }
+    }
+
+    /** Brings the live markers up to date with the viewport
+     * > Creates markers for posts in view (the busiest first if they do not all fit)
+     * > If that would go over budget, first evicts markers outside the view (see 'MarkerSet')
+     *
+     * @param _viewport - The visible region of the map
+     * @param _now - Current time in milliseconds
+     * @return Number of markers created plus number removed
+     */
+    public int update(GeoBounds _viewport, long _now)
+    {
+        int inView = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (!_viewport.contains(lats[i], lngs[i])) continue;
+            lastSeen[i] = _now;
+            scratch[inView++] = i;
+        }
+        if (budget > 0 && inView > budget)
+        {
+            keepBusiest(inView, budget);
+            inView = budget;
+        }
+
+        int needed = 0;
+        for (int k = 0; k < inView; k++)
+        {
+            wanted[scratch[k]] = true;
+            if (markers[scratch[k]] == null) needed++;
+        }
+
+        int changes = 0;
+        if (budget > 0 && live + needed > budget) changes += evict(live + needed - budget, _viewport, _now);
+        for (int k = 0; k < inView; k++)
+        {
+            int i = scratch[k];
+            wanted[i] = false;
+            if (markers[i] == null)
+            {
+                markers[i] = renderer.add(this, i);
+                live++;
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /** Removes every live marker (the posts are kept) */
+    public void clearMarkers()
+    {
+        for (int i = 0; i < count; i++) if (markers[i] != null) removeMarker(i);
+    }
+
+    /** Forgets every post and marker without removing the markers (for when they are already gone, e.g. the map was cleared) */
+    public void reset()
+    {
+        Arrays.fill(markers, 0, count, null);
+        live = 0;
+        setPosts(Collections.<PostSummary>emptyList());
+    }
+
+    /** Changes the budget (applied on the next 'update(...)') */
+    public void setBudget(int _budget) { this.budget = _budget; }
+    public int getBudget() { return budget; }
+
+    /** Returns the number of posts, and the number of live markers */
+    public int size() { return count; }
+    public int liveCount() { return live; }
+
+    /** Returns the live marker of a slot, or null */
+    @SuppressWarnings("unchecked")
+    public M getMarker(int _slot) { return (M)markers[_slot]; }
+
+    /** Returns the data of the post in a slot */
+    public String getDocID(int _slot) { return ids[_slot]; }
+    public String getTitle(int _slot) { return titles[_slot]; }
+    public String getDate(int _slot) { return dates[_slot]; }
+    public String getUserID(int _slot) { return userIDs[_slot]; }
+    public double getLat(int _slot) { return lats[_slot]; }
+    public double getLng(int _slot) { return lngs[_slot]; }
+    public long getCommentCount(int _slot) { return commentCounts[_slot]; }
+
+    /** Returns the approximate number of bytes used by the per-post arrays (not the strings they point to, nor the markers) */
+    public long arrayBytes()
+    {
+        long refs = 5L * ids.length * 4, primitives = (long)lats.length * 8 * 4, scratchBytes = scratch.length * 5L;
+        return refs + primitives + scratchBytes;
+    }
+
+    // removes the '_over' live markers outside the view with the highest eviction score
+    private int evict(int _over, GeoBounds _viewport, long _now)
+    {
+        double centerLat = (_viewport.getSouth() + _viewport.getNorth()) / 2, centerLng = centerLng(_viewport);
+        double size = Math.max(1e-9, Math.max(_viewport.getNorth() - _viewport.getSouth(), width(_viewport)));
+
+        // min-heap of the '_over' highest scores
+        int[] heapSlots = new int[_over];
+        double[] heapScores = new double[_over];
+        int heapSize = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (markers[i] == null || wanted[i]) continue;
+            double dLat = lats[i] - centerLat, dLng = wrapLng(lngs[i] - centerLng);
+            double score = Math.sqrt(dLat * dLat + dLng * dLng) / size + (_now - lastSeen[i]) / 1000.0 / RECENCY_SECONDS;
+            if (heapSize < _over)
+            {
+                heapSlots[heapSize] = i;
+                heapScores[heapSize] = score;
+                siftUp(heapSlots, heapScores, heapSize++);
+            }
+            else if (score > heapScores[0])
+            {
+                heapSlots[0] = i;
+                heapScores[0] = score;
+                siftDown(heapSlots, heapScores, heapSize);
+            }
+        }
+        for (int h = 0; h < heapSize; h++) removeMarker(heapSlots[h]);
+        return heapSize;
+    }
+
+    // reorders 'scratch' so its first '_keep' entries are the posts with the most comments
+    private void keepBusiest(int _n, int _keep)
+    {
+        long[] keys = new long[_n];
+        for (int k = 0; k < _n; k++)
+        {
+            // sort descending by comment count, ties keep their order (the index is in the low bits)
+            long comments = Math.min(commentCounts[scratch[k]], (1L << 31) - 1);
+            keys[k] = ((1L << 31) - 1 - comments) << 32 | scratch[k];
+        }
+        Arrays.sort(keys);
+        for (int k = 0; k < _keep; k++) scratch[k] = (int)keys[k];
+    }
+
+    private void removeMarker(int _slot)
+    {
+        @SuppressWarnings("unchecked")
+        M marker = (M)markers[_slot];
+        markers[_slot] = null;
+        live--;
+        renderer.remove(marker);
+    }
+
+    private static void siftUp(int[] _slots, double[] _scores, int _i)
+    {
+        while (_i > 0)
+        {
+            int parent = (_i - 1) / 2;
+            if (_scores[parent] <= _scores[_i]) return;
+            swap(_slots, _scores, parent, _i);
+            _i = parent;
+        }
+    }
+
+    private static void siftDown(int[] _slots, double[] _scores, int _size)
+    {
+        int i = 0;
+        while (true)
+        {
+            int left = 2 * i + 1, right = left + 1, smallest = i;
+            if (left < _size && _scores[left] < _scores[smallest]) smallest = left;
+            if (right < _size && _scores[right] < _scores[smallest]) smallest = right;
+            if (smallest == i) return;
+            swap(_slots, _scores, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] _slots, double[] _scores, int _a, int _b)
+    {
+        int slot = _slots[_a];
+        _slots[_a] = _slots[_b];
+        _slots[_b] = slot;
+        double score = _scores[_a];
+        _scores[_a] = _scores[_b];
+        _scores[_b] = score;
+    }
+
+    private static double width(GeoBounds _bounds)
+    {
+        double width = _bounds.getEast() - _bounds.getWest();
+        return width < 0 ? width + 360 : width;
+    }
+
+    private static double centerLng(GeoBounds _bounds) { return wrapLng(_bounds.getWest() + width(_bounds) / 2); }
+
+    private static double wrapLng(double _lng)
+    {
+        double wrapped = (_lng + 180.0) % 360.0;
+        if (wrapped < 0) wrapped += 360.0;
+        return wrapped - 180.0;
+    }
+}
@@ -0,0 +1,194 @@
+package michael.wilson.geochat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Low overhead counters, latency histograms, and trace sections for the app's hot paths
+ * > Counters and sections are identified by int constants so recording never allocates
+ * > When disabled, 'BEGIN(...)' returns 0 and every other call returns immediately
+ * > Section latencies are kept in power-of-two microsecond buckets, which is enough to read off percentiles
+ * > A text snapshot can be written to any 'Writer' (a file, or a debug screen)
+ *
+ * Usage:
+ *     long t = Metrics.BEGIN(Metrics.SECTION_REFRESH);
+ *     ...
+ *     Metrics.END(Metrics.SECTION_REFRESH, t);
+ */
+public class Metrics
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Counter identifiers
+    public static final int COUNTER_REFRESH = 0, COUNTER_REFRESH_ERR = 1, COUNTER_POSTS_DECODED = 2, COUNTER_MARKERS_ADDED = 3,
+            COUNTER_COMMENTS_SUBMITTED = 4, COUNTER_COMMENTS_ERR = 5, COUNTER_NOTIFS_RECEIVED = 6, COUNTER_NOTIFS_SHOWN = 7,
+            COUNTER_TOASTS = 8, COUNTER_IMAGE_MEMORY_HITS = 9, COUNTER_IMAGE_DISK_HITS = 10, COUNTER_IMAGE_MISSES = 11,
+            COUNTER_IMAGE_BYTES_DOWN = 12, COUNTER_IMAGE_BYTES_UP = 13, COUNTER_REGION_FETCHES = 14, COUNTER_REGION_PREFETCHES = 15,
+            COUNTER_REGION_DROPPED = 16, COUNTER_MARKERS_REMOVED = 17, COUNTER_THREAD_CACHE_HITS = 18,
+            COUNTER_THREAD_BYTES_DOWN = 19, COUNTER_GEOFENCE_PLANS = 20, COUNTER_NEARBY_ALERTS = 21,
+            COUNTER_WRITES_DELAYED = 22, COUNTER_WRITES_REFUSED = 23, COUNTER_COMMENT_DELTAS = 24, COUNTER_COMMENT_DELTA_GAPS = 25,
+            COUNTER_PACK_READS = 26, COUNTER_WRITES_OFFLINE = 27;
+
+    // Trace section identifiers
+    public static final int SECTION_REFRESH = 0, SECTION_DECODE = 1, SECTION_MARKER_INSERT = 2, SECTION_COMMENT_SUBMIT = 3,
+            SECTION_NOTIFICATION = 4, SECTION_IMAGE_DECODE = 5, SECTION_IMAGE_ENCODE = 6, SECTION_REGION_FETCH = 7,
+            SECTION_MARKER_UPDATE = 8, SECTION_THREAD_RENDER = 9, SECTION_THREAD_SYNC = 10, SECTION_PACK_BUILD = 11,
+            SECTION_PACK_REFRESH = 12;
+
+    // Names used in snapshots (indexed by the identifiers above)
+    public static final String[] COUNTER_NAMES = {"refresh", "refresh_err", "posts_decoded", "markers_added",
+            "comments_submitted", "comments_err", "notifs_received", "notifs_shown", "toasts", "image_memory_hits",
+            "image_disk_hits", "image_misses", "image_bytes_down", "image_bytes_up", "region_fetches", "region_prefetches",
+            "region_dropped", "markers_removed", "thread_cache_hits", "thread_bytes_down",
+            "geofence_plans", "nearby_alerts", "writes_delayed", "writes_refused", "comment_deltas", "comment_delta_gaps",
+            "pack_reads", "writes_offline"};
+    public static final String[] SECTION_NAMES = {"refresh", "decode", "marker_insert", "comment_submit", "notification",
+            "image_decode", "image_encode", "region_fetch", "marker_update", "thread_render", "thread_sync", "pack_build",
+            "pack_refresh"};
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Bucket 'b' holds latencies in [2^(b-1), 2^b) microseconds, the last bucket holds everything above ~35 minutes
+    private static final int BUCKETS = 32;
+
+    private static volatile boolean ENABLED = false;
+
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(COUNTER_NAMES.length);
+
+    // Per section: count, total micros, max micros
+    private static final int STAT_COUNT = 0, STAT_SUM = 1, STAT_MAX = 2, STATS = 3;
+    private static final AtomicLongArray SECTION_STATS = new AtomicLongArray(SECTION_NAMES.length * STATS);
+    private static final AtomicLongArray HISTOGRAMS = new AtomicLongArray(SECTION_NAMES.length * BUCKETS);
+
+    /** Turns recording on or off (recorded values are kept either way) */
+    public static void SET_ENABLED(boolean _enabled) { ENABLED = _enabled; }
+    public static boolean IS_ENABLED() { return ENABLED; }
+
+    /** Adds one to a counter
+     *
+     * @param _counter - One of the 'COUNTER_*' identifiers
+     */
+    public static void INCREMENT(int _counter) { if (ENABLED) COUNTERS.incrementAndGet(_counter); }
+
+    /** Adds a value to a counter
+     *
+     * @param _counter - One of the 'COUNTER_*' identifiers
+     * @param _amount - Amount to add
+     */
+    public static void ADD(int _counter, long _amount) { if (ENABLED) COUNTERS.addAndGet(_counter, _amount); }
+
+    /** Starts timing a trace section
+     *
+     * @param _section - One of the 'SECTION_*' identifiers
+     * @return A start token to pass to 'END(...)', or 0 if recording is disabled
+     */
+    public static long BEGIN(int _section) { return ENABLED ? System.nanoTime() : 0L; }
+
+    /** Finishes timing a trace section and records its latency
+     *
+     * @param _section - One of the 'SECTION_*' identifiers
+     * @param _start - The token returned by 'BEGIN(...)'
+     */
+    public static void END(int _section, long _start)
+    {
+        if (_start == 0L || !ENABLED) return;
+        RECORD(_section, (System.nanoTime() - _start) / 1000L);
+    }
+
+    /** Records a latency for a section directly
+     *
+     * @param _section - One of the 'SECTION_*' identifiers
+     * @param _micros - Latency in microseconds
+     */
+    public static void RECORD(int _section, long _micros)
+    {
+        if (!ENABLED) return;
+        if (_micros < 0) _micros = 0;
+        int base = _section * STATS;
+        SECTION_STATS.incrementAndGet(base + STAT_COUNT);
+        SECTION_STATS.addAndGet(base + STAT_SUM, _micros);
+        long max;
+        while ((max = SECTION_STATS.get(base + STAT_MAX)) < _micros)
+        {
+            if (SECTION_STATS.compareAndSet(base + STAT_MAX, max, _micros)) break;
+        }
+        HISTOGRAMS.incrementAndGet(_section * BUCKETS + bucketOf(_micros));
+    }
+
+    /** Returns the current value of a counter */
+    public static long GET_COUNT(int _counter) { return COUNTERS.get(_counter); }
+
+    /** Returns the number of times a section has been recorded */
+    public static long GET_SECTION_COUNT(int _section) { return SECTION_STATS.get(_section * STATS + STAT_COUNT); }
+
+    /** Returns the longest recorded latency of a section, in microseconds */
+    public static long GET_SECTION_MAX(int _section) { return SECTION_STATS.get(_section * STATS + STAT_MAX); }
+
+    /** Returns an upper bound for the given percentile of a section's latency
+     *
+     * @param _section - One of the 'SECTION_*' identifiers
+     * @param _percentile - Percentile between 0 and 100
+     * @return Upper edge (in microseconds) of the histogram bucket holding the percentile, 0 if nothing was recorded
+     */
+    public static long PERCENTILE(int _section, double _percentile)
+    {
+        long total = GET_SECTION_COUNT(_section);
+        if (total == 0) return 0;
+        long rank = (long)Math.ceil(total * _percentile / 100.0), seen = 0;
+        if (rank < 1) rank = 1;
+        for (int b = 0; b < BUCKETS; b++)
+        {
+            seen += HISTOGRAMS.get(_section * BUCKETS + b);
+            if (seen >= rank) return Math.min(bucketUpperBound(b), GET_SECTION_MAX(_section));
+        }
+        return GET_SECTION_MAX(_section);
+    }
+
+    /** Clears every counter and section */
+    public static void RESET()
+    {
+        for (int i = 0; i < COUNTERS.length(); i++) COUNTERS.set(i, 0);
+        for (int i = 0; i < SECTION_STATS.length(); i++) SECTION_STATS.set(i, 0);
+        for (int i = 0; i < HISTOGRAMS.length(); i++) HISTOGRAMS.set(i, 0);
+    }
+
+    /** Writes a human readable snapshot of all counters and sections
+     *
+     * @param _out - Where to write the snapshot
+     */
+    public static void WRITE_SNAPSHOT(Writer _out) throws IOException
+    {
+        _out.write("# counters\n");
+        for (int c = 0; c < COUNTER_NAMES.length; c++) _out.write(COUNTER_NAMES[c] + " " + GET_COUNT(c) + "\n");
+        _out.write("# sections (count avg_us p50_us p90_us p99_us max_us)\n");
+        for (int s = 0; s < SECTION_NAMES.length; s++)
+        {
+            long count = GET_SECTION_COUNT(s);
+            long avg = count == 0 ? 0 : SECTION_STATS.get(s * STATS + STAT_SUM) / count;
+            _out.write(SECTION_NAMES[s] + " " + count + " " + avg + " " + PERCENTILE(s, 50) + " " + PERCENTILE(s, 90)
+                    + " " + PERCENTILE(s, 99) + " " + GET_SECTION_MAX(s) + "\n");
+        }
+        long imageHits = GET_COUNT(COUNTER_IMAGE_MEMORY_HITS) + GET_COUNT(COUNTER_IMAGE_DISK_HITS);
+        long imageLoads = imageHits + GET_COUNT(COUNTER_IMAGE_MISSES);
+        _out.write("# derived\n");
+        _out.write("image_hit_rate_pct " + (imageLoads == 0 ? 0 : imageHits * 100 / imageLoads) + "\n");
+        _out.flush();
+    }
+
+    /** Returns a snapshot of all counters and sections as a string (see 'WRITE_SNAPSHOT(...)') */
+    public static String SNAPSHOT()
+    {
+        java.io.StringWriter out = new java.io.StringWriter();
+        try { WRITE_SNAPSHOT(out); }
+        catch (IOException ex) { /* StringWriter never throws */ }
+        return out.toString();
+    }
+
+    private static int bucketOf(long _micros)
+    {
+        int b = 64 - Long.numberOfLeadingZeros(_micros);
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    private static long bucketUpperBound(int _bucket) { return _bucket == 0 ? 0 : (1L << _bucket) - 1; }
+}
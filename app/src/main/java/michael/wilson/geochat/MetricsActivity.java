@@ -0,0 +1,135 @@
+package michael.wilson.geochat;
+
+import androidx.appcompat.app.AppCompatActivity;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+/** A screen which shows the metrics recorded by 'Metrics' (opened by long-pressing the post button, see 'MainActivity')
+ * This activity allows the user to:
+ * > See every counter and the latency percentiles of every trace section
+ * > See what blocked the main thread, ranked by time blocked
+ * > Save a snapshot to a file in the app's private storage
+ * > Reset all recorded metrics
+ * > Pause and resume recording (it is on by default, in release builds too)
+ * > Record firebase's answers to the app's reads, and replay them later instead of reading firebase (see 'FirestoreTape'),
+ *   on debug builds only
+ */
+public class MetricsActivity extends AppCompatActivity
+{
+    // The view showing the snapshot
+    TextView metricsTxt;
+
+    // Buttons starting (and stopping) a recording or a replay of the app's reads
+    Button recordButt, replayButt;
+
+    // Button pausing (and resuming) metrics recording
+    Button toggleButt;
+
+    /** Called when the activity is created
+     * > Shows the current metrics snapshot
+     * > Hides the record and replay buttons on release builds
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsTxt = findViewById(R.id.metricsTxt);
+        recordButt = findViewById(R.id.buttRecordReads);
+        replayButt = findViewById(R.id.buttReplayReads);
+        toggleButt = findViewById(R.id.buttToggleMetrics);
+        if (!BuildConfig.DEBUG)
+        {
+            recordButt.setVisibility(View.GONE);
+            replayButt.setVisibility(View.GONE);
+        }
+        showSnapshot();
+    }
+
+    /** Called when the activity is resumed
+     * > Refreshes the snapshot
+     */
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+        showSnapshot();
+    }
+
+    /** Called when the 'SAVE TO FILE' button is clicked
+     * > Writes the snapshot to a file via 'DUMP_METRICS()'
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void onDumpButt(View _v)
+    {
+        if (Toolkit.DUMP_METRICS() != null) Toolkit.TOAST(R.string.metrics_dump_succ);
+        else Toolkit.TOAST(R.string.metrics_dump_err);
+    }
+
+    /** Called when the 'RESET' button is clicked
+     * > Clears all metrics (and main thread findings) and refreshes the snapshot
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void onResetButt(View _v)
+    {
+        Metrics.RESET();
+        JankWatchdog.RESET();
+        showSnapshot();
+    }
+
+    /** Called when the 'PAUSE' button is clicked (it reads 'RESUME' while paused)
+     * > Turns metrics recording off or on, remembered across restarts (see 'Toolkit.SET_METRICS_ENABLED(...)')
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void onToggleButt(View _v)
+    {
+        Toolkit.SET_METRICS_ENABLED(!Metrics.IS_ENABLED());
+        showSnapshot();
+    }
+
+    /** Called when the 'RECORD' button is clicked (it reads 'STOP' while recording)
+     * > Starts recording firebase's answers to the app's reads, or stops and writes them to a file (see 'Toolkit.STOP_RECORDING()')
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void onRecordButt(View _v)
+    {
+        if (Toolkit.RECORDER == null)
+        {
+            Toolkit.START_RECORDING();
+            Toolkit.TOAST(R.string.tape_record_start);
+        }
+        else if (Toolkit.STOP_RECORDING() != null) Toolkit.TOAST(R.string.tape_record_succ);
+        else Toolkit.TOAST(R.string.tape_record_err);
+        showSnapshot();
+    }
+
+    /** Called when the 'REPLAY' button is clicked (it reads 'STOP' while replaying)
+     * > Answers the app's reads from the last recording, with the recorded timing, instead of firebase, or goes back to firebase
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void onReplayButt(View _v)
+    {
+        if (Toolkit.PLAYER != null) Toolkit.STOP_PLAYING();
+        else if (Toolkit.PLAY_TAPE(1.0)) Toolkit.TOAST(R.string.tape_replay_start);
+        else Toolkit.TOAST(R.string.tape_replay_err);
+        showSnapshot();
+    }
+
+    /** Shows the current metrics snapshot, followed by what blocked the main thread (see 'JankWatchdog') and what the network
+     * is estimated to be (see 'FetchPolicy'), and whether reads are being recorded or replayed
+     */
+    void showSnapshot()
+    {
+        metricsTxt.setText(Metrics.SNAPSHOT() + JankWatchdog.REPORT() + Toolkit.FETCH_POLICY + "\n");
+        recordButt.setText(Toolkit.RECORDER != null ? R.string.butt_stop : R.string.butt_record);
+        replayButt.setText(Toolkit.PLAYER != null ? R.string.butt_stop : R.string.butt_replay);
+        toggleButt.setText(Metrics.IS_ENABLED() ? R.string.butt_pause : R.string.butt_resume);
+    }
+}
@@ -0,0 +1,259 @@
+package michael.wilson.geochat;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import androidx.annotation.NonNull;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingClient;
+import com.google.android.gms.location.GeofencingEvent;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tells the user about discussions they walk past, without the app running and without polling the location
+ * > Registers OS geofences around the posts chosen by 'GeofencePlanner', plus an exit geofence around the user
+ * > Leaving that exit geofence (the only "significant location change" used) fetches the posts around the new location and
+ *   replaces the geofences, so the app is only woken up when the user has moved far, or walks into a post
+ * > Entering post geofences raises one notification listing every post entered recently (it replaces the previous one)
+ * > The planner's state is kept in shared preferences, geofence events usually start a fresh process
+ *
+ * Geofence events are delivered to 'GeofenceReceiver', which hands them to this class.
+ */
+public class NearbyAlerts
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Shared preferences file and keys
+    private static final String PREFS_NAME = "nearby", KEY_ENABLED = "enabled", KEY_STATE = "state";
+
+    // Request id of the geofence around the user (post geofences use the post's document id)
+    private static final String REFRESH_FENCE_ID = "refresh";
+
+    // How late the OS may deliver a geofence event, letting it batch them with other location work (the main battery saving)
+    private static final int RESPONSIVENESS_MS = 2 * 60 * 1000;
+
+    // Notification id of the nearby-posts notification, each alert replaces the previous one (never reached by 'NOTIFCOUNTER')
+    private static final int NOTIFICATION_ID = Integer.MAX_VALUE;
+
+    // Most regions (at 'GeoCell.REGION_LEVEL') the posts around the user are fetched from (the candidate circle spans 2 by 2 at
+    // most, a few more near the poles)
+    private static final int MAX_REGIONS = 16;
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    /** Returns true if the user turned nearby alerts on */
+    public static boolean IS_ENABLED(Context _context) { return prefs(_context).getBoolean(KEY_ENABLED, false); }
+
+    /** Turns nearby alerts on, and plans geofences around the last known location (if there is one)
+     *
+     * @param _context - Any context
+     */
+    public static void START(final Context _context)
+    {
+        prefs(_context).edit().putBoolean(KEY_ENABLED, true).apply();
+        try
+        {
+            LocationServices.getFusedLocationProviderClient(_context).getLastLocation().addOnCompleteListener(new OnCompleteListener<Location>()
+            {
+                @Override
+                public void onComplete(@NonNull Task<Location> task)
+                {
+                    if (task.isSuccessful() && task.getResult() != null)
+                    {
+                        REPLAN(_context, task.getResult().getLatitude(), task.getResult().getLongitude(), null);
+                    }
+                }
+            });
+        }
+        catch (SecurityException ex) { Toolkit.LOG("Nearby alerts: location permission missing"); }
+    }
+
+    /** Turns nearby alerts off and removes every geofence */
+    public static void STOP(Context _context)
+    {
+        prefs(_context).edit().putBoolean(KEY_ENABLED, false).remove(KEY_STATE).apply();
+        LocationServices.getGeofencingClient(_context).removeGeofences(pendingIntent(_context));
+    }
+
+    /** Fetches the posts around a location, chooses which ones to fence (see 'GeofencePlanner'), and registers the geofences
+     * > Posts are fetched by region, like the map does (see 'MapViewModel'), so only the few regions around the user are read
+     *   rather than every post in their latitude band
+     *
+     * @param _context - Any context
+     * @param _lat - Latitude of the user
+     * @param _lng - Longitude of the user
+     * @param _result - Pending result of the broadcast this is called from (finished once done), may be null
+     */
+    public static void REPLAN(final Context _context, final double _lat, final double _lng, final BroadcastReceiver.PendingResult _result)
+    {
+        final GeoBounds bounds = AROUND(_lat, _lng, GeofencePlanner.CANDIDATE_RADIUS_M);
+        List<Query> queries = new ArrayList<>();
+        long[] cells = GeoCell.COVERING(bounds, GeoCell.REGION_LEVEL, MAX_REGIONS);
+        if (cells != null)
+        {
+            // a region lies inside a single shard (plus the posts created before sharding)
+            for (long cell : cells)
+            {
+                for (CollectionReference collection : Toolkit.GET_POST_COLLECTIONS(GeoCell.BOUNDS(cell)))
+                {
+                    queries.add(collection.whereEqualTo(FirestorePost.CELL_KEY, cell));
+                }
+            }
+        }
+        else
+        {
+            // too close to a pole for regions, the latitude band is fetched instead
+            for (CollectionReference collection : Toolkit.GET_POST_COLLECTIONS(bounds))
+            {
+                queries.add(collection.whereGreaterThanOrEqualTo(FirestorePost.LAT_KEY, bounds.getSouth())
+                        .whereLessThanOrEqualTo(FirestorePost.LAT_KEY, bounds.getNorth()));
+            }
+        }
+        Toolkit.FAN_OUT(queries).addOnCompleteListener(new OnCompleteListener<List<QuerySnapshot>>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<List<QuerySnapshot>> task)
+            {
+                if (task.isSuccessful() && IS_ENABLED(_context))
+                {
+                    List<PostSummary> posts = new ArrayList<>();
+                    for (QueryDocumentSnapshot document : MapViewModel.MERGE(task.getResult()))
+                    {
+                        FirestorePost tmp = document.toObject(FirestorePost.class);
+                        if (bounds.contains(tmp.getLat(), tmp.getLng())) posts.add(MapViewModel.SUMMARIZE(document.getId(), tmp));
+                    }
+                    GeofencePlanner planner = load(_context);
+                    planner.prune(System.currentTimeMillis());
+                    register(_context, planner.plan(posts, _lat, _lng, System.currentTimeMillis()));
+                    save(_context, planner);
+                    Metrics.INCREMENT(Metrics.COUNTER_GEOFENCE_PLANS);
+                }
+                if (_result != null) _result.finish();
+            }
+        });
+    }
+
+    /** Handles a geofence event (called by 'GeofenceReceiver')
+     * > Entering post geofences shows (or updates) the nearby-posts notification
+     * > Leaving the refresh geofence, or any event once the plan is too old, plans new geofences around the event's location
+     *
+     * @param _context - Any context
+     * @param _event - The event
+     * @param _result - Pending result of the broadcast the event came with, finished once everything is done
+     */
+    public static void ON_EVENT(Context _context, GeofencingEvent _event, BroadcastReceiver.PendingResult _result)
+    {
+        if (_event == null || _event.hasError() || !IS_ENABLED(_context))
+        {
+            _result.finish();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        GeofencePlanner planner = load(_context);
+
+        if (_event.getGeofenceTransition() == Geofence.GEOFENCE_TRANSITION_ENTER)
+        {
+            List<String> entered = new ArrayList<>();
+            for (Geofence fence : _event.getTriggeringGeofences())
+            {
+                if (!REFRESH_FENCE_ID.equals(fence.getRequestId())) entered.add(fence.getRequestId());
+            }
+            GeofencePlanner.Alert alert = planner.onEnter(entered, now);
+            if (alert != null) notify(_context, alert);
+            save(_context, planner);
+        }
+
+        Location location = _event.getTriggeringLocation();
+        boolean leftRefresh = false;
+        for (Geofence fence : _event.getTriggeringGeofences()) leftRefresh |= REFRESH_FENCE_ID.equals(fence.getRequestId());
+        if (location != null && (leftRefresh || planner.needsRefresh(location.getLatitude(), location.getLongitude(), now)))
+        {
+            REPLAN(_context, location.getLatitude(), location.getLongitude(), _result);
+        }
+        else _result.finish();
+    }
+
+    /** Returns the (latitude/longitude aligned) box around a circle */
+    public static GeoBounds AROUND(double _lat, double _lng, double _radiusM)
+    {
+        double dLat = Math.toDegrees(_radiusM / 6371000.0);
+        double dLng = Math.min(180, dLat / Math.max(0.01, Math.cos(Math.toRadians(_lat))));
+        return new GeoBounds(Math.max(-90, _lat - dLat), Math.max(-180, _lng - dLng), Math.min(90, _lat + dLat), Math.min(180, _lng + dLng));
+    }
+
+    // replaces the registered geofences with those of a plan
+    private static void register(Context _context, GeofencePlanner.Plan _plan)
+    {
+        List<Geofence> fences = new ArrayList<>();
+        for (GeofencePlanner.Fence fence : _plan.fences)
+        {
+            fences.add(new Geofence.Builder().setRequestId(fence.docID)
+                    .setCircularRegion(fence.lat, fence.lng, GeofencePlanner.FENCE_RADIUS_M)
+                    .setExpirationDuration(Geofence.NEVER_EXPIRE)
+                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER)
+                    .setNotificationResponsiveness(RESPONSIVENESS_MS).build());
+        }
+        fences.add(new Geofence.Builder().setRequestId(REFRESH_FENCE_ID)
+                .setCircularRegion(_plan.lat, _plan.lng, _plan.refreshRadius)
+                .setExpirationDuration(Geofence.NEVER_EXPIRE)
+                .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_EXIT)
+                .setNotificationResponsiveness(RESPONSIVENESS_MS).build());
+
+        // posts the user is already standing at alert straight away (the planner's cooldown stops them alerting again)
+        GeofencingRequest request = new GeofencingRequest.Builder().setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER)
+                .addGeofences(fences).build();
+        GeofencingClient client = LocationServices.getGeofencingClient(_context);
+        client.removeGeofences(pendingIntent(_context));
+        try { client.addGeofences(request, pendingIntent(_context)); }
+        catch (SecurityException ex) { Toolkit.LOG("Nearby alerts: location permission missing"); }
+    }
+
+    // shows the nearby-posts notification, opening the post if there is only one
+    private static void notify(Context _context, GeofencePlanner.Alert _alert)
+    {
+        List<GeofencePlanner.Fence> posts = _alert.posts;
+        Intent intent;
+        String title;
+        if (posts.size() == 1)
+        {
+            intent = Toolkit.OPEN_POST_INTENT(posts.get(0).docID);
+            title = _context.getString(R.string.nearby_title_one);
+        }
+        else
+        {
+            intent = new Intent(_context, LauncherActivity.class);
+            title = _context.getString(R.string.nearby_title_many, posts.size());
+        }
+        StringBuilder text = new StringBuilder();
+        for (GeofencePlanner.Fence post : posts)
+        {
+            if (text.length() > 0) text.append(", ");
+            text.append(post.title == null || post.title.isEmpty() ? _context.getString(R.string.default_title) : post.title);
+        }
+        PendingIntent pintent = PendingIntent.getActivity(_context, NOTIFICATION_ID, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Toolkit.NOTIFY(NOTIFICATION_ID, title, text.toString(), pintent);
+        Metrics.INCREMENT(Metrics.COUNTER_NEARBY_ALERTS);
+    }
+
+    private static PendingIntent pendingIntent(Context _context)
+    {
+        return PendingIntent.getBroadcast(_context, 0, new Intent(_context, GeofenceReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences prefs(Context _context) { return _context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE); }
+
+    private static GeofencePlanner load(Context _context) { return GeofencePlanner.DECODE(prefs(_context).getString(KEY_STATE, null)); }
+
+    private static void save(Context _context, GeofencePlanner _planner) { prefs(_context).edit().putString(KEY_STATE, _planner.encode()).apply(); }
+}
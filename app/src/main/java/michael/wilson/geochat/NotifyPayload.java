@@ -0,0 +1,182 @@
+package michael.wilson.geochat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Encodes and decodes the compact post summary carried inside a Firebase Cloud Messaging data payload
+ * > Lets 'DiscussionActivity' show a post straight from a notification, before the full document has been fetched
+ * > The summary is versioned so older clients can safely ignore payloads they do not understand
+ * > Encoded payloads are always trimmed to fit within 'PAYLOAD_BUDGET_BYTES'
+ */
+public class NotifyPayload
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Keys used inside the data payload (kept short, every byte counts against the FCM limit)
+    private static final String KEY_VERSION = "pv", KEY_TITLE = "pt", KEY_SNIPPET = "ps", KEY_LAT = "pla", KEY_LNG = "plg",
+            KEY_COMMENT = "pc";
+
+    // Coordinates are sent as fixed point integers (degrees * 1e6), which is ~11cm precision
+    private static final double COORD_SCALE = 1e6;
+
+    // Maximum number of characters kept for the body snippet and the latest comment
+    private static final int SNIPPET_MAX_CHARS = 140, COMMENT_MAX_CHARS = 140;
+
+    // Appended to any string that had to be shortened
+    private static final String ELLIPSIS = "\u2026";
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Current version of the summary format
+    public static final int VERSION = 1;
+
+    // FCM rejects data payloads above 4096 bytes, leave headroom for the sender's own keys ('docID', 'sender', ...)
+    public static final int FCM_PAYLOAD_LIMIT_BYTES = 4096, PAYLOAD_BUDGET_BYTES = 3072;
+
+    // Every key this class may write, used to copy the summary in and out of intent extras
+    public static final String[] KEYS = {KEY_VERSION, KEY_TITLE, KEY_SNIPPET, KEY_LAT, KEY_LNG, KEY_COMMENT};
+
+    /** Encodes a post summary into FCM data payload entries
+     * > Shortens the snippet and latest comment to their character limits
+     * > If the result is still over 'PAYLOAD_BUDGET_BYTES', trims the comment, then the snippet, then the title until it fits
+     *
+     * @param _summary - The summary to encode
+     * @return Map of payload entries, guaranteed to fit within 'PAYLOAD_BUDGET_BYTES'
+     */
+    public static Map<String, String> ENCODE(PostSummary _summary)
+    {
+        Map<String, String> payload = new HashMap<>();
+        payload.put(Toolkit.KEY_NOTIFPAYLOAD_DOCID, _summary.getDocID());
+        payload.put(KEY_VERSION, Integer.toString(VERSION));
+        payload.put(KEY_LAT, Long.toString(Math.round(_summary.getLat() * COORD_SCALE)));
+        payload.put(KEY_LNG, Long.toString(Math.round(_summary.getLng() * COORD_SCALE)));
+        putIfPresent(payload, KEY_TITLE, _summary.getTitle());
+        putIfPresent(payload, KEY_SNIPPET, SHORTEN(_summary.getSnippet(), SNIPPET_MAX_CHARS));
+        putIfPresent(payload, KEY_COMMENT, SHORTEN(_summary.getLatestComment(), COMMENT_MAX_CHARS));
+
+        // trim the least important fields first until the payload fits
+        String[] trimOrder = {KEY_COMMENT, KEY_SNIPPET, KEY_TITLE};
+        for (String key : trimOrder)
+        {
+            int over = SIZE_BYTES(payload) - PAYLOAD_BUDGET_BYTES;
+            if (over <= 0) break;
+            String value = payload.get(key);
+            if (value == null) continue;
+            int keepBytes = utf8Length(value) - over - utf8Length(ELLIPSIS);
+            if (keepBytes <= 0) payload.remove(key);
+            else payload.put(key, truncateUtf8(value, keepBytes) + ELLIPSIS);
+        }
+        return payload;
+    }
+
+    /** Decodes a post summary from FCM data payload entries (or from intent extras holding the same entries)
+     *
+     * @param _payload - Payload entries
+     * @return The decoded summary, or null if the payload has no summary or uses an unknown version
+     */
+    public static PostSummary DECODE(Map<String, String> _payload)
+    {
+        if (_payload == null) return null;
+        String docID = _payload.get(Toolkit.KEY_NOTIFPAYLOAD_DOCID), version = _payload.get(KEY_VERSION);
+        if (docID == null || version == null) return null;
+        try
+        {
+            if (Integer.parseInt(version) != VERSION) return null;
+            double lat = Long.parseLong(_payload.get(KEY_LAT)) / COORD_SCALE;
+            double lng = Long.parseLong(_payload.get(KEY_LNG)) / COORD_SCALE;
+            return new PostSummary(docID, _payload.get(KEY_TITLE), _payload.get(KEY_SNIPPET), lat, lng, _payload.get(KEY_COMMENT));
+        }
+        catch (NumberFormatException | NullPointerException ex) { return null; }
+    }
+
+    /** Returns the number of bytes the given payload entries take up on the wire (UTF-8 keys and values) */
+    public static int SIZE_BYTES(Map<String, String> _payload)
+    {
+        int total = 0;
+        for (Map.Entry<String, String> e : _payload.entrySet()) total += utf8Length(e.getKey()) + utf8Length(e.getValue());
+        return total;
+    }
+
+    /** Returns true if the given payload entries fit within 'PAYLOAD_BUDGET_BYTES' */
+    public static boolean WITHIN_BUDGET(Map<String, String> _payload) { return SIZE_BYTES(_payload) <= PAYLOAD_BUDGET_BYTES; }
+
+    /** Shortens a string to at most the given number of characters, adding an ellipsis if anything was cut
+     *
+     * @param _str - String to shorten (may be null)
+     * @param _maxChars - Maximum number of characters to keep, including the ellipsis
+     * @return The shortened string, or null if '_str' was null
+     */
+    public static String SHORTEN(String _str, int _maxChars)
+    {
+        if (_str == null || _str.length() <= _maxChars) return _str;
+        int end = _maxChars - ELLIPSIS.length();
+        if (Character.isHighSurrogate(_str.charAt(end - 1))) end--;
+        return _str.substring(0, end) + ELLIPSIS;
+    }
+
+    private static void putIfPresent(Map<String, String> _map, String _key, String _value)
+    {
+        if (_value != null) _map.put(_key, _value);
+    }
+
+    private static int utf8Length(String _str) { return _str.getBytes(StandardCharsets.UTF_8).length; }
+
+    // cuts a string to at most '_maxBytes' UTF-8 bytes without splitting a character
+    private static String truncateUtf8(String _str, int _maxBytes)
+    {
+        int bytes = 0, i = 0;
+        while (i < _str.length())
+        {
+            int cp = _str.codePointAt(i);
+            int len = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (bytes + len > _maxBytes) break;
+            bytes += len;
+            i += Character.charCount(cp);
+        }
+        return _str.substring(0, i);
+    }
+}
+
+/** A lightweight summary of a post, enough to render it before the full document (and its comments) is loaded */
+class PostSummary
+{
+    private String docID, title, snippet, latestComment, date, userID;
+    private double lat, lng;
+    private long commentCount, lastActivity;
+
+    public PostSummary(String _docID, String _title, String _snippet, double _lat, double _lng, String _latestComment)
+    {
+        this.docID = _docID;
+        this.title = _title;
+        this.snippet = _snippet;
+        this.lat = _lat;
+        this.lng = _lng;
+        this.latestComment = _latestComment;
+    }
+
+    public String getDocID() {return docID;}
+    public String getTitle() {return title;}
+    public String getSnippet() {return snippet;}
+    public double getLat() {return lat;}
+    public double getLng() {return lng;}
+    public String getLatestComment() {return latestComment;}
+    public long getCommentCount() {return commentCount;}
+    public long getLastActivity() {return lastActivity;}
+    public String getDate() {return date;}
+    public String getUserID() {return userID;}
+
+    /** Sets the post's activity (see 'ShardedCounter') */
+    public void setActivity(long _commentCount, long _lastActivity)
+    {
+        this.commentCount = _commentCount;
+        this.lastActivity = _lastActivity;
+    }
+
+    /** Sets the post's creation date and the device id of its owner (needed to draw its map marker) */
+    public void setDetails(String _date, String _userID)
+    {
+        this.date = _date;
+        this.userID = _userID;
+    }
+}
@@ -2,9 +2,11 @@ package michael.wilson.geochat;
 
 import androidx.appcompat.app.AppCompatActivity;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.ImageView;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
@@ -20,6 +22,7 @@ import com.google.android.gms.maps.model.MarkerOptions;
  * This activity allows the user to:
  * > See the location of their new post
  * > Give their new post a title and body
+ * > Attach a photo
  * > Submit the post to firebase
  */
 public class PostActivity extends AppCompatActivity implements OnMapReadyCallback
@@ -30,6 +33,18 @@ public class PostActivity extends AppCompatActivity implements OnMapReadyCallbac
     // Location of the post
     LatLng loc;
 
+    // The photo picked by the user (null if none)
+    Uri imageUri;
+
+    // unique identifier for the photo picker request
+    final int PICK_IMAGE_REQUESTCODE = 70;
+
+    // size (pixels) of the attached photo's preview
+    final int PREVIEW_MAX_EDGE = 256;
+
+    // set once the post has been submitted, so a double tap (before the activity closes) does not post twice
+    boolean submitted = false;
+
     /** Called when the activity is created
      * > Gets location data from intent and stores it in a memeber variable
      * > Instantiates and pairs the mini-map view with this class's 'onMapReady()' callback
@@ -65,23 +80,81 @@ public class PostActivity extends AppCompatActivity implements OnMapReadyCallbac
         miniMap.moveCamera(CameraUpdateFactory.newLatLng(loc));
     }
 
+    /** Called when the 'PHOTO' button is clicked
+     * > Opens the system picker so the user can choose a photo
+     *
+     * @param _v - Button clicked (not used)
+     */
+    public void attachButt(View _v)
+    {
+        Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+        pick.setType("image/*");
+        startActivityForResult(pick, PICK_IMAGE_REQUESTCODE);
+    }
+
+    /** Called when the photo picker returns
+     * > Remembers the picked photo and shows a small preview of it
+     */
+    @Override
+    protected void onActivityResult(int _requestCode, int _resultCode, Intent _data)
+    {
+        super.onActivityResult(_requestCode, _resultCode, _data);
+        if (_requestCode == PICK_IMAGE_REQUESTCODE && _resultCode == RESULT_OK && _data != null && _data.getData() != null)
+        {
+            imageUri = _data.getData();
+            ImageView preview = findViewById(R.id.postImagePreview);
+            preview.setVisibility(View.VISIBLE);
+            ImagePipeline.PREVIEW(imageUri, preview, PREVIEW_MAX_EDGE);
+        }
+    }
+
     /** Called when 'SUBMIT' button is clicked
      * > Gets string data from title and body textbox (If textboxes are empty, default strings are used)
+     * > If a photo was attached, first downscales it into the app's storage while this activity (and so the permission to
+     *   read the photo) is still alive (see 'ImagePipeline.PREPARE(...)'). If it can not be read, the user is told and the
+     *   post is not submitted
      * > Calls 'CREATE_POST(...)' from Toolkit which adds a new post to firebases using the given parameters
-     * > Closes the activity
+     *   (the photo is uploaded in the background first, once the write limits allow the post)
+     * > Closes the activity (further clicks are ignored while it closes)
      *
-     * @param _v - Button clicked (not used)
+     * @param _v - Button clicked
      */
-    public void submitButt(View _v)
+    public void submitButt(final View _v)
     {
-        if (loc != null)
+        if (loc != null && !submitted)
         {
+            submitted = true;
+            _v.setEnabled(false);
             String title = ((EditText)findViewById(R.id.postTitleBox)).getText().toString();
             String body = ((EditText)findViewById(R.id.postBodyBox)).getText().toString();
             if (title.length() < 1) title = getString(R.string.default_title);
             if (body.length() < 1) body = getString(R.string.default_body);
-            Toolkit.CREATE_POST(loc, title, body, Toolkit.GET_DATE(), Toolkit.GET_DEVICE_ID(), Toolkit.GET_USER_TOKEN());
-            finish();
+            if (imageUri == null)
+            {
+                Toolkit.CREATE_POST(loc, title, body, Toolkit.GET_DATE(), Toolkit.GET_DEVICE_ID(), null);
+                finish();
+                return;
+            }
+
+            final String postTitle = title, postBody = body;
+            ImagePipeline.PREPARE(imageUri, new ImagePipeline.PrepareCallback()
+            {
+                @Override
+                public void onPrepared(ImagePipeline.PreparedImage _image)
+                {
+                    // the user pressed submit, the post is created even if the activity was closed meanwhile
+                    Toolkit.CREATE_POST(loc, postTitle, postBody, Toolkit.GET_DATE(), Toolkit.GET_DEVICE_ID(), _image);
+                    finish();
+                }
+
+                @Override
+                public void onFailed()
+                {
+                    Toolkit.TOAST(R.string.image_read_err);
+                    submitted = false;
+                    _v.setEnabled(true);
+                }
+            });
         }
     }
 }
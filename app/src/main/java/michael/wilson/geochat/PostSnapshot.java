@@ -0,0 +1,542 @@
+package michael.wilson.geochat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A compact, versioned binary form of a region's post summaries (what the map needs to draw and rank markers)
+ * > Posts are sorted by their 'GeoCell' at 'GeoCell.MAX_LEVEL', so neighbours in the file are neighbours on the map,
+ *   and coordinates are stored as fixed point deltas from the previous post, in as few bytes as they need (varints)
+ * > Titles, owners, and dates used more than once are stored once in a string table, the most used first
+ * > Dates in the app's format ("dd/MM/yyyy") are stored as a day number, anything else as a string
+ * > Every 'BLOCK_SIZE' posts the coordinates start again from zero, and an index of the blocks allows jumping to any post
+ * > Read through a 'Cursor' straight from a 'ByteBuffer' (e.g. a memory mapped file): walking the posts creates no objects,
+ *   strings are only decoded when asked for
+ *
+ * Layout (big endian): header, records, string table offsets and strings, block index. The body snippet and latest comment
+ * of a summary are not stored, the map does not use them.
+ * Plain java so it can be tested (and benchmarked) off-device.
+ */
+public class PostSnapshot
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // First bytes of every snapshot ("GCPS"), and the current version of the format
+    public static final int MAGIC = 0x47435053, VERSION = 1;
+
+    // Posts per block of the index, a seek decodes at most this many records
+    public static final int BLOCK_SIZE = 64;
+
+    // Coordinates are stored as fixed point integers (degrees * 1e6, like 'NotifyPayload'), which is ~11cm precision
+    public static final double COORD_SCALE = 1e6;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Header: magic, version, block size, cell, base time, post count, string count, string offsets position, index position
+    private static final int HEADER_BYTES = 4 + 2 + 2 + 8 + 8 + 4 + 4 + 4 + 4;
+    private static final int POS_CELL = 8, POS_BASE_TIME = 16, POS_COUNT = 24, POS_STRING_COUNT = 28, POS_STRINGS = 32, POS_INDEX = 36;
+
+    // A string field is a varint: 'index << 1' for an entry of the string table, or '(length << 1) | 1' followed by the bytes
+    private static final int INLINE = 1;
+
+    // A date field is a varint: 0 for none, '(day + 1) << 1' for a day number, or '(index << 1) | 1' for a string table entry
+    private static final int DATE_STRING = 1;
+
+    // Days since 1970-01-01 are only used for dates between these years, others are stored as strings
+    private static final int MIN_YEAR = 1970, MAX_YEAR = 9999;
+
+    /** Encodes post summaries
+     *
+     * @param _cell - Cell the posts were fetched for (e.g. a region), kept in the header
+     * @param _posts - The posts, in any order
+     * @return The snapshot
+     */
+    public static byte[] ENCODE(long _cell, List<PostSummary> _posts)
+    {
+        // sort by leaf cell, so consecutive posts are close together (ties by id, so the output is deterministic)
+        final int n = _posts.size();
+        final long[] leaf = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+        {
+            leaf[i] = GeoCell.ID(_posts.get(i).getLat(), _posts.get(i).getLng(), GeoCell.MAX_LEVEL);
+            order[i] = i;
+        }
+        final List<PostSummary> posts = _posts;
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer _a, Integer _b)
+            {
+                if (leaf[_a] != leaf[_b]) return Long.compare(leaf[_a], leaf[_b]);
+                return compareNullable(posts.get(_a).getDocID(), posts.get(_b).getDocID());
+            }
+        });
+
+        // values used more than once go into the string table, the most used get the smallest indices
+        // (dates not in the app's format always do, a date field has no room for inline bytes)
+        final Map<String, Integer> uses = new HashMap<>();
+        Set<String> oddDates = new HashSet<>();
+        long baseTime = 0;
+        for (PostSummary post : _posts)
+        {
+            count(uses, post.getTitle());
+            count(uses, post.getUserID());
+            if (post.getDate() != null && PARSE_DAY(post.getDate()) < 0)
+            {
+                count(uses, post.getDate());
+                oddDates.add(post.getDate());
+            }
+            baseTime = Math.max(baseTime, post.getLastActivity());
+        }
+        List<String> table = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : uses.entrySet())
+        {
+            if (entry.getValue() > 1 || oddDates.contains(entry.getKey())) table.add(entry.getKey());
+        }
+        Collections.sort(table, new Comparator<String>()
+        {
+            @Override
+            public int compare(String _a, String _b)
+            {
+                int byUses = Integer.compare(uses.get(_b), uses.get(_a));
+                return byUses != 0 ? byUses : _a.compareTo(_b);
+            }
+        });
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < table.size(); i++) index.put(table.get(i), i);
+
+        Out out = new Out(HEADER_BYTES + n * 24);
+        out.position = HEADER_BYTES;
+        int[] blocks = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        long prevLat = 0, prevLng = 0;
+        for (int r = 0; r < n; r++)
+        {
+            PostSummary post = _posts.get(order[r]);
+            if (r % BLOCK_SIZE == 0)
+            {
+                blocks[r / BLOCK_SIZE] = out.position;
+                prevLat = 0;
+                prevLng = 0;
+            }
+            long lat = Math.round(post.getLat() * COORD_SCALE), lng = Math.round(post.getLng() * COORD_SCALE);
+            out.zigzag(lat - prevLat);
+            out.zigzag(lng - prevLng);
+            prevLat = lat;
+            prevLng = lng;
+            out.string(post.getDocID(), index);
+            out.string(post.getTitle(), index);
+            out.string(post.getUserID(), index);
+            int day = post.getDate() == null ? -1 : PARSE_DAY(post.getDate());
+            if (post.getDate() == null) out.varint(0);
+            else if (day >= 0) out.varint((day + 1L) << 1);
+            else out.varint(((long)index.get(post.getDate()) << 1) | DATE_STRING);
+            out.varint(Math.max(0, post.getCommentCount()));
+            out.zigzag(baseTime - post.getLastActivity());
+        }
+
+        int stringsPosition = out.position;
+        out.position += 4 * table.size();
+        for (int i = 0; i < table.size(); i++)
+        {
+            out.putInt(stringsPosition + 4 * i, out.position);
+            byte[] bytes = table.get(i).getBytes(StandardCharsets.UTF_8);
+            out.varint(bytes.length);
+            out.bytes(bytes);
+        }
+        int indexPosition = out.position;
+        for (int block : blocks)
+        {
+            out.putInt(out.position, block);
+            out.position += 4;
+        }
+
+        out.putInt(0, MAGIC);
+        out.putShort(4, VERSION);
+        out.putShort(6, BLOCK_SIZE);
+        out.putLong(POS_CELL, _cell);
+        out.putLong(POS_BASE_TIME, baseTime);
+        out.putInt(POS_COUNT, n);
+        out.putInt(POS_STRING_COUNT, table.size());
+        out.putInt(POS_STRINGS, stringsPosition);
+        out.putInt(POS_INDEX, indexPosition);
+        return Arrays.copyOf(out.data, out.position);
+    }
+
+    /** Decodes every post of a snapshot into summaries (for code which needs objects, e.g. the map's markers) */
+    public static List<PostSummary> DECODE_ALL(ByteBuffer _buffer) throws IOException
+    {
+        Reader reader = new Reader(_buffer);
+        List<PostSummary> posts = new ArrayList<>(reader.count());
+        Cursor cursor = reader.cursor();
+        while (cursor.next()) posts.add(cursor.summary());
+        return posts;
+    }
+
+    /** Returns the day number (days since 1970-01-01) of a date in the app's format ("dd/MM/yyyy"), or -1 if it is not one
+     * > Only dates which format back to exactly the same string are accepted, so every date survives a round trip
+     */
+    public static int PARSE_DAY(String _date)
+    {
+        if (_date.length() != 10 || _date.charAt(2) != '/' || _date.charAt(5) != '/') return -1;
+        int d = digits(_date, 0, 2), m = digits(_date, 3, 5), y = digits(_date, 6, 10);
+        if (d < 1 || m < 1 || m > 12 || y < MIN_YEAR || y > MAX_YEAR || d > daysInMonth(y, m)) return -1;
+        return (int)daysFromCivil(y, m, d);
+    }
+
+    /** Formats a day number in the app's format ("dd/MM/yyyy") */
+    public static String FORMAT_DAY(int _day)
+    {
+        // civil date from a day number (Howard Hinnant's algorithm)
+        long z = _day + 719468L;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long d = doy - (153 * mp + 2) / 5 + 1;
+        long m = mp < 10 ? mp + 3 : mp - 9;
+        long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+        char[] out = {(char)('0' + d / 10), (char)('0' + d % 10), '/', (char)('0' + m / 10), (char)('0' + m % 10), '/',
+                (char)('0' + y / 1000), (char)('0' + y / 100 % 10), (char)('0' + y / 10 % 10), (char)('0' + y % 10)};
+        return new String(out);
+    }
+
+    /** Reads a snapshot in place (the buffer is never copied, and may be shared by several readers) */
+    public static class Reader
+    {
+        private final ByteBuffer buffer;
+        private final int count, stringCount, stringsPosition, indexPosition;
+        private final long cell, baseTime;
+
+        /** Checks a snapshot's header
+         *
+         * @param _buffer - The snapshot, from its position to its limit (its position and limit are not changed)
+         * @throws IOException - If it is not a snapshot, or of another version
+         */
+        public Reader(ByteBuffer _buffer) throws IOException
+        {
+            this.buffer = _buffer.slice();
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt(0) != MAGIC) throw new IOException("not a post snapshot");
+            if (buffer.getShort(4) != VERSION || buffer.getShort(6) != BLOCK_SIZE) throw new IOException("unknown post snapshot version");
+            this.cell = buffer.getLong(POS_CELL);
+            this.baseTime = buffer.getLong(POS_BASE_TIME);
+            this.count = buffer.getInt(POS_COUNT);
+            this.stringCount = buffer.getInt(POS_STRING_COUNT);
+            this.stringsPosition = buffer.getInt(POS_STRINGS);
+            this.indexPosition = buffer.getInt(POS_INDEX);
+            long indexEnd = indexPosition + 4L * ((count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            if (count < 0 || stringCount < 0 || stringsPosition < HEADER_BYTES || stringsPosition + 4L * stringCount > indexPosition
+                    || indexEnd > buffer.limit())
+            {
+                throw new IOException("truncated post snapshot");
+            }
+        }
+
+        public int count() { return count; }
+        public long cell() { return cell; }
+
+        /** Returns a new cursor, before the first post */
+        public Cursor cursor() { return new Cursor(this); }
+
+        /** Returns an entry of the string table */
+        public String string(int _index)
+        {
+            int position = buffer.getInt(stringsPosition + 4 * _index);
+            long header = readVarint(buffer, position);
+            return utf8(buffer, position + varintLength(header), (int)header);
+        }
+    }
+
+    /** Walks the posts of a snapshot in order (or jumps to one), reading each field only when asked for
+     * > One cursor is reused for every post, so walking a snapshot allocates nothing
+     * > Not thread safe, use one cursor per thread
+     */
+    public static class Cursor
+    {
+        private final Reader reader;
+        private final ByteBuffer buffer;
+        private int record = -1, next;
+        private long lat, lng;
+
+        // positions of the current record's fields after the coordinates
+        private int docID, title, userID, date, comments, activity;
+
+        Cursor(Reader _reader)
+        {
+            this.reader = _reader;
+            this.buffer = _reader.buffer;
+            this.next = HEADER_BYTES;
+        }
+
+        /** Moves to the next post, returns false once past the last one */
+        public boolean next()
+        {
+            if (record + 1 >= reader.count) return false;
+            record++;
+            if (record % BLOCK_SIZE == 0)
+            {
+                lat = 0;
+                lng = 0;
+            }
+            int p = next;
+            long v = readVarint(buffer, p);
+            p += varintLength(v);
+            lat += unzigzag(v);
+            v = readVarint(buffer, p);
+            p += varintLength(v);
+            lng += unzigzag(v);
+            docID = p;
+            p = skipString(p);
+            title = p;
+            p = skipString(p);
+            userID = p;
+            p = skipString(p);
+            date = p;
+            p += varintLength(readVarint(buffer, p));
+            comments = p;
+            p += varintLength(readVarint(buffer, p));
+            activity = p;
+            p += varintLength(readVarint(buffer, p));
+            next = p;
+            return true;
+        }
+
+        /** Moves to a post by its position in the snapshot (decodes at most 'BLOCK_SIZE' records) */
+        public void seek(int _record)
+        {
+            if (_record < 0 || _record >= reader.count) throw new IndexOutOfBoundsException("no post " + _record);
+            int block = _record / BLOCK_SIZE;
+            record = block * BLOCK_SIZE - 1;
+            next = buffer.getInt(reader.indexPosition + 4 * block);
+            while (record < _record) next();
+        }
+
+        /** Position of the current post in the snapshot */
+        public int record() { return record; }
+
+        public double lat() { return lat / COORD_SCALE; }
+        public double lng() { return lng / COORD_SCALE; }
+        public long commentCount() { return readVarint(buffer, comments); }
+        public long lastActivity() { return reader.baseTime - unzigzag(readVarint(buffer, activity)); }
+
+        public String docID() { return readString(docID); }
+        public String title() { return readString(title); }
+        public String userID() { return readString(userID); }
+
+        /** Returns the post's date as a day number (see 'PARSE_DAY(...)'), or -1 if it has none or it is not in the app's format */
+        public int day()
+        {
+            long v = readVarint(buffer, date);
+            return v == 0 || (v & DATE_STRING) != 0 ? -1 : (int)(v >>> 1) - 1;
+        }
+
+        /** Returns the post's date as it was written, or null */
+        public String date()
+        {
+            long v = readVarint(buffer, date);
+            if (v == 0) return null;
+            return (v & DATE_STRING) != 0 ? reader.string((int)(v >>> 1)) : FORMAT_DAY((int)(v >>> 1) - 1);
+        }
+
+        /** Decodes the current post into a summary */
+        public PostSummary summary()
+        {
+            PostSummary post = new PostSummary(docID(), title(), null, lat(), lng(), null);
+            post.setActivity(commentCount(), lastActivity());
+            post.setDetails(date(), userID());
+            return post;
+        }
+
+        /** Returns true if the post's owner is the given device (compares the stored bytes, nothing is decoded) */
+        public boolean isOwner(String _userID)
+        {
+            long v = readVarint(buffer, userID);
+            int position;
+            long length;
+            if ((v & INLINE) != 0)
+            {
+                position = userID + varintLength(v);
+                length = (v >>> 1) - 1;
+            }
+            else
+            {
+                position = buffer.getInt(reader.stringsPosition + 4 * (int)(v >>> 1));
+                length = readVarint(buffer, position);
+                position += varintLength(length);
+            }
+            if (_userID == null) return false;
+            byte[] bytes = _userID.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length != length) return false;
+            for (int i = 0; i < bytes.length; i++) if (buffer.get(position + i) != bytes[i]) return false;
+            return true;
+        }
+
+        private String readString(int _position)
+        {
+            long v = readVarint(buffer, _position);
+            if ((v & INLINE) == 0) return reader.string((int)(v >>> 1));
+            long length = v >>> 1;
+            return length == 0 ? null : utf8(buffer, _position + varintLength(v), (int)length - 1);
+        }
+
+        private int skipString(int _position)
+        {
+            long v = readVarint(buffer, _position);
+            int p = _position + varintLength(v);
+            return (v & INLINE) != 0 && (v >>> 1) > 0 ? p + (int)(v >>> 1) - 1 : p;
+        }
+    }
+
+    // reads an unsigned varint (7 bits per byte, low bits first)
+    private static long readVarint(ByteBuffer _buffer, int _position)
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = _buffer.get(_position++);
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    // the number of bytes of a varint holding '_value'
+    private static int varintLength(long _value)
+    {
+        int length = 1;
+        while ((_value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    private static long unzigzag(long _v) { return (_v >>> 1) ^ -(_v & 1); }
+
+    private static String utf8(ByteBuffer _buffer, int _position, int _length)
+    {
+        if (_buffer.hasArray()) return new String(_buffer.array(), _buffer.arrayOffset() + _position, _length, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[_length];
+        for (int i = 0; i < _length; i++) bytes[i] = _buffer.get(_position + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void count(Map<String, Integer> _uses, String _value)
+    {
+        if (_value == null) return;
+        Integer n = _uses.get(_value);
+        _uses.put(_value, n == null ? 1 : n + 1);
+    }
+
+    private static int compareNullable(String _a, String _b)
+    {
+        if (_a == null) return _b == null ? 0 : -1;
+        return _b == null ? 1 : _a.compareTo(_b);
+    }
+
+    private static int digits(String _s, int _from, int _to)
+    {
+        int value = 0;
+        for (int i = _from; i < _to; i++)
+        {
+            char c = _s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int _y, int _m)
+    {
+        if (_m == 2) return (_y % 4 == 0 && (_y % 100 != 0 || _y % 400 == 0)) ? 29 : 28;
+        return (_m == 4 || _m == 6 || _m == 9 || _m == 11) ? 30 : 31;
+    }
+
+    // day number of a civil date (Howard Hinnant's algorithm)
+    private static long daysFromCivil(int _y, int _m, int _d)
+    {
+        long y = _m <= 2 ? _y - 1 : _y;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (_m + (_m > 2 ? -3 : 9)) + 2) / 5 + _d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /** A growable output buffer */
+    private static class Out
+    {
+        byte[] data;
+        int position;
+
+        Out(int _capacity) { this.data = new byte[Math.max(64, _capacity)]; }
+
+        void ensure(int _bytes)
+        {
+            if (position + _bytes > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, position + _bytes));
+        }
+
+        void varint(long _value)
+        {
+            ensure(10);
+            while ((_value & ~0x7fL) != 0)
+            {
+                data[position++] = (byte)((_value & 0x7f) | 0x80);
+                _value >>>= 7;
+            }
+            data[position++] = (byte)_value;
+        }
+
+        void zigzag(long _value) { varint((_value << 1) ^ (_value >> 63)); }
+
+        void bytes(byte[] _bytes)
+        {
+            ensure(_bytes.length);
+            System.arraycopy(_bytes, 0, data, position, _bytes.length);
+            position += _bytes.length;
+        }
+
+        // a string table entry, or the string itself ('(length + 1) << 1 | 1', 0 length for null, so null stays null)
+        void string(String _value, Map<String, Integer> _table)
+        {
+            Integer index = _value == null ? null : _table.get(_value);
+            if (index != null)
+            {
+                varint((long)index << 1);
+                return;
+            }
+            if (_value == null)
+            {
+                varint(INLINE);
+                return;
+            }
+            byte[] bytes = _value.getBytes(StandardCharsets.UTF_8);
+            varint(((bytes.length + 1L) << 1) | INLINE);
+            bytes(bytes);
+        }
+
+        void putInt(int _at, int _value)
+        {
+            ensure(_at + 4 - position);
+            for (int i = 0; i < 4; i++) data[_at + i] = (byte)(_value >>> (24 - 8 * i));
+        }
+
+        void putShort(int _at, int _value)
+        {
+            data[_at] = (byte)(_value >>> 8);
+            data[_at + 1] = (byte)_value;
+        }
+
+        void putLong(int _at, long _value)
+        {
+            putInt(_at, (int)(_value >>> 32));
+            putInt(_at + 4, (int)_value);
+        }
+    }
+}
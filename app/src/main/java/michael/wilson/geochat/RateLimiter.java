@@ -0,0 +1,134 @@
+package michael.wilson.geochat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Token buckets kept by key (e.g. one per device), shared between threads without locks
+ * > A bucket holds up to 'burst' tokens and gains one every 'intervalMs', each write takes a token
+ * > A bucket is kept as a single number, the time at which it will be full again (the "theoretical arrival time" of the
+ *   generic cell rate algorithm), so taking a token is one compare-and-set and contended buckets just retry
+ * > A write may reserve a token which has not arrived yet, it then waits for it, so a burst is spread out instead of refused
+ * > Times are passed in, so the buckets can be driven by a fake clock
+ *
+ * Plain java so it can be tested off-device.
+ */
+public class RateLimiter
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Returned by 'reserve(...)' when no token arrives soon enough
+    public static final long DENIED = -1;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Value of a bucket removed by 'prune(...)', a thread still holding it looks the key up again
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    private final int burst;
+    private final long intervalMs;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /** Constructor
+     *
+     * @param _burst - Number of tokens a full bucket holds (writes allowed at once), at least 1
+     * @param _intervalMs - Time for one token to arrive (the sustained rate is one write per interval)
+     */
+    public RateLimiter(int _burst, long _intervalMs)
+    {
+        if (_burst < 1 || _intervalMs < 1) throw new IllegalArgumentException("burst and interval must be at least 1");
+        this.burst = _burst;
+        this.intervalMs = _intervalMs;
+    }
+
+    public int getBurst() { return burst; }
+    public long getIntervalMs() { return intervalMs; }
+
+    /** Number of buckets kept (full buckets are dropped by 'prune(...)') */
+    public int size() { return buckets.size(); }
+
+    /** Takes a token from a bucket if one is there now
+     *
+     * @param _key - The bucket
+     * @param _now - Current time in milliseconds
+     * @return True if a token was taken
+     */
+    public boolean tryAcquire(String _key, long _now) { return reserve(_key, _now, 0) == 0; }
+
+    /** Reserves the next token of a bucket, if it arrives within '_maxDelayMs'
+     *
+     * @param _key - The bucket
+     * @param _now - Current time in milliseconds
+     * @param _maxDelayMs - Longest the caller is willing to wait for the token
+     * @return How long to wait before writing (0 to write now), or 'DENIED' (nothing is reserved then)
+     */
+    public long reserve(String _key, long _now, long _maxDelayMs)
+    {
+        while (true)
+        {
+            AtomicLong bucket = bucket(_key);
+            long tat = bucket.get();
+            if (tat == RETIRED) continue;
+            long next = NEXT_TAT(tat, _now, intervalMs);
+            long delay = DELAY(next, _now, intervalMs, burst);
+            if (delay > _maxDelayMs) return DENIED;
+            if (bucket.compareAndSet(tat, next)) return delay;
+        }
+    }
+
+    /** Returns how long until a bucket has a token (0 if it has one now), without taking it */
+    public long available(String _key, long _now)
+    {
+        AtomicLong bucket = buckets.get(_key);
+        long tat = bucket == null ? 0 : bucket.get();
+        return tat == RETIRED ? 0 : DELAY(NEXT_TAT(tat, _now, intervalMs), _now, intervalMs, burst);
+    }
+
+    /** Gives back a token reserved by 'reserve(...)' (e.g. when the write was refused by another limit) */
+    public void cancel(String _key, long _now)
+    {
+        while (true)
+        {
+            AtomicLong bucket = bucket(_key);
+            long tat = bucket.get();
+            if (tat == RETIRED) continue;
+            if (tat <= _now || bucket.compareAndSet(tat, Math.max(_now, tat - intervalMs))) return;
+        }
+    }
+
+    /** Drops the buckets which are full again, so keys seen once are not kept forever */
+    public void prune(long _now)
+    {
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet())
+        {
+            long tat = entry.getValue().get();
+
+            // retire the bucket first, so a token taken from it in the meantime is not lost with it
+            if (tat <= _now && entry.getValue().compareAndSet(tat, RETIRED)) buckets.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Returns the time a bucket is full again after one more token is taken from it
+     *
+     * @param _tat - Time the bucket is full again now (0 for a bucket never used)
+     * @param _now - Current time in milliseconds
+     * @param _intervalMs - Time for one token to arrive
+     */
+    public static long NEXT_TAT(long _tat, long _now, long _intervalMs) { return Math.max(_tat, _now) + _intervalMs; }
+
+    /** Returns how long the token taken by 'NEXT_TAT(...)' takes to arrive (0 if it is there already) */
+    public static long DELAY(long _nextTat, long _now, long _intervalMs, int _burst)
+    {
+        return Math.max(0, _nextTat - _burst * _intervalMs - _now);
+    }
+
+    private AtomicLong bucket(String _key)
+    {
+        AtomicLong bucket = buckets.get(_key);
+        if (bucket != null && bucket.get() != RETIRED) return bucket;
+        AtomicLong fresh = new AtomicLong();
+        if (bucket != null && buckets.replace(_key, bucket, fresh)) return fresh;
+        AtomicLong existing = buckets.putIfAbsent(_key, fresh);
+        return existing == null ? fresh : existing;
+    }
+}
@@ -0,0 +1,450 @@
+package michael.wilson.geochat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** An offline pack of a map area: the summaries of every post in its regions, and each post's thread with its newest comments
+ * > Downloaded in one go ('DOWNLOAD(...)'), then kept up to date with deltas: only the posts active since the pack's watermark
+ *   are fetched again, and only the comments of those written since the thread's own watermark ('REFRESH(...)')
+ * > Summaries are a 'PostSnapshot', read in place like one; threads are 'ThreadCache.ENCODE(...)' blobs, each compressed on
+ *   its own behind an index sorted by post id, so opening a thread inflates only that thread
+ * > A refresh copies every thread it did not change as it is, without inflating it
+ * > Deltas can not see deleted posts, they stay in the pack until it is downloaded again
+ * > Deltas key on each post's 'lastActivity', which every comment moves once it reaches the server (see
+ *   'Toolkit.RECORD_ACTIVITY(...)')
+ *
+ * Layout (big endian): header, region cells (sorted), summaries snapshot, post ids, threads, thread index.
+ * Plain java so it can be tested (and benchmarked) off-device.
+ */
+public class RegionPack
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // First bytes of every pack ("GCRP"), and the current version of the format
+    public static final int MAGIC = 0x47435250, VERSION = 1;
+
+    // Most regions (at 'GeoCell.REGION_LEVEL') one pack may cover, a city and its surroundings (about 100km across)
+    public static final int MAX_CELLS = 32;
+
+    // Newest comments kept per thread, and most threads given comments beyond those in the post document (the most active ones)
+    public static final int COMMENT_PAGE = 25, MAX_THREADS = 500;
+
+    /** Reads what packs are made of (from firebase in the app, blocking, so never on the main thread) */
+    public interface Source
+    {
+        /** Returns the posts of a region last active at or after '_since' (all of them if 0) */
+        List<FirestoreTape.Document> posts(long _cell, long _since) throws IOException;
+
+        /** Returns up to '_limit' of a post's newest comments, of those written at or after '_since' ('ThreadCache.NO_WATERMARK' for all) */
+        List<Comment> comments(String _docID, long _since, int _limit) throws IOException;
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Header: magic, version, reserved, build time, watermark, cell count, thread count, snapshot position and length, index position
+    private static final int HEADER_BYTES = 4 + 2 + 2 + 8 + 8 + 4 + 4 + 4 + 4 + 4;
+    private static final int POS_BUILT = 8, POS_WATERMARK = 16, POS_CELL_COUNT = 24, POS_THREAD_COUNT = 28, POS_SNAPSHOT = 32,
+            POS_SNAPSHOT_LENGTH = 36, POS_INDEX = 40;
+
+    // An index entry: position of the post id, position and length of the thread
+    private static final int ENTRY_BYTES = 4 + 4 + 4;
+
+    // A thread is refused when it claims to inflate to more than this (a corrupt length must not exhaust memory)
+    private static final int MAX_THREAD_BYTES = 16 * 1024 * 1024;
+
+    /** Downloads a pack: every post of the regions, and the newest comments of the most active ones
+     *
+     * @param _source - Where posts and comments are read from
+     * @param _cells - The regions, see 'GeoCell.COVERING(...)'
+     * @param _now - Current time, kept as the pack's build time
+     * @return The pack
+     * @throws IOException - If a read failed
+     */
+    public static byte[] DOWNLOAD(Source _source, long[] _cells, long _now) throws IOException
+    {
+        Map<String, FirestorePost> posts = new HashMap<>();
+        for (long cell : _cells)
+        {
+            for (FirestoreTape.Document document : _source.posts(cell, 0)) posts.put(document.getID(), document.getPost());
+        }
+        Map<String, List<Comment>> comments = new HashMap<>();
+        for (String docID : MOST_ACTIVE(posts, MAX_THREADS))
+        {
+            comments.put(docID, _source.comments(docID, ThreadCache.NO_WATERMARK, COMMENT_PAGE));
+        }
+        return BUILD(_cells, posts, comments, _now);
+    }
+
+    /** Refreshes a pack with a delta
+     * > Fetches the posts of its regions active since its watermark (at or after, several may share the newest time)
+     * > Fetches the comments of those whose comment count changed, from their thread's watermark on
+     *
+     * @param _source - Where posts and comments are read from
+     * @param _pack - The pack to refresh
+     * @param _now - Current time, kept as the refreshed pack's build time
+     * @return The refreshed pack
+     * @throws IOException - If a read failed, or the pack is corrupt
+     */
+    public static byte[] REFRESH(Source _source, Reader _pack, long _now) throws IOException
+    {
+        Map<String, FirestorePost> changed = new HashMap<>();
+        for (long cell : _pack.cells())
+        {
+            for (FirestoreTape.Document document : _source.posts(cell, _pack.watermark())) changed.put(document.getID(), document.getPost());
+        }
+        Map<String, List<Comment>> comments = new HashMap<>();
+        for (String docID : MOST_ACTIVE(changed, MAX_THREADS))
+        {
+            FirestorePost packed = _pack.thread(docID);
+            if (packed != null && packed.getCommentCount() == changed.get(docID).getCommentCount()) continue;
+            long since = packed == null ? ThreadCache.NO_WATERMARK : ThreadCache.WATERMARK(packed.getComments());
+            comments.put(docID, _source.comments(docID, since, COMMENT_PAGE));
+        }
+        return APPLY(_pack, changed, comments, _now);
+    }
+
+    /** Builds a pack
+     *
+     * @param _cells - Regions covered
+     * @param _posts - Every post of those regions, by document id
+     * @param _comments - Newest comments fetched for some of the posts (from their comments collection), by document id
+     * @param _now - Current time, kept as the pack's build time
+     * @return The pack
+     */
+    public static byte[] BUILD(long[] _cells, Map<String, FirestorePost> _posts, Map<String, List<Comment>> _comments, long _now)
+    {
+        List<PostSummary> summaries = new ArrayList<>(_posts.size());
+        TreeMap<String, byte[]> threads = new TreeMap<>();
+        for (Map.Entry<String, FirestorePost> entry : _posts.entrySet())
+        {
+            summaries.add(SUMMARIZE(entry.getKey(), entry.getValue()));
+            threads.put(entry.getKey(), DEFLATE(ThreadCache.ENCODE(TRIM(entry.getValue(), null, _comments.get(entry.getKey())))));
+        }
+        return WRITE(_cells, _now, summaries, threads);
+    }
+
+    /** Applies a delta to a pack
+     * > Posts given replace the packed ones (or are added), comments given are merged with the packed ones (newest 'COMMENT_PAGE' kept)
+     * > Every other thread is copied as it is stored
+     *
+     * @param _pack - The pack
+     * @param _changed - Posts fetched again, by document id
+     * @param _comments - Comments fetched, by document id
+     * @param _now - Current time, kept as the new pack's build time
+     * @return The new pack
+     * @throws IOException - If the pack is corrupt
+     */
+    public static byte[] APPLY(Reader _pack, Map<String, FirestorePost> _changed, Map<String, List<Comment>> _comments, long _now)
+            throws IOException
+    {
+        Set<String> touched = new HashSet<>(_changed.keySet());
+        touched.addAll(_comments.keySet());
+
+        List<PostSummary> summaries = new ArrayList<>(_pack.count() + _changed.size());
+        PostSnapshot.Cursor cursor = _pack.summaries().cursor();
+        while (cursor.next()) if (!_changed.containsKey(cursor.docID())) summaries.add(cursor.summary());
+
+        TreeMap<String, byte[]> threads = new TreeMap<>();
+        for (int entry = 0; entry < _pack.count(); entry++)
+        {
+            String docID = _pack.id(entry);
+            if (!touched.contains(docID)) threads.put(docID, _pack.blob(entry));
+        }
+        for (String docID : touched)
+        {
+            FirestorePost packed = _pack.thread(docID), post = _changed.containsKey(docID) ? _changed.get(docID) : packed;
+            if (post == null) continue;
+            if (post != packed) summaries.add(SUMMARIZE(docID, post));
+            threads.put(docID, DEFLATE(ThreadCache.ENCODE(TRIM(post, packed == null ? null : packed.getComments(), _comments.get(docID)))));
+        }
+        return WRITE(_pack.cells(), _now, summaries, threads);
+    }
+
+    /** Reads a pack in place (the buffer is never copied, and may be shared by several readers) */
+    public static class Reader
+    {
+        private final ByteBuffer buffer, snapshot;
+        private final PostSnapshot.Reader summaries;
+        private final long builtTime, watermark;
+        private final long[] cells;
+        private final int count, indexPosition;
+
+        /** Checks a pack's header
+         *
+         * @param _buffer - The pack, from its position to its limit (its position and limit are not changed)
+         * @throws IOException - If it is not a pack, or of another version
+         */
+        public Reader(ByteBuffer _buffer) throws IOException
+        {
+            this.buffer = _buffer.slice();
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt(0) != MAGIC) throw new IOException("not a region pack");
+            if (buffer.getShort(4) != VERSION) throw new IOException("unknown region pack version");
+            this.builtTime = buffer.getLong(POS_BUILT);
+            this.watermark = buffer.getLong(POS_WATERMARK);
+            int cellCount = buffer.getInt(POS_CELL_COUNT), snapshotPosition = buffer.getInt(POS_SNAPSHOT),
+                    snapshotLength = buffer.getInt(POS_SNAPSHOT_LENGTH);
+            this.count = buffer.getInt(POS_THREAD_COUNT);
+            this.indexPosition = buffer.getInt(POS_INDEX);
+            if (cellCount < 0 || count < 0 || snapshotPosition < HEADER_BYTES + 8L * cellCount || snapshotLength < 0
+                    || (long)snapshotPosition + snapshotLength > indexPosition || indexPosition + (long)ENTRY_BYTES * count > buffer.limit())
+            {
+                throw new IOException("truncated region pack");
+            }
+
+            this.cells = new long[cellCount];
+            for (int c = 0; c < cellCount; c++) cells[c] = buffer.getLong(HEADER_BYTES + 8 * c);
+            ByteBuffer view = buffer.duplicate();
+            view.position(snapshotPosition);
+            view.limit(snapshotPosition + snapshotLength);
+            this.snapshot = view.slice();
+            this.summaries = new PostSnapshot.Reader(snapshot);
+        }
+
+        /** When the pack was built or last refreshed */
+        public long builtTime() { return builtTime; }
+
+        /** Newest activity of any post in the pack, the next refresh fetches the posts active since */
+        public long watermark() { return watermark; }
+
+        /** Returns the regions covered (sorted) */
+        public long[] cells() { return cells.clone(); }
+
+        /** Returns the number of posts (and threads) */
+        public int count() { return count; }
+
+        /** Returns true if the pack holds every post of a region */
+        public boolean covers(long _cell) { return Arrays.binarySearch(cells, _cell) >= 0; }
+
+        /** Returns the summaries of every post, read in place */
+        public PostSnapshot.Reader summaries() { return summaries; }
+
+        /** Decodes the summaries of every post */
+        public List<PostSummary> all() throws IOException { return PostSnapshot.DECODE_ALL(snapshot); }
+
+        /** Decodes the summaries of a region's posts, null if the pack does not cover it */
+        public List<PostSummary> region(long _cell)
+        {
+            if (!covers(_cell)) return null;
+            List<PostSummary> posts = new ArrayList<>();
+            PostSnapshot.Cursor cursor = summaries.cursor();
+            while (cursor.next())
+            {
+                if (GeoCell.ID(cursor.lat(), cursor.lng(), GeoCell.REGION_LEVEL) == _cell) posts.add(cursor.summary());
+            }
+            return posts;
+        }
+
+        /** Returns a post and its packed comments (newest first, then those kept in its document), null if it is not in the pack
+         *
+         * @throws IOException - If its thread is corrupt
+         */
+        public FirestorePost thread(String _docID) throws IOException
+        {
+            int entry = find(_docID);
+            return entry < 0 ? null : ThreadCache.DECODE(INFLATE(blob(entry)));
+        }
+
+        // returns the post id of an index entry
+        String id(int _entry)
+        {
+            int position = buffer.getInt(indexPosition + ENTRY_BYTES * _entry);
+            byte[] bytes = new byte[buffer.getShort(position) & 0xFFFF];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // returns the thread of an index entry as it is stored
+        byte[] blob(int _entry) throws IOException
+        {
+            int position = buffer.getInt(indexPosition + ENTRY_BYTES * _entry + 4), length = buffer.getInt(indexPosition + ENTRY_BYTES * _entry + 8);
+            if (position < HEADER_BYTES || length < 4 || (long)position + length > indexPosition) throw new IOException("corrupt region pack index");
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(bytes);
+            return bytes;
+        }
+
+        // returns the index entry of a post id (binary search), or -1
+        private int find(String _docID)
+        {
+            int low = 0, high = count - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int comparison = id(mid).compareTo(_docID);
+                if (comparison == 0) return mid;
+                if (comparison < 0) low = mid + 1;
+                else high = mid - 1;
+            }
+            return -1;
+        }
+    }
+
+    // returns the ids of the posts with comments, most recently active first (ties by id), at most '_max' of them
+    private static List<String> MOST_ACTIVE(final Map<String, FirestorePost> _posts, int _max)
+    {
+        List<String> active = new ArrayList<>();
+        for (Map.Entry<String, FirestorePost> entry : _posts.entrySet()) if (entry.getValue().getCommentCount() > 0) active.add(entry.getKey());
+        Collections.sort(active, new Comparator<String>()
+        {
+            @Override
+            public int compare(String _a, String _b)
+            {
+                int byActivity = Long.compare(_posts.get(_b).getLastActivity(), _posts.get(_a).getLastActivity());
+                return byActivity != 0 ? byActivity : _a.compareTo(_b);
+            }
+        });
+        return active.size() > _max ? active.subList(0, _max) : active;
+    }
+
+    // returns a copy of a post with its newest 'COMMENT_PAGE' comments (of those packed and fetched), then those kept in its document
+    private static FirestorePost TRIM(FirestorePost _post, List<Comment> _packed, List<Comment> _fetched)
+    {
+        List<Comment> fetched = _fetched == null ? Collections.<Comment>emptyList() : _fetched;
+        ArrayList<Comment> kept = new ArrayList<>();
+        int newest = 0;
+        for (Comment comment : ThreadCache.MERGE(_packed, fetched, _post.getComments()))
+        {
+            if (comment.getCommentID() == null || newest++ < COMMENT_PAGE) kept.add(comment);
+        }
+        return new FirestorePost(_post.getTitle(), _post.getBody(), _post.getDate(), _post.getUserID(), _post.getUserToken(),
+                _post.getImage(), _post.getThumb(), _post.getLat(), _post.getLng(), _post.getCommentCount(), _post.getLastActivity(),
+                _post.getCell(), kept);
+    }
+
+    // returns the summary of a post the map draws (like 'MapViewModel.SUMMARIZE(...)')
+    private static PostSummary SUMMARIZE(String _id, FirestorePost _post)
+    {
+        PostSummary summary = new PostSummary(_id, _post.getTitle(), null, _post.getLat(), _post.getLng(), null);
+        summary.setActivity(_post.getCommentCount(), _post.getLastActivity());
+        summary.setDetails(_post.getDate(), _post.getUserID());
+        return summary;
+    }
+
+    // writes a pack, '_threads' are compressed and sorted by post id
+    private static byte[] WRITE(long[] _cells, long _now, List<PostSummary> _summaries, TreeMap<String, byte[]> _threads)
+    {
+        long[] cells = _cells.clone();
+        Arrays.sort(cells);
+        long watermark = 0;
+        for (PostSummary summary : _summaries) watermark = Math.max(watermark, summary.getLastActivity());
+        byte[] snapshot = PostSnapshot.ENCODE(cells.length == 1 ? cells[0] : 0, _summaries);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + snapshot.length + 256 * _threads.size());
+        int[] idPositions = new int[_threads.size()], threadPositions = new int[_threads.size()];
+        int snapshotPosition, indexPosition;
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.write(new byte[HEADER_BYTES]);
+            for (long cell : cells) out.writeLong(cell);
+            snapshotPosition = out.size();
+            out.write(snapshot);
+
+            int t = 0;
+            for (String docID : _threads.keySet())
+            {
+                byte[] id = docID.getBytes(StandardCharsets.UTF_8);
+                if (id.length > 0xFFFF) throw new IllegalArgumentException("post id too long");
+                idPositions[t++] = out.size();
+                out.writeShort(id.length);
+                out.write(id);
+            }
+            t = 0;
+            for (byte[] thread : _threads.values())
+            {
+                threadPositions[t++] = out.size();
+                out.write(thread);
+            }
+            indexPosition = out.size();
+            t = 0;
+            for (byte[] thread : _threads.values())
+            {
+                out.writeInt(idPositions[t]);
+                out.writeInt(threadPositions[t++]);
+                out.writeInt(thread.length);
+            }
+        }
+        catch (IOException ex)
+        {
+            // can not happen when writing to memory
+            throw new IllegalStateException(ex);
+        }
+
+        ByteBuffer pack = ByteBuffer.wrap(bytes.toByteArray());
+        pack.putInt(0, MAGIC);
+        pack.putShort(4, (short)VERSION);
+        pack.putLong(POS_BUILT, _now);
+        pack.putLong(POS_WATERMARK, watermark);
+        pack.putInt(POS_CELL_COUNT, cells.length);
+        pack.putInt(POS_THREAD_COUNT, _threads.size());
+        pack.putInt(POS_SNAPSHOT, snapshotPosition);
+        pack.putInt(POS_SNAPSHOT_LENGTH, snapshot.length);
+        pack.putInt(POS_INDEX, indexPosition);
+        return pack.array();
+    }
+
+    // compresses a thread: its length, then its deflated bytes
+    private static byte[] DEFLATE(byte[] _raw)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(_raw.length / 2 + 16);
+        out.write(_raw.length >>> 24);
+        out.write(_raw.length >>> 16);
+        out.write(_raw.length >>> 8);
+        out.write(_raw.length);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try
+        {
+            deflater.setInput(_raw);
+            deflater.finish();
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        finally { deflater.end(); }
+        return out.toByteArray();
+    }
+
+    // decompresses a thread written by 'DEFLATE(...)'
+    private static byte[] INFLATE(byte[] _blob) throws IOException
+    {
+        int length = ByteBuffer.wrap(_blob).getInt(0);
+        if (length < 0 || length > MAX_THREAD_BYTES) throw new IOException("corrupt region pack thread");
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(_blob, 4, _blob.length - 4);
+            int n = 0;
+            while (n < length)
+            {
+                int read = inflater.inflate(raw, n, length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("truncated region pack thread");
+                }
+                n += read;
+            }
+        }
+        catch (DataFormatException ex) { throw new IOException("corrupt region pack thread", ex); }
+        finally { inflater.end(); }
+        return raw;
+    }
+}
@@ -0,0 +1,535 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/** Decides which map regions ('GeoCell's) to fetch as the camera moves
+ * > Camera moves are debounced: regions are planned once the camera pauses for 'DEBOUNCE_MS', and at least every
+ *   'MAX_WAIT_MS' during a long pan
+ * > Visible regions are fetched first, nearest the centre first, never more than 'maxInFlight' at a time
+ * > The pan's velocity is tracked, and the regions the camera will reach within 'LOOKAHEAD_MS' are prefetched, as long as
+ *   the bytes prefetched but not yet seen stay within 'prefetchBudgetBytes'
+ * > Fetches for regions the camera has left (further than one cell from the viewport, and not predicted) are cancelled
+ * > Loaded regions are kept in an LRU limited to 'cacheBudgetBytes', visible regions are never evicted
+ * > If the viewport needs more than 'maxCells' regions (zoomed far out), nothing is planned and 'plan(...)' returns false
+ *
+ * Not thread safe, every call must come from the same thread (the main thread on Android). Time is always passed in, so
+ * camera paths can be simulated off-device.
+ */
+public class RegionScheduler
+{
+    /** Fetches regions on the scheduler's behalf
+     * > Must eventually call 'onLoaded(...)' or 'onFailed(...)' for every request (unless it was cancelled)
+     */
+    public interface Fetcher
+    {
+        /** Starts fetching a region (check 'isCancelled()' before doing expensive work with the result) */
+        void fetch(Request _request);
+
+        /** Called when a loaded region is evicted, anything kept for it can be dropped */
+        void evict(long _cell);
+    }
+
+    /** A single fetch of a region */
+    public static class Request
+    {
+        private final long cell, startTime;
+        private final boolean prefetch;
+        private boolean cancelled;
+
+        Request(long _cell, long _startTime, boolean _prefetch)
+        {
+            this.cell = _cell;
+            this.startTime = _startTime;
+            this.prefetch = _prefetch;
+        }
+
+        public long getCell() {return cell;}
+        public long getStartTime() {return startTime;}
+        public boolean isPrefetch() {return prefetch;}
+        public boolean isCancelled() {return cancelled;}
+    }
+
+    /** Counters describing how well the scheduler is doing */
+    public static class Stats
+    {
+        long fetches, prefetches, cancelled, failed, prefetchHits, prefetchWasted, bytesLoaded, evictions;
+        long visibleCount, visibleTotalMs, visibleMaxMs;
+
+        public long getFetches() {return fetches;}
+        public long getPrefetches() {return prefetches;}
+        public long getCancelled() {return cancelled;}
+        public long getFailed() {return failed;}
+        public long getPrefetchHits() {return prefetchHits;}
+        public long getPrefetchWasted() {return prefetchWasted;}
+        public long getBytesLoaded() {return bytesLoaded;}
+        public long getEvictions() {return evictions;}
+
+        /** Fetches which did not end up showing anything: cancelled fetches plus prefetched regions that were never seen */
+        public long getWasted() {return cancelled + prefetchWasted;}
+
+        /** Number of regions which became visible, and the mean/max time (ms) until their posts appeared */
+        public long getVisibleCount() {return visibleCount;}
+        public double getVisibleMeanMs() {return visibleCount == 0 ? 0 : (double)visibleTotalMs / visibleCount;}
+        public long getVisibleMaxMs() {return visibleMaxMs;}
+
+        @Override
+        public String toString()
+        {
+            return "fetches=" + fetches + " prefetches=" + prefetches + " cancelled=" + cancelled + " failed=" + failed
+                    + " prefetch_hits=" + prefetchHits + " prefetch_wasted=" + prefetchWasted + " wasted=" + getWasted()
+                    + " bytes=" + bytesLoaded + " evictions=" + evictions + " visible=" + visibleCount
+                    + " visible_mean_ms=" + String.format(Locale.US, "%.1f", getVisibleMeanMs()) + " visible_max_ms=" + visibleMaxMs;
+        }
+    }
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Quiet time after the last camera move before regions are planned, and the longest a moving camera waits for a plan
+    public static final long DEBOUNCE_MS = 150, MAX_WAIT_MS = 400;
+
+    // How far ahead (in time) the camera's path is predicted for prefetching
+    public static final long LOOKAHEAD_MS = 1000;
+
+    // Default limits
+    public static final int MAX_IN_FLIGHT = 4, MAX_CELLS = 64;
+    public static final long PREFETCH_BUDGET_BYTES = 256 * 1024, CACHE_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Assumed size of a region which has not been loaded yet (replaced by the running mean of loaded regions)
+    private static final long DEFAULT_REGION_BYTES = 8 * 1024;
+
+    // Camera moves further apart than this are not used for velocity (e.g. a jump to a search result)
+    private static final long VELOCITY_MAX_GAP_MS = 500;
+
+    private final Fetcher fetcher;
+    private final int level, maxCells;
+    private final long cacheBudgetBytes;
+
+    // Adjusted to the network (see 'setLimits(...)')
+    private int maxInFlight;
+    private long prefetchBudgetBytes;
+    private final Stats stats = new Stats();
+
+    // Latest viewport, and the cells covering it (nearest the centre first), null if zoomed out too far
+    private GeoBounds bounds;
+    private long[] visible;
+    private final Set<Long> visibleSet = new HashSet<>();
+
+    // When each visible cell (not yet loaded) first became visible
+    private final Map<Long, Long> visibleSince = new HashMap<>();
+
+    // Camera velocity in degrees per millisecond, and the last centre it was measured from
+    private double velocityLat, velocityLng, lastLat, lastLng;
+    private long lastMoveTime = -1;
+
+    // Debounce deadlines (-1 when nothing is pending)
+    private long dueTime = -1, maxWaitTime = -1;
+
+    // Requests which have not finished
+    private final Map<Long, Request> inFlight = new LinkedHashMap<>();
+
+    // Loaded cells and their size in bytes, least recently used first
+    private final LinkedHashMap<Long, Long> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long loadedBytes;
+
+    // Prefetched cells which have not been seen yet, and their total size
+    private final Map<Long, Long> speculative = new HashMap<>();
+    private long speculativeBytes;
+
+    /** Creates a scheduler with the default limits */
+    public RegionScheduler(Fetcher _fetcher, int _level)
+    {
+        this(_fetcher, _level, MAX_IN_FLIGHT, MAX_CELLS, PREFETCH_BUDGET_BYTES, CACHE_BUDGET_BYTES);
+    }
+
+    /** Creates a scheduler
+     *
+     * @param _fetcher - Fetches regions
+     * @param _level - 'GeoCell' level of the regions
+     * @param _maxInFlight - Largest number of fetches running at once
+     * @param _maxCells - Largest number of regions a viewport may need before the scheduler gives up on it
+     * @param _prefetchBudgetBytes - Largest number of prefetched-but-unseen bytes (0 turns prefetching off)
+     * @param _cacheBudgetBytes - Largest number of bytes of loaded regions kept
+     */
+    public RegionScheduler(Fetcher _fetcher, int _level, int _maxInFlight, int _maxCells, long _prefetchBudgetBytes, long _cacheBudgetBytes)
+    {
+        this.fetcher = _fetcher;
+        this.level = _level;
+        this.maxInFlight = _maxInFlight;
+        this.maxCells = _maxCells;
+        this.prefetchBudgetBytes = _prefetchBudgetBytes;
+        this.cacheBudgetBytes = _cacheBudgetBytes;
+    }
+
+    /** Changes how many fetches may run at once and how much may be prefetched (e.g. when the network gets slower, see 'FetchPolicy')
+     * > Fetches already running are not cancelled, the new limits apply to the next plan
+     *
+     * @param _maxInFlight - Largest number of fetches running at once
+     * @param _prefetchBudgetBytes - Largest number of prefetched-but-unseen bytes (0 turns prefetching off)
+     */
+    public void setLimits(int _maxInFlight, long _prefetchBudgetBytes)
+    {
+        this.maxInFlight = _maxInFlight;
+        this.prefetchBudgetBytes = _prefetchBudgetBytes;
+    }
+
+    /** Called whenever the camera moves
+     * > Updates the camera's velocity and the set of visible cells
+     * > Schedules a plan for when the camera pauses (see 'tick(...)')
+     *
+     * @param _bounds - The visible region of the map
+     * @param _now - Current time in milliseconds
+     */
+    public void onCameraMove(GeoBounds _bounds, long _now)
+    {
+        double lat = (_bounds.getSouth() + _bounds.getNorth()) / 2, lng = centerLng(_bounds);
+        if (lastMoveTime >= 0 && _now > lastMoveTime && _now - lastMoveTime <= VELOCITY_MAX_GAP_MS)
+        {
+            // smooth the velocity, single move events are noisy
+            double dt = _now - lastMoveTime;
+            velocityLat = 0.5 * velocityLat + 0.5 * (lat - lastLat) / dt;
+            velocityLng = 0.5 * velocityLng + 0.5 * wrapLng(lng - lastLng) / dt;
+        }
+        else if (lastMoveTime < 0 || _now - lastMoveTime > VELOCITY_MAX_GAP_MS)
+        {
+            velocityLat = 0;
+            velocityLng = 0;
+        }
+        lastLat = lat;
+        lastLng = lng;
+        lastMoveTime = _now;
+
+        setViewport(_bounds, _now);
+        dueTime = _now + DEBOUNCE_MS;
+        if (maxWaitTime < 0) maxWaitTime = _now + MAX_WAIT_MS;
+    }
+
+    /** Called when the camera stops moving, plans straight away
+     *
+     * @param _bounds - The visible region of the map
+     * @param _now - Current time in milliseconds
+     * @return False if the viewport needs too many regions (see 'plan(...)')
+     */
+    public boolean onCameraIdle(GeoBounds _bounds, long _now)
+    {
+        velocityLat = 0;
+        velocityLng = 0;
+        lastMoveTime = -1;
+        setViewport(_bounds, _now);
+        return plan(_now);
+    }
+
+    /** Runs a pending plan if its debounce deadline has passed
+     *
+     * @param _now - Current time in milliseconds
+     * @return False if a plan ran and the viewport needs too many regions
+     */
+    public boolean tick(long _now)
+    {
+        if (dueTime < 0 || (_now < dueTime && _now < maxWaitTime)) return true;
+        return plan(_now);
+    }
+
+    /** Returns the time the next 'tick(...)' is needed at, or -1 if no plan is pending */
+    public long nextDeadline()
+    {
+        if (dueTime < 0) return -1;
+        return Math.min(dueTime, maxWaitTime);
+    }
+
+    /** Plans fetches for the current viewport
+     * > Cancels fetches for cells the camera has left
+     * > Starts fetches for visible cells, then prefetches for the predicted path, within the limits
+     *
+     * @param _now - Current time in milliseconds
+     * @return False if the viewport needs more than 'maxCells' regions (nothing is fetched, the caller should fall back)
+     */
+    public boolean plan(long _now)
+    {
+        dueTime = -1;
+        maxWaitTime = -1;
+        if (bounds == null) return true;
+        if (visible == null)
+        {
+            cancelAllExcept(new HashSet<Long>());
+            return false;
+        }
+
+        // cells along the predicted path, and the cells right around the viewport (kept if already being fetched)
+        List<Long> predicted = predictedCells();
+        Set<Long> keep = new HashSet<>(visibleSet);
+        keep.addAll(predicted);
+        long[] ring = GeoCell.COVERING(grow(bounds, GeoCell.SIZE_DEGREES(level)), level, maxCells * 4);
+        if (ring != null) for (long cell : ring) keep.add(cell);
+        cancelAllExcept(keep);
+
+        // prefetched cells the camera is no longer heading towards are written off
+        Iterator<Map.Entry<Long, Long>> it = speculative.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Long, Long> entry = it.next();
+            if (predicted.contains(entry.getKey())) continue;
+            it.remove();
+            speculativeBytes -= entry.getValue();
+            stats.prefetchWasted++;
+        }
+
+        pump(predicted, _now);
+        return true;
+    }
+
+    /** Called by the fetcher when a region has loaded
+     *
+     * @param _request - The finished request
+     * @param _bytes - Size of the region's data
+     * @param _now - Current time in milliseconds
+     * @return False if the request had been cancelled (its data should be dropped)
+     */
+    public boolean onLoaded(Request _request, long _bytes, long _now)
+    {
+        if (_request.cancelled || inFlight.get(_request.cell) != _request) return false;
+        inFlight.remove(_request.cell);
+        long cell = _request.cell;
+        loaded.put(cell, _bytes);
+        loadedBytes += _bytes;
+        stats.bytesLoaded += _bytes;
+
+        Long since = visibleSince.remove(cell);
+        if (since != null) markSeen(cell, since, _now);
+        else if (_request.prefetch)
+        {
+            speculative.put(cell, _bytes);
+            speculativeBytes += _bytes;
+        }
+
+        evictOverBudget();
+        if (visible != null) pump(predictedCells(), _now);
+        return true;
+    }
+
+    /** Called by the fetcher when a region could not be loaded (it is retried on the next plan) */
+    public void onFailed(Request _request, long _now)
+    {
+        if (_request.cancelled || inFlight.get(_request.cell) != _request) return;
+        inFlight.remove(_request.cell);
+        stats.failed++;
+    }
+
+    /** Forgets every loaded region and cancels every fetch, so the next plan fetches everything again */
+    public void reset()
+    {
+        cancelAllExcept(new HashSet<Long>());
+        for (long cell : new ArrayList<>(loaded.keySet())) fetcher.evict(cell);
+        loaded.clear();
+        loadedBytes = 0;
+        speculative.clear();
+        speculativeBytes = 0;
+        visibleSince.clear();
+    }
+
+    /** Returns true if a region is loaded */
+    public boolean isLoaded(long _cell) { return loaded.containsKey(_cell); }
+
+    /** Returns the number of fetches running */
+    public int inFlightCount() { return inFlight.size(); }
+
+    /** Returns the total size of loaded regions */
+    public long loadedBytes() { return loadedBytes; }
+
+    /** Returns the visible cells (nearest the centre first), or null if the viewport needs too many */
+    public long[] visibleCells() { return visible; }
+
+    /** Returns this scheduler's counters */
+    public Stats getStats() { return stats; }
+
+    // updates the visible cells, noting when new ones appeared and counting prefetch hits
+    private void setViewport(GeoBounds _bounds, long _now)
+    {
+        bounds = _bounds;
+        visible = GeoCell.COVERING(_bounds, level, maxCells);
+        Set<Long> previous = new HashSet<>(visibleSet);
+        visibleSet.clear();
+        if (visible == null) return;
+        sortByDistance(visible, (_bounds.getSouth() + _bounds.getNorth()) / 2, centerLng(_bounds));
+        for (long cell : visible)
+        {
+            visibleSet.add(cell);
+            if (previous.contains(cell)) continue;
+            if (loaded.containsKey(cell)) markSeen(cell, _now, _now);
+            else if (!visibleSince.containsKey(cell)) visibleSince.put(cell, _now);
+        }
+
+        // cells which left the viewport before loading no longer count towards latency
+        Iterator<Long> it = visibleSince.keySet().iterator();
+        while (it.hasNext()) if (!visibleSet.contains(it.next())) it.remove();
+    }
+
+    // records that a loaded cell is on screen, and how long it took since it became visible
+    private void markSeen(long _cell, long _since, long _now)
+    {
+        long latency = _now - _since;
+        stats.visibleCount++;
+        stats.visibleTotalMs += latency;
+        stats.visibleMaxMs = Math.max(stats.visibleMaxMs, latency);
+        Long speculativeSize = speculative.remove(_cell);
+        if (speculativeSize != null)
+        {
+            speculativeBytes -= speculativeSize;
+            stats.prefetchHits++;
+        }
+        loaded.get(_cell); // touch for LRU order
+    }
+
+    // starts fetches for visible cells, then prefetches for '_predicted' cells, within the limits
+    private void pump(List<Long> _predicted, long _now)
+    {
+        for (long cell : visible)
+        {
+            if (inFlight.size() >= maxInFlight) return;
+            if (!loaded.containsKey(cell) && !inFlight.containsKey(cell)) start(cell, _now, false);
+        }
+        for (long cell : _predicted)
+        {
+            if (inFlight.size() >= maxInFlight) return;
+            if (loaded.containsKey(cell) || inFlight.containsKey(cell)) continue;
+            if (speculativeBytes + pendingPrefetchBytes() + estimatedRegionBytes() > prefetchBudgetBytes) return;
+            start(cell, _now, true);
+        }
+    }
+
+    // cells the camera is predicted to reach within the look-ahead, not already visible, in the order it will reach them
+    private List<Long> predictedCells()
+    {
+        List<Long> cells = new ArrayList<>();
+        if (velocityLat == 0 && velocityLng == 0) return cells;
+
+        // never look further ahead than one viewport, a fling can report huge speeds
+        double height = bounds.getNorth() - bounds.getSouth(), width = wrapLng(bounds.getEast() - bounds.getWest());
+        if (width <= 0) width += 360;
+        double dLat = clamp(velocityLat * LOOKAHEAD_MS, height), dLng = clamp(velocityLng * LOOKAHEAD_MS, width);
+
+        int steps = 4;
+        for (int s = 1; s <= steps; s++)
+        {
+            double f = (double)s / steps;
+            GeoBounds ahead = new GeoBounds(bounds.getSouth() + dLat * f, wrapLng(bounds.getWest() + dLng * f),
+                    bounds.getNorth() + dLat * f, wrapLng(bounds.getEast() + dLng * f));
+            long[] covering = GeoCell.COVERING(ahead, level, maxCells);
+            if (covering == null) break;
+            sortByDistance(covering, (ahead.getSouth() + ahead.getNorth()) / 2, centerLng(ahead));
+            for (long cell : covering) if (!visibleSet.contains(cell) && !cells.contains(cell)) cells.add(cell);
+        }
+        return cells;
+    }
+
+    private void start(long _cell, long _now, boolean _prefetch)
+    {
+        Request request = new Request(_cell, _now, _prefetch);
+        inFlight.put(_cell, request);
+        stats.fetches++;
+        if (_prefetch) stats.prefetches++;
+        fetcher.fetch(request);
+    }
+
+    private void cancelAllExcept(Set<Long> _keep)
+    {
+        Iterator<Request> it = inFlight.values().iterator();
+        while (it.hasNext())
+        {
+            Request request = it.next();
+            if (_keep.contains(request.cell)) continue;
+            request.cancelled = true;
+            it.remove();
+            stats.cancelled++;
+        }
+    }
+
+    // evicts least recently used regions (never visible ones) until the cache fits its budget
+    private void evictOverBudget()
+    {
+        Iterator<Map.Entry<Long, Long>> it = loaded.entrySet().iterator();
+        while (loadedBytes > cacheBudgetBytes && it.hasNext())
+        {
+            Map.Entry<Long, Long> entry = it.next();
+            long cell = entry.getKey();
+            if (visibleSet.contains(cell)) continue;
+            it.remove();
+            loadedBytes -= entry.getValue();
+            stats.evictions++;
+            if (speculative.remove(cell) != null)
+            {
+                speculativeBytes -= entry.getValue();
+                stats.prefetchWasted++;
+            }
+            fetcher.evict(cell);
+        }
+    }
+
+    private long pendingPrefetchBytes()
+    {
+        long pending = 0;
+        for (Request request : inFlight.values()) if (request.prefetch) pending += estimatedRegionBytes();
+        return pending;
+    }
+
+    private long estimatedRegionBytes() { return loaded.isEmpty() ? DEFAULT_REGION_BYTES : loadedBytes / loaded.size(); }
+
+    // sorts cells by (squared, flat) distance from a point, nearest first
+    private static void sortByDistance(long[] _cells, double _lat, double _lng)
+    {
+        double[] keys = new double[_cells.length];
+        for (int i = 0; i < _cells.length; i++)
+        {
+            double dLat = GeoCell.CENTER_LAT(_cells[i]) - _lat, dLng = wrapLng(GeoCell.CENTER_LNG(_cells[i]) - _lng);
+            keys[i] = dLat * dLat + dLng * dLng;
+        }
+
+        // insertion sort, there are at most a few dozen cells
+        for (int i = 1; i < _cells.length; i++)
+        {
+            long cell = _cells[i];
+            double key = keys[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] > key)
+            {
+                _cells[j + 1] = _cells[j];
+                keys[j + 1] = keys[j];
+                j--;
+            }
+            _cells[j + 1] = cell;
+            keys[j + 1] = key;
+        }
+    }
+
+    private static GeoBounds grow(GeoBounds _bounds, double _by)
+    {
+        return new GeoBounds(Math.max(-90, _bounds.getSouth() - _by), wrapLng(_bounds.getWest() - _by),
+                Math.min(90, _bounds.getNorth() + _by), wrapLng(_bounds.getEast() + _by));
+    }
+
+    private static double centerLng(GeoBounds _bounds)
+    {
+        double width = _bounds.getEast() - _bounds.getWest();
+        if (width < 0) width += 360;
+        return wrapLng(_bounds.getWest() + width / 2);
+    }
+
+    // wraps a longitude (or longitude difference) into [-180, 180)
+    private static double wrapLng(double _lng)
+    {
+        double wrapped = (_lng + 180.0) % 360.0;
+        if (wrapped < 0) wrapped += 360.0;
+        return wrapped - 180.0;
+    }
+
+    private static double clamp(double _value, double _limit) { return Math.max(-_limit, Math.min(_limit, _value)); }
+}
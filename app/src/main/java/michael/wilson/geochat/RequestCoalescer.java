@@ -0,0 +1,57 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Merges concurrent requests for the same key into one fetch
+ * > The first caller for a key is told to start the fetch, later callers just wait for its result
+ * > When the fetch completes, every waiting callback receives the same value
+ */
+public class RequestCoalescer<K, V>
+{
+    /** Receives the result of a (possibly shared) request */
+    public interface Callback<V>
+    {
+        void onResult(V _value);
+    }
+
+    private final Map<K, List<Callback<V>>> pending = new HashMap<>();
+
+    /** Registers interest in a key
+     *
+     * @param _key - What is being fetched
+     * @param _callback - Called with the result once the fetch completes
+     * @return True if no fetch for this key is in flight yet, so the caller must start one
+     */
+    public synchronized boolean join(K _key, Callback<V> _callback)
+    {
+        List<Callback<V>> waiting = pending.get(_key);
+        if (waiting != null)
+        {
+            waiting.add(_callback);
+            return false;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(_callback);
+        pending.put(_key, waiting);
+        return true;
+    }
+
+    /** Completes the fetch for a key and hands the result to everyone waiting on it
+     *
+     * @param _key - What was fetched
+     * @param _value - The result (null if the fetch failed)
+     */
+    public void complete(K _key, V _value)
+    {
+        List<Callback<V>> waiting;
+        synchronized (this) { waiting = pending.remove(_key); }
+        if (waiting == null) return;
+        for (Callback<V> callback : waiting) callback.onResult(_value);
+    }
+
+    /** Returns the number of keys currently being fetched */
+    public synchronized int inFlight() { return pending.size(); }
+}
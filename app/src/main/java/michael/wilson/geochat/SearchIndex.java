@@ -0,0 +1,321 @@
+package michael.wilson.geochat;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** An in-memory inverted index over post titles and bodies
+ * > Posts are added incrementally (e.g. as 'MapViewModel' decodes them), re-adding a post replaces its old entry (re-adding
+ *   it unchanged, e.g. when its region is loaded again, does nothing)
+ * > Replaced and removed posts are only flagged, the index compacts itself once they outnumber the live posts (see 'compact()')
+ * > Text is lower-cased, stripped of accents, and split on anything that is not a letter or digit
+ * > Every query word must match, the last word also matches as a prefix (so results show up while typing)
+ * > Results can be limited to a 'GeoBounds', and are ranked by title matches, then newest first
+ *
+ * Storage is kept compact: each post gets an int ordinal, its id, title, and location live in parallel arrays, and each
+ * term's postings are a sorted int array of (ordinal << 1 | inTitle).
+ */
+public class SearchIndex
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Growable sorted list of postings for one term
+    private static class Postings
+    {
+        int[] items = new int[2];
+        int size;
+
+        void add(int _posting)
+        {
+            // the same ordinal may be added twice (body then title), keep the title flag
+            if (size > 0 && (items[size - 1] >>> 1) == (_posting >>> 1))
+            {
+                items[size - 1] |= _posting;
+                return;
+            }
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = _posting;
+        }
+    }
+
+    // Sorted so prefix lookups are a range scan
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+
+    // Per-ordinal post data (the body is only kept as a hash, to tell whether a re-added post changed)
+    private String[] docIDs = new String[16], titles = new String[16];
+    private double[] lats = new double[16], lngs = new double[16];
+    private int[] bodyHashes = new int[16];
+    private int count;
+
+    // Ordinals which were replaced or removed, and how many
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+
+    // Latest ordinal of each post id
+    private final Map<String, Integer> ordinals = new HashMap<>();
+
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Maximum number of characters of a post that get indexed (keeps one huge body from bloating the index)
+    public static final int MAX_INDEXED_CHARS = 2000;
+
+    // Fewest replaced or removed entries worth compacting for
+    public static final int MIN_COMPACT = 64;
+
+    /** Adds (or replaces) a post in the index
+     *
+     * @param _docID - The post's firebase document id
+     * @param _title - The post's title
+     * @param _body - The post's body
+     * @param _lat - The post's latitude
+     * @param _lng - The post's longitude
+     */
+    public synchronized void add(String _docID, String _title, String _body, double _lat, double _lng)
+    {
+        int bodyHash = _body == null ? 0 : _body.hashCode();
+        Integer old = ordinals.get(_docID);
+        if (old != null && (_title == null ? titles[old] == null : _title.equals(titles[old])) && bodyHashes[old] == bodyHash
+                && lats[old] == _lat && lngs[old] == _lng) return;
+        remove(_docID);
+        if (deletedCount >= MIN_COMPACT && deletedCount > ordinals.size()) compact();
+
+        int ordinal = count++;
+        if (ordinal == docIDs.length)
+        {
+            int capacity = docIDs.length * 2;
+            docIDs = Arrays.copyOf(docIDs, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lngs = Arrays.copyOf(lngs, capacity);
+            bodyHashes = Arrays.copyOf(bodyHashes, capacity);
+        }
+        docIDs[ordinal] = _docID;
+        titles[ordinal] = _title;
+        lats[ordinal] = _lat;
+        lngs[ordinal] = _lng;
+        bodyHashes[ordinal] = bodyHash;
+        ordinals.put(_docID, ordinal);
+
+        for (String token : TOKENIZE(_body)) postingsFor(token).add(ordinal << 1);
+        for (String token : TOKENIZE(_title)) postingsFor(token).add(ordinal << 1 | 1);
+    }
+
+    /** Removes a post from the index (its postings are skipped from now on)
+     *
+     * @param _docID - The post's firebase document id
+     */
+    public synchronized void remove(String _docID)
+    {
+        Integer old = ordinals.remove(_docID);
+        if (old == null) return;
+        deleted.set(old);
+        deletedCount++;
+    }
+
+    /** Rebuilds the index without the entries of replaced or removed posts
+     * > Done by 'add(...)' once more than 'MIN_COMPACT' entries are flagged and they outnumber the live posts
+     */
+    public synchronized void compact()
+    {
+        if (deleted.isEmpty()) return;
+        int[] remap = new int[count];
+        int live = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (deleted.get(i)) remap[i] = -1;
+            else
+            {
+                remap[i] = live;
+                docIDs[live] = docIDs[i];
+                titles[live] = titles[i];
+                lats[live] = lats[i];
+                lngs[live] = lngs[i];
+                bodyHashes[live] = bodyHashes[i];
+                ordinals.put(docIDs[live], live);
+                live++;
+            }
+        }
+        for (int i = live; i < count; i++)
+        {
+            docIDs[i] = null;
+            titles[i] = null;
+        }
+        count = live;
+        deleted.clear();
+        deletedCount = 0;
+
+        // ordinals only ever move down, in order, so postings stay sorted
+        Iterator<Postings> it = terms.values().iterator();
+        while (it.hasNext())
+        {
+            Postings p = it.next();
+            int out = 0;
+            for (int i = 0; i < p.size; i++)
+            {
+                int ordinal = remap[p.items[i] >>> 1];
+                if (ordinal >= 0) p.items[out++] = ordinal << 1 | (p.items[i] & 1);
+            }
+            p.size = out;
+            if (out == 0) it.remove();
+        }
+    }
+
+    /** Returns the number of posts in the index */
+    public synchronized int size() { return ordinals.size(); }
+
+    /** Returns the number of replaced or removed entries still in the index (until it is compacted) */
+    public synchronized int deletedCount() { return deletedCount; }
+
+    /** Returns the number of distinct terms in the index */
+    public synchronized int termCount() { return terms.size(); }
+
+    /** Searches the index
+     *
+     * @param _query - Words to search for (the last word is also matched as a prefix)
+     * @param _bounds - Only return posts inside these bounds (null for anywhere)
+     * @param _limit - Maximum number of results
+     * @return Matching posts (id, title, and location), best match first
+     */
+    public synchronized List<PostSummary> search(String _query, GeoBounds _bounds, int _limit)
+    {
+        List<PostSummary> results = new ArrayList<>();
+        List<String> words = TOKENIZE(_query);
+        if (words.isEmpty() || _limit <= 0) return results;
+
+        // intersect the postings of every word, counting title hits as we go
+        int[] matches = null, titleHits = null;
+        int matchCount = 0;
+        for (int w = 0; w < words.size(); w++)
+        {
+            boolean prefix = w == words.size() - 1;
+            int[] postings = lookup(words.get(w), prefix);
+            if (matches == null)
+            {
+                matches = new int[postings.length];
+                titleHits = new int[postings.length];
+                for (int i = 0; i < postings.length; i++)
+                {
+                    matches[i] = postings[i] >>> 1;
+                    titleHits[i] = postings[i] & 1;
+                }
+                matchCount = postings.length;
+            }
+            else
+            {
+                int i = 0, j = 0, out = 0;
+                while (i < matchCount && j < postings.length)
+                {
+                    int a = matches[i], b = postings[j] >>> 1;
+                    if (a < b) i++;
+                    else if (a > b) j++;
+                    else
+                    {
+                        matches[out] = a;
+                        titleHits[out++] = titleHits[i] + (postings[j] & 1);
+                        i++;
+                        j++;
+                    }
+                }
+                matchCount = out;
+            }
+            if (matchCount == 0) return results;
+        }
+
+        // filter, then rank by title hits (newest first on ties) with a simple bucket pass
+        int maxHits = words.size();
+        for (int hits = maxHits; hits >= 0 && results.size() < _limit; hits--)
+        {
+            for (int i = matchCount - 1; i >= 0 && results.size() < _limit; i--)
+            {
+                if (titleHits[i] != hits) continue;
+                int ordinal = matches[i];
+                if (deleted.get(ordinal)) continue;
+                if (_bounds != null && !_bounds.contains(lats[ordinal], lngs[ordinal])) continue;
+                results.add(new PostSummary(docIDs[ordinal], titles[ordinal], null, lats[ordinal], lngs[ordinal], null));
+            }
+        }
+        return results;
+    }
+
+    /** Splits text into normalized search terms
+     *
+     * @param _text - Text to split (may be null)
+     * @return Lower-case, accent-free terms in order of appearance (duplicates removed)
+     */
+    public static List<String> TOKENIZE(String _text)
+    {
+        List<String> tokens = new ArrayList<>();
+        if (_text == null) return tokens;
+        if (_text.length() > MAX_INDEXED_CHARS) _text = _text.substring(0, MAX_INDEXED_CHARS);
+
+        String normalized = Normalizer.normalize(_text.toLowerCase(), Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++)
+        {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) sb.append(c);
+            else if (sb.length() > 0)
+            {
+                String token = sb.toString();
+                if (!tokens.contains(token)) tokens.add(token);
+                sb.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private Postings postingsFor(String _term)
+    {
+        Postings postings = terms.get(_term);
+        if (postings == null)
+        {
+            postings = new Postings();
+            terms.put(_term, postings);
+        }
+        return postings;
+    }
+
+    // returns the sorted postings of a term, or the merged postings of every term starting with it
+    private int[] lookup(String _term, boolean _prefix)
+    {
+        if (!_prefix)
+        {
+            Postings postings = terms.get(_term);
+            return postings == null ? new int[0] : Arrays.copyOf(postings.items, postings.size);
+        }
+
+        SortedMap<String, Postings> range = terms.subMap(_term, _term + Character.MAX_VALUE);
+        if (range.size() == 1)
+        {
+            Postings only = range.values().iterator().next();
+            return Arrays.copyOf(only.items, only.size);
+        }
+        int total = 0;
+        for (Postings p : range.values()) total += p.size;
+        int[] merged = new int[total];
+        int n = 0;
+        for (Postings p : range.values())
+        {
+            System.arraycopy(p.items, 0, merged, n, p.size);
+            n += p.size;
+        }
+        Arrays.sort(merged);
+
+        // collapse entries for the same ordinal, keeping the title flag
+        int out = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (out > 0 && (merged[out - 1] >>> 1) == (merged[i] >>> 1)) merged[out - 1] |= merged[i];
+            else merged[out++] = merged[i];
+        }
+        return Arrays.copyOf(merged, out);
+    }
+}
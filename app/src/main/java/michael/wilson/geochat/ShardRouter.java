@@ -0,0 +1,135 @@
+package michael.wilson.geochat;
+
+import java.util.Arrays;
+
+/** Decides which collection (shard) each post lives in, so posts are spread over several collections instead of one
+ * > The globe is cut into coarse cells (see 'GeoCell', level 'SHARD_LEVEL'), each coarse cell belongs to one shard
+ * > Shard 'n' is the collection '<base>_<n>', e.g. 'mcl_3'
+ * > A post's document id starts with its shard ('3-XXXXXXXX'), so any post can be found from its id alone
+ * > Ids without a shard prefix belong to posts created before sharding, which stay in the base collection ('mcl')
+ *
+ * Plain java so it can be tested off-device, and shared with the load generator.
+ */
+public class ShardRouter
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Level of the coarse cells mapped to shards, cells are 22.5 degrees wide (128 cells in total)
+    public static final int SHARD_LEVEL = 4;
+
+    // Number of shards used by the app
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    // Largest number of coarse cells a query is fanned out to, beyond that every shard is queried
+    public static final int MAX_FAN_OUT_CELLS = 16;
+
+    // Separates the shard from the rest of a document id (firestore generated ids never contain it)
+    public static final char ID_SEPARATOR = '-';
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private final String base;
+    private final int shardCount;
+
+    /** Creates a router
+     *
+     * @param _base - Name of the base collection, e.g. 'mcl'
+     * @param _shardCount - Number of shards, at least 1
+     */
+    public ShardRouter(String _base, int _shardCount)
+    {
+        if (_shardCount < 1) throw new IllegalArgumentException("shard count must be at least 1");
+        this.base = _base;
+        this.shardCount = _shardCount;
+    }
+
+    public int getShardCount() { return shardCount; }
+
+    /** Returns the name of the collection posts were kept in before sharding */
+    public String legacyCollection() { return base; }
+
+    /** Returns the shard holding posts at a location */
+    public int shardOf(double _lat, double _lng) { return shardOfCell(GeoCell.ID(_lat, _lng, SHARD_LEVEL)); }
+
+    /** Returns the shard holding posts in a cell
+     *
+     * @param _cell - A cell at 'SHARD_LEVEL' or deeper (e.g. a region, see 'GeoCell.REGION_LEVEL')
+     */
+    public int shardOfCell(long _cell)
+    {
+        long coarse = GeoCell.PARENT(_cell, SHARD_LEVEL);
+
+        // neighbouring coarse cells are scattered over the shards, so a busy area does not pile onto one of them
+        long h = coarse * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return (int)Math.floorMod(h, (long)shardCount);
+    }
+
+    /** Returns the name of a shard's collection */
+    public String collection(int _shard) { return base + "_" + _shard; }
+
+    /** Returns the id for a new post in a shard
+     *
+     * @param _shard - The post's shard (see 'shardOf(...)')
+     * @param _unique - A unique id, e.g. one generated by firestore
+     */
+    public String newDocID(int _shard, String _unique) { return Integer.toString(_shard) + ID_SEPARATOR + _unique; }
+
+    /** Returns the shard a post id belongs to, or -1 for posts created before sharding */
+    public static int SHARD_OF_ID(String _docID)
+    {
+        int separator = _docID.indexOf(ID_SEPARATOR);
+        if (separator <= 0 || separator > 4) return -1;
+        int shard = 0;
+        for (int i = 0; i < separator; i++)
+        {
+            char c = _docID.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            shard = shard * 10 + (c - '0');
+        }
+        return shard;
+    }
+
+    /** Returns the name of the collection holding a post, given only its id */
+    public String collectionOf(String _docID)
+    {
+        int shard = SHARD_OF_ID(_docID);
+        return shard < 0 ? base : collection(shard);
+    }
+
+    /** Returns the shards which may hold posts inside the given bounds, in ascending order
+     *
+     * @param _bounds - Area to query, null for the whole globe
+     * @return Shard numbers (every shard if the area spans more than 'MAX_FAN_OUT_CELLS' coarse cells)
+     */
+    public int[] shardsCovering(GeoBounds _bounds)
+    {
+        long[] cells = _bounds == null ? null : GeoCell.COVERING(_bounds, SHARD_LEVEL, MAX_FAN_OUT_CELLS);
+        boolean[] hit = new boolean[shardCount];
+        if (cells == null) Arrays.fill(hit, true);
+        else for (long cell : cells) hit[shardOfCell(cell)] = true;
+
+        int n = 0;
+        for (boolean h : hit) if (h) n++;
+        int[] shards = new int[n];
+        n = 0;
+        for (int shard = 0; shard < shardCount; shard++) if (hit[shard]) shards[n++] = shard;
+        return shards;
+    }
+
+    /** Returns the collections to query for posts inside the given bounds
+     *
+     * @param _bounds - Area to query, null for the whole globe
+     * @param _legacy - If true, the collection of posts created before sharding is included (last)
+     */
+    public String[] collectionsCovering(GeoBounds _bounds, boolean _legacy)
+    {
+        int[] shards = shardsCovering(_bounds);
+        String[] collections = new String[shards.length + (_legacy ? 1 : 0)];
+        for (int i = 0; i < shards.length; i++) collections[i] = collection(shards[i]);
+        if (_legacy) collections[shards.length] = base;
+        return collections;
+    }
+}
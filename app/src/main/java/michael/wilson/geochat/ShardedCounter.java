@@ -0,0 +1,82 @@
+package michael.wilson.geochat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/** A counter spread over several shard documents so concurrent writers rarely touch the same document
+ * > Each increment goes to a random shard, so a busy thread's writes are spread over 'SHARDS' documents
+ * > The total is the sum of all shards, and the last activity time is the latest time of any shard
+ * > Where the shards live is up to the 'Store' (Firestore sub-collection in the app, in-memory in tests)
+ */
+public class ShardedCounter
+{
+    /** Storage for the counter's shards */
+    public interface Store
+    {
+        /** Adds '_amount' to a shard and raises the shard's last activity time to at least '_time'
+         * > Never lowers the time: a plain overwrite would let a writer with a late clock move it back (the app's store stamps
+         *   the server's time instead, which only moves forward)
+         */
+        void increment(String _counterID, int _shard, long _amount, long _time);
+    }
+
+    /** The combined value of all shards of a counter */
+    public static class Total
+    {
+        private long count, lastActivity;
+
+        public long getCount() {return count;}
+        public long getLastActivity() {return lastActivity;}
+
+        /** Adds one shard's values to this total */
+        public void addShard(long _count, long _lastActivity)
+        {
+            count += _count;
+            if (_lastActivity > lastActivity) lastActivity = _lastActivity;
+        }
+
+        /** Merges the totals stored earlier into this total, keeping the larger of each value
+         * > Totals only ever grow, so a smaller count or an earlier time was read before this one and must not replace it
+         *
+         * @param _count - Count stored earlier
+         * @param _lastActivity - Last activity time stored earlier
+         * @return True if this total is ahead of the stored one in either value (and so should be stored)
+         */
+        public boolean advance(long _count, long _lastActivity)
+        {
+            boolean ahead = count > _count || lastActivity > _lastActivity;
+            count = Math.max(count, _count);
+            lastActivity = Math.max(lastActivity, _lastActivity);
+            return ahead;
+        }
+    }
+
+    // Default number of shards per counter (Firestore sustains roughly one write per second per document)
+    public static final int SHARDS = 8;
+
+    private final Store store;
+    private final int shards;
+
+    /** Constructor
+     *
+     * @param _store - Where the shards are kept
+     * @param _shards - How many shards each counter is spread over
+     */
+    public ShardedCounter(Store _store, int _shards)
+    {
+        if (_shards < 1) throw new IllegalArgumentException("shards must be at least 1");
+        this.store = _store;
+        this.shards = _shards;
+    }
+
+    public int getShards() {return shards;}
+
+    /** Adds one to a counter, picking a random shard
+     *
+     * @param _counterID - Identifier of the counter (the post's document id)
+     * @param _time - Time of the activity in milliseconds
+     */
+    public void increment(String _counterID, long _time) { store.increment(_counterID, PICK_SHARD(shards), 1, _time); }
+
+    /** Returns a random shard index in [0, _shards) */
+    public static int PICK_SHARD(int _shards) { return ThreadLocalRandom.current().nextInt(_shards); }
+}
@@ -0,0 +1,240 @@
+package michael.wilson.geochat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Keeps recently opened discussions (a post and its comments) on disk, so reopening one renders without the network
+ * > Each thread is one entry of a 'DiskLruCache', threads not opened for a while are evicted once the cache is full
+ * > A thread's watermark is the server time of its newest cached comment, only comments from then on are fetched again
+ * > Comments kept in the post document itself (created before comments got their own collection) are not cached,
+ *   they come with the post document, which is fetched every time anyway
+ *
+ * Plain java (no android or firebase classes) so it can be tested off-device.
+ */
+public class ThreadCache
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Maximum total size of all cached threads
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Watermark of a thread with no cached comments (every comment is fetched)
+    public static final long NO_WATERMARK = 0;
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Bumped whenever the encoding changes, entries of another version are dropped
+    private static final int VERSION = 1;
+
+    // Rough per-field overhead of a firestore document on the wire (field name, type tag, lengths)
+    private static final int FIELD_OVERHEAD_BYTES = 16;
+
+    private final DiskLruCache disk;
+
+    /** Constructor
+     *
+     * @param _disk - Cache the threads are stored in (not shared with anything else)
+     */
+    public ThreadCache(DiskLruCache _disk)
+    {
+        this.disk = _disk;
+    }
+
+    /** Returns the cached thread of a post, or null if it is not cached (or can not be read) */
+    public FirestorePost get(String _docID)
+    {
+        byte[] data = disk.get(_docID);
+        if (data == null) return null;
+        try { return DECODE(data); }
+        catch (IOException ex)
+        {
+            disk.remove(_docID);
+            return null;
+        }
+    }
+
+    /** Stores a thread, replacing the previously cached one
+     *
+     * @param _docID - Unique firebase document identifier of the post
+     * @param _post - The post with every comment known so far
+     * @return The size of the stored entry, or -1 if it was not stored
+     */
+    public int put(String _docID, FirestorePost _post)
+    {
+        byte[] data = ENCODE(_post);
+        return disk.put(_docID, data) ? data.length : -1;
+    }
+
+    /** Forgets a thread (e.g. once its post is deleted) */
+    public void remove(String _docID) { disk.remove(_docID); }
+
+    /** Returns the watermark of a list of comments: the newest comment time, or 'NO_WATERMARK' if none has one */
+    public static long WATERMARK(List<Comment> _comments)
+    {
+        long watermark = NO_WATERMARK;
+        if (_comments == null) return watermark;
+        for (Comment comment : _comments)
+        {
+            if (comment.getCommentTime() != null) watermark = Math.max(watermark, comment.getCommentTime().getTime());
+        }
+        return watermark;
+    }
+
+    /** Merges the comments of a thread
+     * > Comments with an id (from the comments collection) are de-duplicated, a fetched copy replaces a cached one
+     * > They are listed newest first, followed by the comments kept in the post document (in their stored order)
+     *
+     * @param _cached - Comments shown so far (those without an id are ignored, they are given again in '_embedded')
+     * @param _fetched - Comments just fetched from the comments collection
+     * @param _embedded - Comments kept in the post document, may be null
+     */
+    public static ArrayList<Comment> MERGE(List<Comment> _cached, List<Comment> _fetched, List<Comment> _embedded)
+    {
+        ArrayList<Comment> merged = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Comment comment : _fetched) if (comment.getCommentID() != null && seen.add(comment.getCommentID())) merged.add(comment);
+        if (_cached != null)
+        {
+            for (Comment comment : _cached) if (comment.getCommentID() != null && seen.add(comment.getCommentID())) merged.add(comment);
+        }
+        Collections.sort(merged, new Comparator<Comment>()
+        {
+            @Override
+            public int compare(Comment _a, Comment _b) { return Long.compare(time(_b), time(_a)); }
+        });
+        if (_embedded != null)
+        {
+            for (Comment comment : _embedded) if (comment.getCommentID() == null) merged.add(comment);
+        }
+        return merged;
+    }
+
+    /** Estimates how many bytes firestore transfers for a post document (without its comments collection) */
+    public static long ESTIMATE_BYTES(FirestorePost _post)
+    {
+        long bytes = 12 * FIELD_OVERHEAD_BYTES + 4 * 8;
+        bytes += utf8(_post.getTitle()) + utf8(_post.getBody()) + utf8(_post.getDate()) + utf8(_post.getUserID())
+                + utf8(_post.getUserToken()) + utf8(_post.getImage()) + utf8(_post.getThumb());
+        if (_post.getComments() != null) for (Comment comment : _post.getComments()) bytes += ESTIMATE_BYTES(comment);
+        return bytes;
+    }
+
+    /** Estimates how many bytes firestore transfers for one comment */
+    public static long ESTIMATE_BYTES(Comment _comment)
+    {
+        return 4 * FIELD_OVERHEAD_BYTES + 8 + utf8(_comment.getCommentID()) + utf8(_comment.getCommentText())
+                + utf8(_comment.getCommentDate()) + utf8(_comment.getCommentUser());
+    }
+
+    /** Encodes a post and its comments (those without an id included, so the cached thread renders complete) */
+    public static byte[] ENCODE(FirestorePost _post)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeInt(VERSION);
+            writeString(out, _post.getTitle());
+            writeString(out, _post.getBody());
+            writeString(out, _post.getDate());
+            writeString(out, _post.getUserID());
+            writeString(out, _post.getUserToken());
+            writeString(out, _post.getImage());
+            writeString(out, _post.getThumb());
+            out.writeDouble(_post.getLat());
+            out.writeDouble(_post.getLng());
+            out.writeLong(_post.getCommentCount());
+            out.writeLong(_post.getLastActivity());
+            out.writeLong(_post.getCell());
+
+            List<Comment> comments = _post.getComments() == null ? Collections.<Comment>emptyList() : _post.getComments();
+            out.writeInt(comments.size());
+            for (Comment comment : comments)
+            {
+                writeString(out, comment.getCommentID());
+                writeString(out, comment.getCommentText());
+                writeString(out, comment.getCommentDate());
+                writeString(out, comment.getCommentUser());
+                out.writeLong(comment.getCommentTime() == null ? -1 : comment.getCommentTime().getTime());
+            }
+        }
+        catch (IOException ex)
+        {
+            // can not happen when writing to memory
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Decodes a post encoded by 'ENCODE(...)'
+     *
+     * @throws IOException - If the data is truncated or of another version
+     */
+    public static FirestorePost DECODE(byte[] _data) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(_data));
+        if (in.readInt() != VERSION) throw new IOException("unknown thread cache version");
+        String title = readString(in), body = readString(in), date = readString(in), userID = readString(in),
+                usertoken = readString(in), image = readString(in), thumb = readString(in);
+        double lat = in.readDouble(), lng = in.readDouble();
+        long commentCount = in.readLong(), lastActivity = in.readLong(), cell = in.readLong();
+
+        int count = in.readInt();
+        if (count < 0) throw new IOException("negative comment count");
+        ArrayList<Comment> comments = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++)
+        {
+            Comment comment = new Comment();
+            comment.setCommentID(readString(in));
+            comment.setCommentText(readString(in));
+            comment.setCommentDate(readString(in));
+            comment.setCommentUser(readString(in));
+            long time = in.readLong();
+            if (time >= 0) comment.setCommentTime(new Date(time));
+            comments.add(comment);
+        }
+        return new FirestorePost(title, body, date, userID, usertoken, image, thumb, lat, lng, commentCount, lastActivity, cell,
+                comments);
+    }
+
+    // comments without a time (only those kept in the post document) sort as the oldest
+    private static long time(Comment _comment)
+    {
+        return _comment.getCommentTime() == null ? Long.MIN_VALUE : _comment.getCommentTime().getTime();
+    }
+
+    private static int utf8(String _s) { return _s == null ? 0 : _s.getBytes(StandardCharsets.UTF_8).length; }
+
+    // length-prefixed utf-8 (writeUTF is limited to 64KB), -1 for null
+    private static void writeString(DataOutputStream _out, String _s) throws IOException
+    {
+        if (_s == null)
+        {
+            _out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = _s.getBytes(StandardCharsets.UTF_8);
+        _out.writeInt(bytes.length);
+        _out.write(bytes);
+    }
+
+    private static String readString(DataInputStream _in) throws IOException
+    {
+        int length = _in.readInt();
+        if (length < 0) return null;
+        if (length > _in.available()) throw new IOException("truncated string");
+        byte[] bytes = new byte[length];
+        _in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
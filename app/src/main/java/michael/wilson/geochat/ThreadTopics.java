@@ -0,0 +1,217 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Pushes new comments through one messaging topic per discussion, rather than one message per participant's token
+ * > Every post's thread has a topic ('TOPIC(...)'), its author and everyone who comments on it subscribe to it
+ * > A new comment is published once, to the topic ('PUBLISH(...)'), as a delta: the post's summary (so a notification opens the
+ *   discussion straight away), the comment itself, and the time of the comment before it
+ * > A device with the discussion open applies the delta straight to it ('APPLY(...)'), unless the delta does not follow the
+ *   newest comment it has (a message missed, or arriving out of order): it then fetches the comments from its watermark as usual
+ * > A device follows at most 'MAX_TOPICS' threads (FCM allows 2000 topics per app instance), the least recently active are
+ *   dropped first (see 'Follows')
+ *
+ * Plain java so it can be tested (and a broker simulated) off-device.
+ */
+public class ThreadTopics
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Threads a device follows at most
+    public static final int MAX_TOPICS = 500;
+
+    // Current version of the delta format
+    public static final int VERSION = 1;
+
+    /** Sends messages, to a token or to a topic ("/topics/" + name) */
+    public interface Broker
+    {
+        void send(String _to, Map<String, String> _payload);
+    }
+
+    /** A comment pushed to a thread's topic */
+    public static class Delta
+    {
+        private final String docID, commentID, text, date, user;
+        private final long time, previousTime;
+
+        Delta(String _docID, String _commentID, String _text, String _date, String _user, long _time, long _previousTime)
+        {
+            this.docID = _docID;
+            this.commentID = _commentID;
+            this.text = _text;
+            this.date = _date;
+            this.user = _user;
+            this.time = _time;
+            this.previousTime = _previousTime;
+        }
+
+        public String getDocID() {return docID;}
+        public String getUser() {return user;}
+        public long getTime() {return time;}
+        public long getPreviousTime() {return previousTime;}
+
+        /** Returns false if the comment's text did not fit in the message (it has to be fetched) */
+        public boolean isComplete() {return text != null;}
+
+        /** Returns the comment, as if it had been fetched */
+        public Comment toComment()
+        {
+            Comment comment = new Comment();
+            comment.setCommentID(commentID);
+            comment.setCommentText(text);
+            comment.setCommentDate(date);
+            comment.setCommentUser(user);
+            comment.setCommentTime(new Date(time));
+            return comment;
+        }
+    }
+
+    /** The threads a device follows, least recently active first */
+    public static class Follows
+    {
+        // docID -> when the thread was last active for this device
+        private final LinkedHashMap<String, Long> threads = new LinkedHashMap<>(16, 0.75f, true);
+        private final int max;
+
+        /** Constructor
+         *
+         * @param _followed - Threads already followed and when each was last active (e.g. read back from storage)
+         * @param _max - Threads followed at most
+         */
+        public Follows(Map<String, Long> _followed, int _max)
+        {
+            this.max = _max;
+            List<Map.Entry<String, Long>> oldestFirst = new ArrayList<>(_followed.entrySet());
+            Collections.sort(oldestFirst, new Comparator<Map.Entry<String, Long>>()
+            {
+                @Override
+                public int compare(Map.Entry<String, Long> _a, Map.Entry<String, Long> _b) { return Long.compare(_a.getValue(), _b.getValue()); }
+            });
+            for (Map.Entry<String, Long> entry : oldestFirst) threads.put(entry.getKey(), entry.getValue());
+        }
+
+        /** Follows a thread (or marks one already followed as active)
+         *
+         * @param _docID - The post
+         * @param _now - Current time in milliseconds
+         * @return The threads to stop following to stay within the limit (least recently active), empty if none
+         */
+        public List<String> follow(String _docID, long _now)
+        {
+            threads.put(_docID, _now);
+            List<String> dropped = new ArrayList<>();
+            Iterator<String> oldest = threads.keySet().iterator();
+            while (threads.size() - dropped.size() > max) dropped.add(oldest.next());
+            for (String docID : dropped) threads.remove(docID);
+            return dropped;
+        }
+
+        /** Stops following a thread (e.g. its post was deleted), returns false if it was not followed */
+        public boolean unfollow(String _docID) { return threads.remove(_docID) != null; }
+
+        public boolean isFollowing(String _docID) { return threads.containsKey(_docID); }
+
+        public int size() { return threads.size(); }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Topic names may only hold [a-zA-Z0-9-_.~%], document ids are alphanumeric (shard prefixes included)
+    private static final String TOPIC_PREFIX = "thread_";
+
+    // Keys of the delta inside the data payload (the post summary's keys are 'NotifyPayload's)
+    private static final String KEY_DELTA_VERSION = "dv", KEY_COMMENT_ID = "ci", KEY_TEXT = "ct", KEY_DATE = "cd", KEY_TIME = "cm",
+            KEY_PREVIOUS_TIME = "cp";
+
+    /** Returns the topic of a post's thread */
+    public static String TOPIC(String _docID) { return TOPIC_PREFIX + _docID; }
+
+    /** Encodes a new comment of a thread as a data payload
+     * > The post's summary, its latest comment shortened, is what a notification shows (see 'NotifyPayload')
+     * > If the whole comment does not fit within FCM's limit, its text is left out and the device fetches it
+     *
+     * @param _summary - Summary of the post commented on
+     * @param _comment - The new comment (with its id, and the server time it was written)
+     * @param _previousTime - Time of the comment before it in the thread ('ThreadCache.NO_WATERMARK' if it is the first)
+     * @return Payload entries, within 'NotifyPayload.FCM_PAYLOAD_LIMIT_BYTES'
+     */
+    public static Map<String, String> ENCODE_DELTA(PostSummary _summary, Comment _comment, long _previousTime)
+    {
+        PostSummary shown = new PostSummary(_summary.getDocID(), _summary.getTitle(), _summary.getSnippet(), _summary.getLat(),
+                _summary.getLng(), _comment.getCommentText());
+        Map<String, String> payload = NotifyPayload.ENCODE(shown);
+        payload.put(Toolkit.KEY_NOTIFPAYLOAD_SENDER, _comment.getCommentUser());
+        payload.put(KEY_DELTA_VERSION, Integer.toString(VERSION));
+        payload.put(KEY_COMMENT_ID, _comment.getCommentID());
+        payload.put(KEY_TIME, Long.toString(_comment.getCommentTime().getTime()));
+        payload.put(KEY_PREVIOUS_TIME, Long.toString(_previousTime));
+        if (_comment.getCommentDate() != null) payload.put(KEY_DATE, _comment.getCommentDate());
+        if (_comment.getCommentText() != null)
+        {
+            payload.put(KEY_TEXT, _comment.getCommentText());
+            if (NotifyPayload.SIZE_BYTES(payload) > NotifyPayload.FCM_PAYLOAD_LIMIT_BYTES) payload.remove(KEY_TEXT);
+        }
+        return payload;
+    }
+
+    /** Decodes a comment pushed to a thread's topic
+     *
+     * @param _payload - Payload entries
+     * @return The delta, or null if the payload holds none (e.g. a post notification) or uses an unknown version
+     */
+    public static Delta DECODE_DELTA(Map<String, String> _payload)
+    {
+        if (_payload == null) return null;
+        String docID = _payload.get(Toolkit.KEY_NOTIFPAYLOAD_DOCID), version = _payload.get(KEY_DELTA_VERSION);
+        String commentID = _payload.get(KEY_COMMENT_ID);
+        if (docID == null || version == null || commentID == null) return null;
+        try
+        {
+            if (Integer.parseInt(version) != VERSION) return null;
+            return new Delta(docID, commentID, _payload.get(KEY_TEXT), _payload.get(KEY_DATE),
+                    _payload.get(Toolkit.KEY_NOTIFPAYLOAD_SENDER), Long.parseLong(_payload.get(KEY_TIME)),
+                    Long.parseLong(_payload.get(KEY_PREVIOUS_TIME)));
+        }
+        catch (NumberFormatException ex) { return null; }
+    }
+
+    /** Applies a delta to the comments a device shows
+     *
+     * @param _known - Comments shown (null if none)
+     * @param _delta - The comment pushed
+     * @return The comments with the new one (unchanged if it was already there), or null if the delta can not be applied
+     *         (a comment was missed or its text did not fit), the comments then have to be fetched from the watermark
+     */
+    public static ArrayList<Comment> APPLY(List<Comment> _known, Delta _delta)
+    {
+        if (_known != null)
+        {
+            for (Comment comment : _known) if (_delta.commentID.equals(comment.getCommentID())) return new ArrayList<>(_known);
+        }
+        if (!_delta.isComplete() || _delta.previousTime != ThreadCache.WATERMARK(_known)) return null;
+        List<Comment> fetched = new ArrayList<>();
+        fetched.add(_delta.toComment());
+        // the comments kept in the post document (without an id) stay at the end
+        return ThreadCache.MERGE(_known, fetched, _known);
+    }
+
+    /** Publishes a new comment to its thread's topic, one message whatever the number of participants
+     *
+     * @param _broker - Sends the message
+     * @param _summary - Summary of the post commented on
+     * @param _comment - The new comment
+     * @param _previousTime - Time of the comment before it in the thread
+     */
+    public static void PUBLISH(Broker _broker, PostSummary _summary, Comment _comment, long _previousTime)
+    {
+        _broker.send("/topics/" + TOPIC(_summary.getDocID()), ENCODE_DELTA(_summary, _comment, _previousTime));
+    }
+}
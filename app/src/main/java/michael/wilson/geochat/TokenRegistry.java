@@ -0,0 +1,121 @@
+package michael.wilson.geochat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The Firebase Cloud Messaging token of each device, as a notification sender sees the 'tokens' collection
+ * > Posts only name their owner's device ('userID'), the token is looked up here when a notification is sent, so a token
+ *   which rotated after the post was made is never used
+ * > A send that comes back unregistered (or invalid) removes the token, unless the device registered a new one meanwhile
+ * > Devices re-register at least every 'REFRESH_MS', a token not registered for 'STALE_MS' is no longer used
+ *   (the app was most likely uninstalled)
+ * > 'NEEDS_REGISTER(...)' is the device side: when the app has to write its token again
+ *
+ * Plain java so it can be tested (and the sender simulated) off-device.
+ */
+public class TokenRegistry
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    // Outcome of a send: delivered, token no longer valid (app uninstalled or token rotated), token malformed,
+    // or failed for now (worth retrying, the token is kept)
+    public static final int SENT = 0, UNREGISTERED = 1, INVALID_ARGUMENT = 2, UNAVAILABLE = 3;
+
+    // A device writes its token again after this long even if it did not change, so an active device is never seen as stale
+    public static final long REFRESH_MS = 30L * 24 * 60 * 60 * 1000;
+
+    // A token not registered for this long is not sent to, and dropped by 'pruneStale(...)' (FCM recommends about two months)
+    public static final long STALE_MS = 2 * REFRESH_MS;
+
+    /** A device's token and when the device last registered it */
+    public static class Registration
+    {
+        public final String token;
+        public final long time;
+
+        public Registration(String _token, long _time)
+        {
+            this.token = _token;
+            this.time = _time;
+        }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    // deviceID -> registration
+    private final ConcurrentHashMap<String, Registration> tokens = new ConcurrentHashMap<>();
+
+    /** Records a device's token (a registration older than the one already held is ignored)
+     *
+     * @param _deviceID - The device
+     * @param _token - Its current token (null is ignored, a device never unregisters by sending no token)
+     * @param _time - When the device registered it
+     * @return False if it was ignored
+     */
+    public boolean register(String _deviceID, String _token, long _time)
+    {
+        if (_token == null) return false;
+        Registration registration = new Registration(_token, _time);
+        while (true)
+        {
+            Registration current = tokens.putIfAbsent(_deviceID, registration);
+            if (current == null) return true;
+            if (current.time > _time) return false;
+            if (tokens.replace(_deviceID, current, registration)) return true;
+        }
+    }
+
+    /** Returns the token to send a device's notifications to, or null if it has none (or only a stale one)
+     *
+     * @param _deviceID - The device (a post's 'userID')
+     * @param _now - Current time in milliseconds
+     */
+    public String resolve(String _deviceID, long _now)
+    {
+        Registration registration = _deviceID == null ? null : tokens.get(_deviceID);
+        if (registration == null || _now - registration.time > STALE_MS) return null;
+        return registration.token;
+    }
+
+    /** Called with the outcome of every send, removes tokens FCM will never deliver to again
+     *
+     * @param _deviceID - The device sent to
+     * @param _token - The token that was used
+     * @param _result - 'SENT', 'UNREGISTERED', 'INVALID_ARGUMENT', or 'UNAVAILABLE'
+     * @return True if the token was removed
+     */
+    public boolean onResult(String _deviceID, String _token, int _result)
+    {
+        if (_result != UNREGISTERED && _result != INVALID_ARGUMENT) return false;
+
+        // only if it is still the registered token, a device which just rotated its token must keep the new one
+        Registration current = tokens.get(_deviceID);
+        return current != null && current.token.equals(_token) && tokens.remove(_deviceID, current);
+    }
+
+    /** Removes every token not registered for 'STALE_MS', returns how many were removed */
+    public int pruneStale(long _now)
+    {
+        int removed = 0;
+        for (Map.Entry<String, Registration> entry : tokens.entrySet())
+        {
+            if (_now - entry.getValue().time > STALE_MS && tokens.remove(entry.getKey(), entry.getValue())) removed++;
+        }
+        return removed;
+    }
+
+    public int size() { return tokens.size(); }
+
+    /** Returns true if a device has to write its token to the registry
+     *
+     * @param _registered - The token it last wrote (null if none)
+     * @param _registeredTime - When it last wrote it
+     * @param _token - Its current token (null if not known yet)
+     * @param _now - Current time in milliseconds
+     */
+    public static boolean NEEDS_REGISTER(String _registered, long _registeredTime, String _token, long _now)
+    {
+        if (_token == null) return false;
+        return !_token.equals(_registered) || _now - _registeredTime >= REFRESH_MS;
+    }
+}
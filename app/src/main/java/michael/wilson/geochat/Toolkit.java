@@ -7,10 +7,17 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.security.ConfirmationNotAvailableException;
 import android.util.Log;
@@ -18,26 +25,55 @@ import android.view.Gravity;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import com.google.android.gms.common.GoogleApiAvailability;
-import com.google.android.gms.maps.GoogleMap;
-import com.google.android.gms.maps.model.BitmapDescriptor;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.tasks.Continuation;
 import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Exclude;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.Transaction;
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.google.firebase.iid.InstanceIdResult;
+import com.google.firebase.messaging.FirebaseMessaging;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Toolkit
 {
@@ -49,7 +85,7 @@ public class Toolkit
     // Identifier for the main notification channel
     private static final String MAIN_NOTIFICATION_CHANNEL_ID = "channel00";
 
-    // Global context
+    // Global context (always the application context, never an activity, so holding it statically can not leak one)
     private static Context CONTEXT;
 
     // Object used to communicate with Firebase
@@ -61,42 +97,221 @@ public class Toolkit
     // The log tag (Used for debugging)
     private static final String LOG_TAG = "MCL";
 
+    // Only build and write log lines when debugging, so release builds do not pay for string concatenation
+    private static final boolean LOGGING = BuildConfig.DEBUG;
+
+    // Name of the file metrics snapshots are written to (inside the app's private files directory)
+    private static final String METRICS_FILE_NAME = "metrics.txt";
+
+    // Shared preferences file and key remembering whether metrics are recorded (see 'SET_METRICS_ENABLED(...)')
+    private static final String METRICS_PREFS_NAME = "metrics", PREF_METRICS_ENABLED = "enabled";
+
+    // Spreads posts over region shards instead of one global collection (see 'ShardRouter')
+    private static final ShardRouter SHARDS = new ShardRouter(FirestorePost.COLLECTION_NAME, ShardRouter.DEFAULT_SHARD_COUNT);
+
+    // Also query the collection of posts created before sharding, until it has been emptied
+    private static final boolean READ_LEGACY_POSTS = true;
+
+    // Per-post comment counter, sharded over a sub-collection of each post so busy threads do not serialize writes
+    // > A shard's time is the server's (a client's clock may be behind the one which wrote last, and a merge would move it back),
+    //   which is also the time of the comment it counts
+    // > Once a shard is written (offline, once it reaches the server), the post's totals are rolled up a little later, so a burst of
+    //   comments costs one roll-up (see 'SCHEDULE_ROLLUP(...)')
+    private static final ShardedCounter ACTIVITY_COUNTER = new ShardedCounter(new ShardedCounter.Store()
+    {
+        @Override
+        public void increment(final String _counterID, int _shard, long _amount, long _time)
+        {
+            Map<String, Object> hashMap = new HashMap<>();
+            hashMap.put(FirestorePost.SHARD_COUNT_KEY, FieldValue.increment(_amount));
+            hashMap.put(FirestorePost.SHARD_TIME_KEY, FieldValue.serverTimestamp());
+            GET_POST(_counterID).collection(FirestorePost.SHARDS_COLLECTION_NAME).document(Integer.toString(_shard))
+                    .set(hashMap, SetOptions.merge()).addOnSuccessListener(new OnSuccessListener<Void>()
+            {
+                @Override
+                public void onSuccess(Void _v) { SCHEDULE_ROLLUP(_counterID); }
+            });
+        }
+    }, ShardedCounter.SHARDS);
+
+    // How long a post's roll-up waits after a shard is written, so the shards written meanwhile are rolled up with it
+    private static final long ROLLUP_DELAY_MS = 10000;
+
+    // Posts with a roll-up waiting to run (only touched on the main thread)
+    private static final Set<String> PENDING_ROLLUPS = new HashSet<>();
+
+    // Ledger of the write limits (one document per bucket, see 'WriteLimits'), and the field holding a bucket's time
+    private static final String LIMITS_COLLECTION_NAME = "limits", LIMIT_TAT_KEY = "tat";
+
+    // Holds back writes over the limit until their token arrives
+    private static final Handler WRITE_HANDLER = new Handler(Looper.getMainLooper());
+
+    // Registry of each device's messaging token (one document per device id, see 'TokenRegistry'), and its fields
+    private static final String TOKENS_COLLECTION_NAME = "tokens", TOKEN_KEY = "token", TOKEN_TIME_KEY = "time";
+
+    // Shared preferences file and keys remembering the token last written to the registry, and when
+    private static final String TOKEN_PREFS_NAME = "fcm", PREF_TOKEN = "token", PREF_TOKEN_TIME = "time";
+
+    // The network 'FETCH_POLICY' measured last (its estimates are dropped when the device switches networks)
+    private static Network POLICY_NETWORK;
+
+    // Shared preferences file remembering the threads followed (post id -> when last active), and the threads followed
+    // (read from it when first needed, see 'FOLLOW_THREAD(...)')
+    private static final String TOPICS_PREFS_NAME = "topics";
+    private static ThreadTopics.Follows FOLLOWS;
+
+    // Name of the file reads are recorded to and played back from (inside the app's private files directory, see 'FirestoreTape')
+    private static final String TAPE_FILE_NAME = "firestore.tape";
+
+    // Answers the reads of a tape being played, on the main thread like firebase does
+    private static final Handler TAPE_HANDLER = new Handler(Looper.getMainLooper());
+
+    // Directory the offline region packs are kept in (inside the app's private files directory, see 'RegionPack'), and the packs
+    // opened, by file name (by 'INITIALIZE_APP', and as they are downloaded)
+    private static final String PACKS_DIR_NAME = "packs", PACK_SUFFIX = ".pack", TMP_SUFFIX = ".tmp";
+    private static final Map<String, RegionPack.Reader> PACKS = new ConcurrentHashMap<>();
+
+    // Downloads and refreshes packs one at a time, reading firebase with 'Tasks.await(...)', and reports back on the main thread
+    private static final ExecutorService PACK_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final Handler PACK_HANDLER = new Handler(Looper.getMainLooper());
+    private static final long PACK_READ_TIMEOUT_S = 30;
+
+    // Packs are refreshed when the device gets a network, at most this often, and when they last were ('SystemClock.elapsedRealtime()')
+    private static final long PACK_REFRESH_INTERVAL_MS = 15 * 60 * 1000;
+    private static long PACK_REFRESH_TIME = 0;
+
+    // Reads what packs are made of from firebase, blocking (only used on 'PACK_EXECUTOR')
+    private static final RegionPack.Source PACK_SOURCE = new RegionPack.Source()
+    {
+        @Override
+        public List<FirestoreTape.Document> posts(long _cell, long _since) throws IOException
+        {
+            // a region lies inside a single shard (plus the posts created before sharding)
+            List<Query> queries = new ArrayList<>();
+            for (CollectionReference collection : GET_POST_COLLECTIONS(GeoCell.BOUNDS(_cell)))
+            {
+                Query query = collection.whereEqualTo(FirestorePost.CELL_KEY, _cell);
+                if (_since > 0) query = query.whereGreaterThanOrEqualTo(FirestorePost.LAST_ACTIVITY_KEY, _since);
+                queries.add(query);
+            }
+            // offline, firebase would answer from its local cache (possibly nothing) and the pack would be overwritten with it
+            return MapViewModel.DECODE(AWAIT(FAN_OUT(queries, Source.SERVER)));
+        }
+
+        @Override
+        public List<Comment> comments(String _docID, long _since, int _limit) throws IOException
+        {
+            Query query = GET_POST(_docID).collection(FirestorePost.COMMENTS_COLLECTION_NAME);
+            if (_since != ThreadCache.NO_WATERMARK) query = query.whereGreaterThanOrEqualTo(FirestorePost.COMMENT_TIME_KEY, new Date(_since));
+            QuerySnapshot snapshot = AWAIT(query.orderBy(FirestorePost.COMMENT_TIME_KEY, Query.Direction.DESCENDING).limit(_limit)
+                    .get(Source.SERVER));
+            List<Comment> comments = new ArrayList<>();
+            for (DocumentSnapshot document : snapshot)
+            {
+                Comment comment = document.toObject(Comment.class);
+                comment.setCommentID(document.getId());
+                comments.add(comment);
+            }
+            return comments;
+        }
+    };
+
     /*** ~~~PUBLIC~~~ ***/
 
     // Keys for communication via intents and notification payloads
     public static final String KEY_DISCUSS_TAG = "tag", KEY_NOTIFPAYLOAD_DOCID = "docID", KEY_NOTIFPAYLOAD_SENDER = "sender",
             KEY_NEWPOST_LAT = "lat", KEY_NEWPOST_LNG = "lng";
 
-    // T H E   M A P
-    public static GoogleMap MAP;
+    // Keyword index over every post loaded so far (filled as the map is refreshed)
+    public static final SearchIndex SEARCH_INDEX = new SearchIndex();
+
+    // Recently opened discussions, kept on disk so reopening one does not download every comment again (set up by 'INITIALIZE_APP')
+    public static ThreadCache THREAD_CACHE;
+
+    // How often this device may post and comment
+    public static final WriteLimits WRITE_LIMITS = new WriteLimits();
+
+    // How much to download at once on the current network (kept up to date by 'INITIALIZE_APP', see 'FetchPolicy')
+    public static final FetchPolicy FETCH_POLICY = new FetchPolicy();
+
+    // Set while firebase's answers to the app's reads are recorded, and while reads are answered from a tape instead
+    // (see 'START_RECORDING()' and 'PLAY_TAPE(...)', never both at once)
+    public static FirestoreTape.Recorder RECORDER = null;
+    public static FirestoreTape.Player PLAYER = null;
 
     /** Initializes this 'Toolbox' singleton
      *
-     * > Sets the global context
      * > Sets up GooglePlay for this app if not already done
-     * > Gets the user's unique firbase cloud messaging token from firebase and stores it in a global variable
-     * > Setup the notification channel
+     * > Initializes everything else (see 'INITIALIZE_APP(Context)')
      *
      * @param _activity - The activity calling this method, used to derive context
      */
     public static void INITIALIZE_APP(Activity _activity)
     {
-        // set global context
-        CONTEXT = _activity.getApplicationContext();
-
         // enable GooglePlayAPI
         GoogleApiAvailability.getInstance().makeGooglePlayServicesAvailable(_activity);
 
+        INITIALIZE_APP(_activity.getApplicationContext());
+    }
+
+    /** Initializes everything in this 'Toolbox' singleton that does not need an activity (also used by instrumented tests)
+     *
+     * > Sets up what background work needs (see 'INITIALIZE_BACKGROUND(Context)')
+     * > Gets the user's unique firbase cloud messaging token from firebase and registers it (see 'REGISTER_TOKEN(...)')
+     * > Start the main thread watchdog
+     * > Set up the image caches and the discussion cache
+     * > Tell 'FETCH_POLICY' whenever the device switches networks
+     * > Open the offline region packs downloaded, and refresh them whenever the device gets a network
+     *
+     * @param _context - Any context, only its application context is kept
+     */
+    public static void INITIALIZE_APP(Context _context)
+    {
+        INITIALIZE_BACKGROUND(_context);
+
+        // watch the main thread for jank, every looper message and StrictMode findings only on debug builds (see 'JankWatchdog')
+        JankWatchdog.START(CONTEXT, BuildConfig.DEBUG);
+
+        // set up the image caches
+        ImagePipeline.INITIALIZE(CONTEXT);
+
+        // set up the discussion cache
+        if (THREAD_CACHE == null)
+        {
+            THREAD_CACHE = new ThreadCache(new DiskLruCache(new File(CONTEXT.getCacheDir(), "threads"), ThreadCache.DEFAULT_MAX_BYTES));
+
+            // once per process, like the discussion cache
+            OPEN_PACKS();
+            WATCH_NETWORK();
+        }
+
         // set global user token (for firebase cloud messaging)
         FirebaseInstanceId.getInstance().getInstanceId().addOnCompleteListener(new OnCompleteListener<InstanceIdResult>()
         {
             @Override
             public void onComplete(@NonNull Task<InstanceIdResult> task)
             {
-                if (task.isSuccessful()) USER_TOKEN = task.getResult().getToken();
+                if (task.isSuccessful()) REGISTER_TOKEN(CONTEXT, task.getResult().getToken());
                 else TOAST(CONTEXT.getString(R.string.general_err)+" (1)");
             }
         });
+    }
+
+    /** Initializes only what work started in the background needs (a message or a geofence event in a process with no activity)
+     *
+     * > Sets the global context
+     * > Enable metrics recording, in every build unless turned off on the metrics screen
+     * > Setup the notification channel
+     *
+     * @param _context - Any context, only its application context is kept
+     */
+    public static void INITIALIZE_BACKGROUND(Context _context)
+    {
+        // set global context
+        CONTEXT = _context.getApplicationContext();
+
+        // record hot-path metrics (see 'Metrics'), release builds are where the numbers matter and recording costs a few atomic adds
+        Metrics.SET_ENABLED(CONTEXT.getSharedPreferences(METRICS_PREFS_NAME, Context.MODE_PRIVATE).getBoolean(PREF_METRICS_ENABLED, true));
 
         // setup notification channel
         if (Build.VERSION.SDK_INT > 25)
@@ -105,11 +320,6 @@ public class Toolkit
             NotificationChannel channel = new NotificationChannel(MAIN_NOTIFICATION_CHANNEL_ID, "Main Notification Channel", NotificationManager.IMPORTANCE_HIGH);
             notificationManager.createNotificationChannel(channel);
         }
-
-
-
-
-
     }
 
     /** Returns an intent to open 'DiscussionActivity' with the given document id
@@ -124,6 +334,42 @@ public class Toolkit
         return i;
     }
 
+    /** Returns an intent to open 'DiscussionActivity' which can render the given summary before the full post is fetched
+     *
+     * @param _tag - Unique firebase document identifier
+     * @param _summary - Summary of the post (usually decoded from a notification payload), may be null
+     * @return Intent which opens 'DiscussionActivity' using the provided document id and summary
+     */
+    public static Intent OPEN_POST_INTENT(String _tag, PostSummary _summary)
+    {
+        Intent i = OPEN_POST_INTENT(_tag);
+        if (_summary != null)
+        {
+            for (Map.Entry<String, String> e : NotifyPayload.ENCODE(_summary).entrySet()) i.putExtra(e.getKey(), e.getValue());
+        }
+        return i;
+    }
+
+    /** Reads a post summary from an intent's extras (as put there by 'OPEN_POST_INTENT(...)' or by a notification)
+     *
+     * @param _intent - Intent to read
+     * @return The post summary, or null if the intent does not carry one
+     */
+    public static PostSummary READ_SUMMARY(Intent _intent)
+    {
+        Map<String, String> payload = new HashMap<>();
+        String docID = _intent.getStringExtra(KEY_NOTIFPAYLOAD_DOCID);
+        if (docID == null) docID = _intent.getStringExtra(KEY_DISCUSS_TAG);
+        if (docID == null) return null;
+        payload.put(KEY_NOTIFPAYLOAD_DOCID, docID);
+        for (String key : NotifyPayload.KEYS)
+        {
+            String value = _intent.getStringExtra(key);
+            if (value != null) payload.put(key, value);
+        }
+        return NotifyPayload.DECODE(payload);
+    }
+
     /** Creates and sends a notification
      *
      * @param _title - Title of the notification
@@ -131,6 +377,19 @@ public class Toolkit
      * @param _intent - Pending intent for when the user clicks the notification
      */
     public static void NOTIFY(String _title, String _text, PendingIntent _intent)
+    {
+        NOTIFY(NOTIFCOUNTER, _title, _text, _intent);
+        NOTIFCOUNTER++;
+    }
+
+    /** Creates and sends a notification with a given id, replacing any notification already shown with that id
+     *
+     * @param _id - Id of the notification (see 'NearbyAlerts', which keeps updating one notification)
+     * @param _title - Title of the notification
+     * @param _text - Main body of the notification
+     * @param _intent - Pending intent for when the user clicks the notification
+     */
+    public static void NOTIFY(int _id, String _title, String _text, PendingIntent _intent)
     {
         NotificationManager notificationManager = CONTEXT.getSystemService(NotificationManager.class);
         Notification.Builder builder = new Notification.Builder(CONTEXT, MAIN_NOTIFICATION_CHANNEL_ID)
@@ -139,8 +398,7 @@ public class Toolkit
                 .setContentText(_text)
                 .setContentIntent(_intent)
                 .setAutoCancel(true);
-        notificationManager.notify(NOTIFCOUNTER, builder.build());
-        NOTIFCOUNTER++;
+        notificationManager.notify(_id, builder.build());
     }
 
     /** Returns this device's unique id
@@ -153,70 +411,124 @@ public class Toolkit
     }
 
     /** Returns a references to a firebase document given an id
+     * > The post's shard is part of its id (see 'ShardRouter')
      *
      * @param _id - Id of the firebase document
      * @return - Firebase document reference
      */
     public static DocumentReference GET_POST(String _id)
     {
-        return DB.document(FirestorePost.COLLECTION_NAME+"/"+_id);
+        return DB.collection(SHARDS.collectionOf(_id)).document(_id);
     }
 
-    /** Refreshes the main 'MAP' with data from firebase
-     * > Clears all markers from the map
-     * > Gets all post data from the firebase collection
-     * > For each post, add a marker to the map (Each marker is given a tag which corresponds to it's firebase document)
+    /** Returns the post collections (shards) which may hold posts inside the given bounds
+     *
+     * @param _bounds - Area to query, null for every post
+     * @return The shards covering the area, plus the collection of posts created before sharding
      */
-    public static void REFRESH_MAP()
+    public static List<CollectionReference> GET_POST_COLLECTIONS(GeoBounds _bounds)
     {
-        if (MAP != null)
-        {
-            // Clear all markers from the map
-            MAP.clear();
+        List<CollectionReference> collections = new ArrayList<>();
+        for (String name : SHARDS.collectionsCovering(_bounds, READ_LEGACY_POSTS)) collections.add(DB.collection(name));
+        return collections;
+    }
 
-            // get reference to the firebase collection
-            CollectionReference database = DB.collection(FirestorePost.COLLECTION_NAME);
+    /** Runs queries (one per shard) in parallel
+     *
+     * @param _queries - The queries, see 'GET_POST_COLLECTIONS(...)'
+     * @return Task completing with every query's result once all of them succeed, or failing as soon as one fails
+     */
+    public static Task<List<QuerySnapshot>> FAN_OUT(List<Query> _queries)
+    {
+        return FAN_OUT(_queries, Source.DEFAULT);
+    }
 
-            // Query Firebase for all documents within the collection
-            Task<QuerySnapshot> task = database.get().addOnCompleteListener(new OnCompleteListener<QuerySnapshot>()
+    /** Runs queries (one per shard) in parallel
+     * > 'Source.SERVER' fails offline instead of answering from firebase's local cache
+     *
+     * @param _queries - The queries, see 'GET_POST_COLLECTIONS(...)'
+     * @param _source - Where the queries are answered from
+     * @return Task completing with every query's result once all of them succeed, or failing as soon as one fails
+     */
+    public static Task<List<QuerySnapshot>> FAN_OUT(List<Query> _queries, Source _source)
+    {
+        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
+        for (Query query : _queries) tasks.add(query.get(_source));
+        return Tasks.whenAllSuccess(tasks);
+    }
+
+    /** Records a new comment on a post in its sharded activity counter, then rolls up the post's totals (see 'SCHEDULE_ROLLUP(...)')
+     *
+     * @param _doc - Reference to the post's firebase document
+     */
+    public static void RECORD_ACTIVITY(DocumentReference _doc)
+    {
+        ACTIVITY_COUNTER.increment(_doc.getId(), System.currentTimeMillis());
+    }
+
+    /** Rolls up a post's activity counter after 'ROLLUP_DELAY_MS', unless a roll-up of the post is already waiting
+     * > Every shard written in the meantime is included in that roll-up, so a busy thread reads its shards and writes the post
+     *   document about once per 'ROLLUP_DELAY_MS' per device, rather than once per comment
+     * > Runs on the main thread (where firebase's listeners run)
+     *
+     * @param _docID - Identifier of the post's firebase document
+     */
+    private static void SCHEDULE_ROLLUP(final String _docID)
+    {
+        if (!PENDING_ROLLUPS.add(_docID)) return;
+        WRITE_HANDLER.postDelayed(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                @Override
-                public void onComplete(@NonNull Task<QuerySnapshot> task)
+                PENDING_ROLLUPS.remove(_docID);
+                ROLLUP_ACTIVITY(GET_POST(_docID));
+            }
+        }, ROLLUP_DELAY_MS);
+    }
+
+    /** Sums a post's activity counter shards and stores the result on the post document
+     * > The post's 'commentCount' and 'lastActivity' fields are what the map reads and ranks by, and what offline packs are
+     *   refreshed by (see 'RegionPack')
+     * > Done in a transaction which only moves the fields forward (see 'ShardedCounter.Total.advance(...)'): roll-ups by
+     *   several devices finish in any order, and one which read the shards earlier must not overwrite a later one's totals
+     * > Nothing is written if the post already holds the totals, e.g. another device's roll-up included this device's shards
+     *
+     * @param _doc - Reference to the post's firebase document
+     */
+    private static void ROLLUP_ACTIVITY(final DocumentReference _doc)
+    {
+        DB.runTransaction(new Transaction.Function<Void>()
+        {
+            @Override
+            public Void apply(@NonNull Transaction _transaction) throws FirebaseFirestoreException
+            {
+                DocumentSnapshot post = _transaction.get(_doc);
+                if (!post.exists()) return null;
+                ShardedCounter.Total total = new ShardedCounter.Total();
+                for (int i = 0; i < ACTIVITY_COUNTER.getShards(); i++)
                 {
-                    if (task.isSuccessful())
-                    {
-                        // For each document retrieved, create a marker
-                        for (QueryDocumentSnapshot document : task.getResult())
-                        {
-                            FirestorePost tmp = document.toObject(FirestorePost.class);
-                            MarkerOptions options = new MarkerOptions();
-                            options.position(new LatLng(tmp.getLat(), tmp.getLng()));
-                            options.title(tmp.getTitle());
-                            options.snippet(tmp.getDate());
-
-                            // if this user created the post, make the marker blue, otherwise make it red
-                            if (tmp.getUserID().equals(GET_DEVICE_ID()))
-                            {
-                                options.icon(BitmapDescriptorFactory.fromResource(R.mipmap.mcl_marker_blue));
-                                options.zIndex(1);
-                            }
-                            else
-                            {
-                                options.icon(BitmapDescriptorFactory.fromResource(R.mipmap.mcl_marker));
-                                options.zIndex(0);
-                            }
-
-                            Marker marker = MAP.addMarker(options);
-
-                            // set the marker's tag equal to the document's id
-                            marker.setTag(document.getId());
-                        }
-                        LOG("DATABASE REFRESHED!");
-                    }
-                    else TOAST(CONTEXT.getString(R.string.firebase_connect_err));
+                    DocumentSnapshot shard = _transaction.get(_doc.collection(FirestorePost.SHARDS_COLLECTION_NAME).document(Integer.toString(i)));
+                    if (!shard.exists()) continue;
+
+                    // shards written before their time was the server's hold milliseconds
+                    Long count = shard.getLong(FirestorePost.SHARD_COUNT_KEY);
+                    Object time = shard.get(FirestorePost.SHARD_TIME_KEY);
+                    total.addShard(count != null ? count : 0, time instanceof Timestamp ? ((Timestamp)time).toDate().getTime()
+                            : time instanceof Long ? (Long)time : 0);
                 }
-            });
-        }
+                Long count = post.getLong(FirestorePost.COMMENT_COUNT_KEY);
+                Long lastActivity = post.getLong(FirestorePost.LAST_ACTIVITY_KEY);
+                if (total.advance(count != null ? count : 0, lastActivity != null ? lastActivity : 0))
+                {
+                    Map<String, Object> hashMap = new HashMap<>();
+                    hashMap.put(FirestorePost.COMMENT_COUNT_KEY, total.getCount());
+                    hashMap.put(FirestorePost.LAST_ACTIVITY_KEY, total.getLastActivity());
+                    _transaction.update(_doc, hashMap);
+                }
+                return null;
+            }
+        });
     }
 
     /** Deletes a firebase document given a document reference
@@ -225,6 +537,9 @@ public class Toolkit
      */
     public static void DELETE_POST(DocumentReference _doc)
     {
+        SEARCH_INDEX.remove(_doc.getId());
+        if (THREAD_CACHE != null) THREAD_CACHE.remove(_doc.getId());
+        UNFOLLOW_THREAD(_doc.getId());
         _doc.delete().addOnCompleteListener(new OnCompleteListener<Void>()
         {
             @Override
@@ -240,15 +555,59 @@ public class Toolkit
      *
      * > Creates a hashmap with the given data
      * > Sends the hasmap to firebase which creates a new document
+     *   (held back or refused if this device or the post's region posted too much recently, see 'SCHEDULE_WRITE(...)')
      *
      * @param _pos - Location of the post
      * @param _title - Title of the post
      * @param _body - Body of the post
      * @param _date - Date the post was created
-     * @param _userID - DeviceID of the user who created the post
-     * @param _userToken - Token of the user who created the post
+     * @param _userID - DeviceID of the user who created the post (notifications reach it through the token registry)
+     */
+    public static void CREATE_POST(LatLng _pos, String _title, String _body, String _date, String _userID)
+    {
+        CREATE_POST(_pos, _title, _body, _date, _userID, null);
+    }
+
+    /** Creates a post (document) in firebase with an attached image (see 'ImagePipeline.UPLOAD(...)')
+     * > The write limits are checked before the image is uploaded: a refused post uploads nothing (and its image is deleted),
+     *   and a held back one is uploaded once its turn comes (the ledger is still charged when the post is written, see
+     *   'WRITE_LIMITED(...)')
+     *
+     * @param _image - The picked image, already in the app's storage (see 'ImagePipeline.PREPARE(...)'), null for no image
      */
-    public static void CREATE_POST(LatLng _pos, String _title, String _body, String _date, String _userID, String _userToken)
+    public static void CREATE_POST(final LatLng _pos, final String _title, final String _body, final String _date,
+                                   final String _userID, final ImagePipeline.PreparedImage _image)
+    {
+        final long cell = GeoCell.ID(_pos.latitude, _pos.longitude, GeoCell.REGION_LEVEL);
+        boolean scheduled = SCHEDULE_WRITE(WriteLimits.KIND_POST, _userID, cell, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (_image == null)
+                {
+                    WRITE_POST(_pos, _title, _body, _date, _userID, cell, null, null);
+                    return;
+                }
+                ImagePipeline.UPLOAD(_image, new ImagePipeline.UploadCallback()
+                {
+                    @Override
+                    public void onUploaded(String _imagePath, String _thumbPath)
+                    {
+                        WRITE_POST(_pos, _title, _body, _date, _userID, cell, _imagePath, _thumbPath);
+                    }
+
+                    @Override
+                    public void onFailed() { TOAST(R.string.image_upload_err); }
+                });
+            }
+        });
+        if (!scheduled && _image != null) _image.delete();
+    }
+
+    // writes a post whose write limits were already reserved by 'CREATE_POST(...)' ('_imagePath' and '_thumbPath' are null for no image)
+    private static void WRITE_POST(LatLng _pos, String _title, String _body, String _date, final String _userID, final long _cell,
+                                   String _imagePath, String _thumbPath)
     {
         Map<String, Object> hashMap = new HashMap<>();
         hashMap.put(FirestorePost.LAT_KEY, _pos.latitude);
@@ -257,23 +616,268 @@ public class Toolkit
         hashMap.put(FirestorePost.BODY_KEY, _body);
         hashMap.put(FirestorePost.DATE_KEY, _date);
         hashMap.put(FirestorePost.USERID_KEY, _userID);
-        hashMap.put(FirestorePost.USERTOKEN_KEY, _userToken);
         hashMap.put(FirestorePost.COMMENTS_KEY, new ArrayList<String>());
+        hashMap.put(FirestorePost.COMMENT_COUNT_KEY, 0L);
+        hashMap.put(FirestorePost.LAST_ACTIVITY_KEY, System.currentTimeMillis());
+        hashMap.put(FirestorePost.CELL_KEY, _cell);
+        if (_imagePath != null)
+        {
+            hashMap.put(FirestorePost.IMAGE_KEY, _imagePath);
+            hashMap.put(FirestorePost.THUMB_KEY, _thumbPath);
+        }
 
-        DB.collection(FirestorePost.COLLECTION_NAME).add(hashMap).addOnCompleteListener(new OnCompleteListener<DocumentReference>()
+        // the post goes into the shard of its location, and its id says which shard that is
+        int shard = SHARDS.shardOf(_pos.latitude, _pos.longitude);
+        CollectionReference collection = DB.collection(SHARDS.collection(shard));
+        final DocumentReference doc = collection.document(SHARDS.newDocID(shard, collection.document().getId()));
+        WRITE_LIMITED(WRITE_LIMITS.charges(WriteLimits.KIND_POST, _userID, _cell), doc, hashMap).addOnCompleteListener(new OnCompleteListener<Void>()
         {
             @Override
-            public void onComplete(@NonNull Task<DocumentReference> task)
+            public void onComplete(@NonNull Task<Void> task)
             {
-                if (task.isSuccessful()) TOAST(R.string.post_create_succ);
+                if (task.isSuccessful())
+                {
+                    TOAST(R.string.post_create_succ);
+
+                    // the author hears about every comment on the post
+                    FOLLOW_THREAD(doc.getId());
+                }
+                else if (IS_LIMITED(task.getException())) TOAST(R.string.write_refused);
+                else if (IS_OFFLINE(task.getException())) TOAST(R.string.write_offline);
                 else TOAST(R.string.post_create_err);
             }
         });
     }
 
-    /** Gets and sets the user's Firebase Cloud Messaging token */
+    /** Runs a write now, or holds it back if the device (or the post's region) wrote too much recently (see 'WriteLimits')
+     * > A write which would have to wait longer than 'WriteLimits.MAX_DELAY_MS' is refused, and the user is told
+     * > Offline, the write is refused (it could not be charged to the ledger, see 'WRITE_LIMITED(...)'), and the user is told
+     * > A held back write is lost if the app is killed before it is sent
+     *
+     * @param _kind - 'WriteLimits.KIND_POST' or 'WriteLimits.KIND_COMMENT'
+     * @param _deviceID - Device making the write
+     * @param _cell - Region cell of the post (ignored for comments)
+     * @param _write - Makes the write (with 'WRITE_LIMITED(...)'), run on the main thread
+     * @return False if the write was refused
+     */
+    public static boolean SCHEDULE_WRITE(int _kind, String _deviceID, long _cell, Runnable _write)
+    {
+        if (!IS_ONLINE())
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_WRITES_OFFLINE);
+            TOAST(R.string.write_offline);
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        WRITE_LIMITS.prune(now);
+        long delay = WRITE_LIMITS.reserve(_kind, _deviceID, _cell, now);
+        if (delay == RateLimiter.DENIED)
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_WRITES_REFUSED);
+            TOAST(R.string.write_refused);
+            return false;
+        }
+        if (delay == 0) _write.run();
+        else
+        {
+            Metrics.INCREMENT(Metrics.COUNTER_WRITES_DELAYED);
+            TOAST(R.string.write_delayed);
+            WRITE_HANDLER.postDelayed(_write, delay);
+        }
+        return true;
+    }
+
+    /** Creates a document in a transaction which first charges the write to the write limits ledger
+     * > Fails with 'RESOURCE_EXHAUSTED' if a bucket has no token, e.g. the app was reinstalled to reset its limiters
+     *   (see 'IS_LIMITED(...)')
+     * > A transaction needs a connection: offline (or if the connection drops before it gets through) the write fails with
+     *   'UNAVAILABLE' and nothing is written (see 'IS_OFFLINE(...)'). It is not queued as a plain write, which would reach
+     *   firebase without being charged to the ledger
+     *
+     * @param _charges - Buckets to charge (see 'WriteLimits.charges(...)')
+     * @param _doc - Document to create
+     * @param _data - Its fields
+     */
+    public static Task<Void> WRITE_LIMITED(final List<WriteLimits.Charge> _charges, final DocumentReference _doc, final Map<String, Object> _data)
+    {
+        if (!IS_ONLINE()) return OFFLINE_WRITE();
+        return DB.runTransaction(new Transaction.Function<Void>()
+        {
+            @Override
+            public Void apply(@NonNull Transaction _transaction) throws FirebaseFirestoreException
+            {
+                // a transaction reads everything before it writes anything
+                long now = System.currentTimeMillis();
+                long[] next = new long[_charges.size()];
+                for (int i = 0; i < next.length; i++)
+                {
+                    WriteLimits.Charge charge = _charges.get(i);
+                    Long stored = _transaction.get(DB.collection(LIMITS_COLLECTION_NAME).document(charge.key)).getLong(LIMIT_TAT_KEY);
+                    next[i] = WriteLimits.LEDGER_NEXT(charge, stored == null ? 0 : stored, now);
+                    if (next[i] == RateLimiter.DENIED)
+                    {
+                        throw new FirebaseFirestoreException("Write limit reached: " + charge.key, FirebaseFirestoreException.Code.RESOURCE_EXHAUSTED);
+                    }
+                }
+                for (int i = 0; i < next.length; i++)
+                {
+                    _transaction.set(DB.collection(LIMITS_COLLECTION_NAME).document(_charges.get(i).key),
+                            Collections.<String, Object>singletonMap(LIMIT_TAT_KEY, next[i]));
+                }
+                _transaction.set(_doc, _data);
+                return null;
+            }
+        }).continueWithTask(new Continuation<Void, Task<Void>>()
+        {
+            @Override
+            public Task<Void> then(@NonNull Task<Void> _task)
+            {
+                return IS_OFFLINE(_task.getException()) ? OFFLINE_WRITE() : _task;
+            }
+        });
+    }
+
+    // fails a limited write made offline
+    private static Task<Void> OFFLINE_WRITE()
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_WRITES_OFFLINE);
+        return Tasks.forException(new FirebaseFirestoreException("Offline, a limited write needs a connection",
+                FirebaseFirestoreException.Code.UNAVAILABLE));
+    }
+
+    /** Returns true if the device has a network which reaches the internet */
+    public static boolean IS_ONLINE()
+    {
+        ConnectivityManager connectivity = CONTEXT.getSystemService(ConnectivityManager.class);
+        NetworkCapabilities capabilities = connectivity.getNetworkCapabilities(connectivity.getActiveNetwork());
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    /** Returns true if a write failed because the write limits ledger refused it */
+    public static boolean IS_LIMITED(Exception _ex)
+    {
+        return _ex instanceof FirebaseFirestoreException
+                && ((FirebaseFirestoreException)_ex).getCode() == FirebaseFirestoreException.Code.RESOURCE_EXHAUSTED;
+    }
+
+    /** Returns true if a write failed because the device is offline (see 'WRITE_LIMITED(...)') */
+    public static boolean IS_OFFLINE(Exception _ex)
+    {
+        return _ex instanceof FirebaseFirestoreException
+                && ((FirebaseFirestoreException)_ex).getCode() == FirebaseFirestoreException.Code.UNAVAILABLE;
+    }
+
+    /** Gets the user's Firebase Cloud Messaging token */
     public static String GET_USER_TOKEN() { return USER_TOKEN; }
-    public static void SET_USER_TOKEN(String _newToken) { USER_TOKEN = _newToken; }
+
+    /** Keeps the user's Firebase Cloud Messaging token, and writes it to the token registry ('tokens/{deviceID}')
+     * > Only written when it changed, or was last written more than 'TokenRegistry.REFRESH_MS' ago
+     * > Called when the app starts and whenever the token rotates (possibly in a process where 'INITIALIZE_APP' never ran)
+     *
+     * @param _context - Any context
+     * @param _token - The current token
+     */
+    public static void REGISTER_TOKEN(Context _context, final String _token)
+    {
+        USER_TOKEN = _token;
+        final SharedPreferences prefs = _context.getSharedPreferences(TOKEN_PREFS_NAME, Context.MODE_PRIVATE);
+        final long now = System.currentTimeMillis();
+        if (!TokenRegistry.NEEDS_REGISTER(prefs.getString(PREF_TOKEN, null), prefs.getLong(PREF_TOKEN_TIME, 0), _token, now)) return;
+
+        Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put(TOKEN_KEY, _token);
+        hashMap.put(TOKEN_TIME_KEY, now);
+        String deviceID = Settings.Secure.getString(_context.getContentResolver(), Settings.Secure.ANDROID_ID);
+        DB.collection(TOKENS_COLLECTION_NAME).document(deviceID).set(hashMap).addOnCompleteListener(new OnCompleteListener<Void>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<Void> task)
+            {
+                if (task.isSuccessful()) prefs.edit().putString(PREF_TOKEN, _token).putLong(PREF_TOKEN_TIME, now).apply();
+                else LOG("Token registration failed: ", String.valueOf(task.getException()));
+            }
+        });
+    }
+
+    /** Follows a post's thread, so its new comments are pushed to this device (see 'ThreadTopics')
+     * > Called when this device creates a post or comments on one
+     * > Subscribes to the thread's topic, and unsubscribes from the least recently active threads over 'ThreadTopics.MAX_TOPICS'
+     *
+     * @param _docID - Unique firebase document identifier of the post
+     */
+    public static void FOLLOW_THREAD(final String _docID)
+    {
+        final SharedPreferences prefs = CONTEXT.getSharedPreferences(TOPICS_PREFS_NAME, Context.MODE_PRIVATE);
+        ThreadTopics.Follows follows = GET_FOLLOWS(prefs);
+        boolean following = follows.isFollowing(_docID);
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String dropped : follows.follow(_docID, now))
+        {
+            FirebaseMessaging.getInstance().unsubscribeFromTopic(ThreadTopics.TOPIC(dropped));
+            editor.remove(dropped);
+        }
+        editor.putLong(_docID, now).apply();
+        if (following) return;
+
+        FirebaseMessaging.getInstance().subscribeToTopic(ThreadTopics.TOPIC(_docID)).addOnCompleteListener(new OnCompleteListener<Void>()
+        {
+            @Override
+            public void onComplete(@NonNull Task<Void> task)
+            {
+                // forgotten, so the next comment tries again
+                if (task.isSuccessful()) return;
+                LOG("Topic subscription failed: ", String.valueOf(task.getException()));
+                if (GET_FOLLOWS(prefs).unfollow(_docID)) prefs.edit().remove(_docID).apply();
+            }
+        });
+    }
+
+    /** Stops following a post's thread (e.g. once the post is deleted), does nothing if it was not followed */
+    public static void UNFOLLOW_THREAD(String _docID)
+    {
+        SharedPreferences prefs = CONTEXT.getSharedPreferences(TOPICS_PREFS_NAME, Context.MODE_PRIVATE);
+        if (!GET_FOLLOWS(prefs).unfollow(_docID)) return;
+        FirebaseMessaging.getInstance().unsubscribeFromTopic(ThreadTopics.TOPIC(_docID));
+        prefs.edit().remove(_docID).apply();
+    }
+
+    // returns the threads followed, read from '_prefs' the first time
+    private static ThreadTopics.Follows GET_FOLLOWS(SharedPreferences _prefs)
+    {
+        if (FOLLOWS == null)
+        {
+            Map<String, Long> followed = new HashMap<>();
+            for (Map.Entry<String, ?> entry : _prefs.getAll().entrySet())
+            {
+                if (entry.getValue() instanceof Long) followed.put(entry.getKey(), (Long)entry.getValue());
+            }
+            FOLLOWS = new ThreadTopics.Follows(followed, ThreadTopics.MAX_TOPICS);
+        }
+        return FOLLOWS;
+    }
+
+    // tells 'FETCH_POLICY' about the default network: a new network starts its estimates over, the same one only updates
+    // whether it is metered (its capabilities change often, e.g. with every bandwidth estimate); a new network also refreshes the packs
+    private static void WATCH_NETWORK()
+    {
+        ConnectivityManager connectivity = CONTEXT.getSystemService(ConnectivityManager.class);
+        connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network _network, @NonNull NetworkCapabilities _capabilities)
+            {
+                boolean metered = !_capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+                if (_network.equals(POLICY_NETWORK)) FETCH_POLICY.setMetered(metered);
+                else
+                {
+                    POLICY_NETWORK = _network;
+                    FETCH_POLICY.onNetwork(metered, _capabilities.getLinkDownstreamBandwidthKbps());
+                    REFRESH_PACKS();
+                }
+            }
+        }, new Handler(Looper.getMainLooper()));
+    }
 
     /** Returns the system's current date as a string */
     public static String GET_DATE()
@@ -292,14 +896,332 @@ public class Toolkit
         Toast toast = Toast.makeText(CONTEXT, _str, Toast.LENGTH_SHORT);
         toast.setGravity(Gravity.BOTTOM, 0, 300);
         toast.show();
-        LOG("toast("+_str+")");
+        Metrics.INCREMENT(Metrics.COUNTER_TOASTS);
+        LOG("toast: ", _str);
     }
 
     /** Writes a given string to logs (Used for debigging)
+     * Pass a prefix and a value separately instead of concatenating them, so nothing is allocated when logging is off
      *
      * @param _str - The string to be logged
+     * @param _prefix - Constant part of the line to be logged
+     * @param _value - Variable part of the line to be logged
      * */
-    public static void LOG(String _str) { Log.i(LOG_TAG, _str); }
+    public static void LOG(String _str) { if (LOGGING) Log.i(LOG_TAG, _str); }
+    public static void LOG(String _prefix, String _value) { if (LOGGING) Log.i(LOG_TAG, _prefix + _value); }
+
+    /** Starts recording firebase's answers to the app's reads (see 'FirestoreTape'), stops playing a tape if one was */
+    public static void START_RECORDING()
+    {
+        PLAYER = null;
+        RECORDER = new FirestoreTape.Recorder(SystemClock.uptimeMillis());
+    }
+
+    /** Stops recording and writes the tape to a file in the app's private storage
+     *
+     * @return The file written to, or null if nothing was being recorded or it could not be written
+     */
+    public static File STOP_RECORDING()
+    {
+        FirestoreTape.Recorder recorder = RECORDER;
+        RECORDER = null;
+        if (recorder == null) return null;
+        File file = new File(CONTEXT.getFilesDir(), TAPE_FILE_NAME);
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            recorder.write(out);
+            LOG("Tape written to ", file.getPath() + " (" + recorder.size() + " reads)");
+            return file;
+        }
+        catch (IOException ex)
+        {
+            LOG("Unable to write tape: ", ex.getMessage());
+            return null;
+        }
+    }
+
+    /** Gives an answer decoded by a view model to the recorder, if recording
+     *
+     * @param _key - The read (see 'FirestoreTape.KEY_*')
+     * @param _sent - When the read was made ('SystemClock.uptimeMillis()')
+     * @param _documents - Documents answered, null if the read failed
+     */
+    public static void RECORD_READ(String _key, long _sent, List<FirestoreTape.Document> _documents)
+    {
+        FirestoreTape.Recorder recorder = RECORDER;
+        if (recorder != null) recorder.record(_key, _sent, SystemClock.uptimeMillis(), _documents);
+    }
+
+    /** Answers the app's reads from the last tape recorded instead of firebase, until 'STOP_PLAYING()'
+     *
+     * @param _speed - How many times faster than recorded answers arrive (1 for the recorded timing, 0 for at once)
+     * @return False if there is no tape, or it could not be read
+     */
+    public static boolean PLAY_TAPE(double _speed)
+    {
+        File file = new File(CONTEXT.getFilesDir(), TAPE_FILE_NAME);
+        try (InputStream in = new FileInputStream(file))
+        {
+            List<FirestoreTape.Exchange> tape = FirestoreTape.READ(in);
+            RECORDER = null;
+            PLAYER = new FirestoreTape.Player(tape, new FirestoreTape.Scheduler()
+            {
+                @Override
+                public void schedule(Runnable _task, long _delayMs) { TAPE_HANDLER.postDelayed(_task, _delayMs); }
+            }, _speed);
+            LOG("Playing tape of ", tape.size() + " reads");
+            return true;
+        }
+        catch (IOException ex)
+        {
+            LOG("Unable to read tape: ", ex.getMessage());
+            return false;
+        }
+    }
+
+    /** Stops playing a tape, reads go to firebase again (answers already scheduled still arrive) */
+    public static void STOP_PLAYING() { PLAYER = null; }
+
+    /** Downloads the posts of a map area, and the newest comments of its most active threads, into an offline pack (see 'RegionPack')
+     * > Runs in the background and toasts when done, replacing the pack of the same area if there is one
+     * > The map and discussions read from the packs whenever firebase can not be reached
+     *
+     * @param _bounds - The area, usually the map's visible area
+     * @return False if the area is too large for one pack (see 'RegionPack.MAX_CELLS')
+     */
+    public static boolean DOWNLOAD_PACK(GeoBounds _bounds)
+    {
+        final long[] cells = GeoCell.COVERING(_bounds, GeoCell.REGION_LEVEL, RegionPack.MAX_CELLS);
+        if (cells == null) return false;
+        Arrays.sort(cells);
+        PACK_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long buildStart = Metrics.BEGIN(Metrics.SECTION_PACK_BUILD);
+                try
+                {
+                    RegionPack.Reader pack = SAVE_PACK(Integer.toHexString(Arrays.hashCode(cells)) + PACK_SUFFIX,
+                            RegionPack.DOWNLOAD(PACK_SOURCE, cells, System.currentTimeMillis()));
+                    Metrics.END(Metrics.SECTION_PACK_BUILD, buildStart);
+                    LOG("Pack downloaded: ", pack.count() + " posts in " + cells.length + " regions");
+                    PACK_TOAST(R.string.pack_download_succ);
+                }
+                catch (IOException ex)
+                {
+                    LOG("Unable to download pack: ", ex.getMessage());
+                    PACK_TOAST(R.string.pack_download_err);
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Returns the summaries of a region's posts from the offline packs, or null if no pack covers it */
+    public static List<PostSummary> PACKED_REGION(long _cell)
+    {
+        for (RegionPack.Reader pack : PACKS.values())
+        {
+            List<PostSummary> posts = pack.region(_cell);
+            if (posts != null)
+            {
+                Metrics.INCREMENT(Metrics.COUNTER_PACK_READS);
+                return posts;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the summaries of every post in the offline packs (each once, packs may overlap), empty if there are none */
+    public static List<PostSummary> PACKED_POSTS()
+    {
+        List<PostSummary> posts = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (RegionPack.Reader pack : PACKS.values())
+        {
+            try
+            {
+                for (PostSummary post : pack.all()) if (seen.add(post.getDocID())) posts.add(post);
+            }
+            catch (IOException ex) { LOG("Unable to read pack: ", ex.getMessage()); }
+        }
+        if (!posts.isEmpty()) Metrics.INCREMENT(Metrics.COUNTER_PACK_READS);
+        return posts;
+    }
+
+    /** Returns a post and its newest comments from the offline packs, or null if no pack has it (inflates it, keep off the main thread)
+     *
+     * @param _docID - Unique firebase document identifier
+     */
+    public static FirestorePost PACKED_THREAD(String _docID)
+    {
+        for (RegionPack.Reader pack : PACKS.values())
+        {
+            try
+            {
+                FirestorePost post = pack.thread(_docID);
+                if (post != null)
+                {
+                    Metrics.INCREMENT(Metrics.COUNTER_PACK_READS);
+                    return post;
+                }
+            }
+            catch (IOException ex) { LOG("Unable to read pack: ", ex.getMessage()); }
+        }
+        return null;
+    }
+
+    // opens the packs downloaded before (in the background, before any refresh), files which are not readable packs are deleted
+    private static void OPEN_PACKS()
+    {
+        PACK_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                File[] files = new File(CONTEXT.getFilesDir(), PACKS_DIR_NAME).listFiles();
+                if (files == null) return;
+                for (File file : files)
+                {
+                    RegionPack.Reader pack = file.getName().endsWith(PACK_SUFFIX) ? OPEN_PACK(file) : null;
+                    if (pack != null) PACKS.put(file.getName(), pack);
+                    else file.delete();
+                }
+            }
+        });
+    }
+
+    // refreshes every pack with the posts and comments written since it was built or last refreshed (see 'RegionPack.REFRESH(...)'),
+    // at most once per 'PACK_REFRESH_INTERVAL_MS'
+    private static void REFRESH_PACKS()
+    {
+        long now = SystemClock.elapsedRealtime();
+        if (PACK_REFRESH_TIME != 0 && now - PACK_REFRESH_TIME < PACK_REFRESH_INTERVAL_MS) return;
+        PACK_REFRESH_TIME = now;
+        PACK_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Map.Entry<String, RegionPack.Reader> entry : PACKS.entrySet())
+                {
+                    long refreshStart = Metrics.BEGIN(Metrics.SECTION_PACK_REFRESH);
+                    try
+                    {
+                        SAVE_PACK(entry.getKey(), RegionPack.REFRESH(PACK_SOURCE, entry.getValue(), System.currentTimeMillis()));
+                        Metrics.END(Metrics.SECTION_PACK_REFRESH, refreshStart);
+                    }
+                    catch (IOException ex)
+                    {
+                        // most likely offline again, the next network retries
+                        LOG("Unable to refresh pack: ", ex.getMessage());
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    // writes a pack (to a temporary file first, so a pack is never read half written) and opens it in place of the old one
+    private static RegionPack.Reader SAVE_PACK(String _name, byte[] _pack) throws IOException
+    {
+        File dir = new File(CONTEXT.getFilesDir(), PACKS_DIR_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create " + dir);
+        File tmp = new File(dir, _name + TMP_SUFFIX), file = new File(dir, _name);
+        try (OutputStream out = new FileOutputStream(tmp))
+        {
+            out.write(_pack);
+        }
+        catch (IOException ex)
+        {
+            tmp.delete();
+            throw ex;
+        }
+        if (!tmp.renameTo(file))
+        {
+            tmp.delete();
+            throw new IOException("unable to replace " + file);
+        }
+        RegionPack.Reader pack = OPEN_PACK(file);
+        if (pack == null) throw new IOException("unable to open " + file);
+        PACKS.put(_name, pack);
+        return pack;
+    }
+
+    // maps a pack file into memory (the mapping outlives the file being replaced) and checks it, null if it is not a readable pack
+    private static RegionPack.Reader OPEN_PACK(File _file)
+    {
+        try (RandomAccessFile file = new RandomAccessFile(_file, "r"))
+        {
+            return new RegionPack.Reader(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+        catch (IOException ex)
+        {
+            LOG("Unable to open pack: ", ex.getMessage());
+            return null;
+        }
+    }
+
+    // shows a toast from 'PACK_EXECUTOR'
+    private static void PACK_TOAST(final int _strId)
+    {
+        PACK_HANDLER.post(new Runnable()
+        {
+            @Override
+            public void run() { TOAST(_strId); }
+        });
+    }
+
+    // waits for a firebase task (never on the main thread), its failure or a timeout as an IOException
+    private static <T> T AWAIT(Task<T> _task) throws IOException
+    {
+        try
+        {
+            return Tasks.await(_task, PACK_READ_TIMEOUT_S, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException | TimeoutException ex)
+        {
+            throw new IOException(ex);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    /** Turns metrics recording on or off, and remembers it across restarts (recorded values are kept either way)
+     *
+     * @param _enabled - True to record
+     */
+    public static void SET_METRICS_ENABLED(boolean _enabled)
+    {
+        Metrics.SET_ENABLED(_enabled);
+        CONTEXT.getSharedPreferences(METRICS_PREFS_NAME, Context.MODE_PRIVATE).edit().putBoolean(PREF_METRICS_ENABLED, _enabled).apply();
+    }
+
+    /** Writes a snapshot of all recorded metrics (then the main thread report and the network estimates) to a file in the app's private storage
+     *
+     * @return The file written to, or null if it could not be written
+     */
+    public static File DUMP_METRICS()
+    {
+        File file = new File(CONTEXT.getFilesDir(), METRICS_FILE_NAME);
+        try (Writer out = new FileWriter(file))
+        {
+            Metrics.WRITE_SNAPSHOT(out);
+            out.write(JankWatchdog.REPORT());
+            out.write(FETCH_POLICY + "\n");
+            LOG("Metrics written to ", file.getPath());
+            return file;
+        }
+        catch (IOException ex)
+        {
+            LOG("Unable to write metrics: ", ex.getMessage());
+            return null;
+        }
+    }
 }
 
 /** An object to store data for a comment, also used for firebase formatting */
@@ -307,14 +1229,22 @@ class Comment
 {
     private String commentText, commentDate, commentUser;
 
+    // document id (null for comments kept in the post document), and server time the comment was written
+    private String commentID;
+    private Date commentTime;
+
     public Comment(){}
 
     public String getCommentText() {return this.commentText;};
     public String getCommentDate() {return this.commentDate;};
     public String getCommentUser() {return this.commentUser;};
+    @Exclude public String getCommentID() {return this.commentID;};
+    public Date getCommentTime() {return this.commentTime;};
     public void setCommentText(String _txt) {this.commentText = _txt;};
     public void setCommentDate(String _date) {this.commentDate = _date;};
     public void setCommentUser(String _user) {this.commentUser = _user;};
+    @Exclude public void setCommentID(String _id) {this.commentID = _id;};
+    public void setCommentTime(Date _time) {this.commentTime = _time;};
 }
 
 /** An object to store data for a post, used to format data for firebase documents */
@@ -322,14 +1252,46 @@ class FirestorePost
 {
     // firebase data keys
     public static final String COLLECTION_NAME = "mcl", LAT_KEY = "lat", LNG_KEY = "lng", TITLE_KEY = "title", BODY_KEY = "body",
-            DATE_KEY = "date", COMMENTS_KEY = "comments", USERID_KEY = "userID", USERTOKEN_KEY = "usertoken";
+            DATE_KEY = "date", COMMENTS_KEY = "comments", USERID_KEY = "userID", USERTOKEN_KEY = "usertoken",
+            COMMENT_COUNT_KEY = "commentCount", LAST_ACTIVITY_KEY = "lastActivity", IMAGE_KEY = "image", THUMB_KEY = "thumb",
+            CELL_KEY = "cell";
 
-    private String title, body, date, userID, usertoken;
+    // 'usertoken' is only set on posts made before the token registry, senders look the owner's token up by 'userID'
+    // (see 'TokenRegistry'), a token copied into a post went stale as soon as it rotated
+
+    // activity counter shards (sub-collection of each post, see 'ShardedCounter')
+    public static final String SHARDS_COLLECTION_NAME = "shards", SHARD_COUNT_KEY = "count", SHARD_TIME_KEY = "time";
+
+    // comments (sub-collection of each post, one document per comment, see 'DiscussionViewModel')
+    public static final String COMMENTS_COLLECTION_NAME = "comments", COMMENT_TEXT_KEY = "commentText",
+            COMMENT_DATE_KEY = "commentDate", COMMENT_USER_KEY = "commentUser", COMMENT_TIME_KEY = "commentTime";
+
+    private String title, body, date, userID, usertoken, image, thumb;
     private ArrayList<Comment> comments;
     private double lat, lng;
+    private long commentCount, lastActivity, cell;
 
     public FirestorePost(){}
 
+    // used to rebuild a post read from the thread cache (see 'ThreadCache')
+    FirestorePost(String _title, String _body, String _date, String _userID, String _usertoken, String _image, String _thumb,
+                  double _lat, double _lng, long _commentCount, long _lastActivity, long _cell, ArrayList<Comment> _comments)
+    {
+        this.title = _title;
+        this.body = _body;
+        this.date = _date;
+        this.userID = _userID;
+        this.usertoken = _usertoken;
+        this.image = _image;
+        this.thumb = _thumb;
+        this.lat = _lat;
+        this.lng = _lng;
+        this.commentCount = _commentCount;
+        this.lastActivity = _lastActivity;
+        this.cell = _cell;
+        this.comments = _comments;
+    }
+
     public String getTitle(){return title;}
     public String getBody(){return body;}
     public String getDate(){return date;}
@@ -338,6 +1300,12 @@ class FirestorePost
     public double getLat(){return lat;}
     public double getLng(){return lng;}
     public ArrayList<Comment> getComments(){return comments;}
+    public long getCommentCount(){return commentCount;}
+    public long getLastActivity(){return lastActivity;}
+    public String getImage(){return image;}
+    public String getThumb(){return thumb;}
+    public long getCell(){return cell;}
 
     public void addComment(Comment _comment) {this.comments.add(0, _comment);}
+    public void setComments(ArrayList<Comment> _comments) {this.comments = _comments;}
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package michael.wilson.geochat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** How often a device may post and comment, and how many posts a region takes (see 'RateLimiter')
+ * > A device may create 'POST_BURST' posts at once, then one every 'POST_INTERVAL_MS', comments likewise
+ * > A region cell (see 'GeoCell.REGION_LEVEL') takes 'CELL_POST_BURST' posts at once, then one every 'CELL_POST_INTERVAL_MS',
+ *   so a flood of posts (from any number of devices) can not blow up every map refresh of the area
+ * > Comments are only limited per device, a busy thread is not a problem for the map, and a per-thread limit would
+ *   make its ledger document a write hotspot
+ * > A write over the limit is held back until its token arrives, up to 'MAX_DELAY_MS', and refused beyond that
+ *
+ * The same limits are charged against a ledger in firestore ('Toolkit'), in the transaction which makes the write,
+ * so reinstalling the app (which resets the limiters in memory) does not reset them.
+ */
+public class WriteLimits
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    public static final int KIND_POST = 0, KIND_COMMENT = 1;
+
+    // Per device
+    public static final int POST_BURST = 3, COMMENT_BURST = 5;
+    public static final long POST_INTERVAL_MS = 2 * 60 * 1000, COMMENT_INTERVAL_MS = 10 * 1000;
+
+    // Per region cell
+    public static final int CELL_POST_BURST = 20;
+    public static final long CELL_POST_INTERVAL_MS = 30 * 1000;
+
+    // Longest a write is held back, a write which would have to wait longer is refused
+    public static final long MAX_DELAY_MS = 60 * 1000;
+
+    // How early a write may reach the ledger (the ledger is charged with each device's own clock, and a held back write
+    // is sent once its token arrives by this device's limiter, which may be slightly ahead of the ledger)
+    public static final long LEDGER_SLACK_MS = 5 * 1000;
+
+    /** One bucket a write is charged against */
+    public static class Charge
+    {
+        // the bucket's limiter, and its key (unique over every limiter, so it is also the id of its ledger document)
+        public final RateLimiter limiter;
+        public final String key;
+
+        Charge(RateLimiter _limiter, String _key)
+        {
+            this.limiter = _limiter;
+            this.key = _key;
+        }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private final RateLimiter devicePosts = new RateLimiter(POST_BURST, POST_INTERVAL_MS);
+    private final RateLimiter deviceComments = new RateLimiter(COMMENT_BURST, COMMENT_INTERVAL_MS);
+    private final RateLimiter cellPosts = new RateLimiter(CELL_POST_BURST, CELL_POST_INTERVAL_MS);
+
+    /** Returns the buckets a write is charged against
+     *
+     * @param _kind - 'KIND_POST' or 'KIND_COMMENT'
+     * @param _deviceID - Device making the write (see 'Toolkit.GET_DEVICE_ID()')
+     * @param _cell - Region cell of the post (ignored for comments)
+     */
+    public List<Charge> charges(int _kind, String _deviceID, long _cell)
+    {
+        List<Charge> charges = new ArrayList<>(2);
+        if (_kind == KIND_POST)
+        {
+            charges.add(new Charge(devicePosts, "post_device_" + _deviceID));
+            charges.add(new Charge(cellPosts, "post_cell_" + _cell));
+        }
+        else charges.add(new Charge(deviceComments, "comment_device_" + _deviceID));
+        return charges;
+    }
+
+    /** Reserves a write's tokens in every bucket it is charged against
+     *
+     * @param _kind - 'KIND_POST' or 'KIND_COMMENT'
+     * @param _deviceID - Device making the write
+     * @param _cell - Region cell of the post (ignored for comments)
+     * @param _now - Current time in milliseconds
+     * @return How long to hold the write back (0 to write now), or 'RateLimiter.DENIED' (nothing is reserved then)
+     */
+    public long reserve(int _kind, String _deviceID, long _cell, long _now)
+    {
+        List<Charge> charges = charges(_kind, _deviceID, _cell);
+        long delay = 0;
+        for (int i = 0; i < charges.size(); i++)
+        {
+            Charge charge = charges.get(i);
+            long d = charge.limiter.reserve(charge.key, _now, MAX_DELAY_MS);
+            if (d == RateLimiter.DENIED)
+            {
+                // give back what the other buckets reserved, a refused write costs nothing
+                for (int j = 0; j < i; j++) charges.get(j).limiter.cancel(charges.get(j).key, _now);
+                return RateLimiter.DENIED;
+            }
+            delay = Math.max(delay, d);
+        }
+        return delay;
+    }
+
+    /** Drops buckets which are full again */
+    public void prune(long _now)
+    {
+        devicePosts.prune(_now);
+        deviceComments.prune(_now);
+        cellPosts.prune(_now);
+    }
+
+    /** Returns the time a ledger bucket is full again after charging a write to it, or 'RateLimiter.DENIED' if the write is too early
+     * > A stored time further ahead than any honest device could have set (a device with its clock set ahead) is ignored,
+     *   so one wrong clock can not block a whole region
+     *
+     * @param _charge - The bucket
+     * @param _storedTat - Time stored in the bucket's ledger document (0 if it has none)
+     * @param _now - Current time in milliseconds
+     */
+    public static long LEDGER_NEXT(Charge _charge, long _storedTat, long _now)
+    {
+        long interval = _charge.limiter.getIntervalMs();
+        long tat = _storedTat > _now + _charge.limiter.getBurst() * interval + MAX_DELAY_MS ? 0 : _storedTat;
+        long next = RateLimiter.NEXT_TAT(tat, _now, interval);
+        return RateLimiter.DELAY(next, _now, interval, _charge.limiter.getBurst()) > LEDGER_SLACK_MS ? RateLimiter.DENIED : next;
+    }
+}
@@ -0,0 +1,157 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulated benchmark of the fetch policy on network profiles from Wi-Fi down to EDGE: time to first useful content when opening
+ * a discussion (300 comments, not cached), when the map shows its first region, and when the zoomed out map shows its posts,
+ * with the fixed full-fidelity fetches against what the policy picks after a few requests. Also the bytes prefetched per viewport.
+ * A request waits the profile's latency, then shares the bandwidth equally with the requests transferring at the same time.
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class FetchPolicyBenchmark
+{
+    private static final long HEADER_BYTES = 1024, COMMENT_BYTES = 300, REGION_BYTES = 8 * 1024, POST_BYTES = 300;
+    private static final int COMMENTS = 300, VISIBLE_REGIONS = 6, ALL_POSTS = 2000;
+
+    /** A simulated network */
+    private static class Link
+    {
+        final String name;
+        final long latencyMs;
+        final double bytesPerMs;
+        final boolean metered;
+
+        Link(String _name, long _latencyMs, long _kbps, boolean _metered)
+        {
+            this.name = _name;
+            this.latencyMs = _latencyMs;
+            this.bytesPerMs = _kbps / 8.0;
+            this.metered = _metered;
+        }
+
+        // when each request finishes, all of them sent at time 0
+        long[] finish(long... _bytes)
+        {
+            int n = _bytes.length;
+            double[] remaining = new double[n];
+            for (int i = 0; i < n; i++) remaining[i] = _bytes[i];
+            long[] done = new long[n];
+
+            // every request starts transferring after the same latency, then they all share the bandwidth until the smallest is done
+            double time = latencyMs;
+            int left = n;
+            while (left > 0)
+            {
+                double smallest = Double.MAX_VALUE;
+                for (int i = 0; i < n; i++) if (remaining[i] >= 0) smallest = Math.min(smallest, remaining[i]);
+                time += smallest * left / bytesPerMs;
+                for (int i = 0; i < n; i++)
+                {
+                    if (remaining[i] < 0) continue;
+                    remaining[i] -= smallest;
+                    if (remaining[i] <= 1e-9)
+                    {
+                        remaining[i] = -1;
+                        done[i] = Math.round(time);
+                        left--;
+                    }
+                }
+            }
+            return done;
+        }
+
+        long first(long... _bytes)
+        {
+            long first = Long.MAX_VALUE;
+            for (long done : finish(_bytes)) first = Math.min(first, done);
+            return first;
+        }
+
+        long last(long... _bytes)
+        {
+            long last = 0;
+            for (long done : finish(_bytes)) last = Math.max(last, done);
+            return last;
+        }
+    }
+
+    private static final Link[] PROFILES = {
+            new Link("wifi", 20, 20000, false),
+            new Link("lte", 60, 5000, false),
+            new Link("lte_metered", 60, 5000, true),
+            new Link("3g", 200, 750, true),
+            new Link("edge", 600, 100, true)};
+
+    private static long[] repeat(long _bytes, int _count)
+    {
+        long[] all = new long[_count];
+        for (int i = 0; i < _count; i++) all[i] = _bytes;
+        return all;
+    }
+
+    @Test
+    public void timeToFirstContent_perProfile()
+    {
+        long[] fixedThread = new long[PROFILES.length], policyThread = new long[PROFILES.length];
+        long[] fixedRegion = new long[PROFILES.length], policyRegion = new long[PROFILES.length];
+        long[] prefetch = new long[PROFILES.length];
+        for (int p = 0; p < PROFILES.length; p++)
+        {
+            Link link = PROFILES[p];
+
+            // what the app has seen on this network before: a few region fetches and small reads, one at a time
+            FetchPolicy policy = new FetchPolicy();
+            policy.onNetwork(link.metered, 0);
+            for (int i = 0; i < 3; i++)
+            {
+                policy.onResponse(HEADER_BYTES, link.last(HEADER_BYTES));
+                policy.onResponse(REGION_BYTES * 2, link.last(REGION_BYTES * 2));
+            }
+
+            // discussion: the post and every comment, shown once both arrived, against the post shown alone (slow networks)
+            // or with the first page of comments
+            long allComments = COMMENTS * COMMENT_BYTES;
+            fixedThread[p] = link.last(HEADER_BYTES, allComments);
+            int page = policy.commentPageSize();
+            long pageBytes = page == 0 ? allComments : Math.min(page, COMMENTS) * COMMENT_BYTES;
+            long[] firstPage = link.finish(HEADER_BYTES, pageBytes);
+            policyThread[p] = policy.fullFidelity() ? Math.max(firstPage[0], firstPage[1]) : firstPage[0];
+
+            // the rest of the thread, one page after the other
+            long threadDone = Math.max(firstPage[0], firstPage[1]);
+            for (long fetched = pageBytes; fetched < allComments; fetched += pageBytes) threadDone += link.last(Math.min(pageBytes, allComments - fetched));
+
+            // map: the nearest visible region, while the others in flight share the bandwidth
+            fixedRegion[p] = link.first(repeat(REGION_BYTES, Math.min(VISIBLE_REGIONS, RegionScheduler.MAX_IN_FLIGHT)));
+            policyRegion[p] = link.first(repeat(REGION_BYTES, Math.min(VISIBLE_REGIONS, policy.maxInFlight())));
+            prefetch[p] = policy.prefetchBudgetBytes();
+
+            // zoomed out: every post, against the most active ones on a slow network
+            long fixedAll = link.last(ALL_POSTS * POST_BYTES);
+            int limit = policy.refreshLimit();
+            long policyAll = link.last((limit == 0 ? ALL_POSTS : limit) * POST_BYTES);
+
+            System.out.println("FetchPolicy " + link.name + " (" + link.latencyMs + "ms, " + Math.round(link.bytesPerMs * 8) + "kbps"
+                    + (link.metered ? ", metered" : "") + "): tier=" + FetchPolicy.TIER_NAMES[policy.tier()] + " page=" + page
+                    + " in_flight=" + policy.maxInFlight() + "; discussion first content fixed=" + fixedThread[p] + "ms policy="
+                    + policyThread[p] + "ms (whole thread " + threadDone + "ms); first region fixed=" + fixedRegion[p] + "ms policy="
+                    + policyRegion[p] + "ms; zoomed out fixed=" + fixedAll + "ms policy=" + policyAll + "ms; prefetch per viewport fixed="
+                    + RegionScheduler.PREFETCH_BUDGET_BYTES / 1024 + "KB policy=" + prefetch[p] / 1024 + "KB");
+        }
+
+        // fast networks fetch as before
+        assertEquals(fixedThread[0], policyThread[0]);
+        assertEquals(fixedRegion[0], policyRegion[0]);
+        assertEquals(RegionScheduler.PREFETCH_BUDGET_BYTES, prefetch[0]);
+
+        // metered networks prefetch less, slower ones show something much sooner
+        assertTrue(prefetch[2] < prefetch[1]);
+        int edge = PROFILES.length - 1;
+        assertTrue(policyThread[edge] * 2 < fixedThread[edge]);
+        assertTrue(policyRegion[edge] < fixedRegion[edge]);
+        assertTrue(policyThread[3] <= fixedThread[3]);
+    }
+}
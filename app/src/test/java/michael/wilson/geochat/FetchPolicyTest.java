@@ -0,0 +1,120 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the fetch policy: the tier learnt from simulated responses and what each tier fetches, metered networks prefetching
+ * less, a new network starting over, and paging comments.
+ */
+public class FetchPolicyTest
+{
+    // reports the responses a network with the given latency and bandwidth (kilobits per second) gives: a small one then a larger one,
+    // '_count' times
+    static void measure(FetchPolicy _policy, long _latencyMs, long _kbps, int _count)
+    {
+        double bytesPerMs = _kbps / 8.0;
+        for (int i = 0; i < _count; i++)
+        {
+            _policy.onResponse(1024, Math.round(_latencyMs + 1024 / bytesPerMs));
+            _policy.onResponse(24 * 1024, Math.round(_latencyMs + 24 * 1024 / bytesPerMs));
+        }
+    }
+
+    @Test
+    public void tier_learntFromResponses()
+    {
+        FetchPolicy policy = new FetchPolicy();
+
+        measure(policy, 20, 20000, 3);
+        assertEquals(FetchPolicy.TIER_FAST, policy.tier());
+        assertTrue(policy.fullFidelity());
+        assertEquals(0, policy.commentPageSize());
+        assertEquals(0, policy.refreshLimit());
+        assertEquals(RegionScheduler.MAX_IN_FLIGHT, policy.maxInFlight());
+        assertEquals(RegionScheduler.PREFETCH_BUDGET_BYTES, policy.prefetchBudgetBytes());
+
+        // the estimates follow the network down, close to what it really takes
+        measure(policy, 200, 750, 10);
+        assertEquals(FetchPolicy.TIER_MEDIUM, policy.tier());
+        double actual = 200 + FetchPolicy.TIER_PROBE_BYTES / (750 / 8.0);
+        assertEquals(actual, policy.expectedMs(FetchPolicy.TIER_PROBE_BYTES), actual * 0.1);
+        assertTrue(policy.fullFidelity());
+        assertEquals(FetchPolicy.COMMENT_PAGE_MEDIUM, policy.commentPageSize());
+        assertTrue(policy.prefetchBudgetBytes() < RegionScheduler.PREFETCH_BUDGET_BYTES);
+
+        measure(policy, 600, 100, 10);
+        assertEquals(FetchPolicy.TIER_SLOW, policy.tier());
+        assertFalse(policy.fullFidelity());
+        assertEquals(FetchPolicy.COMMENT_PAGE_SLOW, policy.commentPageSize());
+        assertEquals(FetchPolicy.REFRESH_LIMIT_SLOW, policy.refreshLimit());
+        assertEquals(FetchPolicy.MAX_IN_FLIGHT_SLOW, policy.maxInFlight());
+        assertEquals(0, policy.prefetchBudgetBytes());
+    }
+
+    @Test
+    public void metered_prefetchesOneTierLess()
+    {
+        FetchPolicy policy = new FetchPolicy();
+        policy.onNetwork(true, 0);
+        measure(policy, 20, 20000, 3);
+        assertEquals(FetchPolicy.TIER_FAST, policy.tier());
+        assertEquals(RegionScheduler.PREFETCH_BUDGET_BYTES / 4, policy.prefetchBudgetBytes());
+
+        // only prefetching backs off, everything shown is fetched as on any fast network
+        assertEquals(0, policy.commentPageSize());
+        assertEquals(RegionScheduler.MAX_IN_FLIGHT, policy.maxInFlight());
+
+        measure(policy, 200, 750, 10);
+        assertEquals(0, policy.prefetchBudgetBytes());
+
+        // no longer metered, the estimates are kept
+        policy.setMetered(false);
+        assertEquals(FetchPolicy.TIER_MEDIUM, policy.tier());
+        assertEquals(RegionScheduler.PREFETCH_BUDGET_BYTES / 4, policy.prefetchBudgetBytes());
+    }
+
+    @Test
+    public void newNetwork_startsOver()
+    {
+        FetchPolicy policy = new FetchPolicy();
+        measure(policy, 600, 100, 10);
+        assertEquals(FetchPolicy.TIER_SLOW, policy.tier());
+
+        // the link's own estimate is used until responses come back
+        policy.onNetwork(false, 50000);
+        assertEquals(FetchPolicy.TIER_FAST, policy.tier());
+        policy.onNetwork(false, 50);
+        assertEquals(FetchPolicy.TIER_SLOW, policy.tier());
+
+        // the first response replaces the guess rather than being averaged with it
+        policy.onNetwork(false, 50);
+        measure(policy, 20, 20000, 1);
+        assertEquals(FetchPolicy.TIER_FAST, policy.tier());
+    }
+
+    @Test
+    public void responses_smallOnesOnlyMeasureLatency()
+    {
+        FetchPolicy policy = new FetchPolicy();
+        measure(policy, 50, 8000, 5);
+        long before = policy.expectedMs(1024 * 1024) - policy.expectedMs(0);
+
+        // slow small responses (e.g. a busy server) raise the latency, not the time per byte
+        for (int i = 0; i < 10; i++) policy.onResponse(512, 400);
+        assertEquals(400, policy.expectedMs(0), 40);
+        assertEquals(before, policy.expectedMs(1024 * 1024) - policy.expectedMs(0), 1);
+    }
+
+    @Test
+    public void nextPage_untilThreadComplete()
+    {
+        assertEquals(25, FetchPolicy.NEXT_PAGE(25, 25, 1000, 2000));
+        assertEquals(FetchPolicy.NO_PAGE, FetchPolicy.NEXT_PAGE(24, 25, 1000, 2000));
+        assertEquals(FetchPolicy.NO_PAGE, FetchPolicy.NEXT_PAGE(500, 0, 1000, 2000));
+
+        // a full page written in the same millisecond as the watermark, the rest is fetched at once
+        assertEquals(0, FetchPolicy.NEXT_PAGE(25, 25, 1000, 1000));
+    }
+}
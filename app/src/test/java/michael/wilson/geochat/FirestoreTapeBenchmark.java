@@ -0,0 +1,265 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offline benchmark of a recorded city of 20k posts: the session (every post, then each region, then 50 discussions of 40
+ * comments) is written to a tape, read back, and played through what the app does with the answers: index and summarize the
+ * posts (as 'MapViewModel.LOAD(...)'), draw them through a 'MarkerSet', rank the hot ones, and merge the threads' comments.
+ * Also checks that two replays end with the same map, and that a replay's timing is the recording's divided by the speed.
+ * Times are the best of 'RUNS' on the JVM. Results are printed, the assertions only catch gross regressions.
+ */
+public class FirestoreTapeBenchmark
+{
+    private static final int POSTS = 20000, THREADS = 50, COMMENTS = 40, USERS = 2000, RUNS = 3, HOT = 200;
+
+    // the city (~45 by 60km), and a downtown viewport
+    private static final double SOUTH = 51.28, WEST = -0.51, NORTH = 51.70, EAST = 0.33;
+    private static final GeoBounds VIEWPORT = new GeoBounds(51.49, -0.15, 51.53, -0.09);
+
+    // the network the session was recorded on, and the gap between the regions' reads
+    private static final long LATENCY_MS = 80, REGION_GAP_MS = 40;
+    private static final double BYTES_PER_MS = 500;
+
+    private static final String[] WORDS = {"lost", "cat", "found", "keys", "street", "party", "market", "bike", "stolen", "park",
+            "concert", "tonight", "free", "sofa", "dog", "walk", "noise", "complaint", "pub", "quiz", "road", "works", "bus", "late"};
+
+    private static String words(Random _random, int _count)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < _count; i++) text.append(i == 0 ? "" : " ").append(WORDS[_random.nextInt(WORDS.length)]);
+        return text.toString();
+    }
+
+    private static long duration(long _bytes) { return LATENCY_MS + Math.round(_bytes / BYTES_PER_MS); }
+
+    // records a session over the city as the app reads it: every post, then each region, then some discussions
+    private static FirestoreTape.Recorder record()
+    {
+        Random random = new Random(11);
+        List<FirestoreTape.Document> all = new ArrayList<>();
+        Map<Long, List<FirestoreTape.Document>> regions = new LinkedHashMap<>();
+        long allBytes = 0;
+        for (int i = 0; i < POSTS; i++)
+        {
+            double lat = SOUTH + random.nextDouble() * (NORTH - SOUTH), lng = WEST + random.nextDouble() * (EAST - WEST);
+            long cell = GeoCell.ID(lat, lng, GeoCell.REGION_LEVEL);
+            String date = String.format("%02d/%02d/2020", 1 + random.nextInt(28), 1 + random.nextInt(12));
+            FirestorePost post = new FirestorePost(words(random, 3), words(random, 25), date, "device" + random.nextInt(USERS), null,
+                    null, null, lat, lng, random.nextInt(60), 1590000000000L + random.nextInt(1000000000), cell, null);
+            FirestoreTape.Document document = new FirestoreTape.Document("3-post" + i, post);
+            all.add(document);
+            allBytes += ThreadCache.ESTIMATE_BYTES(post);
+            if (!regions.containsKey(cell)) regions.put(cell, new ArrayList<FirestoreTape.Document>());
+            regions.get(cell).add(document);
+        }
+
+        FirestoreTape.Recorder recorder = new FirestoreTape.Recorder(0);
+        long now = 0;
+        recorder.record(FirestoreTape.KEY_ALL(0), now, now + duration(allBytes), all);
+        now += duration(allBytes);
+        for (Map.Entry<Long, List<FirestoreTape.Document>> region : regions.entrySet())
+        {
+            long bytes = 0;
+            for (FirestoreTape.Document document : region.getValue()) bytes += ThreadCache.ESTIMATE_BYTES(document.getPost());
+            recorder.record(FirestoreTape.KEY_REGION(region.getKey()), now, now + duration(bytes), region.getValue());
+            now += REGION_GAP_MS;
+        }
+        for (int t = 0; t < THREADS; t++)
+        {
+            FirestoreTape.Document opened = all.get(random.nextInt(POSTS));
+            List<FirestoreTape.Document> page = new ArrayList<>();
+            page.add(opened);
+            long bytes = ThreadCache.ESTIMATE_BYTES(opened.getPost());
+            for (int c = 0; c < COMMENTS; c++)
+            {
+                Comment comment = ThreadTopicsTest.comment(opened.getID() + "c" + c, words(random, 12), "device" + random.nextInt(USERS),
+                        1590000000000L + c * 60000L);
+                page.add(new FirestoreTape.Document(comment.getCommentID(), comment));
+                bytes += ThreadCache.ESTIMATE_BYTES(comment);
+            }
+            recorder.record(FirestoreTape.KEY_THREAD(opened.getID(), ThreadCache.NO_WATERMARK, 0), now, now + duration(bytes), page);
+            now += duration(bytes);
+        }
+        return recorder;
+    }
+
+    // what the map does with decoded posts (see 'MapViewModel.LOAD(...)')
+    private static List<PostSummary> load(List<FirestoreTape.Document> _documents, SearchIndex _index)
+    {
+        List<PostSummary> loaded = new ArrayList<>(_documents.size());
+        for (FirestoreTape.Document document : _documents)
+        {
+            FirestorePost tmp = document.getPost();
+            _index.add(document.getID(), tmp.getTitle(), tmp.getBody(), tmp.getLat(), tmp.getLng());
+            PostSummary summary = new PostSummary(document.getID(), tmp.getTitle(), null, tmp.getLat(), tmp.getLng(), null);
+            summary.setActivity(tmp.getCommentCount(), tmp.getLastActivity());
+            summary.setDetails(tmp.getDate(), tmp.getUserID());
+            loaded.add(summary);
+        }
+        return loaded;
+    }
+
+    private static MarkerSet<Integer> markers()
+    {
+        return new MarkerSet<>(new MarkerSet.Renderer<Integer>()
+        {
+            @Override
+            public Integer add(MarkerSet<Integer> _set, int _slot) { return _slot; }
+
+            @Override
+            public void remove(Integer _marker) {}
+        }, MarkerSet.DEFAULT_BUDGET);
+    }
+
+    /** The app's state after a replay */
+    private static class Session implements FirestoreTape.Callback
+    {
+        final SearchIndex index = new SearchIndex();
+        final MarkerSet<Integer> markers = markers();
+        final Map<Long, List<PostSummary>> regions = new LinkedHashMap<>();
+        final Map<String, List<Comment>> threads = new LinkedHashMap<>();
+        List<PostSummary> shown = new ArrayList<>();
+
+        @Override
+        public void onAnswer(FirestoreTape.Exchange _answer)
+        {
+            String key = _answer.getKey();
+            if (key.startsWith("thread/"))
+            {
+                FirestorePost post = null;
+                List<Comment> fetched = new ArrayList<>();
+                for (FirestoreTape.Document document : _answer.getDocuments())
+                {
+                    if (document.getPost() != null) post = document.getPost();
+                    else fetched.add(document.getComment());
+                }
+                threads.put(key, ThreadCache.MERGE(null, fetched, post.getComments()));
+                return;
+            }
+            List<PostSummary> loaded = load(_answer.getDocuments(), index);
+            if (key.startsWith("region/")) regions.put(Long.parseLong(key.substring("region/".length())), loaded);
+            else
+            {
+                index.compact();
+                shown = loaded;
+            }
+            markers.setPosts(shown);
+            markers.update(VIEWPORT, 0);
+        }
+
+        // what the map shows, the hot posts, a search, and the threads opened
+        String fingerprint()
+        {
+            StringBuilder out = new StringBuilder();
+            out.append(markers.size()).append('/').append(markers.liveCount()).append('/').append(regions.size());
+            for (PostSummary post : HotPostRanker.TOP_K(shown, VIEWPORT, 10)) out.append(',').append(post.getDocID());
+            for (PostSummary post : index.search("lost cat", VIEWPORT, 10)) out.append(';').append(post.getDocID());
+            for (List<Comment> thread : threads.values()) out.append('|').append(thread.size()).append(thread.get(0).getCommentID());
+            return out.toString();
+        }
+    }
+
+    private static Session replay(List<FirestoreTape.Exchange> _tape)
+    {
+        FirestoreTapeTest.SimScheduler clock = new FirestoreTapeTest.SimScheduler();
+        Session session = new Session();
+        new FirestoreTape.Player(_tape, clock, 0).play(session);
+        clock.run();
+        return session;
+    }
+
+    @Test
+    public void city20k_recordDecodeRefreshRender() throws IOException
+    {
+        long recordMs = Long.MAX_VALUE, writeMs = Long.MAX_VALUE, decodeMs = Long.MAX_VALUE, refreshMs = Long.MAX_VALUE;
+        long renderUs = Long.MAX_VALUE, hotUs = Long.MAX_VALUE, sessionMs = Long.MAX_VALUE;
+        byte[] tapeBytes = null;
+        int rawBytes = 0;
+        List<FirestoreTape.Exchange> tape = null;
+        for (int run = 0; run < RUNS; run++)
+        {
+            long start = System.nanoTime();
+            FirestoreTape.Recorder recorder = record();
+            recordMs = Math.min(recordMs, (System.nanoTime() - start) / 1000000);
+            rawBytes = recorder.bytes();
+
+            start = System.nanoTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            recorder.write(out);
+            tapeBytes = out.toByteArray();
+            writeMs = Math.min(writeMs, (System.nanoTime() - start) / 1000000);
+
+            start = System.nanoTime();
+            tape = FirestoreTape.READ(new ByteArrayInputStream(tapeBytes));
+            decodeMs = Math.min(decodeMs, (System.nanoTime() - start) / 1000000);
+
+            // the full refresh: index and summarize every post
+            List<FirestoreTape.Document> all = tape.get(0).getDocuments();
+            start = System.nanoTime();
+            SearchIndex index = new SearchIndex();
+            List<PostSummary> loaded = load(all, index);
+            index.compact();
+            refreshMs = Math.min(refreshMs, (System.nanoTime() - start) / 1000000);
+
+            // drawing them, then ranking the hot ones in view
+            start = System.nanoTime();
+            MarkerSet<Integer> markers = markers();
+            markers.setPosts(loaded);
+            markers.update(VIEWPORT, 0);
+            renderUs = Math.min(renderUs, (System.nanoTime() - start) / 1000);
+            start = System.nanoTime();
+            HotPostRanker.TOP_K(loaded, VIEWPORT, HOT);
+            hotUs = Math.min(hotUs, (System.nanoTime() - start) / 1000);
+
+            start = System.nanoTime();
+            replay(tape);
+            sessionMs = Math.min(sessionMs, (System.nanoTime() - start) / 1000000);
+        }
+
+        // the same tape always gives the same app state
+        String first = replay(tape).fingerprint(), second = replay(tape).fingerprint();
+        assertEquals(first, second);
+        assertEquals(POSTS, tape.get(0).getDocuments().size());
+
+        // played with the recorded timing, and ten times faster
+        long recordedEnd = 0;
+        for (FirestoreTape.Exchange exchange : tape) recordedEnd = Math.max(recordedEnd, exchange.getSentMs() + exchange.getDurationMs());
+        long[] ends = new long[2];
+        double[] speeds = {1, 10};
+        for (int s = 0; s < speeds.length; s++)
+        {
+            FirestoreTapeTest.SimScheduler clock = new FirestoreTapeTest.SimScheduler();
+            FirestoreTapeTest.Answers answers = new FirestoreTapeTest.Answers(clock);
+            new FirestoreTape.Player(tape, clock, speeds[s]).play(answers);
+            clock.run();
+            ends[s] = clock.now;
+        }
+        assertEquals(recordedEnd, ends[0]);
+        assertEquals(recordedEnd / 10.0, ends[1], 1);
+
+        System.out.println("FirestoreTape city " + POSTS + " posts, " + tape.size() + " reads (" + (tape.size() - 1 - THREADS)
+                + " regions, " + THREADS + " threads of " + COMMENTS + " comments): tape " + tapeBytes.length / 1024 + "KB gzipped ("
+                + rawBytes / 1024 + "KB raw, " + tapeBytes.length / (POSTS / 1000) / 1024 + "KB per 1k posts), recorded session "
+                + recordedEnd + "ms replayed in " + ends[1] + "ms at 10x; record=" + recordMs + "ms write=" + writeMs + "ms decode="
+                + decodeMs + "ms refresh=" + refreshMs + "ms render=" + renderUs + "us hot=" + hotUs + "us whole session at once="
+                + sessionMs + "ms");
+
+        // gross regressions only (a 20k post city should decode, index and draw in seconds, not minutes)
+        assertTrue(decodeMs < 10000);
+        assertTrue(refreshMs < 20000);
+        assertTrue(renderUs < 5000000);
+        assertTrue(tapeBytes.length < rawBytes);
+    }
+}
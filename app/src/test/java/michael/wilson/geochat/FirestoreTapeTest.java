@@ -0,0 +1,221 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for firestore tapes: what is recorded reads back the same, other files are refused, and a player answers each key
+ * in recorded order with the recorded timing scaled by its speed.
+ */
+public class FirestoreTapeTest
+{
+    /** A simulated clock: tasks run in time order (then in the order they were scheduled) */
+    static class SimScheduler implements FirestoreTape.Scheduler
+    {
+        private final PriorityQueue<long[]> queue = new PriorityQueue<>(16, new Comparator<long[]>()
+        {
+            @Override
+            public int compare(long[] _a, long[] _b) { return _a[0] != _b[0] ? Long.compare(_a[0], _b[0]) : Long.compare(_a[1], _b[1]); }
+        });
+        private final List<Runnable> tasks = new ArrayList<>();
+        long now;
+
+        @Override
+        public void schedule(Runnable _task, long _delayMs)
+        {
+            queue.add(new long[]{now + _delayMs, tasks.size()});
+            tasks.add(_task);
+        }
+
+        void run()
+        {
+            while (!queue.isEmpty())
+            {
+                long[] next = queue.poll();
+                now = next[0];
+                tasks.get((int)next[1]).run();
+            }
+        }
+    }
+
+    /** Collects the answers given, and when */
+    static class Answers implements FirestoreTape.Callback
+    {
+        final SimScheduler clock;
+        final List<FirestoreTape.Exchange> answers = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        Answers(SimScheduler _clock) { this.clock = _clock; }
+
+        @Override
+        public void onAnswer(FirestoreTape.Exchange _answer)
+        {
+            answers.add(_answer);
+            times.add(clock.now);
+        }
+    }
+
+    static FirestorePost post(String _title, double _lat, double _lng, ArrayList<Comment> _comments)
+    {
+        return new FirestorePost(_title, "Body of " + _title, "01/06/2020", "device1", null, null, null, _lat, _lng, 3, 5000,
+                GeoCell.ID(_lat, _lng, GeoCell.REGION_LEVEL), _comments);
+    }
+
+    private static List<FirestoreTape.Exchange> roundTrip(FirestoreTape.Recorder _recorder) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _recorder.write(out);
+        return FirestoreTape.READ(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void recorded_readsBackTheSame() throws IOException
+    {
+        FirestoreTape.Recorder recorder = new FirestoreTape.Recorder(1000);
+        Comment embedded = ThreadTopicsTest.comment(null, "kept in the post", "device3", 0);
+        embedded.setCommentTime(null);
+        FirestorePost lost = post("Lost cat", 51.5, -0.12, new ArrayList<>(Collections.singletonList(embedded)));
+        FirestorePost found = post("Found keys", 51.51, -0.13, null);
+        recorder.record(FirestoreTape.KEY_REGION(42), 1100, 1350, Arrays.asList(new FirestoreTape.Document("3-a", lost),
+                new FirestoreTape.Document("3-b", found)));
+        recorder.record(FirestoreTape.KEY_THREAD("3-a", 0, 25), 1400, 1500, Arrays.asList(new FirestoreTape.Document("3-a", lost),
+                new FirestoreTape.Document("c1", ThreadTopicsTest.comment("c1", "Seen near the park", "device2", 7000))));
+        recorder.record(FirestoreTape.KEY_ALL(0), 2000, 2600, null);
+
+        // recorded as it was, whatever happens to the objects afterwards
+        lost.setComments(new ArrayList<Comment>());
+        assertEquals(3, recorder.size());
+
+        List<FirestoreTape.Exchange> tape = roundTrip(recorder);
+        assertEquals(3, tape.size());
+        FirestoreTape.Exchange region = tape.get(0);
+        assertEquals("region/42", region.getKey());
+        assertEquals(100, region.getSentMs());
+        assertEquals(250, region.getDurationMs());
+        assertFalse(region.isFailed());
+        assertEquals("3-a", region.getDocuments().get(0).getID());
+        FirestorePost read = region.getDocuments().get(0).getPost();
+        assertEquals("Lost cat", read.getTitle());
+        assertEquals(51.5, read.getLat(), 0);
+        assertEquals(lost.getCell(), read.getCell());
+        assertEquals(1, read.getComments().size());
+        assertEquals("kept in the post", read.getComments().get(0).getCommentText());
+        assertNull(read.getComments().get(0).getCommentTime());
+        assertEquals("Found keys", region.getDocuments().get(1).getPost().getTitle());
+
+        Comment comment = tape.get(1).getDocuments().get(1).getComment();
+        assertEquals("c1", comment.getCommentID());
+        assertEquals("Seen near the park", comment.getCommentText());
+        assertEquals(7000, comment.getCommentTime().getTime());
+        assertNull(tape.get(1).getDocuments().get(1).getPost());
+
+        assertTrue(tape.get(2).isFailed());
+        assertNull(tape.get(2).getDocuments());
+    }
+
+    @Test
+    public void read_refusesOtherFiles() throws IOException
+    {
+        try
+        {
+            FirestoreTape.READ(new ByteArrayInputStream("not a tape".getBytes()));
+            fail();
+        }
+        catch (IOException ex) { /* expected */ }
+
+        ByteArrayOutputStream other = new ByteArrayOutputStream();
+        try (GZIPOutputStream zip = new GZIPOutputStream(other)) { zip.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}); }
+        try
+        {
+            FirestoreTape.READ(new ByteArrayInputStream(other.toByteArray()));
+            fail();
+        }
+        catch (IOException ex) { /* expected */ }
+
+        // a tape cut short
+        FirestoreTape.Recorder recorder = new FirestoreTape.Recorder(0);
+        recorder.record(FirestoreTape.KEY_REGION(1), 0, 10, Collections.singletonList(new FirestoreTape.Document("a", post("a", 1, 1, null))));
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        recorder.write(whole);
+        byte[] cut = Arrays.copyOf(whole.toByteArray(), whole.size() - 12);
+        try
+        {
+            FirestoreTape.READ(new ByteArrayInputStream(cut));
+            fail();
+        }
+        catch (IOException ex) { /* expected */ }
+    }
+
+    @Test
+    public void player_answersEachKeyInRecordedOrder_atScaledTimes() throws IOException
+    {
+        FirestoreTape.Recorder recorder = new FirestoreTape.Recorder(0);
+        List<FirestoreTape.Document> first = Collections.singletonList(new FirestoreTape.Document("a", post("first", 1, 1, null)));
+        List<FirestoreTape.Document> second = Collections.singletonList(new FirestoreTape.Document("a", post("second", 1, 1, null)));
+        recorder.record(FirestoreTape.KEY_ALL(0), 0, 400, first);
+        recorder.record(FirestoreTape.KEY_REGION(7), 100, 300, null);
+        recorder.record(FirestoreTape.KEY_ALL(0), 5000, 5800, second);
+        List<FirestoreTape.Exchange> tape = roundTrip(recorder);
+
+        for (double speed : new double[]{1, 4, 0})
+        {
+            SimScheduler clock = new SimScheduler();
+            FirestoreTape.Player player = new FirestoreTape.Player(tape, clock, speed);
+            Answers answers = new Answers(clock);
+            player.read(FirestoreTape.KEY_ALL(0), answers);
+            clock.run();
+            player.read(FirestoreTape.KEY_ALL(0), answers);
+            clock.run();
+            player.read(FirestoreTape.KEY_ALL(0), answers);
+            clock.run();
+            player.read(FirestoreTape.KEY_REGION(7), answers);
+            clock.run();
+            player.read(FirestoreTape.KEY_REGION(8), answers);
+            clock.run();
+
+            assertEquals("first", answers.answers.get(0).getDocuments().get(0).getPost().getTitle());
+            assertEquals("second", answers.answers.get(1).getDocuments().get(0).getPost().getTitle());
+            assertEquals("second", answers.answers.get(2).getDocuments().get(0).getPost().getTitle());
+            assertTrue(answers.answers.get(3).isFailed());
+            assertTrue(answers.answers.get(4).isFailed());
+            assertEquals(4, player.getAnswered());
+            assertEquals(1, player.getMissed());
+
+            // every read took its recorded time divided by the speed, the key never recorded failed at once
+            long scale = speed == 0 ? 0 : 1;
+            assertEquals(scale * Math.round(400 / Math.max(speed, 1)), (long)answers.times.get(0));
+            assertEquals(answers.times.get(0) + scale * Math.round(800 / Math.max(speed, 1)), (long)answers.times.get(1));
+            assertEquals(answers.times.get(3), answers.times.get(4));
+        }
+    }
+
+    @Test
+    public void play_answersTheWholeSessionAtRecordedTimes() throws IOException
+    {
+        FirestoreTape.Recorder recorder = new FirestoreTape.Recorder(1000);
+        recorder.record(FirestoreTape.KEY_ALL(0), 1000, 1900, Collections.<FirestoreTape.Document>emptyList());
+        recorder.record(FirestoreTape.KEY_REGION(1), 1200, 1300, Collections.<FirestoreTape.Document>emptyList());
+        recorder.record(FirestoreTape.KEY_REGION(2), 3000, 3100, null);
+        List<FirestoreTape.Exchange> tape = roundTrip(recorder);
+
+        SimScheduler clock = new SimScheduler();
+        Answers answers = new Answers(clock);
+        new FirestoreTape.Player(tape, clock, 2).play(answers);
+        clock.run();
+        assertEquals(Arrays.asList("region/1", "all/0", "region/2"), Arrays.asList(answers.answers.get(0).getKey(),
+                answers.answers.get(1).getKey(), answers.answers.get(2).getKey()));
+        assertEquals(Arrays.asList(150L, 450L, 1050L), answers.times);
+    }
+}
@@ -0,0 +1,94 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the fixed geographic grid.
+ */
+public class GeoCellTest
+{
+    @Test
+    public void id_roundTripsThroughBounds()
+    {
+        long id = GeoCell.ID(51.507351, -0.127758, GeoCell.REGION_LEVEL);
+        GeoBounds bounds = GeoCell.BOUNDS(id);
+
+        assertEquals(GeoCell.REGION_LEVEL, GeoCell.LEVEL(id));
+        assertTrue(bounds.contains(51.507351, -0.127758));
+        assertEquals(id, GeoCell.ID(GeoCell.CENTER_LAT(id), GeoCell.CENTER_LNG(id), GeoCell.REGION_LEVEL));
+    }
+
+    @Test
+    public void id_levelsNeverCollide()
+    {
+        assertNotEquals(GeoCell.ID(-89, -179, 3), GeoCell.ID(-89, -179, 4));
+        assertNotEquals(GeoCell.OF(0, 0, 0), GeoCell.OF(1, 0, 0));
+    }
+
+    @Test
+    public void poles_areClamped()
+    {
+        long north = GeoCell.ID(90, 0, 5), south = GeoCell.ID(-90, 0, 5);
+
+        assertEquals(GeoCell.ROWS(5) - 1, GeoCell.ROW(north));
+        assertEquals(0, GeoCell.ROW(south));
+        assertEquals(north, GeoCell.NEIGHBOUR(north, 0, 1));
+    }
+
+    @Test
+    public void neighbour_wrapsAtAntimeridian()
+    {
+        long east = GeoCell.ID(0, 179.99, 6);
+        long west = GeoCell.ID(0, -179.99, 6);
+
+        assertEquals(west, GeoCell.NEIGHBOUR(east, 1, 0));
+        assertEquals(east, GeoCell.NEIGHBOUR(west, -1, 0));
+    }
+
+    @Test
+    public void parent_containsChild()
+    {
+        long child = GeoCell.ID(-33.87, 151.21, GeoCell.REGION_LEVEL);
+
+        assertEquals(GeoCell.ID(-33.87, 151.21, 4), GeoCell.PARENT(child, 4));
+        assertEquals(child, GeoCell.PARENT(child, GeoCell.REGION_LEVEL));
+    }
+
+    @Test
+    public void covering_coversEveryPoint()
+    {
+        GeoBounds bounds = new GeoBounds(40.0, -74.5, 41.0, -73.2);
+        long[] cells = GeoCell.COVERING(bounds, 8, 100);
+        Set<Long> set = new HashSet<>();
+        for (long cell : cells) set.add(cell);
+
+        assertEquals(cells.length, set.size());
+        for (double lat = 40.0; lat <= 41.0; lat += 0.1)
+        {
+            for (double lng = -74.5; lng <= -73.2; lng += 0.1) assertTrue(set.contains(GeoCell.ID(lat, lng, 8)));
+        }
+    }
+
+    @Test
+    public void covering_crossesAntimeridian()
+    {
+        long[] cells = GeoCell.COVERING(new GeoBounds(-1, 179, 1, -179), 4, 100);
+        Set<Long> set = new HashSet<>();
+        for (long cell : cells) set.add(cell);
+
+        assertTrue(set.contains(GeoCell.ID(0, 179.5, 4)));
+        assertTrue(set.contains(GeoCell.ID(0, -179.5, 4)));
+        assertFalse(set.contains(GeoCell.ID(0, 0, 4)));
+    }
+
+    @Test
+    public void covering_refusesTooManyCells()
+    {
+        assertNull(GeoCell.COVERING(new GeoBounds(-60, -170, 60, 170), GeoCell.REGION_LEVEL, 64));
+    }
+}
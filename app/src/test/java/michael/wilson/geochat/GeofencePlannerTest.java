@@ -0,0 +1,220 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for choosing geofences around the user and re-planning them, replayed over location traces the way the OS
+ * would deliver geofence events (an exit when the refresh circle is left, an enter when a fenced post is reached).
+ */
+public class GeofencePlannerTest
+{
+    // one degree of latitude in meters
+    private static final double DEGREE_M = 111195;
+
+    // a location fix every 10 seconds, like the map's location loop
+    private static final long FIX_MS = 10000;
+
+    private static PostSummary post(String _id, double _lat, double _lng, long _comments)
+    {
+        PostSummary post = new PostSummary(_id, "post " + _id, null, _lat, _lng, null);
+        post.setActivity(_comments, 0);
+        return post;
+    }
+
+    // posts scattered over a square of '_sizeM' meters around (0, 0)
+    private static List<PostSummary> scatter(int _count, double _sizeM, long _seed)
+    {
+        Random random = new Random(_seed);
+        List<PostSummary> posts = new ArrayList<>();
+        for (int i = 0; i < _count; i++)
+        {
+            posts.add(post("p" + i, (random.nextDouble() - 0.5) * _sizeM / DEGREE_M, (random.nextDouble() - 0.5) * _sizeM / DEGREE_M,
+                    random.nextInt(10) == 0 ? random.nextInt(50) : 0));
+        }
+        return posts;
+    }
+
+    // a walk at 1.4 m/s along a random route, one fix every 'FIX_MS'
+    private static List<double[]> walk(int _fixes, long _seed)
+    {
+        Random random = new Random(_seed);
+        List<double[]> trace = new ArrayList<>();
+        double lat = 0, lng = 0, heading = random.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < _fixes; i++)
+        {
+            if (i % 30 == 0) heading += (random.nextDouble() - 0.5) * Math.PI / 2;
+            double step = 1.4 * FIX_MS / 1000 / DEGREE_M;
+            lat += Math.cos(heading) * step;
+            lng += Math.sin(heading) * step;
+            trace.add(new double[]{lat, lng});
+        }
+        return trace;
+    }
+
+    /** Result of replaying a trace */
+    private static class Replay
+    {
+        int plans, alerts, reached, missed;
+        final Set<String> alertedPosts = new HashSet<>();
+    }
+
+    // replays a trace: re-plans when the refresh circle is left, and enters fenced posts the user comes within reach of
+    private static Replay replay(List<PostSummary> _posts, List<double[]> _trace)
+    {
+        GeofencePlanner planner = new GeofencePlanner();
+        Replay replay = new Replay();
+        Set<String> reached = new HashSet<>(), inside = new HashSet<>();
+        long now = 0;
+        for (double[] fix : _trace)
+        {
+            now += FIX_MS;
+            if (planner.needsRefresh(fix[0], fix[1], now))
+            {
+                planner.plan(_posts, fix[0], fix[1], now);
+                replay.plans++;
+                inside.clear();
+            }
+            List<String> entered = new ArrayList<>();
+            for (GeofencePlanner.Fence fence : planner.getPlan().fences)
+            {
+                boolean in = GeofencePlanner.DISTANCE_M(fix[0], fix[1], fence.lat, fence.lng) <= GeofencePlanner.FENCE_RADIUS_M;
+                if (in && inside.add(fence.docID)) entered.add(fence.docID);
+                if (!in) inside.remove(fence.docID);
+            }
+            GeofencePlanner.Alert alert = planner.onEnter(entered, now);
+            if (alert != null)
+            {
+                replay.alerts++;
+                for (GeofencePlanner.Fence fence : alert.posts) replay.alertedPosts.add(fence.docID);
+            }
+            for (PostSummary post : _posts)
+            {
+                if (GeofencePlanner.DISTANCE_M(fix[0], fix[1], post.getLat(), post.getLng()) <= GeofencePlanner.FENCE_RADIUS_M * 0.8)
+                {
+                    reached.add(post.getDocID());
+                }
+            }
+        }
+        replay.reached = reached.size();
+        reached.removeAll(replay.alertedPosts);
+        replay.missed = reached.size();
+        return replay;
+    }
+
+    @Test
+    public void plan_fencesNearestAndMostActive()
+    {
+        int max = GeofencePlanner.MAX_FENCES;
+        List<PostSummary> posts = new ArrayList<>();
+        for (int i = 0; i < max + 10; i++) posts.add(post("near" + i, (i + 1) * 3 / DEGREE_M, 0, 0));
+        posts.add(post("busy", 0, 3000 / DEGREE_M, 40));
+        posts.add(post("faraway", 0, 6000 / DEGREE_M, 100));
+
+        GeofencePlanner.Plan plan = new GeofencePlanner().plan(posts, 0, 0, 0);
+
+        assertEquals(max, plan.fences.size());
+        Set<String> ids = new HashSet<>();
+        for (GeofencePlanner.Fence fence : plan.fences) ids.add(fence.docID);
+        assertTrue(ids.contains("near0"));
+        assertTrue(ids.contains("busy"));
+        assertFalse(ids.contains("faraway"));
+        assertFalse(ids.contains("near" + (max + 9)));
+
+        // the refresh circle is clamped to its minimum: the first post left out is only ~270 m away
+        assertEquals(GeofencePlanner.MIN_REFRESH_RADIUS_M, plan.refreshRadius, 0);
+    }
+
+    @Test
+    public void refreshCircle_stopsShortOfFirstPostLeftOut()
+    {
+        int max = GeofencePlanner.MAX_FENCES;
+        List<PostSummary> posts = new ArrayList<>();
+        for (int i = 0; i < max + 5; i++) posts.add(post("p" + i, (i + 1) * 20 / DEGREE_M, 0, 0));
+        GeofencePlanner planner = new GeofencePlanner();
+
+        GeofencePlanner.Plan plan = planner.plan(posts, 0, 0, 0);
+
+        double expected = (max + 1) * 20 - GeofencePlanner.FENCE_RADIUS_M;
+        assertEquals(expected, plan.refreshRadius, 1);
+        assertFalse(planner.needsRefresh((expected - 50) / DEGREE_M, 0, 1000));
+        assertTrue(planner.needsRefresh((expected + 50) / DEGREE_M, 0, 1000));
+        assertTrue(planner.needsRefresh(0, 0, GeofencePlanner.MAX_PLAN_AGE_MS + 1));
+    }
+
+    @Test
+    public void enteringSeveralPosts_coalescesIntoOneAlert()
+    {
+        GeofencePlanner planner = new GeofencePlanner();
+        planner.plan(Arrays.asList(post("a", 0, 0, 0), post("b", 0.0001, 0, 0), post("c", 0.0002, 0, 0)), 0, 0, 0);
+
+        GeofencePlanner.Alert first = planner.onEnter(Arrays.asList("a", "b"), 1000);
+        GeofencePlanner.Alert second = planner.onEnter(Collections.singletonList("c"), 2000);
+
+        assertEquals(2, first.posts.size());
+        assertEquals(3, second.posts.size());
+        assertEquals(1, second.fresh);
+        assertEquals("c", second.posts.get(0).docID);
+
+        // already alerted: nothing new to show until the cooldown has passed
+        assertNull(planner.onEnter(Arrays.asList("a", "c"), 3000));
+        GeofencePlanner.Alert later = planner.onEnter(Collections.singletonList("a"), 1000 + GeofencePlanner.ALERT_COOLDOWN_MS);
+        assertEquals(1, later.posts.size());
+    }
+
+    @Test
+    public void state_survivesEncoding()
+    {
+        GeofencePlanner planner = new GeofencePlanner();
+        planner.plan(Arrays.asList(post("a", 0, 0, 0), post("b", 0.01, 0, 3)), 0, 0, 5000);
+        planner.onEnter(Collections.singletonList("a"), 6000);
+
+        GeofencePlanner restored = GeofencePlanner.DECODE(planner.encode());
+
+        assertEquals(2, restored.getPlan().fences.size());
+        assertEquals(planner.getPlan().refreshRadius, restored.getPlan().refreshRadius, 0);
+        assertEquals("post b", restored.getPlan().fences.get(1).title);
+        assertNull(restored.onEnter(Collections.singletonList("a"), 7000));
+        assertEquals(2, restored.onEnter(Collections.singletonList("b"), 8000).posts.size());
+        assertNull(GeofencePlanner.DECODE("P\tnot a number").getPlan());
+    }
+
+    @Test
+    public void walkThroughSparsePosts_alertsEveryPostReached_withFewWakeups()
+    {
+        // 300 posts over 6x6 km, two hours of walking
+        List<PostSummary> posts = scatter(300, 6000, 1);
+        List<double[]> trace = walk(720, 2);
+
+        Replay replay = replay(posts, trace);
+
+        System.out.println("Sparse walk: fixes=" + trace.size() + " plans=" + replay.plans + " alerts=" + replay.alerts
+                + " posts_reached=" + replay.reached + " missed=" + replay.missed);
+        assertEquals(0, replay.missed);
+        assertTrue("replanned " + replay.plans + " times", replay.plans * 20 < trace.size());
+    }
+
+    @Test
+    public void walkThroughDensePosts_stillReplansRarely()
+    {
+        // 2000 posts over 3x3 km: the refresh circle is often clamped, so a post may be passed without being fenced
+        List<PostSummary> posts = scatter(2000, 3000, 3);
+        List<double[]> trace = walk(720, 4);
+
+        Replay replay = replay(posts, trace);
+
+        System.out.println("Dense walk: fixes=" + trace.size() + " plans=" + replay.plans + " alerts=" + replay.alerts
+                + " posts_reached=" + replay.reached + " missed=" + replay.missed);
+        assertTrue("replanned " + replay.plans + " times", replay.plans * 20 < trace.size());
+        assertTrue("missed " + replay.missed + " of " + replay.reached, replay.missed * 10 <= replay.reached);
+    }
+}
@@ -0,0 +1,66 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ranking the most active posts in a viewport.
+ */
+public class HotPostRankerTest
+{
+    private static PostSummary post(String _id, double _lat, double _lng, long _comments, long _lastActivity)
+    {
+        PostSummary summary = new PostSummary(_id, _id, null, _lat, _lng, null);
+        summary.setActivity(_comments, _lastActivity);
+        return summary;
+    }
+
+    @Test
+    public void topK_mostActiveFirst()
+    {
+        List<PostSummary> posts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) posts.add(post("p" + i, 0, 0, i % 10, i));
+
+        List<PostSummary> top = HotPostRanker.TOP_K(posts, null, 3);
+
+        assertEquals(3, top.size());
+        assertEquals("p99", top.get(0).getDocID());
+        assertEquals("p89", top.get(1).getDocID());
+        assertEquals("p79", top.get(2).getDocID());
+    }
+
+    @Test
+    public void topK_onlyInsideViewport()
+    {
+        List<PostSummary> posts = new ArrayList<>();
+        posts.add(post("inside", 10, 10, 1, 0));
+        posts.add(post("outside", 50, 50, 100, 0));
+
+        List<PostSummary> top = HotPostRanker.TOP_K(posts, new GeoBounds(0, 0, 20, 20), 5);
+
+        assertEquals(1, top.size());
+        assertEquals("inside", top.get(0).getDocID());
+    }
+
+    @Test
+    public void bounds_crossingAntimeridian()
+    {
+        GeoBounds bounds = new GeoBounds(-10, 170, 10, -170);
+
+        assertTrue(bounds.contains(0, 175));
+        assertTrue(bounds.contains(0, -175));
+        assertFalse(bounds.contains(0, 0));
+        assertFalse(bounds.contains(20, 175));
+    }
+
+    @Test
+    public void topK_zeroOrEmpty()
+    {
+        assertTrue(HotPostRanker.TOP_K(new ArrayList<PostSummary>(), null, 5).isEmpty());
+        assertTrue(HotPostRanker.TOP_K(java.util.Collections.singletonList(post("a", 0, 0, 1, 1)), null, 0).isEmpty());
+    }
+}
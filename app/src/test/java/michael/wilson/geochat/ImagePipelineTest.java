@@ -0,0 +1,113 @@
+package michael.wilson.geochat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the plain-java parts of the image pipeline: sizing maths, request coalescing, and the disk LRU.
+ */
+public class ImagePipelineTest
+{
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception { dir = Files.createTempDirectory("disklru").toFile(); }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void inSampleSize_powerOfTwoNotBelowRequested()
+    {
+        assertEquals(1, ImageSizing.IN_SAMPLE_SIZE(320, 240, 320, 240));
+        assertEquals(4, ImageSizing.IN_SAMPLE_SIZE(4000, 3000, 1000, 750));
+        assertEquals(2, ImageSizing.IN_SAMPLE_SIZE(4000, 3000, 1001, 750));
+        assertEquals(8, ImageSizing.IN_SAMPLE_SIZE(4032, 3024, 320, 320));
+        assertEquals(1, ImageSizing.IN_SAMPLE_SIZE(4000, 3000, 0, 0));
+    }
+
+    @Test
+    public void scaledSize_keepsAspectAndNeverUpscales()
+    {
+        assertArrayEquals(new int[]{1280, 960}, ImageSizing.SCALED_SIZE(4000, 3000, 1280));
+        assertArrayEquals(new int[]{240, 320}, ImageSizing.SCALED_SIZE(3000, 4000, 320));
+        assertArrayEquals(new int[]{100, 50}, ImageSizing.SCALED_SIZE(100, 50, 320));
+    }
+
+    @Test
+    public void coalescer_sharesOneFetch()
+    {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>();
+        final List<String> results = new ArrayList<>();
+        RequestCoalescer.Callback<String> callback = new RequestCoalescer.Callback<String>()
+        {
+            @Override
+            public void onResult(String _value) { results.add(_value); }
+        };
+
+        assertTrue(coalescer.join("thumbs/a.jpg", callback));
+        assertFalse(coalescer.join("thumbs/a.jpg", callback));
+        assertFalse(coalescer.join("thumbs/a.jpg", callback));
+        assertTrue(coalescer.join("thumbs/b.jpg", callback));
+        assertEquals(2, coalescer.inFlight());
+
+        coalescer.complete("thumbs/a.jpg", "A");
+        assertEquals(3, results.size());
+        assertEquals(1, coalescer.inFlight());
+
+        // a new request after completion starts a new fetch
+        assertTrue(coalescer.join("thumbs/a.jpg", callback));
+    }
+
+    @Test
+    public void diskCache_roundTripAndEvictsLeastRecentlyUsed()
+    {
+        DiskLruCache cache = new DiskLruCache(dir, 250);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        assertNotNull(cache.get("a"));
+
+        // 'b' is now the least recently used, so it is evicted
+        cache.put("c", new byte[100]);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(200, cache.size());
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void diskCache_survivesReopenAndReplaces()
+    {
+        DiskLruCache cache = new DiskLruCache(dir, 1000);
+        cache.put("thumbs/x.jpg", new byte[]{1, 2, 3});
+        cache.put("thumbs/x.jpg", new byte[]{4, 5});
+
+        DiskLruCache reopened = new DiskLruCache(dir, 1000);
+        assertArrayEquals(new byte[]{4, 5}, reopened.get("thumbs/x.jpg"));
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("missing"));
+    }
+
+    @Test
+    public void diskCache_rejectsOversizedEntries()
+    {
+        DiskLruCache cache = new DiskLruCache(dir, 10);
+
+        assertFalse(cache.put("big", new byte[11]));
+        assertEquals(0, cache.count());
+    }
+}
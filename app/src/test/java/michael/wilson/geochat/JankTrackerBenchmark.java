@@ -0,0 +1,53 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for the cost the main thread watchdog adds: bracketing a callback (what release builds pay per instrumented
+ * callback), and timing a looper message (what debug builds pay per message, on top of the looper's own log line).
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class JankTrackerBenchmark
+{
+    private static final int WARMUP = 200000, RUNS = 2000000;
+
+    @Test
+    public void overheadPerCallbackAndMessage()
+    {
+        JankTracker tracker = new JankTracker(16666667L);
+        String line = ">>>>> Dispatching to Handler (android.os.Handler) {1} null: 0";
+        long now = 0;
+        for (int i = 0; i < WARMUP; i++)
+        {
+            tracker.enter(JankTracker.CALLBACK_REFRESH, now++);
+            tracker.exit(JankTracker.CALLBACK_REFRESH, now++);
+            tracker.beginMessage(line, now++);
+            tracker.endMessage(now++);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+        {
+            tracker.enter(JankTracker.CALLBACK_REFRESH, now++);
+            tracker.exit(JankTracker.CALLBACK_REFRESH, now++);
+        }
+        long callback = (System.nanoTime() - start) / RUNS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+        {
+            tracker.beginMessage(line, now++);
+            tracker.enter(JankTracker.CALLBACK_REFRESH, now++);
+            tracker.exit(JankTracker.CALLBACK_REFRESH, now++);
+            tracker.endMessage(now++);
+        }
+        long message = (System.nanoTime() - start) / RUNS;
+
+        System.out.println("JankTracker overhead: callback enter+exit=" + callback + "ns, message with a callback=" + message + "ns");
+        assertTrue(tracker.report().isEmpty());
+        assertTrue(callback < 2000);
+        assertTrue(message < 5000);
+    }
+}
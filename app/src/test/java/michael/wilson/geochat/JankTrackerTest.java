@@ -0,0 +1,145 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for finding what blocks the main thread, replaying scripted main thread timelines with a fake clock: long messages
+ * and dropped frames blamed on the callback that took the time, stalls reported once, and the ranked report.
+ */
+public class JankTrackerTest
+{
+    private static final long MS = 1000000L, FRAME = 16666667L;
+
+    private static JankTracker.Finding find(JankTracker _tracker, int _kind, String _blame)
+    {
+        for (JankTracker.Finding finding : _tracker.report()) if (finding.kind == _kind && finding.blame.equals(_blame)) return finding;
+        return null;
+    }
+
+    @Test
+    public void longMessage_blamedOnCallbackWithMostSelfTime()
+    {
+        JankTracker tracker = new JankTracker(FRAME);
+
+        // a sync callback (30 ms of its own) which renders the comments (60 ms) when it publishes the thread
+        tracker.beginMessage(">>>>> Dispatching to Handler (android.os.Handler) {1} null: 0", 0);
+        tracker.enter(JankTracker.CALLBACK_THREAD_SYNC, 0);
+        tracker.enter(JankTracker.CALLBACK_COMMENT_RENDER, 20 * MS);
+        tracker.exit(JankTracker.CALLBACK_COMMENT_RENDER, 80 * MS);
+        tracker.exit(JankTracker.CALLBACK_THREAD_SYNC, 90 * MS);
+        tracker.endMessage(95 * MS);
+
+        // a long message outside every callback is blamed on its handler, a short one is not a finding
+        tracker.beginMessage(">>>>> Dispatching to Handler (android.view.Choreographer$FrameHandler) {2} null: 0", 100 * MS);
+        tracker.endMessage(200 * MS);
+        tracker.beginMessage(">>>>> Dispatching to Handler (android.os.Handler) {1} null: 0", 200 * MS);
+        tracker.endMessage(210 * MS);
+
+        List<JankTracker.Finding> report = tracker.report();
+        assertEquals(2, report.size());
+        assertEquals("android.view.Choreographer$FrameHandler", report.get(0).blame);
+        JankTracker.Finding render = find(tracker, JankTracker.KIND_LONG_MESSAGE, "comment_render");
+        assertEquals(1, render.count);
+        assertEquals(95 * MS, render.blockedNanos);
+    }
+
+    @Test
+    public void withoutMessages_outermostCallbackIsTheMessage()
+    {
+        JankTracker tracker = new JankTracker(FRAME);
+
+        tracker.enter(JankTracker.CALLBACK_REFRESH, 0);
+        tracker.exit(JankTracker.CALLBACK_REFRESH, 120 * MS);
+        tracker.enter(JankTracker.CALLBACK_REFRESH, 200 * MS);
+        tracker.exit(JankTracker.CALLBACK_REFRESH, 210 * MS);
+        tracker.enter(JankTracker.CALLBACK_MARKER_UPDATE, 300 * MS);
+        tracker.exit(JankTracker.CALLBACK_MARKER_UPDATE, 360 * MS);
+
+        JankTracker.Finding refresh = find(tracker, JankTracker.KIND_LONG_MESSAGE, "refresh");
+        assertEquals(1, refresh.count);
+        assertEquals(120 * MS, refresh.maxNanos);
+        assertEquals(60 * MS, find(tracker, JankTracker.KIND_LONG_MESSAGE, "marker_update").blockedNanos);
+    }
+
+    @Test
+    public void lateFrames_blamedOnLongestMessageSinceLastFrame()
+    {
+        JankTracker tracker = new JankTracker(FRAME);
+        long t = 1000 * MS;
+        tracker.frame(t);
+        tracker.frame(t + FRAME);
+
+        // 100 ms of marker updates between two frames: 5 frames missed
+        tracker.enter(JankTracker.CALLBACK_MARKER_UPDATE, t + FRAME + MS);
+        tracker.exit(JankTracker.CALLBACK_MARKER_UPDATE, t + FRAME + 101 * MS);
+        tracker.frame(t + 7 * FRAME);
+
+        // late without a long message, then a gap while in the background which is not jank
+        tracker.frame(t + 9 * FRAME);
+        tracker.pauseFrames();
+        tracker.frame(t + 1000 * FRAME);
+        tracker.frame(t + 1001 * FRAME);
+
+        JankTracker.Finding markers = find(tracker, JankTracker.KIND_DROPPED_FRAMES, "marker_update");
+        assertEquals(5, markers.frames);
+        assertEquals(5 * FRAME, markers.blockedNanos);
+        assertEquals(1, find(tracker, JankTracker.KIND_DROPPED_FRAMES, JankTracker.OTHER).frames);
+        assertEquals(3, tracker.report().size());
+    }
+
+    @Test
+    public void stall_reportedOncePerMessageOrPing()
+    {
+        JankTracker tracker = new JankTracker(FRAME);
+        long stall = JankTracker.STALL_MS * MS;
+
+        tracker.enter(JankTracker.CALLBACK_NOTIFICATION, 0);
+        assertFalse(tracker.checkStall(0, stall - 1));
+        assertTrue(tracker.checkStall(0, stall));
+        assertFalse(tracker.checkStall(0, stall + 500 * MS));
+        tracker.exit(JankTracker.CALLBACK_NOTIFICATION, 3 * stall);
+
+        // stuck outside any callback: only the unanswered ping shows it
+        long ping = 4 * stall;
+        assertFalse(tracker.checkStall(ping, ping + stall / 2));
+        assertTrue(tracker.checkStall(ping, ping + stall));
+        assertFalse(tracker.checkStall(ping, ping + 2 * stall));
+        assertFalse(tracker.checkStall(0, ping + 3 * stall));
+
+        assertEquals(1, find(tracker, JankTracker.KIND_STALL, "notification").count);
+        assertEquals(1, find(tracker, JankTracker.KIND_STALL, JankTracker.OTHER).count);
+        assertEquals(3 * stall, find(tracker, JankTracker.KIND_LONG_MESSAGE, "notification").blockedNanos);
+    }
+
+    @Test
+    public void report_ranksByTimeBlocked_andNamesWhereDiskWasRead()
+    {
+        JankTracker tracker = new JankTracker(FRAME);
+        for (int i = 0; i < 10; i++)
+        {
+            tracker.enter(JankTracker.CALLBACK_REGION_FETCH, i * 1000 * MS);
+            tracker.exit(JankTracker.CALLBACK_REGION_FETCH, i * 1000 * MS + 60 * MS);
+        }
+        tracker.enter(JankTracker.CALLBACK_REFRESH, 20000 * MS);
+        tracker.exit(JankTracker.CALLBACK_REFRESH, 20400 * MS);
+        StackTraceElement[] stack = {new StackTraceElement("java.io.FileInputStream", "open", null, 1),
+                new StackTraceElement("michael.wilson.geochat.ThreadCache", "get", null, 42),
+                new StackTraceElement("michael.wilson.geochat.DiscussionViewModel", "load", null, 7)};
+        tracker.violation(JankTracker.KIND_DISK_READ, JankTracker.FIRST_APP_FRAME(stack, "michael.wilson.geochat"));
+
+        List<JankTracker.Finding> report = tracker.report();
+        assertEquals("region_fetch", report.get(0).blame);
+        assertEquals("refresh", report.get(1).blame);
+        assertEquals("ThreadCache.get:42", report.get(2).blame);
+        assertTrue(tracker.reportString().contains("long_message region_fetch 10 600 60 0"));
+
+        assertEquals(JankTracker.OTHER, JankTracker.FIRST_APP_FRAME(new StackTraceElement[0], "michael.wilson.geochat"));
+        assertEquals(JankTracker.OTHER, JankTracker.TARGET("no handler"));
+        tracker.reset();
+        assertTrue(tracker.report().isEmpty());
+    }
+}
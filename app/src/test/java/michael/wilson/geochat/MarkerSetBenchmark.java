@@ -0,0 +1,126 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for 'MarkerSet' at 50k posts, with and without the marker budget: heap held by the markers, and the
+ * per-frame cost of keeping them up to date during a pan across the area.
+ * The markers are stand-ins holding what 'MarkerOptions' holds, a real map marker also costs native memory and a
+ * renderer insert, see 'MarkerBudgetTest' for on-device numbers. Results are printed, the assertions only catch gross regressions.
+ */
+public class MarkerSetBenchmark
+{
+    private static final int POSTS = 50000;
+    private static final long FRAME_MS = 16;
+
+    // posts spread over a 2x2 degree metro area, viewed through a city-block sized viewport
+    private static final double AREA = 2.0, VIEW = 0.05;
+
+    /** Java-side stand-in for a map marker (position, strings, and icon/anchor state) */
+    private static class FakeMarker
+    {
+        final double lat, lng;
+        final String title, snippet, tag;
+        final float[] style = new float[8];
+
+        FakeMarker(MarkerSet<FakeMarker> _set, int _slot)
+        {
+            lat = _set.getLat(_slot);
+            lng = _set.getLng(_slot);
+            title = new String(_set.getTitle(_slot));
+            snippet = _set.getDate(_slot) + " \u00b7 " + _set.getCommentCount(_slot);
+            tag = _set.getDocID(_slot);
+        }
+    }
+
+    private static class Renderer implements MarkerSet.Renderer<FakeMarker>
+    {
+        long added, removed;
+
+        @Override
+        public FakeMarker add(MarkerSet<FakeMarker> _set, int _slot)
+        {
+            added++;
+            return new FakeMarker(_set, _slot);
+        }
+
+        @Override
+        public void remove(FakeMarker _marker) { removed++; }
+    }
+
+    private static long usedMemory()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // pans along a diagonal then back, one update per frame, and returns the per-frame update times in microseconds
+    private static long[] pan(MarkerSet<FakeMarker> _set)
+    {
+        int frames = 600;
+        long[] micros = new long[frames];
+        for (int f = 0; f < frames; f++)
+        {
+            double p = f < frames / 2 ? f / (frames / 2.0) : 2 - f / (frames / 2.0);
+            double lat = 0.1 + p * (AREA - 0.2), lng = 0.1 + p * (AREA - 0.2);
+            long start = System.nanoTime();
+            _set.update(new GeoBounds(lat, lng, lat + VIEW, lng + VIEW), f * FRAME_MS);
+            micros[f] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(micros);
+        return micros;
+    }
+
+    private static String run(String _label, List<PostSummary> _posts, int _budget)
+    {
+        long memBefore = usedMemory();
+        Renderer renderer = new Renderer();
+        MarkerSet<FakeMarker> set = new MarkerSet<>(renderer, _budget);
+        set.setPosts(_posts);
+
+        // everything the user has looked at so far: the whole area at street level
+        for (double lat = 0; lat < AREA; lat += VIEW) for (double lng = 0; lng < AREA; lng += VIEW)
+        {
+            set.update(new GeoBounds(lat, lng, lat + VIEW, lng + VIEW), 0);
+        }
+        long heap = usedMemory() - memBefore;
+        int live = set.liveCount();
+
+        pan(set);
+        long[] micros = pan(set);
+        long churn = renderer.added + renderer.removed;
+
+        if (_budget > 0) assertTrue(set.liveCount() <= _budget);
+        return _label + ": live=" + live + " heap=" + heap / 1024 + "KB (store arrays " + set.arrayBytes() / 1024 + "KB)"
+                + " update p50=" + micros[micros.length / 2] + "us p99=" + micros[micros.length * 99 / 100] + "us"
+                + " adds+removes=" + churn;
+    }
+
+    @Test
+    public void benchmark50kPosts()
+    {
+        Random random = new Random(7);
+        List<PostSummary> posts = new ArrayList<>(POSTS);
+        for (int i = 0; i < POSTS; i++)
+        {
+            PostSummary post = new PostSummary("doc" + i, "post number " + i, null, random.nextDouble() * AREA,
+                    random.nextDouble() * AREA, null);
+            post.setActivity(random.nextInt(20) == 0 ? random.nextInt(40) : random.nextInt(3), 0);
+            post.setDetails("2020-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10), "device" + random.nextInt(100));
+            posts.add(post);
+        }
+
+        String unbounded = run("no budget ", posts, 0);
+        String bounded = run("budget " + MarkerSet.DEFAULT_BUDGET, posts, MarkerSet.DEFAULT_BUDGET);
+        System.out.println("MarkerSet " + POSTS + " posts, " + unbounded);
+        System.out.println("MarkerSet " + POSTS + " posts, " + bounded);
+    }
+}
@@ -0,0 +1,185 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the marker budget: which posts get markers, which are evicted, and which are kept across updates.
+ */
+public class MarkerSetTest
+{
+    /** Records the markers created and removed, a marker is just its post's id */
+    private static class FakeRenderer implements MarkerSet.Renderer<String>
+    {
+        final Set<String> live = new HashSet<>();
+        int added, removed;
+
+        @Override
+        public String add(MarkerSet<String> _set, int _slot)
+        {
+            String id = _set.getDocID(_slot);
+            assertTrue("duplicate marker " + id, live.add(id));
+            added++;
+            return id;
+        }
+
+        @Override
+        public void remove(String _marker)
+        {
+            assertTrue(live.remove(_marker));
+            removed++;
+        }
+    }
+
+    private static PostSummary post(String _id, double _lat, double _lng, long _comments)
+    {
+        PostSummary post = new PostSummary(_id, "title " + _id, null, _lat, _lng, null);
+        post.setActivity(_comments, 0);
+        post.setDetails("2020-01-01", "device");
+        return post;
+    }
+
+    // a 10x10 grid of posts, one every 0.1 degrees, starting at (0, 0)
+    private static List<PostSummary> grid()
+    {
+        List<PostSummary> posts = new ArrayList<>();
+        for (int row = 0; row < 10; row++)
+        {
+            for (int col = 0; col < 10; col++) posts.add(post(row + ":" + col, row * 0.1 + 0.05, col * 0.1 + 0.05, 0));
+        }
+        return posts;
+    }
+
+    @Test
+    public void noBudget_marksEverythingOnceSeen()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 0);
+        set.setPosts(grid());
+
+        set.update(new GeoBounds(0, 0, 0.5, 0.5), 0);
+        assertEquals(25, set.liveCount());
+        set.update(new GeoBounds(0.5, 0.5, 1, 1), 1000);
+        assertEquals(50, set.liveCount());
+        assertEquals(0, renderer.removed);
+    }
+
+    @Test
+    public void budget_evictsFurthestFromViewport()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 30);
+        set.setPosts(grid());
+
+        // first column-block in view, then pan one column east: the westmost column is the furthest away
+        set.update(new GeoBounds(0, 0, 1, 0.3), 0);
+        assertEquals(30, set.liveCount());
+        set.update(new GeoBounds(0, 0.1, 1, 0.4), 0);
+
+        assertEquals(30, set.liveCount());
+        for (int row = 0; row < 10; row++)
+        {
+            assertFalse(renderer.live.contains(row + ":0"));
+            assertTrue(renderer.live.contains(row + ":3"));
+        }
+    }
+
+    @Test
+    public void budget_evictsLongestUnseenFirst()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 2);
+        List<PostSummary> posts = new ArrayList<>();
+        posts.add(post("old", 0, -1, 0));
+        posts.add(post("recent", 0, 1, 0));
+        posts.add(post("here", 5, 0, 0));
+        set.setPosts(posts);
+
+        // both side posts are the same distance away, but 'old' was last seen a long time ago
+        set.update(new GeoBounds(-0.1, -1.1, 0.1, -0.9), 0);
+        set.update(new GeoBounds(-0.1, 0.9, 0.1, 1.1), 600000);
+        set.update(new GeoBounds(4.9, -0.1, 5.1, 0.1), 600001);
+
+        assertEquals(2, set.liveCount());
+        assertTrue(renderer.live.contains("recent"));
+        assertFalse(renderer.live.contains("old"));
+    }
+
+    @Test
+    public void crowdedView_keepsBusiestPosts()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 3);
+        List<PostSummary> posts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) posts.add(post("p" + i, 0, i * 0.01, i == 2 || i == 5 || i == 7 ? 10 + i : 0));
+        set.setPosts(posts);
+
+        set.update(new GeoBounds(-1, -1, 1, 1), 0);
+
+        assertEquals(3, set.liveCount());
+        assertTrue(renderer.live.contains("p2"));
+        assertTrue(renderer.live.contains("p5"));
+        assertTrue(renderer.live.contains("p7"));
+    }
+
+    @Test
+    public void evicted_areRecreatedWhenBackInView()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 25);
+        set.setPosts(grid());
+        GeoBounds home = new GeoBounds(0, 0, 0.5, 0.5), away = new GeoBounds(0.5, 0.5, 1, 1);
+
+        set.update(home, 0);
+        set.update(away, 1000);
+        assertFalse(renderer.live.contains("0:0"));
+        set.update(home, 2000);
+
+        assertTrue(renderer.live.contains("0:0"));
+        assertEquals(25, set.liveCount());
+        assertEquals(renderer.live.size(), set.liveCount());
+    }
+
+    @Test
+    public void setPosts_keepsUnchangedMarkers()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 0);
+        List<PostSummary> posts = grid();
+        set.setPosts(posts);
+        set.update(new GeoBounds(0, 0, 1, 1), 0);
+        int added = renderer.added;
+
+        // one post gets a comment, one is removed, and the rest are untouched
+        List<PostSummary> next = new ArrayList<>(posts.subList(1, posts.size()));
+        next.set(0, post("0:1", 0.05, 0.15, 1));
+        set.setPosts(next);
+        set.update(new GeoBounds(0, 0, 1, 1), 1);
+
+        assertEquals(added + 1, renderer.added);
+        assertEquals(2, renderer.removed);
+        assertFalse(renderer.live.contains("0:0"));
+        assertEquals(99, set.liveCount());
+    }
+
+    @Test
+    public void reset_forgetsWithoutRemoving()
+    {
+        FakeRenderer renderer = new FakeRenderer();
+        MarkerSet<String> set = new MarkerSet<>(renderer, 0);
+        set.setPosts(grid());
+        set.update(new GeoBounds(0, 0, 1, 1), 0);
+
+        set.reset();
+
+        assertEquals(0, set.size());
+        assertEquals(0, set.liveCount());
+        assertEquals(0, renderer.removed);
+    }
+}
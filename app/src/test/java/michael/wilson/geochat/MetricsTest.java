@@ -0,0 +1,113 @@
+package michael.wilson.geochat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the 'Metrics' counters, histograms, and snapshots.
+ */
+public class MetricsTest
+{
+    @Before
+    public void setUp()
+    {
+        Metrics.RESET();
+        Metrics.SET_ENABLED(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        Metrics.SET_ENABLED(false);
+        Metrics.RESET();
+    }
+
+    @Test
+    public void counters_increment()
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_REFRESH);
+        Metrics.INCREMENT(Metrics.COUNTER_REFRESH);
+        Metrics.ADD(Metrics.COUNTER_POSTS_DECODED, 40);
+
+        assertEquals(2, Metrics.GET_COUNT(Metrics.COUNTER_REFRESH));
+        assertEquals(40, Metrics.GET_COUNT(Metrics.COUNTER_POSTS_DECODED));
+    }
+
+    @Test
+    public void disabled_recordsNothing()
+    {
+        Metrics.SET_ENABLED(false);
+        long t = Metrics.BEGIN(Metrics.SECTION_REFRESH);
+        Metrics.END(Metrics.SECTION_REFRESH, t);
+        Metrics.INCREMENT(Metrics.COUNTER_REFRESH);
+
+        assertEquals(0, t);
+        assertEquals(0, Metrics.GET_SECTION_COUNT(Metrics.SECTION_REFRESH));
+        assertEquals(0, Metrics.GET_COUNT(Metrics.COUNTER_REFRESH));
+    }
+
+    @Test
+    public void disabled_doesNotAllocate()
+    {
+        Metrics.SET_ENABLED(false);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        // warm up so class loading and JIT do not count
+        for (int i = 0; i < 10000; i++) hotPath();
+
+        long before = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100000; i++) hotPath();
+        long allocated = bean.getThreadAllocatedBytes(id) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void hotPath()
+    {
+        long t = Metrics.BEGIN(Metrics.SECTION_DECODE);
+        Metrics.INCREMENT(Metrics.COUNTER_POSTS_DECODED);
+        Metrics.END(Metrics.SECTION_DECODE, t);
+    }
+
+    @Test
+    public void percentiles_followHistogram()
+    {
+        // 90 fast (~100us) and 10 slow (~50ms) decodes
+        for (int i = 0; i < 90; i++) Metrics.RECORD(Metrics.SECTION_DECODE, 100);
+        for (int i = 0; i < 10; i++) Metrics.RECORD(Metrics.SECTION_DECODE, 50000);
+
+        assertEquals(100, Metrics.GET_SECTION_COUNT(Metrics.SECTION_DECODE));
+        assertEquals(50000, Metrics.GET_SECTION_MAX(Metrics.SECTION_DECODE));
+        assertTrue(Metrics.PERCENTILE(Metrics.SECTION_DECODE, 50) < 256);
+        assertTrue(Metrics.PERCENTILE(Metrics.SECTION_DECODE, 90) < 256);
+        assertTrue(Metrics.PERCENTILE(Metrics.SECTION_DECODE, 99) >= 32768);
+        assertEquals(0, Metrics.PERCENTILE(Metrics.SECTION_REFRESH, 50));
+    }
+
+    @Test
+    public void beginEnd_recordsSection()
+    {
+        long t = Metrics.BEGIN(Metrics.SECTION_COMMENT_SUBMIT);
+        Metrics.END(Metrics.SECTION_COMMENT_SUBMIT, t);
+
+        assertEquals(1, Metrics.GET_SECTION_COUNT(Metrics.SECTION_COMMENT_SUBMIT));
+    }
+
+    @Test
+    public void snapshot_listsEverything()
+    {
+        Metrics.INCREMENT(Metrics.COUNTER_NOTIFS_SHOWN);
+        Metrics.RECORD(Metrics.SECTION_NOTIFICATION, 1234);
+        String snapshot = Metrics.SNAPSHOT();
+
+        for (String name : Metrics.COUNTER_NAMES) assertTrue(snapshot.contains(name));
+        for (String name : Metrics.SECTION_NAMES) assertTrue(snapshot.contains(name));
+        assertTrue(snapshot.contains("notifs_shown 1"));
+    }
+}
@@ -0,0 +1,96 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip and size budget tests for the notification payload encoder/decoder.
+ */
+public class NotifyPayloadTest
+{
+    private static String repeat(String _str, int _times)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _times; i++) sb.append(_str);
+        return sb.toString();
+    }
+
+    @Test
+    public void roundTrip_keepsAllFields()
+    {
+        PostSummary in = new PostSummary("abc123", "Lost cat", "Grey tabby, answers to Milo", 51.507351, -0.127758, "Seen near the park!");
+        PostSummary out = NotifyPayload.DECODE(NotifyPayload.ENCODE(in));
+
+        assertNotNull(out);
+        assertEquals("abc123", out.getDocID());
+        assertEquals("Lost cat", out.getTitle());
+        assertEquals("Grey tabby, answers to Milo", out.getSnippet());
+        assertEquals("Seen near the park!", out.getLatestComment());
+        assertEquals(51.507351, out.getLat(), 1e-6);
+        assertEquals(-0.127758, out.getLng(), 1e-6);
+    }
+
+    @Test
+    public void roundTrip_missingOptionalFields()
+    {
+        PostSummary out = NotifyPayload.DECODE(NotifyPayload.ENCODE(new PostSummary("id", null, null, -33.8688, 151.2093, null)));
+
+        assertNotNull(out);
+        assertNull(out.getTitle());
+        assertNull(out.getSnippet());
+        assertNull(out.getLatestComment());
+        assertEquals(-33.8688, out.getLat(), 1e-6);
+    }
+
+    @Test
+    public void encode_shortensLongSnippet()
+    {
+        Map<String, String> payload = NotifyPayload.ENCODE(new PostSummary("id", "t", repeat("a", 1000), 0, 0, null));
+        PostSummary out = NotifyPayload.DECODE(payload);
+
+        assertTrue(out.getSnippet().length() <= 140);
+        assertTrue(out.getSnippet().endsWith("\u2026"));
+    }
+
+    @Test
+    public void encode_alwaysWithinBudget()
+    {
+        // a huge multi-byte title can not be fixed by the per-field character limits alone
+        String hugeTitle = repeat("\uD83D\uDE00", 2000);
+        Map<String, String> payload = NotifyPayload.ENCODE(new PostSummary("id", hugeTitle, repeat("\u00e9", 500), 1, 2, repeat("\u00fc", 500)));
+
+        assertTrue(NotifyPayload.WITHIN_BUDGET(payload));
+        assertTrue(NotifyPayload.SIZE_BYTES(payload) <= NotifyPayload.FCM_PAYLOAD_LIMIT_BYTES);
+
+        // the trimmed title must still be valid text (no split surrogate pairs)
+        String title = NotifyPayload.DECODE(payload).getTitle();
+        for (int i = 0; i < title.length(); i++)
+        {
+            if (Character.isHighSurrogate(title.charAt(i))) assertTrue(Character.isLowSurrogate(title.charAt(i + 1)));
+        }
+    }
+
+    @Test
+    public void decode_rejectsUnknownVersion()
+    {
+        Map<String, String> payload = NotifyPayload.ENCODE(new PostSummary("id", "t", "s", 0, 0, null));
+        payload.put("pv", "99");
+
+        assertNull(NotifyPayload.DECODE(payload));
+    }
+
+    @Test
+    public void decode_legacyPayloadHasNoSummary()
+    {
+        Map<String, String> payload = new HashMap<>();
+        payload.put(Toolkit.KEY_NOTIFPAYLOAD_DOCID, "id");
+        payload.put(Toolkit.KEY_NOTIFPAYLOAD_SENDER, "someone");
+
+        assertNull(NotifyPayload.DECODE(payload));
+        assertNull(NotifyPayload.DECODE(null));
+    }
+}
@@ -0,0 +1,108 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for the compact post snapshot with 100k posts: encode time, time to scan every post with a cursor (no objects
+ * created) and to decode every post into summaries, and size against the document form (estimated, see
+ * 'ThreadCache.ESTIMATE_BYTES(...)'), a plain fixed width encoding, and the snapshot gzipped.
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class PostSnapshotBenchmark
+{
+    private static final int POSTS = 100000, RUNS = 10;
+
+    // the fixed width form: doubles, longs, and every string written out
+    private static byte[] fixedWidth(List<PostSummary> _posts) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            for (PostSummary post : _posts)
+            {
+                out.writeUTF(post.getDocID());
+                out.writeUTF(post.getTitle());
+                out.writeUTF(post.getUserID());
+                out.writeUTF(post.getDate());
+                out.writeDouble(post.getLat());
+                out.writeDouble(post.getLng());
+                out.writeLong(post.getCommentCount());
+                out.writeLong(post.getLastActivity());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int gzipped(byte[] _bytes) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) { out.write(_bytes); }
+        return bytes.size();
+    }
+
+    @Test
+    public void snapshotOf100kPosts() throws IOException
+    {
+        List<PostSummary> posts = PostSnapshotTest.posts(POSTS, 7);
+
+        // the document form: what a query for the same summaries transfers (their id included)
+        long documentBytes = 0;
+        for (PostSummary post : posts)
+        {
+            FirestorePost document = new FirestorePost(post.getTitle(), null, post.getDate(), post.getUserID(), null, null, null,
+                    post.getLat(), post.getLng(), post.getCommentCount(), post.getLastActivity(), 0, null);
+            documentBytes += ThreadCache.ESTIMATE_BYTES(document) + post.getDocID().length();
+        }
+        int fixedBytes = fixedWidth(posts).length;
+
+        long[] encode = new long[RUNS], scan = new long[RUNS], decode = new long[RUNS];
+        byte[] snapshot = null;
+        for (int r = 0; r < RUNS; r++)
+        {
+            long start = System.nanoTime();
+            snapshot = PostSnapshot.ENCODE(0, posts);
+            encode[r] = (System.nanoTime() - start) / 1000000;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(snapshot.length);
+            buffer.put(snapshot).flip();
+            start = System.nanoTime();
+            PostSnapshot.Cursor cursor = new PostSnapshot.Reader(buffer).cursor();
+            double lat = 0;
+            long comments = 0;
+            int owned = 0;
+            while (cursor.next())
+            {
+                lat += cursor.lat();
+                comments += cursor.commentCount();
+                if (cursor.isOwner("device7")) owned++;
+            }
+            scan[r] = (System.nanoTime() - start) / 1000000;
+            assertTrue(lat > 0 && comments > 0 && owned > 0);
+
+            start = System.nanoTime();
+            assertEquals(POSTS, PostSnapshot.DECODE_ALL(buffer).size());
+            decode[r] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(encode);
+        Arrays.sort(scan);
+        Arrays.sort(decode);
+        int gzipBytes = gzipped(snapshot);
+
+        System.out.println("PostSnapshot " + POSTS + " posts: document=" + documentBytes / 1024 + "KB, fixed width=" + fixedBytes / 1024
+                + "KB, snapshot=" + snapshot.length / 1024 + "KB (" + snapshot.length / POSTS + "B/post), gzipped=" + gzipBytes / 1024
+                + "KB; encode p50=" + encode[RUNS / 2] + "ms, cursor scan p50=" + scan[RUNS / 2] + "ms, decode all p50="
+                + decode[RUNS / 2] + "ms");
+        assertTrue(snapshot.length * 3 < fixedBytes * 2);
+        assertTrue(snapshot.length * 3 < documentBytes);
+    }
+}
@@ -0,0 +1,150 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compact post snapshot: every field survives a round trip (odd dates and strings included), posts come out
+ * in cell order, seeking through the block index, and rejecting what is not a snapshot of this version.
+ */
+public class PostSnapshotTest
+{
+    static PostSummary post(String _id, String _title, double _lat, double _lng, String _date, String _userID, long _comments, long _activity)
+    {
+        PostSummary post = new PostSummary(_id, _title, null, _lat, _lng, null);
+        post.setActivity(_comments, _activity);
+        post.setDetails(_date, _userID);
+        return post;
+    }
+
+    // posts spread over a ~10 km square around a city, with a few hundred posters and titles that repeat
+    static List<PostSummary> posts(int _count, long _seed)
+    {
+        Random random = new Random(_seed);
+        List<PostSummary> posts = new ArrayList<>(_count);
+        for (int i = 0; i < _count; i++)
+        {
+            String title = random.nextInt(4) == 0 ? "Lost cat" : "Post number " + i + " about something nearby";
+            String date = PostSnapshot.FORMAT_DAY(18000 + random.nextInt(400));
+            posts.add(post("doc" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36), title, 51.45 + random.nextDouble() * 0.1,
+                    -0.18 + random.nextDouble() * 0.15, date, "device" + random.nextInt(300), random.nextInt(10) == 0 ? random.nextInt(500) : 0,
+                    1580000000000L + random.nextInt(1000000000)));
+        }
+        return posts;
+    }
+
+    private static void assertSame(PostSummary _expected, PostSummary _actual)
+    {
+        assertEquals(_expected.getDocID(), _actual.getDocID());
+        assertEquals(_expected.getTitle(), _actual.getTitle());
+        assertEquals(_expected.getLat(), _actual.getLat(), 1e-6);
+        assertEquals(_expected.getLng(), _actual.getLng(), 1e-6);
+        assertEquals(_expected.getDate(), _actual.getDate());
+        assertEquals(_expected.getUserID(), _actual.getUserID());
+        assertEquals(_expected.getCommentCount(), _actual.getCommentCount());
+        assertEquals(_expected.getLastActivity(), _actual.getLastActivity());
+    }
+
+    @Test
+    public void encode_roundTripsEveryField_inCellOrder() throws IOException
+    {
+        List<PostSummary> posts = posts(1000, 1);
+        posts.add(post("odd", null, -33.86, 151.2, "29/02/2020", null, 3, 5));
+        posts.add(post("dates", "é中 😀", 0, 0, "31/02/2020", "", 0, 0));
+        posts.add(post("none", "", 89.9999, -179.9999, null, "device1", 0, -1));
+        posts.add(post("again", "t", 10, 10, "31/02/2020", "x", 0, 0));
+
+        List<PostSummary> decoded = PostSnapshot.DECODE_ALL(ByteBuffer.wrap(PostSnapshot.ENCODE(7, posts)));
+
+        assertEquals(posts.size(), decoded.size());
+        Map<String, PostSummary> byID = new HashMap<>();
+        for (PostSummary post : posts) byID.put(post.getDocID(), post);
+        long previous = Long.MIN_VALUE;
+        for (PostSummary post : decoded)
+        {
+            PostSummary original = byID.get(post.getDocID());
+            assertSame(original, post);
+            long leaf = GeoCell.ID(original.getLat(), original.getLng(), GeoCell.MAX_LEVEL);
+            assertTrue(leaf >= previous);
+            previous = leaf;
+        }
+    }
+
+    @Test
+    public void cursor_readsInPlace_andSeeks() throws IOException
+    {
+        List<PostSummary> posts = posts(500, 2);
+        byte[] bytes = PostSnapshot.ENCODE(42, posts);
+
+        // a direct buffer with the snapshot in the middle, like a mapped file holding several
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 20);
+        direct.position(10);
+        direct.put(bytes);
+        direct.position(10);
+        PostSnapshot.Reader reader = new PostSnapshot.Reader(direct);
+        List<PostSummary> all = PostSnapshot.DECODE_ALL(ByteBuffer.wrap(bytes));
+
+        assertEquals(42, reader.cell());
+        assertEquals(500, reader.count());
+        PostSnapshot.Cursor cursor = reader.cursor();
+        for (int i : new int[]{499, 0, 63, 64, 200, 130})
+        {
+            cursor.seek(i);
+            assertEquals(i, cursor.record());
+            assertEquals(all.get(i).getDocID(), cursor.docID());
+            assertEquals(all.get(i).getLat(), cursor.lat(), 0);
+            assertEquals(all.get(i).getLng(), cursor.lng(), 0);
+            assertEquals(all.get(i).getDate(), PostSnapshot.FORMAT_DAY(cursor.day()));
+            assertTrue(cursor.isOwner(all.get(i).getUserID()));
+            assertFalse(cursor.isOwner("someone else"));
+        }
+        cursor.seek(498);
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void dates_onlyAppFormatBecomesDayNumber()
+    {
+        assertEquals(0, PostSnapshot.PARSE_DAY("01/01/1970"));
+        assertEquals(18321, PostSnapshot.PARSE_DAY("29/02/2020"));
+        assertEquals("29/02/2020", PostSnapshot.FORMAT_DAY(18321));
+        for (String date : Arrays.asList("29/02/2019", "1/1/2020", "01-01-2020", "00/01/2020", "01/13/2020", "01/01/1969", "aa/bb/cccc"))
+        {
+            assertEquals(date, -1, PostSnapshot.PARSE_DAY(date));
+        }
+        for (int day = 0; day < 200000; day += 37) assertEquals(day, PostSnapshot.PARSE_DAY(PostSnapshot.FORMAT_DAY(day)));
+    }
+
+    @Test
+    public void reader_rejectsOtherData() throws IOException
+    {
+        byte[] bytes = PostSnapshot.ENCODE(1, posts(100, 3));
+        assertEquals(100, new PostSnapshot.Reader(ByteBuffer.wrap(bytes)).count());
+        assertEquals(0, PostSnapshot.DECODE_ALL(ByteBuffer.wrap(PostSnapshot.ENCODE(1, new ArrayList<PostSummary>()))).size());
+
+        byte[] version = bytes.clone();
+        version[5]++;
+        byte[] magic = bytes.clone();
+        magic[0] = 'X';
+        for (byte[] bad : Arrays.asList(version, magic, Arrays.copyOf(bytes, bytes.length - 1), new byte[3]))
+        {
+            try
+            {
+                new PostSnapshot.Reader(ByteBuffer.wrap(bad));
+                fail();
+            }
+            catch (IOException expected) { }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for 'RateLimiter' under contention: threads hammering one key (every device posting to the same region)
+ * and many keys, against the same buckets behind one lock. Every thread reads the same fake clock, which a ticker thread
+ * advances, so the number of tokens handed out can be checked exactly: never more than the burst plus one per interval.
+ * Results are printed, the assertions only catch gross regressions (and any token handed out twice).
+ */
+public class RateLimiterBenchmark
+{
+    private static final int OPS_PER_THREAD = 200000, BURST = 20;
+    private static final long INTERVAL_MS = 10;
+
+    /** The same buckets as 'RateLimiter', behind one lock */
+    private static class LockedLimiter
+    {
+        private final Map<String, Long> buckets = new HashMap<>();
+
+        synchronized boolean tryAcquire(String _key, long _now)
+        {
+            Long tat = buckets.get(_key);
+            long next = RateLimiter.NEXT_TAT(tat == null ? 0 : tat, _now, INTERVAL_MS);
+            if (RateLimiter.DELAY(next, _now, INTERVAL_MS, BURST) > 0) return false;
+            buckets.put(_key, next);
+            return true;
+        }
+    }
+
+    /** Result of one run */
+    private static class Run
+    {
+        long admitted, elapsedNs, clockEnd;
+    }
+
+    // '_threads' threads each try 'OPS_PER_THREAD' acquisitions over '_keys' keys, while the fake clock advances 1ms per 1000 tries
+    private static Run run(final RateLimiter _cas, final LockedLimiter _locked, int _threads, final int _keys) throws InterruptedException
+    {
+        final AtomicLong clock = new AtomicLong(), admitted = new AtomicLong(), tries = new AtomicLong();
+        final String[] keys = new String[_keys];
+        for (int k = 0; k < _keys; k++) keys[k] = "key" + k;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[_threads];
+        for (int t = 0; t < _threads; t++)
+        {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try { start.await(); }
+                    catch (InterruptedException ex) { return; }
+                    long mine = 0;
+                    for (int i = 0; i < OPS_PER_THREAD; i++)
+                    {
+                        if (tries.incrementAndGet() % 1000 == 0) clock.incrementAndGet();
+                        String key = keys[(i + offset) % keys.length];
+                        long now = clock.get();
+                        if (_cas != null ? _cas.tryAcquire(key, now) : _locked.tryAcquire(key, now)) mine++;
+                    }
+                    admitted.addAndGet(mine);
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        Run run = new Run();
+        run.elapsedNs = System.nanoTime() - begin;
+        run.admitted = admitted.get();
+        run.clockEnd = clock.get();
+        return run;
+    }
+
+    @Test
+    public void contendedBuckets() throws InterruptedException
+    {
+        for (int keys : new int[]{1, 1000})
+        {
+            for (int threads : new int[]{1, 4, 8})
+            {
+                Run cas = run(new RateLimiter(BURST, INTERVAL_MS), null, threads, keys);
+                Run locked = run(null, new LockedLimiter(), threads, keys);
+                long ops = (long)threads * OPS_PER_THREAD;
+                System.out.println(String.format("RateLimiter keys=%-4d threads=%d: cas=%.0f ns/op locked=%.0f ns/op, admitted cas=%d locked=%d",
+                        keys, threads, (double)cas.elapsedNs / ops, (double)locked.elapsedNs / ops, cas.admitted, locked.admitted));
+
+                // no bucket hands out more than its burst plus one token per interval of fake time
+                long limit = keys * (BURST + cas.clockEnd / INTERVAL_MS + 1);
+                assertTrue("admitted " + cas.admitted + " > " + limit, cas.admitted <= limit);
+                assertTrue(cas.admitted > 0);
+                assertTrue("cas " + cas.elapsedNs + "ns vs locked " + locked.elapsedNs + "ns", cas.elapsedNs < locked.elapsedNs * 5);
+            }
+        }
+    }
+}
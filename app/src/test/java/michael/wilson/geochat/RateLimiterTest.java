@@ -0,0 +1,83 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the token bucket limiter, driven by a fake clock (every call is given the current time).
+ */
+public class RateLimiterTest
+{
+    @Test
+    public void burst_thenOneTokenPerInterval()
+    {
+        RateLimiter limiter = new RateLimiter(3, 1000);
+
+        assertTrue(limiter.tryAcquire("a", 0));
+        assertTrue(limiter.tryAcquire("a", 0));
+        assertTrue(limiter.tryAcquire("a", 0));
+        assertFalse(limiter.tryAcquire("a", 0));
+        assertFalse(limiter.tryAcquire("a", 999));
+        assertTrue(limiter.tryAcquire("a", 1000));
+        assertFalse(limiter.tryAcquire("a", 1500));
+
+        // other keys have their own bucket
+        assertTrue(limiter.tryAcquire("b", 1500));
+
+        // an idle bucket refills, but never beyond the burst
+        for (int i = 0; i < 3; i++) assertTrue(limiter.tryAcquire("a", 100000));
+        assertFalse(limiter.tryAcquire("a", 100000));
+    }
+
+    @Test
+    public void reserve_spreadsBurstOut()
+    {
+        RateLimiter limiter = new RateLimiter(2, 1000);
+
+        assertEquals(0, limiter.reserve("a", 0, 5000));
+        assertEquals(0, limiter.reserve("a", 0, 5000));
+        assertEquals(1000, limiter.reserve("a", 0, 5000));
+        assertEquals(2000, limiter.reserve("a", 0, 5000));
+        assertEquals(2500, limiter.reserve("a", 500, 5000));
+        assertEquals(3000, limiter.available("a", 1000));
+
+        // too far off: refused, and nothing is reserved
+        assertEquals(RateLimiter.DENIED, limiter.reserve("a", 500, 2000));
+        assertEquals(3000, limiter.available("a", 1000));
+    }
+
+    @Test
+    public void cancel_givesTokenBack()
+    {
+        RateLimiter limiter = new RateLimiter(1, 1000);
+        assertTrue(limiter.tryAcquire("a", 0));
+        assertFalse(limiter.tryAcquire("a", 0));
+
+        limiter.cancel("a", 0);
+
+        assertTrue(limiter.tryAcquire("a", 0));
+
+        // cancelling a full bucket does not give it extra tokens
+        limiter.cancel("b", 0);
+        assertTrue(limiter.tryAcquire("b", 0));
+        assertFalse(limiter.tryAcquire("b", 0));
+    }
+
+    @Test
+    public void prune_dropsOnlyFullBuckets()
+    {
+        RateLimiter limiter = new RateLimiter(2, 1000);
+        limiter.tryAcquire("a", 0);
+        limiter.tryAcquire("b", 0);
+        limiter.tryAcquire("b", 0);
+
+        limiter.prune(1000);
+
+        assertEquals(1, limiter.size());
+        assertEquals(0, limiter.available("b", 1000));
+        assertTrue(limiter.tryAcquire("b", 1000));
+        assertFalse(limiter.tryAcquire("b", 1000));
+        assertTrue(limiter.tryAcquire("a", 1000));
+    }
+}
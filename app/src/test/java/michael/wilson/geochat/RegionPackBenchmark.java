@@ -0,0 +1,163 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offline benchmark of a pack of a city of 20k posts (a quarter of them discussed, up to 60 comments each): how long building
+ * the pack takes once its reads are answered, its size per 1,000 posts (and gzipped, as one bulk transfer), how fast a region
+ * and a thread are read from it, and what a refresh after a busy day costs (200 new posts, 3 new comments on 300 threads)
+ * against downloading the pack again.
+ * Times are the best of 'RUNS' on the JVM. Results are printed, the assertions only catch gross regressions.
+ */
+public class RegionPackBenchmark
+{
+    private static final int POSTS = 20000, USERS = 2000, RUNS = 3, NEW_POSTS = 200, BUSY_THREADS = 300, NEW_COMMENTS = 3;
+
+    // the city (~45 by 60km)
+    private static final double SOUTH = 51.28, WEST = -0.51, NORTH = 51.70, EAST = 0.33;
+
+    private static final String[] WORDS = {"lost", "cat", "found", "keys", "street", "party", "market", "bike", "stolen", "park",
+            "concert", "tonight", "free", "sofa", "dog", "walk", "noise", "complaint", "pub", "quiz", "road", "works", "bus", "late"};
+
+    private static final long START = 1590000000000L, DAY = 24 * 3600 * 1000L;
+
+    private static String words(Random _random, int _count)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < _count; i++) text.append(i == 0 ? "" : " ").append(WORDS[_random.nextInt(WORDS.length)]);
+        return text.toString();
+    }
+
+    private static void addPost(RegionPackTest.FakeSource _source, Random _random, String _docID, long _time)
+    {
+        double lat = SOUTH + _random.nextDouble() * (NORTH - SOUTH), lng = WEST + _random.nextDouble() * (EAST - WEST);
+        String date = String.format("%02d/%02d/2020", 1 + _random.nextInt(28), 1 + _random.nextInt(12));
+        _source.posts.put(_docID, new FirestorePost(words(_random, 3), words(_random, 25), date, "device" + _random.nextInt(USERS),
+                null, null, null, lat, lng, 0, _time, GeoCell.ID(lat, lng, GeoCell.REGION_LEVEL), null));
+    }
+
+    private static void addComment(RegionPackTest.FakeSource _source, Random _random, String _docID, String _id, long _time)
+    {
+        _source.comment(_docID, _id, _time);
+        List<Comment> thread = _source.comments.get(_docID);
+        thread.get(thread.size() - 1).setCommentText(words(_random, 12));
+    }
+
+    // the city as firebase holds it, a quarter of the posts discussed
+    private static RegionPackTest.FakeSource city()
+    {
+        Random random = new Random(13);
+        RegionPackTest.FakeSource source = new RegionPackTest.FakeSource();
+        for (int i = 0; i < POSTS; i++)
+        {
+            String docID = "3-post" + i;
+            long created = START + random.nextInt(1000000000);
+            addPost(source, random, docID, created);
+            if (random.nextInt(4) != 0) continue;
+            int comments = 1 + random.nextInt(60);
+            for (int c = 0; c < comments; c++) addComment(source, random, docID, docID + "c" + c, created + (c + 1) * 60000L);
+        }
+        return source;
+    }
+
+    // a busy day: new posts, and new comments on some of the discussed threads
+    private static long busyDay(RegionPackTest.FakeSource _source, long _since)
+    {
+        Random random = new Random(17);
+        long now = _since + DAY;
+        for (int i = 0; i < NEW_POSTS; i++) addPost(_source, random, "3-new" + i, _since + random.nextInt((int)DAY));
+        List<String> discussed = new ArrayList<>(_source.comments.keySet());
+        Collections.sort(discussed);
+        for (int t = 0; t < BUSY_THREADS; t++)
+        {
+            String docID = discussed.get(random.nextInt(discussed.size()));
+            for (int c = 0; c < NEW_COMMENTS; c++)
+            {
+                addComment(_source, random, docID, docID + "n" + t + "_" + c, _since + 1 + random.nextInt((int)DAY - 1));
+            }
+        }
+        return now;
+    }
+
+    private static int gzipped(byte[] _data) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) { zip.write(_data); }
+        return out.size();
+    }
+
+    @Test
+    public void city20k_buildSizeAndDeltaRefresh() throws IOException
+    {
+        long[] cells = GeoCell.COVERING(new GeoBounds(SOUTH, WEST, NORTH, EAST), GeoCell.REGION_LEVEL, RegionPack.MAX_CELLS);
+        assertNotNull(cells);
+
+        long buildMs = Long.MAX_VALUE, openUs = Long.MAX_VALUE, regionUs = Long.MAX_VALUE, threadUs = Long.MAX_VALUE, refreshMs = Long.MAX_VALUE;
+        byte[] pack = null, refreshed = null;
+        RegionPackTest.FakeSource source = null;
+        long fullReads = 0, fullDocuments = 0, fullBytes = 0, deltaReads = 0, deltaDocuments = 0, deltaBytes = 0, firstPages = 0;
+        for (int run = 0; run < RUNS; run++)
+        {
+            source = city();
+            long start = System.nanoTime();
+            pack = RegionPack.DOWNLOAD(source, cells, START + 1000000000L);
+            buildMs = Math.min(buildMs, (System.nanoTime() - start) / 1000000);
+            fullReads = source.reads.size();
+            fullDocuments = source.documents;
+            fullBytes = source.bytes;
+
+            // what the map and a discussion read offline
+            start = System.nanoTime();
+            RegionPack.Reader reader = new RegionPack.Reader(ByteBuffer.wrap(pack));
+            openUs = Math.min(openUs, (System.nanoTime() - start) / 1000);
+            start = System.nanoTime();
+            int regionPosts = reader.region(cells[cells.length / 2]).size();
+            regionUs = Math.min(regionUs, (System.nanoTime() - start) / 1000);
+            start = System.nanoTime();
+            for (int i = 0; i < 100; i++) assertNotNull(reader.thread("3-post" + (i * 197)));
+            threadUs = Math.min(threadUs, (System.nanoTime() - start) / 1000 / 100);
+            assertTrue(regionPosts > 0);
+
+            long now = busyDay(source, reader.watermark());
+            source.reads.clear();
+            source.documents = 0;
+            source.bytes = 0;
+            start = System.nanoTime();
+            refreshed = RegionPack.REFRESH(source, reader, now);
+            refreshMs = Math.min(refreshMs, (System.nanoTime() - start) / 1000000);
+            deltaReads = source.reads.size();
+
+            // threads which were not among the most active when packed get their first page of comments
+            firstPages = 0;
+            for (String read : source.reads) if (read.startsWith("comments/") && read.endsWith("/" + ThreadCache.NO_WATERMARK)) firstPages++;
+            deltaDocuments = source.documents;
+            deltaBytes = source.bytes;
+        }
+
+        RegionPack.Reader after = new RegionPack.Reader(ByteBuffer.wrap(refreshed));
+        assertEquals(POSTS + NEW_POSTS, after.count());
+        int zipped = gzipped(pack);
+        System.out.println("RegionPack city " + POSTS + " posts, " + cells.length + " regions: build=" + buildMs + "ms pack="
+                + pack.length / 1024 + "KB (" + pack.length / (POSTS / 1000) / 1024 + "KB per 1k posts, gzipped " + zipped / 1024
+                + "KB) from " + fullReads + " reads of " + fullDocuments + " documents (" + fullBytes / 1024 + "KB); open=" + openUs
+                + "us region=" + regionUs + "us thread=" + threadUs + "us; refresh after a day: " + deltaReads + " reads (" + firstPages + " first pages of threads) of "
+                + deltaDocuments + " documents (" + deltaBytes / 1024 + "KB, " + 100 * deltaBytes / fullBytes + "% of a download) apply="
+                + refreshMs + "ms");
+
+        // the pack is smaller than the documents it was made of, and a day's delta a small part of a download
+        assertTrue(pack.length < fullBytes);
+        assertTrue(deltaBytes * 5 < fullBytes);
+        assertTrue(deltaReads < fullReads);
+    }
+}
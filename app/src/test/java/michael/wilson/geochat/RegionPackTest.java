@@ -0,0 +1,210 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for region packs: what is packed reads back (each region's posts, each thread's newest comments), a refresh fetches
+ * only what changed since the pack's watermarks and copies the rest, and other files are refused.
+ */
+public class RegionPackTest
+{
+    /** The posts and comments firebase would answer with, counting the reads and the bytes they transfer */
+    static class FakeSource implements RegionPack.Source
+    {
+        final Map<String, FirestorePost> posts = new HashMap<>();
+        final Map<String, List<Comment>> comments = new HashMap<>();
+        final List<String> reads = new ArrayList<>();
+        long documents, bytes;
+
+        @Override
+        public List<FirestoreTape.Document> posts(long _cell, long _since)
+        {
+            reads.add("posts/" + _cell + "/" + _since);
+            List<FirestoreTape.Document> answer = new ArrayList<>();
+            for (Map.Entry<String, FirestorePost> entry : posts.entrySet())
+            {
+                FirestorePost post = entry.getValue();
+                if (post.getCell() != _cell || post.getLastActivity() < _since) continue;
+                answer.add(new FirestoreTape.Document(entry.getKey(), post));
+                documents++;
+                bytes += ThreadCache.ESTIMATE_BYTES(post);
+            }
+            return answer;
+        }
+
+        @Override
+        public List<Comment> comments(String _docID, long _since, int _limit)
+        {
+            reads.add("comments/" + _docID + "/" + _since);
+            List<Comment> newest = new ArrayList<>(comments.containsKey(_docID) ? comments.get(_docID) : Collections.<Comment>emptyList());
+            Collections.sort(newest, new Comparator<Comment>()
+            {
+                @Override
+                public int compare(Comment _a, Comment _b) { return _b.getCommentTime().compareTo(_a.getCommentTime()); }
+            });
+            List<Comment> answer = new ArrayList<>();
+            for (Comment comment : newest)
+            {
+                if (answer.size() == _limit || comment.getCommentTime().getTime() < _since) break;
+                answer.add(comment);
+                documents++;
+                bytes += ThreadCache.ESTIMATE_BYTES(comment);
+            }
+            return answer;
+        }
+
+        /** Adds a comment to a post, as writing one does (the count and activity are those the rollup gives) */
+        void comment(String _docID, String _id, long _time)
+        {
+            if (!comments.containsKey(_docID)) comments.put(_docID, new ArrayList<Comment>());
+            comments.get(_docID).add(ThreadTopicsTest.comment(_id, "Comment " + _id, "device2", _time));
+            FirestorePost post = posts.get(_docID);
+            posts.put(_docID, new FirestorePost(post.getTitle(), post.getBody(), post.getDate(), post.getUserID(), null, null, null,
+                    post.getLat(), post.getLng(), comments.get(_docID).size(), _time, post.getCell(), post.getComments()));
+        }
+    }
+
+    private static FirestorePost post(String _title, double _lat, double _lng, long _activity)
+    {
+        return new FirestorePost(_title, "Body of " + _title, "01/06/2020", "device1", null, null, null, _lat, _lng, 0, _activity,
+                GeoCell.ID(_lat, _lng, GeoCell.REGION_LEVEL), null);
+    }
+
+    private static List<String> ids(List<PostSummary> _posts)
+    {
+        List<String> ids = new ArrayList<>();
+        for (PostSummary post : _posts) ids.add(post.getDocID());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void download_readsBackEachRegionAndThread() throws IOException
+    {
+        FakeSource source = new FakeSource();
+        Comment embedded = ThreadTopicsTest.comment(null, "kept in the post", "device3", 0);
+        embedded.setCommentTime(null);
+        FirestorePost park = post("Concert in the park", 51.5, -0.12, 1000);
+        park.setComments(new ArrayList<>(Collections.singletonList(embedded)));
+        source.posts.put("a", park);
+        source.posts.put("b", post("Lost cat", 51.51, -0.13, 2000));
+        source.posts.put("c", post("Road works", 51.5, 0.2, 3000));
+        source.posts.put("far", post("Far away", 48.85, 2.35, 9000));
+        for (int c = 0; c < RegionPack.COMMENT_PAGE + 5; c++) source.comment("a", "a" + c, 10000 + c);
+
+        long[] cells = GeoCell.COVERING(new GeoBounds(51.49, -0.14, 51.52, 0.21), GeoCell.REGION_LEVEL, RegionPack.MAX_CELLS);
+        RegionPack.Reader pack = new RegionPack.Reader(ByteBuffer.wrap(RegionPack.DOWNLOAD(source, cells, 50000)));
+
+        assertEquals(3, pack.count());
+        assertEquals(50000, pack.builtTime());
+        assertEquals(10000 + RegionPack.COMMENT_PAGE + 4, pack.watermark());
+        assertEquals(Arrays.asList("a", "b", "c"), ids(pack.all()));
+        List<PostSummary> byRegion = new ArrayList<>();
+        for (long cell : pack.cells()) byRegion.addAll(pack.region(cell));
+        assertEquals(Arrays.asList("a", "b", "c"), ids(byRegion));
+        assertTrue(pack.covers(park.getCell()));
+        assertNull(pack.region(source.posts.get("far").getCell()));
+        assertNull(pack.thread("far"));
+
+        // the newest comments, then the one kept in the post document
+        FirestorePost thread = pack.thread("a");
+        assertEquals("Concert in the park", thread.getTitle());
+        assertEquals(RegionPack.COMMENT_PAGE + 5, thread.getCommentCount());
+        assertEquals(RegionPack.COMMENT_PAGE + 1, thread.getComments().size());
+        assertEquals("a" + (RegionPack.COMMENT_PAGE + 4), thread.getComments().get(0).getCommentID());
+        assertEquals("a5", thread.getComments().get(RegionPack.COMMENT_PAGE - 1).getCommentID());
+        assertEquals("kept in the post", thread.getComments().get(RegionPack.COMMENT_PAGE).getCommentText());
+        assertTrue(pack.thread("b").getComments().isEmpty());
+
+        // only the thread with comments was asked for them
+        assertEquals(1, Collections.frequency(prefixes(source.reads), "comments"));
+    }
+
+    private static List<String> prefixes(List<String> _reads)
+    {
+        List<String> prefixes = new ArrayList<>();
+        for (String read : _reads) prefixes.add(read.substring(0, read.indexOf('/')));
+        return prefixes;
+    }
+
+    @Test
+    public void refresh_fetchesOnlyTheDelta_andCopiesTheRest() throws IOException
+    {
+        FakeSource source = new FakeSource();
+        source.posts.put("a", post("Concert in the park", 51.45, -0.12, 1000));
+        source.posts.put("b", post("Lost cat", 51.46, -0.13, 2000));
+        source.posts.put("c", post("Market on Sunday", 51.455, -0.125, 3000));
+        source.comment("a", "a1", 4000);
+        source.comment("c", "c1", 5000);
+        long[] cells = {GeoCell.ID(51.45, -0.12, GeoCell.REGION_LEVEL)};
+        RegionPack.Reader pack = new RegionPack.Reader(ByteBuffer.wrap(RegionPack.DOWNLOAD(source, cells, 6000)));
+        assertEquals(5000, pack.watermark());
+
+        // a new comment on 'a', and a new post
+        source.comment("a", "a2", 7000);
+        source.posts.put("d", post("Free sofa", 51.452, -0.121, 8000));
+        source.reads.clear();
+        source.documents = 0;
+        RegionPack.Reader refreshed = new RegionPack.Reader(ByteBuffer.wrap(RegionPack.REFRESH(source, pack, 9000)));
+
+        // 'c' is fetched again (it is at the watermark) but its comments are not, 'a' only fetches the comments since its watermark
+        assertEquals(Arrays.asList("posts/" + cells[0] + "/5000", "comments/a/4000"), source.reads);
+        assertEquals(2 + 1 + 2, source.documents);
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), ids(refreshed.all()));
+        assertEquals(9000, refreshed.builtTime());
+        assertEquals(8000, refreshed.watermark());
+        FirestorePost a = refreshed.thread("a");
+        assertEquals(2, a.getCommentCount());
+        assertEquals(Arrays.asList("a2", "a1"), Arrays.asList(a.getComments().get(0).getCommentID(), a.getComments().get(1).getCommentID()));
+        assertEquals("Free sofa", refreshed.thread("d").getTitle());
+
+        // the unchanged thread is copied as it was stored
+        assertArrayEquals(pack.blob(1), refreshed.blob(1));
+        assertEquals("b", refreshed.id(1));
+
+        // nothing new, nothing but the posts at the watermark is fetched
+        source.reads.clear();
+        RegionPack.REFRESH(source, refreshed, 10000);
+        assertEquals(Collections.singletonList("posts/" + cells[0] + "/8000"), source.reads);
+    }
+
+    @Test
+    public void reader_refusesOtherFiles()
+    {
+        byte[] pack = RegionPack.BUILD(new long[]{1}, Collections.singletonMap("a", post("a", 1, 1, 1)),
+                Collections.<String, List<Comment>>emptyMap(), 0);
+        for (byte[] bad : new byte[][]{"not a pack".getBytes(), Arrays.copyOf(pack, pack.length - 4), PostSnapshot.ENCODE(1,
+                Collections.<PostSummary>emptyList())})
+        {
+            try
+            {
+                new RegionPack.Reader(ByteBuffer.wrap(bad));
+                fail();
+            }
+            catch (IOException ex) { /* expected */ }
+        }
+
+        // a thread claiming to be longer than it is
+        try
+        {
+            RegionPack.Reader reader = new RegionPack.Reader(ByteBuffer.wrap(pack));
+            ByteBuffer.wrap(pack).putInt(ByteBuffer.wrap(pack).getInt(pack.length - 8), 100000);
+            reader.thread("a");
+            fail();
+        }
+        catch (IOException ex) { /* expected */ }
+    }
+}
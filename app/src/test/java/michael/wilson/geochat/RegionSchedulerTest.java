@@ -0,0 +1,258 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the region scheduler, driven by simulated camera paths and a simulated network.
+ * Each path moves the camera at 60 frames per second, and every fetch takes a fixed time to complete.
+ */
+public class RegionSchedulerTest
+{
+    private static final int LEVEL = GeoCell.REGION_LEVEL;
+    private static final long FRAME_MS = 16, REGION_BYTES = 4096;
+
+    // a portrait phone viewport, roughly 3x5 regions
+    private static final double VIEW_WIDTH = 0.5, VIEW_HEIGHT = 0.9;
+
+    /** Completes fetches after a fixed latency, and tracks concurrency */
+    private static class SimFetcher implements RegionScheduler.Fetcher
+    {
+        final long latencyMs;
+        final List<RegionScheduler.Request> pending = new ArrayList<>();
+        final Set<Long> evicted = new HashSet<>();
+        RegionScheduler scheduler;
+        int maxConcurrent, maxConcurrentPrefetch, late;
+
+        SimFetcher(long _latencyMs) { this.latencyMs = _latencyMs; }
+
+        @Override
+        public void fetch(RegionScheduler.Request _request)
+        {
+            pending.add(_request);
+            int prefetches = 0, live = 0;
+            for (RegionScheduler.Request r : pending)
+            {
+                if (r.isCancelled()) continue;
+                live++;
+                if (r.isPrefetch()) prefetches++;
+            }
+            maxConcurrent = Math.max(maxConcurrent, live);
+            maxConcurrentPrefetch = Math.max(maxConcurrentPrefetch, prefetches);
+        }
+
+        @Override
+        public void evict(long _cell) { evicted.add(_cell); }
+
+        // completes every request due by '_now', in order
+        void advance(long _now)
+        {
+            while (true)
+            {
+                RegionScheduler.Request next = null;
+                for (RegionScheduler.Request r : pending)
+                {
+                    if (r.getStartTime() + latencyMs <= _now && (next == null || r.getStartTime() < next.getStartTime())) next = r;
+                }
+                if (next == null) return;
+                pending.remove(next);
+                if (!scheduler.onLoaded(next, REGION_BYTES, next.getStartTime() + latencyMs)) late++;
+            }
+        }
+    }
+
+    private static GeoBounds view(double _lat, double _lng)
+    {
+        return new GeoBounds(_lat - VIEW_HEIGHT / 2, _lng - VIEW_WIDTH / 2, _lat + VIEW_HEIGHT / 2, _lng + VIEW_WIDTH / 2);
+    }
+
+    // pans east at '_degreesPerSecond' for '_durationMs', then stops, and runs until everything has loaded
+    private static RegionScheduler.Stats pan(SimFetcher _fetcher, RegionScheduler _scheduler, double _degreesPerSecond, long _durationMs)
+    {
+        _fetcher.scheduler = _scheduler;
+        double lat = 40.0, lng = -100.0;
+        _scheduler.onCameraIdle(view(lat, lng), 0);
+        long t = 0;
+        for (; t <= 2000; t += FRAME_MS) _fetcher.advance(t);
+
+        long start = t;
+        for (; t <= start + _durationMs; t += FRAME_MS)
+        {
+            _fetcher.advance(t);
+            double x = lng + _degreesPerSecond * (t - start) / 1000.0;
+            _scheduler.onCameraMove(view(lat, x), t);
+            _scheduler.tick(t);
+        }
+        _scheduler.onCameraIdle(view(lat, lng + _degreesPerSecond * _durationMs / 1000.0), t);
+        for (long end = t + 5000; t <= end; t += FRAME_MS) _fetcher.advance(t);
+        return _scheduler.getStats();
+    }
+
+    @Test
+    public void idle_fetchesVisibleRegionsNearestFirst()
+    {
+        SimFetcher fetcher = new SimFetcher(100);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+
+        assertTrue(scheduler.onCameraIdle(view(40, -100), 0));
+        assertEquals(RegionScheduler.MAX_IN_FLIGHT, fetcher.pending.size());
+        assertEquals(GeoCell.ID(40, -100, LEVEL), fetcher.pending.get(0).getCell());
+
+        for (long t = 0; t < 3000; t += FRAME_MS) fetcher.advance(t);
+        for (long cell : scheduler.visibleCells()) assertTrue(scheduler.isLoaded(cell));
+        assertEquals(0, fetcher.pending.size());
+    }
+
+    @Test
+    public void moves_areDebounced()
+    {
+        SimFetcher fetcher = new SimFetcher(100);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+
+        // a burst of moves shorter than the max wait: nothing is fetched until the camera has been still for a while
+        long t = 0;
+        for (; t <= 200; t += FRAME_MS)
+        {
+            scheduler.onCameraMove(view(40, -100 + t * 0.0001), t);
+            assertTrue(scheduler.tick(t));
+            assertEquals(0, fetcher.pending.size());
+        }
+        long lastMove = t - FRAME_MS;
+        assertEquals(lastMove + RegionScheduler.DEBOUNCE_MS, scheduler.nextDeadline());
+        scheduler.tick(lastMove + RegionScheduler.DEBOUNCE_MS - 1);
+        assertEquals(0, fetcher.pending.size());
+        scheduler.tick(lastMove + RegionScheduler.DEBOUNCE_MS);
+        assertTrue(fetcher.pending.size() > 0);
+        assertEquals(-1, scheduler.nextDeadline());
+    }
+
+    @Test
+    public void longPan_plansAtLeastEveryMaxWait()
+    {
+        SimFetcher fetcher = new SimFetcher(100);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+
+        long firstFetch = -1;
+        for (long t = 0; t <= 1000 && firstFetch < 0; t += FRAME_MS)
+        {
+            scheduler.onCameraMove(view(40, -100 + t * 0.0005), t);
+            scheduler.tick(t);
+            if (!fetcher.pending.isEmpty()) firstFetch = t;
+        }
+        assertTrue(firstFetch >= RegionScheduler.MAX_WAIT_MS && firstFetch < RegionScheduler.MAX_WAIT_MS + FRAME_MS);
+    }
+
+    @Test
+    public void jumpAway_cancelsStaleFetches()
+    {
+        SimFetcher fetcher = new SimFetcher(1000);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+
+        scheduler.onCameraIdle(view(40, -100), 0);
+        List<RegionScheduler.Request> first = new ArrayList<>(fetcher.pending);
+
+        // jump to the other side of the world before anything has loaded
+        scheduler.onCameraIdle(view(-33, 151), 200);
+        for (RegionScheduler.Request r : first) assertTrue(r.isCancelled());
+        assertEquals(first.size(), scheduler.getStats().getCancelled());
+        assertEquals(RegionScheduler.MAX_IN_FLIGHT, scheduler.inFlightCount());
+
+        // results of cancelled fetches are dropped
+        fetcher.advance(1000);
+        assertEquals(first.size(), fetcher.late);
+        for (RegionScheduler.Request r : first) assertFalse(scheduler.isLoaded(r.getCell()));
+    }
+
+    @Test
+    public void concurrency_neverExceedsLimit()
+    {
+        SimFetcher fetcher = new SimFetcher(250);
+        pan(fetcher, new RegionScheduler(fetcher, LEVEL, 3, RegionScheduler.MAX_CELLS, RegionScheduler.PREFETCH_BUDGET_BYTES,
+                RegionScheduler.CACHE_BUDGET_BYTES), 0.4, 5000);
+
+        assertTrue(fetcher.maxConcurrent <= 3);
+    }
+
+    @Test
+    public void prefetch_staysWithinByteBudget()
+    {
+        SimFetcher fetcher = new SimFetcher(250);
+        RegionScheduler.Stats stats = pan(fetcher, new RegionScheduler(fetcher, LEVEL, 8, RegionScheduler.MAX_CELLS,
+                2 * REGION_BYTES, RegionScheduler.CACHE_BUDGET_BYTES), 0.4, 5000);
+
+        assertTrue(stats.getPrefetches() > 0);
+        assertTrue(fetcher.maxConcurrentPrefetch <= 2);
+    }
+
+    @Test
+    public void prefetch_cutsTimeUntilPostsAppear()
+    {
+        SimFetcher plainFetcher = new SimFetcher(300), prefetchFetcher = new SimFetcher(300);
+        RegionScheduler.Stats plain = pan(plainFetcher, new RegionScheduler(plainFetcher, LEVEL, RegionScheduler.MAX_IN_FLIGHT,
+                RegionScheduler.MAX_CELLS, 0, RegionScheduler.CACHE_BUDGET_BYTES), 0.3, 8000);
+        RegionScheduler.Stats prefetch = pan(prefetchFetcher, new RegionScheduler(prefetchFetcher, LEVEL), 0.3, 8000);
+
+        System.out.println("no prefetch: " + plain);
+        System.out.println("prefetch:    " + prefetch);
+
+        assertEquals(0, plain.getPrefetches());
+        assertTrue(prefetch.getPrefetchHits() > 0);
+        assertTrue(prefetch.getVisibleMeanMs() < plain.getVisibleMeanMs());
+        assertTrue(prefetch.getWasted() < prefetch.getPrefetches());
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsedRegions()
+    {
+        SimFetcher fetcher = new SimFetcher(50);
+        long budget = 30 * REGION_BYTES;
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL, RegionScheduler.MAX_IN_FLIGHT, RegionScheduler.MAX_CELLS,
+                0, budget);
+        RegionScheduler.Stats stats = pan(fetcher, scheduler, 0.5, 10000);
+
+        assertTrue(stats.getEvictions() > 0);
+        assertEquals(stats.getEvictions(), fetcher.evicted.size());
+        assertTrue(scheduler.loadedBytes() <= budget);
+        for (long cell : scheduler.visibleCells()) assertTrue(scheduler.isLoaded(cell));
+    }
+
+    @Test
+    public void zoomedOut_fallsBack()
+    {
+        SimFetcher fetcher = new SimFetcher(100);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+
+        assertFalse(scheduler.onCameraIdle(new GeoBounds(-60, -170, 60, 170), 0));
+        assertNull(scheduler.visibleCells());
+        assertEquals(0, fetcher.pending.size());
+    }
+
+    @Test
+    public void reset_forgetsEverything()
+    {
+        SimFetcher fetcher = new SimFetcher(10);
+        RegionScheduler scheduler = new RegionScheduler(fetcher, LEVEL);
+        fetcher.scheduler = scheduler;
+        scheduler.onCameraIdle(view(40, -100), 0);
+        for (long t = 0; t < 1000; t += FRAME_MS) fetcher.advance(t);
+        long[] visible = scheduler.visibleCells();
+
+        scheduler.reset();
+
+        assertEquals(0, scheduler.loadedBytes());
+        for (long cell : visible) assertTrue(fetcher.evicted.contains(cell));
+        scheduler.plan(1000);
+        assertTrue(scheduler.inFlightCount() > 0);
+    }
+}
@@ -0,0 +1,82 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for 'SearchIndex' at 100k posts: index build time, memory per post, and query latency.
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class SearchIndexBenchmark
+{
+    private static final int POSTS = 100000, QUERIES = 2000;
+
+    // small vocabulary with a skewed (zipf-like) distribution, like real posts
+    private static final String[] WORDS = ("lost found cat dog park street coffee music party sale bike stolen free help "
+            + "concert food truck market festival traffic accident meetup running club garden library school rain "
+            + "sunset beach parking noise neighbour event tonight tomorrow weekend cheap new old broken friendly").split(" ");
+
+    private static String text(Random _random, int _words)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _words; i++)
+        {
+            int w = (int)(WORDS.length * Math.pow(_random.nextDouble(), 2));
+            sb.append(WORDS[w]).append(_random.nextInt(50) == 0 ? Integer.toString(_random.nextInt(10000)) : "").append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static long usedMemory()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    @Test
+    public void benchmark100kPosts()
+    {
+        Random random = new Random(42);
+        String[] titles = new String[POSTS], bodies = new String[POSTS];
+        for (int i = 0; i < POSTS; i++)
+        {
+            titles[i] = text(random, 4);
+            bodies[i] = text(random, 30);
+        }
+
+        long memBefore = usedMemory();
+        long buildStart = System.nanoTime();
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < POSTS; i++) index.add("doc" + i, titles[i], bodies[i], random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        long buildMillis = (System.nanoTime() - buildStart) / 1000000;
+        long bytesPerPost = (usedMemory() - memBefore) / POSTS;
+
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            String q = text(random, 1 + random.nextInt(2)).trim();
+            queries[i] = random.nextBoolean() ? q.substring(0, Math.max(2, q.length() - 2)) : q;
+        }
+        for (int i = 0; i < 200; i++) index.search(queries[i], null, 20);
+
+        long[] micros = new long[QUERIES];
+        GeoBounds city = new GeoBounds(0, 0, 10, 10);
+        for (int i = 0; i < QUERIES; i++)
+        {
+            long start = System.nanoTime();
+            index.search(queries[i], i % 2 == 0 ? null : city, 20);
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        java.util.Arrays.sort(micros);
+
+        System.out.println("SearchIndex: posts=" + POSTS + " terms=" + index.termCount() + " build=" + buildMillis + "ms"
+                + " memory/post=" + bytesPerPost + "B query p50=" + micros[QUERIES / 2] + "us p99=" + micros[QUERIES * 99 / 100] + "us");
+
+        assertEquals(POSTS, index.size());
+        assertTrue("query p50 " + micros[QUERIES / 2] + "us", micros[QUERIES / 2] < 50000);
+    }
+}
@@ -0,0 +1,119 @@
+package michael.wilson.geochat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the on-device post search index.
+ */
+public class SearchIndexTest
+{
+    private SearchIndex index;
+
+    @Before
+    public void setUp()
+    {
+        index = new SearchIndex();
+        index.add("a", "Lost cat", "Grey tabby seen near the park", 10, 10);
+        index.add("b", "Street festival", "Food trucks and a lost and found tent", 20, 20);
+        index.add("c", "Caf\u00e9 review", "Great coffee, friendly cat", 30, 30);
+    }
+
+    private static String ids(List<PostSummary> _results)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (PostSummary p : _results) sb.append(p.getDocID());
+        return sb.toString();
+    }
+
+    @Test
+    public void tokenize_normalizes()
+    {
+        assertEquals(java.util.Arrays.asList("cafe", "creme", "brulee", "42"), SearchIndex.TOKENIZE("Caf\u00e9 CR\u00c8ME-br\u00fbl\u00e9e, 42!"));
+        assertTrue(SearchIndex.TOKENIZE(null).isEmpty());
+    }
+
+    @Test
+    public void search_titleMatchesRankFirst()
+    {
+        // 'a' has "cat" in its title, 'c' only in its body
+        assertEquals("ac", ids(index.search("cat", null, 10)));
+    }
+
+    @Test
+    public void search_allWordsMustMatch()
+    {
+        assertEquals("b", ids(index.search("lost tent", null, 10)));
+        assertEquals("", ids(index.search("lost coffee", null, 10)));
+    }
+
+    @Test
+    public void search_lastWordIsPrefix()
+    {
+        assertEquals("b", ids(index.search("fest", null, 10)));
+        assertEquals("c", ids(index.search("cafe rev", null, 10)));
+        assertEquals("", ids(index.search("rev cafe", null, 10)));
+    }
+
+    @Test
+    public void search_geoFilterAndLimit()
+    {
+        assertEquals("c", ids(index.search("cat", new GeoBounds(25, 25, 35, 35), 10)));
+        assertEquals(1, index.search("cat", null, 1).size());
+    }
+
+    @Test
+    public void search_returnsTitleAndLocation()
+    {
+        PostSummary result = index.search("festival", null, 1).get(0);
+
+        assertEquals("Street festival", result.getTitle());
+        assertEquals(20, result.getLat(), 0);
+    }
+
+    @Test
+    public void replaceAndRemove()
+    {
+        index.add("a", "Found dog", "Brown labrador", 10, 10);
+        assertEquals("c", ids(index.search("cat", null, 10)));
+        assertEquals("a", ids(index.search("dog", null, 10)));
+
+        index.remove("c");
+        assertEquals("", ids(index.search("cat", null, 10)));
+        assertEquals(2, index.size());
+
+        index.compact();
+        assertEquals("a", ids(index.search("labrador", null, 10)));
+        assertEquals("b", ids(index.search("festival", null, 10)));
+        assertEquals("", ids(index.search("cat", null, 10)));
+    }
+
+    @Test
+    public void reAddingUnchanged_flagsNothing()
+    {
+        index.add("a", "Lost cat", "Grey tabby seen near the park", 10, 10);
+        assertEquals(0, index.deletedCount());
+
+        index.add("a", "Lost cat", "Answers to Tom", 10, 10);
+        assertEquals(1, index.deletedCount());
+        assertEquals("a", ids(index.search("tom", null, 10)));
+    }
+
+    @Test
+    public void reloadingRegions_compactsItself()
+    {
+        SearchIndex index = new SearchIndex();
+        for (int round = 0; round < 10; round++)
+        {
+            // each reload of the same posts changes their text, so every post is replaced
+            for (int i = 0; i < 100; i++) index.add("p" + i, "Post " + i, "Body " + round, 10, 10);
+            assertTrue(index.deletedCount() <= Math.max(SearchIndex.MIN_COMPACT, index.size()));
+        }
+        assertEquals(100, index.size());
+        assertEquals(100, index.search("post", null, 1000).size());
+    }
+}
@@ -0,0 +1,96 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for routing posts to region shards.
+ */
+public class ShardRouterTest
+{
+    private final ShardRouter router = new ShardRouter("mcl", 16);
+
+    @Test
+    public void docID_carriesItsShard()
+    {
+        int shard = router.shardOf(51.5, -0.12);
+        String id = router.newDocID(shard, "AbCdEfGhIjKlMnOpQrSt");
+
+        assertEquals(shard, ShardRouter.SHARD_OF_ID(id));
+        assertEquals("mcl_" + shard, router.collectionOf(id));
+    }
+
+    @Test
+    public void legacyIDs_stayInBaseCollection()
+    {
+        assertEquals(-1, ShardRouter.SHARD_OF_ID("AbCdEfGhIjKlMnOpQrSt"));
+        assertEquals(-1, ShardRouter.SHARD_OF_ID("-leading"));
+        assertEquals(-1, ShardRouter.SHARD_OF_ID("x1-mixed"));
+        assertEquals("mcl", router.collectionOf("AbCdEfGhIjKlMnOpQrSt"));
+    }
+
+    @Test
+    public void region_andItsPosts_shareAShard()
+    {
+        long region = GeoCell.ID(40.71, -74.0, GeoCell.REGION_LEVEL);
+
+        assertEquals(router.shardOf(40.71, -74.0), router.shardOfCell(region));
+        int[] shards = router.shardsCovering(GeoCell.BOUNDS(region));
+        assertEquals(1, shards.length);
+        assertEquals(router.shardOfCell(region), shards[0]);
+    }
+
+    @Test
+    public void viewport_fansOutToFewShards()
+    {
+        // a viewport straddling the corner of four coarse cells
+        double edge = GeoCell.SIZE_DEGREES(ShardRouter.SHARD_LEVEL);
+        int[] shards = router.shardsCovering(new GeoBounds(edge - 0.1, edge - 0.1, edge + 0.1, edge + 0.1));
+        Set<Integer> expected = new HashSet<>();
+        for (double lat : new double[]{edge - 0.05, edge + 0.05})
+        {
+            for (double lng : new double[]{edge - 0.05, edge + 0.05}) expected.add(router.shardOf(lat, lng));
+        }
+
+        assertEquals(expected.size(), shards.length);
+        for (int shard : shards) assertTrue(expected.contains(shard));
+    }
+
+    @Test
+    public void wholeGlobe_queriesEveryShardPlusLegacy()
+    {
+        String[] collections = router.collectionsCovering(null, true);
+
+        assertEquals(17, collections.length);
+        assertEquals("mcl_0", collections[0]);
+        assertEquals("mcl", collections[16]);
+        assertEquals(16, router.shardsCovering(new GeoBounds(-10, -180, 10, 180)).length);
+    }
+
+    @Test
+    public void shards_areEvenlyUsed()
+    {
+        int[] cells = new int[16];
+        for (int row = 0; row < GeoCell.ROWS(ShardRouter.SHARD_LEVEL); row++)
+        {
+            for (int col = 0; col < GeoCell.COLUMNS(ShardRouter.SHARD_LEVEL); col++)
+            {
+                cells[router.shardOfCell(GeoCell.OF(ShardRouter.SHARD_LEVEL, col, row))]++;
+            }
+        }
+        for (int count : cells) assertTrue("shard holds " + count + " of 128 cells", count >= 3 && count <= 14);
+    }
+
+    @Test
+    public void singleShard_routesEverythingToIt()
+    {
+        ShardRouter single = new ShardRouter("mcl", 1);
+
+        assertEquals(0, single.shardOf(-33.9, 151.2));
+        assertArrayEquals(new String[]{"mcl_0"}, single.collectionsCovering(new GeoBounds(0, 0, 1, 1), false));
+    }
+}
@@ -0,0 +1,152 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent-increment stress tests for 'ShardedCounter' against a local stand-in for the shard documents.
+ */
+public class ShardedCounterTest
+{
+    /** Stand-in for the shard documents: each shard is a "document" which only accepts one write at a time */
+    static class LocalStore implements ShardedCounter.Store
+    {
+        static class Shard
+        {
+            final ReentrantLock lock = new ReentrantLock();
+            long count, time;
+        }
+
+        final ConcurrentHashMap<String, Shard> shards = new ConcurrentHashMap<>();
+        final AtomicLong contendedWrites = new AtomicLong();
+
+        @Override
+        public void increment(String _counterID, int _shard, long _amount, long _time)
+        {
+            String key = _counterID + "/" + _shard;
+            Shard shard = shards.get(key);
+            if (shard == null)
+            {
+                Shard created = new Shard();
+                shard = shards.putIfAbsent(key, created);
+                if (shard == null) shard = created;
+            }
+            if (!shard.lock.tryLock())
+            {
+                contendedWrites.incrementAndGet();
+                shard.lock.lock();
+            }
+            try
+            {
+                // simulate the time a document write holds the document
+                LockSupport.parkNanos(20000);
+                shard.count += _amount;
+                shard.time = Math.max(shard.time, _time);
+            }
+            finally { shard.lock.unlock(); }
+        }
+
+        ShardedCounter.Total total(String _counterID, int _shardCount)
+        {
+            ShardedCounter.Total total = new ShardedCounter.Total();
+            for (int i = 0; i < _shardCount; i++)
+            {
+                Shard shard = shards.get(_counterID + "/" + i);
+                if (shard != null) total.addShard(shard.count, shard.time);
+            }
+            return total;
+        }
+    }
+
+    private static final int THREADS = 16, INCREMENTS_PER_THREAD = 250;
+
+    // runs the stress test and returns how long all writers took, in milliseconds
+    private static long stress(final LocalStore _store, int _shards) throws InterruptedException
+    {
+        final ShardedCounter counter = new ShardedCounter(_store, _shards);
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int thread = t;
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < INCREMENTS_PER_THREAD; i++) counter.increment("post", thread * 1000L + i);
+                    }
+                    catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+                    finally { done.countDown(); }
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long millis = (System.nanoTime() - begin) / 1000000;
+
+        ShardedCounter.Total total = _store.total("post", _shards);
+        assertEquals(THREADS * INCREMENTS_PER_THREAD, total.getCount());
+        assertEquals((THREADS - 1) * 1000L + INCREMENTS_PER_THREAD - 1, total.getLastActivity());
+        System.out.println("shards=" + _shards + " contended=" + _store.contendedWrites.get() + " time=" + millis + "ms");
+        return millis;
+    }
+
+    @Test
+    public void concurrentIncrements_areNeverLost() throws InterruptedException
+    {
+        stress(new LocalStore(), ShardedCounter.SHARDS);
+    }
+
+    @Test
+    public void sharding_reducesContention() throws InterruptedException
+    {
+        // with one shard every write waits on the same document, so the writes are fully serialized
+        long singleMillis = stress(new LocalStore(), 1);
+        long shardedMillis = stress(new LocalStore(), ShardedCounter.SHARDS);
+
+        assertTrue("single=" + singleMillis + "ms sharded=" + shardedMillis + "ms", shardedMillis < singleMillis);
+    }
+
+    @Test
+    public void advance_neverMovesTotalsBack()
+    {
+        ShardedCounter.Total total = new ShardedCounter.Total();
+        total.addShard(3, 1000);
+
+        // a roll-up which read the shards later already stored more
+        assertFalse(total.advance(5, 2000));
+        assertEquals(5, total.getCount());
+        assertEquals(2000, total.getLastActivity());
+
+        ShardedCounter.Total later = new ShardedCounter.Total();
+        later.addShard(6, 1500);
+        assertTrue(later.advance(5, 2000));
+        assertEquals(6, later.getCount());
+        assertEquals(2000, later.getLastActivity());
+
+        ShardedCounter.Total same = new ShardedCounter.Total();
+        same.addShard(6, 2000);
+        assertFalse(same.advance(6, 2000));
+    }
+
+    @Test
+    public void pickShard_staysInRange()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            int shard = ShardedCounter.PICK_SHARD(ShardedCounter.SHARDS);
+            assertTrue(shard >= 0 && shard < ShardedCounter.SHARDS);
+        }
+    }
+}
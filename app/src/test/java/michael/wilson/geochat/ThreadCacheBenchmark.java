@@ -0,0 +1,84 @@
+package michael.wilson.geochat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark for reopening a discussion with 500 comments, with and without the thread cache: bytes fetched from
+ * firestore (estimated, see 'ThreadCache.ESTIMATE_BYTES(...)') and time until the thread can be rendered.
+ * Without the cache every comment is downloaded, with it the thread is read from disk and only new comments are fetched.
+ * Network time is not simulated, only the local work is timed. Results are printed, the assertions only catch gross regressions.
+ */
+public class ThreadCacheBenchmark
+{
+    private static final int COMMENTS = 500, NEW_COMMENTS = 5, RUNS = 50;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception { dir = Files.createTempDirectory("threadbench").toFile(); }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    private static List<Comment> comments(int _from, int _count)
+    {
+        List<Comment> comments = new ArrayList<>();
+        for (int i = _from; i < _from + _count; i++)
+        {
+            comments.add(ThreadCacheTest.comment("comment" + i + "xxxxxxxxxxx", "This is comment number " + i
+                    + ", about as long as a typical reply in a busy thread.", 1580000000000L + i * 1000L));
+        }
+        return comments;
+    }
+
+    @Test
+    public void reopenThreadWith500Comments()
+    {
+        List<Comment> old = comments(0, COMMENTS), fresh = comments(COMMENTS, NEW_COMMENTS);
+        List<Comment> all = new ArrayList<>(old);
+        all.addAll(fresh);
+
+        // without the cache: the post document and every comment
+        FirestorePost header = ThreadCacheTest.post(new ArrayList<Comment>());
+        long fullBytes = ThreadCache.ESTIMATE_BYTES(header);
+        for (Comment comment : all) fullBytes += ThreadCache.ESTIMATE_BYTES(comment);
+
+        // with the cache: the post document and the comments from the watermark on
+        ThreadCache cache = new ThreadCache(new DiskLruCache(dir, ThreadCache.DEFAULT_MAX_BYTES));
+        int entryBytes = cache.put("doc", ThreadCacheTest.post(old));
+        long watermark = ThreadCache.WATERMARK(old), deltaBytes = ThreadCache.ESTIMATE_BYTES(header);
+        for (Comment comment : all) if (comment.getCommentTime().getTime() >= watermark) deltaBytes += ThreadCache.ESTIMATE_BYTES(comment);
+
+        // time to render from disk: read, decode, and merge in the new comments
+        long[] micros = new long[RUNS];
+        for (int r = 0; r < RUNS; r++)
+        {
+            long start = System.nanoTime();
+            FirestorePost cached = cache.get("doc");
+            List<Comment> merged = ThreadCache.MERGE(cached.getComments(), fresh, null);
+            micros[r] = (System.nanoTime() - start) / 1000;
+            assertEquals(COMMENTS + NEW_COMMENTS, merged.size());
+        }
+        Arrays.sort(micros);
+
+        System.out.println("ThreadCache " + COMMENTS + " comments, " + NEW_COMMENTS + " new: full fetch=" + fullBytes / 1024
+                + "KB, delta fetch=" + deltaBytes / 1024 + "KB (" + deltaBytes + "B), cache entry=" + entryBytes / 1024 + "KB,"
+                + " disk read+merge p50=" + micros[RUNS / 2] + "us max=" + micros[RUNS - 1] + "us");
+        assertTrue(deltaBytes * 10 < fullBytes);
+    }
+}
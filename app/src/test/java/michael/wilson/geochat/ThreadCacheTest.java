@@ -0,0 +1,123 @@
+package michael.wilson.geochat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the per-thread comment cache: encoding, watermarks, merging of fetched comments, and eviction.
+ */
+public class ThreadCacheTest
+{
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception { dir = Files.createTempDirectory("threadcache").toFile(); }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    static Comment comment(String _id, String _text, long _time)
+    {
+        Comment comment = new Comment();
+        comment.setCommentID(_id);
+        comment.setCommentText(_text);
+        comment.setCommentDate("01/02/2020");
+        comment.setCommentUser("device");
+        if (_time >= 0) comment.setCommentTime(new Date(_time));
+        return comment;
+    }
+
+    static FirestorePost post(List<Comment> _comments)
+    {
+        return new FirestorePost("title", "body \u00e9\u4e2d", "01/01/2020", "device", null, null, "thumbs/a.jpg", 51.5, -0.12,
+                _comments.size(), 1234L, 99L, new ArrayList<>(_comments));
+    }
+
+    @Test
+    public void encode_roundTripsEveryField()
+    {
+        FirestorePost decoded;
+        try { decoded = ThreadCache.DECODE(ThreadCache.ENCODE(post(Arrays.asList(comment("c2", "new", 2000), comment(null, "legacy", -1))))); }
+        catch (Exception ex) { throw new AssertionError(ex); }
+
+        assertEquals("body \u00e9\u4e2d", decoded.getBody());
+        assertNull(decoded.getUserToken());
+        assertEquals("thumbs/a.jpg", decoded.getThumb());
+        assertEquals(-0.12, decoded.getLng(), 0);
+        assertEquals(99L, decoded.getCell());
+        assertEquals(2, decoded.getComments().size());
+        assertEquals("c2", decoded.getComments().get(0).getCommentID());
+        assertEquals(2000L, decoded.getComments().get(0).getCommentTime().getTime());
+        assertNull(decoded.getComments().get(1).getCommentID());
+        assertNull(decoded.getComments().get(1).getCommentTime());
+    }
+
+    @Test
+    public void unreadableEntry_isDropped()
+    {
+        DiskLruCache disk = new DiskLruCache(dir, 1024 * 1024);
+        ThreadCache cache = new ThreadCache(disk);
+        disk.put("doc", new byte[]{0, 0, 0, 1, 0, 0});
+
+        assertNull(cache.get("doc"));
+        assertFalse(disk.contains("doc"));
+    }
+
+    @Test
+    public void watermark_isNewestCommentTime()
+    {
+        assertEquals(ThreadCache.NO_WATERMARK, ThreadCache.WATERMARK(null));
+        assertEquals(ThreadCache.NO_WATERMARK, ThreadCache.WATERMARK(Collections.singletonList(comment(null, "legacy", -1))));
+        assertEquals(3000L, ThreadCache.WATERMARK(Arrays.asList(comment("a", "x", 1000), comment("b", "y", 3000), comment("c", "z", 2000))));
+    }
+
+    @Test
+    public void merge_dedupesNewestFirst_thenEmbedded()
+    {
+        List<Comment> cached = Arrays.asList(comment("b", "old copy", 2000), comment("a", "first", 1000), comment(null, "legacy", -1));
+        List<Comment> fetched = Arrays.asList(comment("b", "fetched copy", 2000), comment("c", "newest", 3000));
+        List<Comment> embedded = Collections.singletonList(comment(null, "legacy from doc", -1));
+
+        List<Comment> merged = ThreadCache.MERGE(cached, fetched, embedded);
+
+        assertEquals(4, merged.size());
+        assertEquals("c", merged.get(0).getCommentID());
+        assertEquals("fetched copy", merged.get(1).getCommentText());
+        assertEquals("a", merged.get(2).getCommentID());
+        assertEquals("legacy from doc", merged.get(3).getCommentText());
+    }
+
+    @Test
+    public void leastRecentlyOpenedThread_isEvicted()
+    {
+        List<Comment> comments = new ArrayList<>();
+        for (int i = 0; i < 20; i++) comments.add(comment("c" + i, "comment number " + i, 1000 + i));
+        int size = ThreadCache.ENCODE(post(comments)).length;
+        ThreadCache cache = new ThreadCache(new DiskLruCache(dir, size * 2 + size / 2));
+
+        assertEquals(size, cache.put("one", post(comments)));
+        cache.put("two", post(comments));
+        assertNotNull(cache.get("one"));
+        cache.put("three", post(comments));
+
+        assertNotNull(cache.get("one"));
+        assertNull(cache.get("two"));
+        assertNotNull(cache.get("three"));
+    }
+}
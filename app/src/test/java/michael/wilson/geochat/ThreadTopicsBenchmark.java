@@ -0,0 +1,165 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fake-broker benchmark of pushing the new comments of a thread with 1,000 participants: one message per participant, to the token
+ * the sender looks up in the token registry, against one message to the thread's topic.
+ * The sender calls the broker over 'CONNECTIONS' connections, every call taking 'CALL_MS'. The broker delivers 'DELIVER_MS' after
+ * accepting a message, fans topic messages out at 'FANOUT_PER_MS', and drops a share of deliveries. Every participant applies the
+ * deltas it gets ('ThreadTopics.APPLY(...)') and fetches the thread when it finds it missed one.
+ * Counts sends, token lookups and bytes sent, and the time from a comment being written until each participant has it.
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class ThreadTopicsBenchmark
+{
+    private static final int PARTICIPANTS = 1000, COMMENTS = 50, CONNECTIONS = 16;
+    private static final long CALL_MS = 40, DELIVER_MS = 100, FETCH_MS = 300, COMMENT_GAP_MS = 10000;
+    private static final double FANOUT_PER_MS = 10, P_DROP = 0.01;
+
+    /** A participant's device, and what it shows of the thread */
+    private static class Device
+    {
+        final String id;
+        List<Comment> known = new ArrayList<>();
+
+        Device(String _id) { this.id = _id; }
+    }
+
+    /** Accepts the sender's calls over its connections, and delivers to devices (by token, or to a topic's subscribers) */
+    private static class FakeBroker implements ThreadTopics.Broker
+    {
+        final Map<String, Device> tokens = new HashMap<>();
+        final Map<String, List<Device>> topics = new HashMap<>();
+        final long[] connectionFree = new long[CONNECTIONS];
+        final Random random = new Random(1);
+        final List<Comment> thread;
+        final List<Long> latencies = new ArrayList<>();
+        long now, sends, bytes, fetches;
+
+        FakeBroker(List<Comment> _thread) { this.thread = _thread; }
+
+        @Override
+        public void send(String _to, Map<String, String> _payload)
+        {
+            sends++;
+            bytes += _to.length() + NotifyPayload.SIZE_BYTES(_payload);
+
+            // on the connection free first
+            int connection = 0;
+            for (int c = 1; c < CONNECTIONS; c++) if (connectionFree[c] < connectionFree[connection]) connection = c;
+            long accepted = Math.max(now, connectionFree[connection]) + CALL_MS;
+            connectionFree[connection] = accepted;
+
+            ThreadTopics.Delta delta = ThreadTopics.DECODE_DELTA(_payload);
+            if (!_to.startsWith("/topics/")) deliver(tokens.get(_to), delta, accepted + DELIVER_MS);
+            else
+            {
+                List<Device> subscribers = topics.get(_to.substring("/topics/".length()));
+                for (int i = 0; i < subscribers.size(); i++) deliver(subscribers.get(i), delta, accepted + DELIVER_MS + (long)(i / FANOUT_PER_MS));
+            }
+        }
+
+        // comments are far enough apart that each one is delivered before the next is written
+        void deliver(Device _device, ThreadTopics.Delta _delta, long _time)
+        {
+            if (random.nextDouble() < P_DROP || _device.id.equals(_delta.getUser())) return;
+            List<Comment> applied = ThreadTopics.APPLY(_device.known, _delta);
+            if (applied == null)
+            {
+                fetches++;
+                applied = new ArrayList<>(thread);
+                _time += FETCH_MS;
+            }
+            _device.known = applied;
+            latencies.add(_time - _delta.getTime());
+        }
+    }
+
+    // runs the thread, sending each comment to the topic or to every other participant's token
+    private static FakeBroker run(boolean _topic, long[] _lookups)
+    {
+        Random random = new Random(7);
+        List<Comment> thread = new ArrayList<>();
+        FakeBroker broker = new FakeBroker(thread);
+        TokenRegistry registry = new TokenRegistry();
+        Device[] devices = new Device[PARTICIPANTS];
+        List<Device> subscribers = new ArrayList<>();
+        for (int d = 0; d < PARTICIPANTS; d++)
+        {
+            devices[d] = new Device("device" + d);
+            registry.register(devices[d].id, "token" + d, 0);
+            broker.tokens.put("token" + d, devices[d]);
+            subscribers.add(devices[d]);
+        }
+        String docID = "3-thread";
+        broker.topics.put(ThreadTopics.TOPIC(docID), subscribers);
+        PostSummary summary = new PostSummary(docID, "Street party on Saturday", "Bring food", 51.5, -0.12, null);
+
+        long previousTime = ThreadCache.NO_WATERMARK;
+        for (int c = 0; c < COMMENTS; c++)
+        {
+            long written = (c + 1) * COMMENT_GAP_MS;
+            Device author = devices[random.nextInt(PARTICIPANTS)];
+            Comment comment = ThreadTopicsTest.comment("c" + c, "Comment number " + c + ", I will bring a salad", author.id, written);
+            thread.add(0, comment);
+            author.known = new ArrayList<>(thread);
+            broker.now = written;
+
+            if (_topic) ThreadTopics.PUBLISH(broker, summary, comment, previousTime);
+            else
+            {
+                Map<String, String> payload = ThreadTopics.ENCODE_DELTA(summary, comment, previousTime);
+                for (Device device : devices)
+                {
+                    if (device == author) continue;
+                    _lookups[0]++;
+                    String token = registry.resolve(device.id, written);
+                    if (token != null) broker.send(token, payload);
+                }
+            }
+            previousTime = written;
+        }
+        return broker;
+    }
+
+    private static String describe(FakeBroker _broker, long _lookups)
+    {
+        long[] latencies = new long[_broker.latencies.size()];
+        for (int i = 0; i < latencies.length; i++) latencies[i] = _broker.latencies.get(i);
+        Arrays.sort(latencies);
+        return "sends=" + _broker.sends + " token_lookups=" + _lookups + " sent=" + _broker.bytes / 1024 + "KB latency p50="
+                + latencies[latencies.length / 2] + "ms p99=" + latencies[latencies.length * 99 / 100] + "ms max="
+                + latencies[latencies.length - 1] + "ms gap_fetches=" + _broker.fetches;
+    }
+
+    @Test
+    public void topicAgainstPerToken_1000Participants()
+    {
+        long[] tokenLookups = new long[1], topicLookups = new long[1];
+        FakeBroker perToken = run(false, tokenLookups);
+        FakeBroker topic = run(true, topicLookups);
+
+        System.out.println("ThreadTopics " + PARTICIPANTS + " participants, " + COMMENTS + " comments: per token "
+                + describe(perToken, tokenLookups[0]) + "; topic " + describe(topic, topicLookups[0]));
+
+        assertEquals(COMMENTS, topic.sends);
+        assertEquals(COMMENTS * (PARTICIPANTS - 1), perToken.sends);
+        assertTrue(topic.bytes * 100 < perToken.bytes);
+
+        // the topic's fan-out is faster than the sender's connections
+        Long[] perTokenLatencies = perToken.latencies.toArray(new Long[0]), topicLatencies = topic.latencies.toArray(new Long[0]);
+        Arrays.sort(perTokenLatencies);
+        Arrays.sort(topicLatencies);
+        assertTrue(topicLatencies[topicLatencies.length * 99 / 100] < perTokenLatencies[perTokenLatencies.length * 99 / 100]);
+    }
+}
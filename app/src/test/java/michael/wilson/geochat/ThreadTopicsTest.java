@@ -0,0 +1,122 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for thread topics: a comment survives the trip through a data payload, deltas are applied only when they follow the
+ * comments shown, and the threads followed stay within the limit.
+ */
+public class ThreadTopicsTest
+{
+    static Comment comment(String _id, String _text, String _user, long _time)
+    {
+        Comment comment = new Comment();
+        comment.setCommentID(_id);
+        comment.setCommentText(_text);
+        comment.setCommentDate("01/06/2020");
+        comment.setCommentUser(_user);
+        comment.setCommentTime(new Date(_time));
+        return comment;
+    }
+
+    static PostSummary summary(String _docID)
+    {
+        return new PostSummary(_docID, "Lost cat", "Black and white, answers to Tom", 51.5, -0.12, null);
+    }
+
+    @Test
+    public void delta_roundTrips_withinPayloadLimit()
+    {
+        Map<String, String> payload = ThreadTopics.ENCODE_DELTA(summary("doc1"), comment("c1", "Seen near the park", "device2", 5000), 4000);
+        assertTrue(NotifyPayload.SIZE_BYTES(payload) <= NotifyPayload.FCM_PAYLOAD_LIMIT_BYTES);
+
+        ThreadTopics.Delta delta = ThreadTopics.DECODE_DELTA(payload);
+        assertEquals("doc1", delta.getDocID());
+        assertEquals("device2", delta.getUser());
+        assertEquals(5000, delta.getTime());
+        assertEquals(4000, delta.getPreviousTime());
+        Comment decoded = delta.toComment();
+        assertEquals("c1", decoded.getCommentID());
+        assertEquals("Seen near the park", decoded.getCommentText());
+        assertEquals("01/06/2020", decoded.getCommentDate());
+
+        // the notification shows the post and the comment
+        PostSummary shown = NotifyPayload.DECODE(payload);
+        assertEquals("Lost cat", shown.getTitle());
+        assertEquals("Seen near the park", shown.getLatestComment());
+
+        // a post notification is not a delta
+        assertNull(ThreadTopics.DECODE_DELTA(NotifyPayload.ENCODE(summary("doc1"))));
+        payload.put("dv", "2");
+        assertNull(ThreadTopics.DECODE_DELTA(payload));
+    }
+
+    @Test
+    public void delta_tooLong_isFetchedInstead()
+    {
+        char[] text = new char[5000];
+        Arrays.fill(text, 'a');
+        Map<String, String> payload = ThreadTopics.ENCODE_DELTA(summary("doc1"), comment("c1", new String(text), "device2", 5000), 0);
+        assertTrue(NotifyPayload.SIZE_BYTES(payload) <= NotifyPayload.FCM_PAYLOAD_LIMIT_BYTES);
+
+        ThreadTopics.Delta delta = ThreadTopics.DECODE_DELTA(payload);
+        assertFalse(delta.isComplete());
+        assertNull(ThreadTopics.APPLY(null, delta));
+    }
+
+    @Test
+    public void apply_onlyWhenFollowingTheShownComments()
+    {
+        Comment legacy = new Comment();
+        legacy.setCommentText("from the post document");
+        List<Comment> known = new ArrayList<>(Arrays.asList(comment("c2", "b", "u", 2000), comment("c1", "a", "u", 1000), legacy));
+
+        ThreadTopics.Delta next = ThreadTopics.DECODE_DELTA(ThreadTopics.ENCODE_DELTA(summary("doc1"), comment("c3", "c", "u", 3000), 2000));
+        List<Comment> applied = ThreadTopics.APPLY(known, next);
+        assertEquals(4, applied.size());
+        assertEquals("c3", applied.get(0).getCommentID());
+        assertSame(legacy, applied.get(3));
+
+        // delivered twice
+        assertEquals(4, ThreadTopics.APPLY(applied, next).size());
+
+        // a comment in between was missed
+        ThreadTopics.Delta after = ThreadTopics.DECODE_DELTA(ThreadTopics.ENCODE_DELTA(summary("doc1"), comment("c4", "d", "u", 4000), 3000));
+        assertNull(ThreadTopics.APPLY(known, after));
+
+        // the first comment of a thread
+        ThreadTopics.Delta first = ThreadTopics.DECODE_DELTA(ThreadTopics.ENCODE_DELTA(summary("doc1"), comment("c1", "a", "u", 1000),
+                ThreadCache.NO_WATERMARK));
+        assertEquals(1, ThreadTopics.APPLY(Collections.<Comment>emptyList(), first).size());
+        assertEquals(1, ThreadTopics.APPLY(null, first).size());
+    }
+
+    @Test
+    public void follows_dropLeastRecentlyActive()
+    {
+        Map<String, Long> stored = new HashMap<>();
+        stored.put("b", 20L);
+        stored.put("a", 10L);
+        ThreadTopics.Follows follows = new ThreadTopics.Follows(stored, 3);
+
+        assertTrue(follows.follow("c", 30).isEmpty());
+        assertTrue(follows.follow("a", 40).isEmpty());
+        assertEquals(Collections.singletonList("b"), follows.follow("d", 50));
+        assertEquals(3, follows.size());
+        assertFalse(follows.isFollowing("b"));
+        assertTrue(follows.unfollow("a"));
+        assertFalse(follows.unfollow("a"));
+
+        assertTrue(ThreadTopics.TOPIC("3-AbCdEf0123456789xyz").matches("[a-zA-Z0-9-_.~%]{1,900}"));
+    }
+}
@@ -0,0 +1,137 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulation of a notification sender over six months, sending to the owner of every commented post, with tokens copied
+ * into posts (before) and looked up in the token registry (after). Devices rotate their token and uninstall the app at
+ * random, and a few posts are made before the app knew its token. FCM is faked: a send works only with a device's current token.
+ * Counts wasted sends (to a dead token) and missed notifications (the owner still has the app, but was not reached).
+ * Results are printed, the assertions only catch gross regressions.
+ */
+public class TokenRegistryBenchmark
+{
+    private static final int DEVICES = 2000, DAYS = 180, NOTIFICATIONS_PER_DAY = 1000;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    // per device and day
+    private static final double P_OPEN = 0.3, P_POST = 0.02, P_ROTATE = 0.01, P_UNINSTALL = 0.003;
+
+    // share of posts made before the app received its token (the old race in 'INITIALIZE_APP')
+    private static final double P_NULL_TOKEN = 0.05;
+
+    /** A post, and the token the old app copied into it */
+    private static class Post
+    {
+        final int owner;
+        final String token;
+
+        Post(int _owner, String _token)
+        {
+            this.owner = _owner;
+            this.token = _token;
+        }
+    }
+
+    /** Sends and failures of one sender */
+    private static class Tally
+    {
+        int sends, wasted, missed;
+
+        void send(String _token, String _live, boolean _ownerAlive)
+        {
+            if (_token == null)
+            {
+                if (_ownerAlive) missed++;
+                return;
+            }
+            sends++;
+            if (!_token.equals(_live))
+            {
+                wasted++;
+                if (_ownerAlive) missed++;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "sends=" + sends + " wasted=" + wasted + " (" + (sends == 0 ? 0 : 100 * wasted / sends) + "%) missed=" + missed;
+        }
+    }
+
+    @Test
+    public void senderOverSixMonths()
+    {
+        Random random = new Random(11);
+        String[] live = new String[DEVICES];
+        String[] registered = new String[DEVICES];
+        long[] registeredTime = new long[DEVICES];
+        int[] rotations = new int[DEVICES];
+        TokenRegistry registry = new TokenRegistry();
+        List<Post> posts = new ArrayList<>();
+        Tally before = new Tally(), after = new Tally();
+        int pruned = 0, registrations = 0;
+
+        for (int d = 0; d < DEVICES; d++) live[d] = "token" + d + "_0";
+        for (int day = 0; day < DAYS; day++)
+        {
+            long now = day * DAY_MS;
+            for (int d = 0; d < DEVICES; d++)
+            {
+                if (live[d] == null) continue;
+                if (random.nextDouble() < P_UNINSTALL)
+                {
+                    live[d] = null;
+                    continue;
+                }
+                boolean rotated = random.nextDouble() < P_ROTATE, opened = day == 0 || random.nextDouble() < P_OPEN;
+                if (rotated) live[d] = "token" + d + "_" + (++rotations[d]);
+
+                // the device writes its token when it rotates ('onNewToken') or the app is opened, if it has to
+                if ((rotated || opened) && TokenRegistry.NEEDS_REGISTER(registered[d], registeredTime[d], live[d], now))
+                {
+                    registry.register("device" + d, live[d], now);
+                    registered[d] = live[d];
+                    registeredTime[d] = now;
+                    registrations++;
+                }
+                if (opened && random.nextDouble() < P_POST)
+                {
+                    posts.add(new Post(d, random.nextDouble() < P_NULL_TOKEN ? null : live[d]));
+                }
+            }
+            if (posts.isEmpty()) continue;
+
+            // comments mostly land on recent posts
+            for (int n = 0; n < NOTIFICATIONS_PER_DAY; n++)
+            {
+                double r = random.nextDouble();
+                Post post = posts.get(posts.size() - 1 - (int)(posts.size() * r * r));
+                String owner = "device" + post.owner;
+                boolean alive = live[post.owner] != null;
+
+                before.send(post.token, live[post.owner], alive);
+
+                String token = registry.resolve(owner, now);
+                after.send(token, live[post.owner], alive);
+                if (token != null && registry.onResult(owner, token, token.equals(live[post.owner]) ? TokenRegistry.SENT : TokenRegistry.UNREGISTERED))
+                {
+                    pruned++;
+                }
+            }
+            pruned += registry.pruneStale(now);
+        }
+
+        System.out.println("TokenRegistry " + DEVICES + " devices, " + DAYS + " days, " + posts.size() + " posts: token in post "
+                + before + "; registry " + after + ", registrations=" + registrations + " pruned=" + pruned + " left=" + registry.size());
+        assertTrue(after.wasted * 5 < before.wasted);
+        assertTrue(after.missed * 5 < before.missed);
+    }
+}
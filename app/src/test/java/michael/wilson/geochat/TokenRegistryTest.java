@@ -0,0 +1,73 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the token registry: the newest registration wins, failed sends remove only the token that failed, stale
+ * tokens are not used, and when a device has to write its token again.
+ */
+public class TokenRegistryTest
+{
+    @Test
+    public void register_newestRegistrationWins()
+    {
+        TokenRegistry registry = new TokenRegistry();
+
+        assertTrue(registry.register("device", "t1", 100));
+        assertFalse(registry.register("device", "t0", 50));
+        assertFalse(registry.register("device", null, 200));
+
+        assertEquals("t1", registry.resolve("device", 200));
+        assertTrue(registry.register("device", "t2", 300));
+        assertEquals("t2", registry.resolve("device", 300));
+        assertNull(registry.resolve("other", 300));
+        assertNull(registry.resolve(null, 300));
+    }
+
+    @Test
+    public void onResult_removesOnlyTheTokenThatFailed()
+    {
+        TokenRegistry registry = new TokenRegistry();
+        registry.register("device", "old", 0);
+
+        // a send to the old token fails after the device rotated it: the new token stays
+        registry.register("device", "new", 10);
+        assertFalse(registry.onResult("device", "old", TokenRegistry.UNREGISTERED));
+        assertEquals("new", registry.resolve("device", 20));
+
+        // errors worth retrying keep the token
+        assertFalse(registry.onResult("device", "new", TokenRegistry.UNAVAILABLE));
+        assertFalse(registry.onResult("device", "new", TokenRegistry.SENT));
+        assertEquals(1, registry.size());
+
+        assertTrue(registry.onResult("device", "new", TokenRegistry.INVALID_ARGUMENT));
+        assertNull(registry.resolve("device", 20));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void staleTokens_areNotUsed_andPruned()
+    {
+        TokenRegistry registry = new TokenRegistry();
+        registry.register("quiet", "q", 0);
+        registry.register("active", "a", TokenRegistry.STALE_MS);
+
+        long now = TokenRegistry.STALE_MS + 1;
+        assertNull(registry.resolve("quiet", now));
+        assertEquals("a", registry.resolve("active", now));
+        assertEquals(1, registry.pruneStale(now));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void needsRegister_onNewTokenOrAfterRefreshPeriod()
+    {
+        assertFalse(TokenRegistry.NEEDS_REGISTER(null, 0, null, 0));
+        assertTrue(TokenRegistry.NEEDS_REGISTER(null, 0, "t", 0));
+        assertTrue(TokenRegistry.NEEDS_REGISTER("t", 0, "u", 1));
+        assertFalse(TokenRegistry.NEEDS_REGISTER("t", 0, "t", TokenRegistry.REFRESH_MS - 1));
+        assertTrue(TokenRegistry.NEEDS_REGISTER("t", 0, "t", TokenRegistry.REFRESH_MS));
+    }
+}
@@ -0,0 +1,81 @@
+package michael.wilson.geochat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the per-device and per-region write limits, and the ledger check, driven by a fake clock.
+ */
+public class WriteLimitsTest
+{
+    private static final long CELL = GeoCell.ID(51.5, -0.12, GeoCell.REGION_LEVEL);
+
+    @Test
+    public void postBurst_isHeldBackThenRefused()
+    {
+        WriteLimits limits = new WriteLimits();
+        for (int i = 0; i < WriteLimits.POST_BURST; i++) assertEquals(0, limits.reserve(WriteLimits.KIND_POST, "d", CELL, 0));
+
+        // the next post would wait for longer than 'MAX_DELAY_MS', so it is refused, until its token arrives
+        assertTrue(WriteLimits.POST_INTERVAL_MS > WriteLimits.MAX_DELAY_MS);
+        assertEquals(RateLimiter.DENIED, limits.reserve(WriteLimits.KIND_POST, "d", CELL, 0));
+        assertEquals(0, limits.reserve(WriteLimits.KIND_POST, "d", CELL, WriteLimits.POST_INTERVAL_MS));
+
+        // comments are limited separately
+        assertEquals(0, limits.reserve(WriteLimits.KIND_COMMENT, "d", 0, 0));
+    }
+
+    @Test
+    public void commentBurst_isSpreadOut()
+    {
+        WriteLimits limits = new WriteLimits();
+        long last = 0;
+        int held = 0;
+        for (int i = 0; i < WriteLimits.COMMENT_BURST + 5; i++)
+        {
+            long delay = limits.reserve(WriteLimits.KIND_COMMENT, "d", 0, 0);
+            assertNotEquals(RateLimiter.DENIED, delay);
+            assertTrue(delay >= last);
+            if (delay > 0) held++;
+            last = delay;
+        }
+        assertEquals(5, held);
+        assertEquals(5 * WriteLimits.COMMENT_INTERVAL_MS, last);
+    }
+
+    @Test
+    public void regionLimit_isSharedByDevices_andRefusalCostsNothing()
+    {
+        WriteLimits limits = new WriteLimits();
+        for (int i = 0; i < WriteLimits.CELL_POST_BURST; i++) assertEquals(0, limits.reserve(WriteLimits.KIND_POST, "d" + i, CELL, 0));
+
+        // the region is full: a new device's post is refused, and its own post budget is untouched
+        long maxHeld = WriteLimits.MAX_DELAY_MS / WriteLimits.CELL_POST_INTERVAL_MS;
+        for (int i = 0; i < maxHeld; i++) assertTrue(limits.reserve(WriteLimits.KIND_POST, "x" + i, CELL, 0) > 0);
+        assertEquals(RateLimiter.DENIED, limits.reserve(WriteLimits.KIND_POST, "new", CELL, 0));
+        long otherCell = GeoCell.NEIGHBOUR(CELL, 1, 0);
+        for (int i = 0; i < WriteLimits.POST_BURST; i++) assertEquals(0, limits.reserve(WriteLimits.KIND_POST, "new", otherCell, 0));
+    }
+
+    @Test
+    public void ledger_refusesEarlyWrites_andIgnoresClocksFarAhead()
+    {
+        List<WriteLimits.Charge> charges = new WriteLimits().charges(WriteLimits.KIND_COMMENT, "d", 0);
+        WriteLimits.Charge charge = charges.get(0);
+        assertEquals("comment_device_d", charge.key);
+
+        long tat = 0;
+        for (int i = 0; i < WriteLimits.COMMENT_BURST; i++) tat = WriteLimits.LEDGER_NEXT(charge, tat, 0);
+        assertEquals(RateLimiter.DENIED, WriteLimits.LEDGER_NEXT(charge, tat, 0));
+
+        // a write sent a little early (by this device's limiter, with a clock slightly ahead) is still accepted
+        assertNotEquals(RateLimiter.DENIED, WriteLimits.LEDGER_NEXT(charge, tat, WriteLimits.COMMENT_INTERVAL_MS - WriteLimits.LEDGER_SLACK_MS));
+
+        // a time no honest clock could have written is ignored
+        long farAhead = 10 * 60 * 60 * 1000L;
+        assertEquals(WriteLimits.COMMENT_INTERVAL_MS, WriteLimits.LEDGER_NEXT(charge, farAhead, 0));
+    }
+}
@@ -0,0 +1,223 @@
+package michael.wilson.geochat.benchmark;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Drives the installed app from outside its process, the way a user (and the system) would
+ * > Starts it through 'am start -W' and reads the launch time the system reports, plus the 'Fully drawn' time the app reports
+ * > Pans the map and scrolls the comment list with UiAutomator
+ * > Reads frame timing from 'dumpsys gfxinfo' (frames drawn by the app's UI thread, the map's own GL surface is not included)
+ * > Switches the app's compilation mode, to compare startup with and without a profile
+ */
+public class AppDriver
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    public static final String PACKAGE = "michael.wilson.geochat";
+
+    // Extras 'LauncherActivity' treats as coming from a notification, which opens the given post
+    public static final String EXTRA_SENDER = "sender", EXTRA_DOCID = "docID";
+
+    // How long to wait for the app to show something before giving up
+    public static final long TIMEOUT_MS = 20000;
+
+    /** Startup time of one launch, in milliseconds */
+    public static class Launch
+    {
+        public final long totalTime, fullyDrawn;
+
+        Launch(long _totalTime, long _fullyDrawn)
+        {
+            this.totalTime = _totalTime;
+            this.fullyDrawn = _fullyDrawn;
+        }
+    }
+
+    /** Frame timing read from 'dumpsys gfxinfo' */
+    public static class Frames
+    {
+        public long total, janky, p50, p90, p95, p99;
+
+        @Override
+        public String toString()
+        {
+            return "frames=" + total + " janky=" + janky + " p50=" + p50 + "ms p90=" + p90 + "ms p95=" + p95 + "ms p99=" + p99 + "ms";
+        }
+    }
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private static final String TAG = "GeoChatBenchmark";
+
+    private static final Pattern TOTAL_TIME = Pattern.compile("TotalTime: (\\d+)");
+    private static final Pattern FULLY_DRAWN = Pattern.compile("Fully drawn " + Pattern.quote(PACKAGE) + "/\\S+: \\+(?:(\\d+)s)?(\\d+)ms");
+
+    private final UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+
+    /** Runs a shell command as the shell user and returns its output */
+    public String shell(String _command)
+    {
+        try { return device.executeShellCommand(_command); }
+        catch (IOException ex) { throw new IllegalStateException("shell command failed: " + _command, ex); }
+    }
+
+    /** Grants the app's permissions so it goes straight to the map instead of asking */
+    public void grantPermissions() { shell("pm grant " + PACKAGE + " android.permission.ACCESS_FINE_LOCATION"); }
+
+    /** Kills the app, so the next launch is a cold start */
+    public void kill() { shell("am force-stop " + PACKAGE); }
+
+    /** Sends the app to the background (it stays alive, so the next launch is a warm start) */
+    public void home()
+    {
+        device.pressHome();
+        device.waitForIdle();
+    }
+
+    /** Launches the app to the map and waits until it reports it is fully drawn
+     *
+     * @return The launch's timing
+     */
+    public Launch launch() { return launch(""); }
+
+    /** Launches the app straight into a discussion (like tapping a notification) and waits until it is fully drawn
+     *
+     * @param _docID - Id of the post to open
+     */
+    public Launch launchThread(String _docID)
+    {
+        return launch(" --es " + EXTRA_SENDER + " benchmark --es " + EXTRA_DOCID + " " + _docID);
+    }
+
+    /** Pans the map back and forth '_swipes' times */
+    public void panMap(int _swipes)
+    {
+        UiObject2 map = device.wait(Until.findObject(By.res(PACKAGE, "map")), TIMEOUT_MS);
+        if (map == null) throw new IllegalStateException("map not shown");
+        int w = map.getVisibleBounds().width(), h = map.getVisibleBounds().height();
+        int cx = map.getVisibleBounds().centerX(), cy = map.getVisibleBounds().centerY();
+        for (int i = 0; i < _swipes; i++)
+        {
+            int dx = (i % 2 == 0 ? 1 : -1) * w / 3, dy = (i % 4 < 2 ? 1 : -1) * h / 5;
+            device.swipe(cx - dx, cy - dy, cx + dx, cy + dy, 30);
+            device.waitForIdle();
+        }
+    }
+
+    /** Flings the comment list of the open discussion down then up, '_flings' times each way */
+    public void scrollComments(int _flings)
+    {
+        UiObject2 list = device.wait(Until.findObject(By.res(PACKAGE, "commentList")), TIMEOUT_MS);
+        if (list == null) throw new IllegalStateException("comment list not shown");
+        list.setGestureMargin(device.getDisplayHeight() / 10);
+        for (int i = 0; i < _flings; i++) list.fling(Direction.DOWN);
+        for (int i = 0; i < _flings; i++) list.fling(Direction.UP);
+    }
+
+    /** Forgets the frames drawn so far */
+    public void resetFrames() { shell("dumpsys gfxinfo " + PACKAGE + " reset"); }
+
+    /** Returns the frames drawn since 'resetFrames()' */
+    public Frames readFrames() { return PARSE_FRAMES(shell("dumpsys gfxinfo " + PACKAGE)); }
+
+    /** Recompiles the app
+     *
+     * @param _mode - 'verify' (no ahead-of-time code, like a fresh install without a profile) or 'speed-profile'
+     *              (compiles what the profile collected so far says is used)
+     */
+    public void compile(String _mode)
+    {
+        String output = shell("cmd package compile -f -m " + _mode + " " + PACKAGE);
+        if (!output.contains("Success")) throw new IllegalStateException("compile failed: " + output);
+    }
+
+    /** Returns the app's profile (classes and methods used so far) in human readable form, one descriptor per line */
+    public String dumpProfile()
+    {
+        shell("pm dump-profiles " + PACKAGE);
+        return shell("cat /data/misc/profman/" + PACKAGE + "-primary.prof.txt");
+    }
+
+    /** Parses the output of 'dumpsys gfxinfo' */
+    public static Frames PARSE_FRAMES(String _output)
+    {
+        Frames frames = new Frames();
+        frames.total = find(_output, "Total frames rendered: (\\d+)");
+        frames.janky = find(_output, "Janky frames: (\\d+)");
+        frames.p50 = find(_output, "50th percentile: (\\d+)ms");
+        frames.p90 = find(_output, "90th percentile: (\\d+)ms");
+        frames.p95 = find(_output, "95th percentile: (\\d+)ms");
+        frames.p99 = find(_output, "99th percentile: (\\d+)ms");
+        return frames;
+    }
+
+    /** Returns the 'Fully drawn' time of the most recent launch in a logcat dump, or -1 if there is none */
+    public static long PARSE_FULLY_DRAWN(String _logcat)
+    {
+        long last = -1;
+        Matcher m = FULLY_DRAWN.matcher(_logcat);
+        while (m.find()) last = (m.group(1) == null ? 0 : Long.parseLong(m.group(1)) * 1000) + Long.parseLong(m.group(2));
+        return last;
+    }
+
+    /** Logs a series of measurements (min, median, p90, max) and reports them to the instrumentation
+     *
+     * @param _name - Name of the measurement
+     * @param _values - One value per iteration
+     * @param _unit - Unit of the values, e.g. 'ms'
+     */
+    public static void REPORT(String _name, long[] _values, String _unit)
+    {
+        long[] sorted = Arrays.copyOf(_values, _values.length);
+        Arrays.sort(sorted);
+        String line = _name + ": min=" + sorted[0] + _unit + " median=" + sorted[sorted.length / 2] + _unit + " p90="
+                + sorted[Math.min(sorted.length - 1, sorted.length * 9 / 10)] + _unit + " max=" + sorted[sorted.length - 1] + _unit
+                + " n=" + sorted.length;
+        REPORT(_name, line);
+    }
+
+    /** Logs a result line and reports it to the instrumentation (shown by 'am instrument -r' and in the test results) */
+    public static void REPORT(String _name, String _line)
+    {
+        Log.i(TAG, _line);
+        Bundle status = new Bundle();
+        status.putString(_name, _line);
+        InstrumentationRegistry.getInstrumentation().sendStatus(2, status);
+    }
+
+    // starts the launcher activity with extra arguments, and waits until the app says it is fully drawn
+    private Launch launch(String _extras)
+    {
+        shell("logcat -c");
+        String output = shell("am start -W -n " + PACKAGE + "/.LauncherActivity" + _extras);
+        Matcher total = TOTAL_TIME.matcher(output);
+        if (!total.find()) throw new IllegalStateException("launch failed: " + output);
+
+        long fullyDrawn = -1, deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (fullyDrawn < 0 && SystemClock.uptimeMillis() < deadline)
+        {
+            SystemClock.sleep(100);
+            fullyDrawn = PARSE_FULLY_DRAWN(shell("logcat -d -s ActivityTaskManager:I ActivityManager:I"));
+        }
+        return new Launch(Long.parseLong(total.group(1)), fullyDrawn);
+    }
+
+    private static long find(String _text, String _regex)
+    {
+        Matcher m = Pattern.compile(_regex).matcher(_text);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+}
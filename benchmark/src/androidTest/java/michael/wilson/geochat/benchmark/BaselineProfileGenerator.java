@@ -0,0 +1,75 @@
+package michael.wilson.geochat.benchmark;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Generates the app's baseline profile: runs the startup, map, and discussion journeys on a freshly reset app, then dumps
+ * the classes and methods the runtime saw being used, as baseline profile rules. The result is written to this test's
+ * external files directory, copy it over 'app/src/main/baseline-prof.txt':
+ *
+ *   adb pull /sdcard/Android/data/michael.wilson.geochat.benchmark.test/files/baseline-prof.txt app/src/main/
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator
+{
+    // The runtime only writes profiles out every so often, give it time after the journeys
+    private static final long PROFILE_SAVE_WAIT_MS = 30000;
+
+    private final AppDriver driver = new AppDriver();
+
+    /** Turns a dumped profile into baseline profile rules: methods are marked hot, used at startup, and used after it */
+    static String TO_RULES(String _profile)
+    {
+        StringBuilder rules = new StringBuilder();
+        for (String line : _profile.split("\n"))
+        {
+            line = line.trim();
+            if (!line.startsWith("L")) continue;
+            rules.append(line.contains("->") ? "HSP" + line : line).append('\n');
+        }
+        return rules.toString();
+    }
+
+    @Test
+    public void generate() throws IOException
+    {
+        driver.grantPermissions();
+        driver.kill();
+        driver.shell("cmd package compile --reset " + AppDriver.PACKAGE);
+
+        String threadID = InstrumentationRegistry.getArguments().getString("threadId");
+        for (int i = 0; i < 3; i++)
+        {
+            driver.kill();
+            driver.launch();
+            driver.panMap(6);
+            if (threadID != null)
+            {
+                driver.kill();
+                driver.launchThread(threadID);
+                driver.scrollComments(3);
+            }
+        }
+        SystemClock.sleep(PROFILE_SAVE_WAIT_MS);
+
+        String rules = TO_RULES(driver.dumpProfile());
+        assertTrue("profile is empty", rules.contains("Lmichael/wilson/geochat/"));
+
+        File out = new File(InstrumentationRegistry.getInstrumentation().getContext().getExternalFilesDir(null), "baseline-prof.txt");
+        try (Writer writer = new FileWriter(out)) { writer.write(rules); }
+        AppDriver.REPORT("baseline_profile", rules.split("\n").length + " rules written to " + out.getAbsolutePath());
+    }
+}
@@ -0,0 +1,79 @@
+package michael.wilson.geochat.benchmark;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame timing of the app's UI thread while panning the map, and while scrolling through a long thread.
+ * The map shows whatever posts the backend holds (seed many with the loadgen module, see README). The thread to scroll
+ * is passed as the 'threadId' instrumentation argument, the scroll test is skipped without it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameBenchmark
+{
+    private static final int ITERATIONS = 5;
+
+    private final AppDriver driver = new AppDriver();
+
+    @Before
+    public void setUp() { driver.grantPermissions(); }
+
+    @Test
+    public void mapPan()
+    {
+        driver.kill();
+        driver.launch();
+        long[] p50 = new long[ITERATIONS], p90 = new long[ITERATIONS], p99 = new long[ITERATIONS], janky = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            driver.resetFrames();
+            driver.panMap(12);
+            AppDriver.Frames frames = driver.readFrames();
+            AppDriver.REPORT("map_pan_" + i, frames.toString());
+            assertTrue("no frames drawn", frames.total > 0);
+            p50[i] = frames.p50;
+            p90[i] = frames.p90;
+            p99[i] = frames.p99;
+            janky[i] = frames.janky;
+        }
+        AppDriver.REPORT("map_pan_p50", p50, "ms");
+        AppDriver.REPORT("map_pan_p90", p90, "ms");
+        AppDriver.REPORT("map_pan_p99", p99, "ms");
+        AppDriver.REPORT("map_pan_janky", janky, "");
+    }
+
+    @Test
+    public void threadOpenAndScroll()
+    {
+        String threadID = InstrumentationRegistry.getArguments().getString("threadId");
+        Assume.assumeTrue("no 'threadId' argument given", threadID != null);
+
+        long[] open = new long[ITERATIONS], p50 = new long[ITERATIONS], p90 = new long[ITERATIONS], p99 = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            driver.kill();
+            AppDriver.Launch launch = driver.launchThread(threadID);
+            assertTrue("discussion never reported it was fully drawn", launch.fullyDrawn > 0);
+            open[i] = launch.fullyDrawn;
+
+            driver.resetFrames();
+            driver.scrollComments(5);
+            AppDriver.Frames frames = driver.readFrames();
+            AppDriver.REPORT("thread_scroll_" + i, frames.toString());
+            p50[i] = frames.p50;
+            p90[i] = frames.p90;
+            p99[i] = frames.p99;
+        }
+        AppDriver.REPORT("thread_open", open, "ms");
+        AppDriver.REPORT("thread_scroll_p50", p50, "ms");
+        AppDriver.REPORT("thread_scroll_p90", p90, "ms");
+        AppDriver.REPORT("thread_scroll_p99", p99, "ms");
+    }
+}
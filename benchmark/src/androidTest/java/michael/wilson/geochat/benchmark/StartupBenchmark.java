@@ -0,0 +1,71 @@
+package michael.wilson.geochat.benchmark;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Startup time through 'LauncherActivity' to the map: cold starts without and with a compiled profile, and warm starts.
+ * 'launch' is the time the system reports for the first frame, 'drawn' is when the map shows its first posts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark
+{
+    private static final int ITERATIONS = 10;
+
+    private final AppDriver driver = new AppDriver();
+
+    @Before
+    public void setUp() { driver.grantPermissions(); }
+
+    // launches '_iterations' times, killing the app first if '_cold', and reports both timings
+    private void measure(String _name, boolean _cold)
+    {
+        long[] launch = new long[ITERATIONS], drawn = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            if (_cold) driver.kill();
+            else driver.home();
+            AppDriver.Launch result = driver.launch();
+            launch[i] = result.totalTime;
+            drawn[i] = result.fullyDrawn;
+            assertTrue("app never reported it was fully drawn", result.fullyDrawn > 0);
+        }
+        AppDriver.REPORT(_name + "_launch", launch, "ms");
+        AppDriver.REPORT(_name + "_drawn", drawn, "ms");
+    }
+
+    @Test
+    public void coldStart_noProfile()
+    {
+        driver.compile("verify");
+        measure("cold_start_no_profile", true);
+    }
+
+    @Test
+    public void coldStart_withProfile()
+    {
+        // run the app a few times so its profile covers startup, then compile what the profile says is used
+        for (int i = 0; i < 3; i++)
+        {
+            driver.kill();
+            driver.launch();
+            driver.panMap(4);
+        }
+        driver.kill();
+        driver.compile("speed-profile");
+        measure("cold_start_profile", true);
+    }
+
+    @Test
+    public void warmStart()
+    {
+        driver.kill();
+        driver.launch();
+        measure("warm_start", false);
+    }
+}
@@ -0,0 +1,128 @@
+package michael.wilson.geochat.gateway;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import michael.wilson.geochat.GeoCell;
+import michael.wilson.geochat.ShardRouter;
+
+/** Reads posts from Firestore (the local emulator), laid out the way the app writes them
+ * > Posts are in the region shards (see 'ShardRouter') and the collection from before sharding, a tile is one query per collection
+ * > Comments are read from each post's comments collection, comments still kept in the post document are not served
+ * > Firestore can not say cheaply whether a tile changed, so every version is 'UNKNOWN_VERSION' and the gateway caches
+ *   responses for a short time only (clients still get 304s, the ETag is computed from the response)
+ */
+public class FirestoreStore implements PostStore
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    private static final String COMMENTS_COLLECTION = "comments", COMMENT_TIME_KEY = "commentTime";
+
+    private final Firestore db;
+    private final ShardRouter router = new ShardRouter("mcl", ShardRouter.DEFAULT_SHARD_COUNT);
+
+    /** Constructor
+     *
+     * @param _project - Project id (any id works with the emulator)
+     */
+    public FirestoreStore(String _project)
+    {
+        this.db = FirestoreOptions.getDefaultInstance().toBuilder().setProjectId(_project).build().getService();
+    }
+
+    @Override
+    public List<Post> postsInCell(long _cell) throws IOException
+    {
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        for (String collection : router.collectionsCovering(GeoCell.BOUNDS(_cell), true))
+        {
+            futures.add(db.collection(collection).whereEqualTo("cell", _cell).get());
+        }
+        List<Post> posts = new ArrayList<>();
+        for (QuerySnapshot snapshot : await(ApiFutures.allAsList(futures)))
+        {
+            for (QueryDocumentSnapshot document : snapshot) posts.add(post(document));
+        }
+        return posts;
+    }
+
+    @Override
+    public Post post(String _docID) throws IOException
+    {
+        DocumentSnapshot document = await(db.collection(router.collectionOf(_docID)).document(_docID).get());
+        return document.exists() ? post(document) : null;
+    }
+
+    @Override
+    public List<Comment> comments(String _docID, long _afterTime, String _afterID, int _limit) throws IOException
+    {
+        CollectionReference collection = db.collection(router.collectionOf(_docID)).document(_docID)
+                .collection(COMMENTS_COLLECTION);
+        Query query = collection.orderBy(COMMENT_TIME_KEY).orderBy(FieldPath.documentId()).limit(_limit);
+        if (_afterID != null)
+        {
+            // the server stores microseconds, so the page continues after the comment itself rather than after its (rounded) time
+            DocumentSnapshot after = await(collection.document(_afterID).get());
+            if (after.exists()) query = query.startAfter(after);
+        }
+        List<Comment> comments = new ArrayList<>();
+        for (QueryDocumentSnapshot document : await(query.get()))
+        {
+            Comment comment = new Comment();
+            comment.id = document.getId();
+            comment.text = document.getString("commentText");
+            comment.date = document.getString("commentDate");
+            comment.user = document.getString("commentUser");
+            Timestamp time = document.getTimestamp(COMMENT_TIME_KEY);
+            comment.time = time == null ? 0 : time.toDate().getTime();
+            comments.add(comment);
+        }
+        return comments;
+    }
+
+    @Override
+    public long version(String _key) { return UNKNOWN_VERSION; }
+
+    private static Post post(DocumentSnapshot _document)
+    {
+        Post post = new Post();
+        post.docID = _document.getId();
+        post.title = _document.getString("title");
+        post.body = _document.getString("body");
+        post.date = _document.getString("date");
+        post.userID = _document.getString("userID");
+        post.thumb = _document.getString("thumb");
+        post.image = _document.getString("image");
+        post.lat = number(_document.getDouble("lat"));
+        post.lng = number(_document.getDouble("lng"));
+        post.commentCount = (long)number(_document.getDouble("commentCount"));
+        post.lastActivity = (long)number(_document.getDouble("lastActivity"));
+        post.cell = _document.getLong("cell") == null ? GeoCell.ID(post.lat, post.lng, GeoCell.REGION_LEVEL) : _document.getLong("cell");
+        return post;
+    }
+
+    private static double number(Double _value) { return _value == null ? 0 : _value; }
+
+    private static <T> T await(ApiFuture<T> _future) throws IOException
+    {
+        try { return _future.get(); }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        catch (ExecutionException ex) { throw new IOException(ex.getCause()); }
+    }
+}
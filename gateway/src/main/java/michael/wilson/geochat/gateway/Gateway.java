@@ -0,0 +1,321 @@
+package michael.wilson.geochat.gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import michael.wilson.geochat.GeoCell;
+
+/** Serves posts over HTTP, as an alternative to every client reading raw documents from Firestore
+ * > GET /tiles/{cell}                    summaries of the posts in a region cell (see 'GeoCell.REGION_LEVEL')
+ * > GET /threads/{docID}?after=&limit=   a post and a page of its comments, oldest first, 'next' is the cursor of the next page
+ * > GET /stats                           request, cache, and transfer counters
+ *
+ * Every response carries an ETag, a request whose 'If-None-Match' still matches gets an empty 304.
+ * Encoded responses are kept in a shared LRU cache ('ResponseCache') until the store says what they cover has changed,
+ * so a busy tile is encoded once per change instead of once per client.
+ *
+ * Run with an in-memory store of generated posts (default) or against the Firestore emulator:
+ *   --store memory|emulator   where posts are read from (default memory)
+ *   --posts N                 generated posts for the memory store (default 20000)
+ *   --port N                  port to listen on (default 8090)
+ *   --threads N               request threads (default 16)
+ *   --cache-mb N              size of the response cache (default 64)
+ *   --project ID              project id used with the emulator (default geochat-loadgen)
+ */
+public class Gateway
+{
+    /*** ~~~PUBLIC~~~ ***/
+
+    public static final int DEFAULT_PORT = 8090, DEFAULT_THREADS = 16;
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    // How long responses built from a store which can not track changes (the emulator) are served from the cache
+    public static final long UNKNOWN_VERSION_TTL_MS = 10000;
+
+    // Comments per thread page, when not asked for, and at most
+    public static final int DEFAULT_PAGE = 50, MAX_PAGE = 200;
+
+    // Tiles may be reused by the client for a few seconds without asking, threads are always revalidated (a 304 is cheap)
+    public static final String TILE_CACHE_CONTROL = "public, max-age=15", THREAD_CACHE_CONTROL = "no-cache";
+
+    /*** ~~~PRIVATE~~~ ***/
+
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private final PostStore store;
+    private final ResponseCache cache;
+    private final AtomicLong requests = new AtomicLong(), notModified = new AtomicLong(), bytesOut = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /** Constructor
+     *
+     * @param _store - Where posts are read from
+     * @param _cacheBytes - Size of the response cache
+     */
+    public Gateway(PostStore _store, long _cacheBytes)
+    {
+        this.store = _store;
+        this.cache = new ResponseCache(_cacheBytes, UNKNOWN_VERSION_TTL_MS);
+    }
+
+    public static void main(String[] _args) throws Exception
+    {
+        String storeName = "memory", project = "geochat-loadgen";
+        int posts = 20000, port = DEFAULT_PORT, threads = DEFAULT_THREADS;
+        long cacheBytes = DEFAULT_CACHE_BYTES;
+        for (int i = 0; i + 1 < _args.length; i += 2)
+        {
+            String name = _args[i], value = _args[i + 1];
+            switch (name)
+            {
+                case "--store": storeName = value; break;
+                case "--posts": posts = Integer.parseInt(value); break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--cache-mb": cacheBytes = Long.parseLong(value) * 1024 * 1024; break;
+                case "--project": project = value; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+        PostStore store = OPEN_STORE(storeName, posts, project);
+        Gateway gateway = new Gateway(store, cacheBytes);
+        System.out.println("gateway listening on port " + gateway.start(port, threads) + " (" + storeName + " store)");
+    }
+
+    /** Opens a store by name ('memory' generates '_posts' posts, 'emulator' refuses to run unless FIRESTORE_EMULATOR_HOST is set) */
+    public static PostStore OPEN_STORE(String _name, int _posts, String _project)
+    {
+        switch (_name)
+        {
+            case "memory": return MemoryStore.GENERATE(_posts, new Random(1));
+            case "emulator":
+                if (System.getenv("FIRESTORE_EMULATOR_HOST") == null)
+                {
+                    throw new IllegalStateException("FIRESTORE_EMULATOR_HOST is not set, refusing to run against a real project.");
+                }
+                return new FirestoreStore(_project);
+            default: throw new IllegalArgumentException("Unknown store: " + _name);
+        }
+    }
+
+    /** Starts serving
+     *
+     * @param _port - Port to listen on, 0 for any free port
+     * @param _threads - Number of request threads
+     * @return The port listened on
+     */
+    public int start(int _port, int _threads) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(_port), 0);
+        executor = Executors.newFixedThreadPool(_threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange _exchange) throws IOException
+            {
+                try { Gateway.this.handle(_exchange); }
+                catch (IOException | RuntimeException ex) { send(_exchange, 500, null, null, ex.toString().getBytes(StandardCharsets.UTF_8)); }
+                finally { _exchange.close(); }
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /** Stops serving (requests in progress are given a second to finish) */
+    public void stop()
+    {
+        if (server != null) server.stop(1);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    public ResponseCache getCache() { return cache; }
+
+    /** Returns the ETag of a response body (a quoted, truncated SHA-1) */
+    public static String ETAG(byte[] _body)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(_body);
+            StringBuilder tag = new StringBuilder("\"");
+            for (int i = 0; i < 10; i++) tag.append(String.format("%02x", digest[i] & 0xff));
+            return tag.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException ex) { throw new IllegalStateException(ex); }
+    }
+
+    /** Returns true if an 'If-None-Match' header matches an ETag (a list of tags, '*', and weak tags are understood) */
+    public static boolean MATCHES(String _ifNoneMatch, String _etag)
+    {
+        if (_ifNoneMatch == null) return false;
+        for (String tag : _ifNoneMatch.split(","))
+        {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(_etag)) return true;
+        }
+        return false;
+    }
+
+    /** Returns the cursor of the page after a comment */
+    public static String CURSOR(PostStore.Comment _last) { return _last.time + "_" + _last.id; }
+
+    // routes a request
+    private void handle(HttpExchange _exchange) throws IOException
+    {
+        requests.incrementAndGet();
+        if (!"GET".equals(_exchange.getRequestMethod()))
+        {
+            send(_exchange, 405, null, null, new byte[0]);
+            return;
+        }
+        String path = _exchange.getRequestURI().getPath();
+        if (path.startsWith("/tiles/")) tile(_exchange, path.substring("/tiles/".length()));
+        else if (path.startsWith("/threads/")) thread(_exchange, URLDecoder.decode(path.substring("/threads/".length()), "UTF-8"));
+        else if (path.equals("/stats")) send(_exchange, 200, null, "no-store", stats().getBytes(StandardCharsets.UTF_8));
+        else send(_exchange, 404, null, null, new byte[0]);
+    }
+
+    private void tile(HttpExchange _exchange, String _cell) throws IOException
+    {
+        final long cell;
+        try { cell = Long.parseLong(_cell); }
+        catch (NumberFormatException ex)
+        {
+            send(_exchange, 400, null, null, new byte[0]);
+            return;
+        }
+        if (GeoCell.LEVEL(cell) != GeoCell.REGION_LEVEL)
+        {
+            send(_exchange, 400, null, null, new byte[0]);
+            return;
+        }
+        long version = store.version(PostStore.TILE_KEY(cell));
+        String key = "tile/" + cell;
+        ResponseCache.Entry entry = cache.get(key, version, System.currentTimeMillis());
+        if (entry == null)
+        {
+            entry = entry(Json.TILE(cell, store.postsInCell(cell)), version);
+            cache.put(key, entry);
+        }
+        respond(_exchange, entry, TILE_CACHE_CONTROL);
+    }
+
+    private void thread(HttpExchange _exchange, String _docID) throws IOException
+    {
+        String query = _exchange.getRequestURI().getRawQuery();
+        String after = param(query, "after");
+        int limit = DEFAULT_PAGE;
+        long afterTime = 0;
+        String afterID = null;
+        try
+        {
+            String limitParam = param(query, "limit");
+            if (limitParam != null) limit = Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(limitParam)));
+            if (after != null)
+            {
+                int separator = after.indexOf('_');
+                afterTime = Long.parseLong(after.substring(0, separator));
+                afterID = after.substring(separator + 1);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            send(_exchange, 400, null, null, new byte[0]);
+            return;
+        }
+
+        long version = store.version(PostStore.THREAD_KEY(_docID));
+        String key = "thread/" + _docID + "?" + (after == null ? "" : after) + "&" + limit;
+        ResponseCache.Entry entry = cache.get(key, version, System.currentTimeMillis());
+        if (entry == null)
+        {
+            PostStore.Post post = store.post(_docID);
+            if (post == null)
+            {
+                send(_exchange, 404, null, null, new byte[0]);
+                return;
+            }
+
+            // one extra comment tells whether there is a next page
+            List<PostStore.Comment> comments = store.comments(_docID, afterTime, afterID, limit + 1);
+            String next = null;
+            if (comments.size() > limit)
+            {
+                comments = comments.subList(0, limit);
+                next = CURSOR(comments.get(limit - 1));
+            }
+            entry = entry(Json.THREAD(after == null ? post : null, comments, next), version);
+            cache.put(key, entry);
+        }
+        respond(_exchange, entry, THREAD_CACHE_CONTROL);
+    }
+
+    // sends a cached (or just built) response, or an empty 304 if the client already has it
+    private void respond(HttpExchange _exchange, ResponseCache.Entry _entry, String _cacheControl) throws IOException
+    {
+        if (MATCHES(_exchange.getRequestHeaders().getFirst("If-None-Match"), _entry.etag))
+        {
+            notModified.incrementAndGet();
+            send(_exchange, 304, _entry.etag, _cacheControl, null);
+        }
+        else send(_exchange, 200, _entry.etag, _cacheControl, _entry.body);
+    }
+
+    private void send(HttpExchange _exchange, int _status, String _etag, String _cacheControl, byte[] _body) throws IOException
+    {
+        if (_etag != null) _exchange.getResponseHeaders().set("ETag", _etag);
+        if (_cacheControl != null) _exchange.getResponseHeaders().set("Cache-Control", _cacheControl);
+        if (_body == null)
+        {
+            _exchange.sendResponseHeaders(_status, -1);
+            return;
+        }
+        _exchange.getResponseHeaders().set("Content-Type", JSON);
+        _exchange.sendResponseHeaders(_status, _body.length == 0 ? -1 : _body.length);
+        if (_body.length > 0)
+        {
+            try (OutputStream out = _exchange.getResponseBody()) { out.write(_body); }
+            bytesOut.addAndGet(_body.length);
+        }
+    }
+
+    private static ResponseCache.Entry entry(String _json, long _version)
+    {
+        byte[] body = _json.getBytes(StandardCharsets.UTF_8);
+        return new ResponseCache.Entry(body, ETAG(body), _version, System.currentTimeMillis());
+    }
+
+    private String stats()
+    {
+        return "{\"requests\":" + requests.get() + ",\"not_modified\":" + notModified.get() + ",\"bytes_out\":" + bytesOut.get()
+                + ",\"cache_hits\":" + cache.getHits() + ",\"cache_misses\":" + cache.getMisses() + ",\"cache_evictions\":"
+                + cache.getEvictions() + ",\"cache_entries\":" + cache.count() + ",\"cache_bytes\":" + cache.size() + "}";
+    }
+
+    // returns a (decoded) query parameter, or null
+    private static String param(String _query, String _name) throws IOException
+    {
+        if (_query == null) return null;
+        for (String pair : _query.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(_name)) return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+        }
+        return null;
+    }
+}
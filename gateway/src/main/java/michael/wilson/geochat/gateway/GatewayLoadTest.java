@@ -0,0 +1,258 @@
+package michael.wilson.geochat.gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import michael.wilson.geochat.GeoCell;
+
+/** Compares reading tiles and threads through the gateway against reading the post documents directly
+ * > Each virtual client stays around one spot: it refreshes the 3x3 tiles around it, or opens one of the threads in them
+ * > "direct" reads what the app reads without the gateway: every post document of the tiles (a refresh re-reads all of them),
+ *   and a thread's document with all of its comments
+ * > "gateway" sends the same requests over HTTP, revalidating tiles and first pages with the ETag it got last time
+ * > A writer adds comments to random posts meanwhile (memory store only), so some tiles and threads do change
+ * > Reports requests, bytes per request, latency percentiles, the share of 304s, and the gateway's cache hit rate
+ *
+ * Direct reads from the memory store take no time, their latency is only meaningful with '--store emulator'.
+ *   --store memory|emulator   (default memory)
+ *   --posts N                 posts generated for the memory store (default 20000)
+ *   --clients N               virtual clients (default 50)
+ *   --seconds N               length of each phase (default 20)
+ *   --writes N                comments written per second (default 20)
+ */
+public class GatewayLoadTest
+{
+    /*** ~~~PRIVATE~~~ ***/
+
+    // Share of client operations which refresh the tiles around the client (the rest open a thread)
+    private static final double REFRESH_SHARE = 0.7;
+
+    // Bytes of status line and headers of an HTTP response, roughly (counted for 304s too)
+    private static final int HEADER_BYTES = 160;
+
+    /** What one phase measured */
+    private static class Phase
+    {
+        final AtomicLong requests = new AtomicLong(), bytes = new AtomicLong(), notModified = new AtomicLong(), errors = new AtomicLong();
+        private long[] micros = new long[1024];
+        private int count;
+
+        synchronized void record(long _micros)
+        {
+            if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+            micros[count++] = _micros;
+        }
+
+        synchronized double percentileMs(double _percentile)
+        {
+            if (count == 0) return 0;
+            long[] sorted = Arrays.copyOf(micros, count);
+            Arrays.sort(sorted);
+            int rank = (int)Math.ceil(_percentile / 100.0 * count);
+            return sorted[Math.min(Math.max(rank, 1), count) - 1] / 1000.0;
+        }
+
+        String summary(String _name)
+        {
+            long n = Math.max(1, requests.get());
+            return String.format("%-8s requests=%-8d bytes/request=%-8d p50=%-7.2fms p99=%-7.2fms 304s=%.1f%% errors=%d", _name,
+                    requests.get(), bytes.get() / n, percentileMs(50), percentileMs(99), 100.0 * notModified.get() / n, errors.get());
+        }
+    }
+
+    public static void main(String[] _args) throws Exception
+    {
+        String storeName = "memory";
+        int posts = 20000, clients = 50, seconds = 20, writes = 20;
+        for (int i = 0; i + 1 < _args.length; i += 2)
+        {
+            String name = _args[i], value = _args[i + 1];
+            switch (name)
+            {
+                case "--store": storeName = value; break;
+                case "--posts": posts = Integer.parseInt(value); break;
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--seconds": seconds = Integer.parseInt(value); break;
+                case "--writes": writes = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+        PostStore store = Gateway.OPEN_STORE(storeName, posts, "geochat-loadgen");
+        List<Long> homes = homes(store, clients);
+        Gateway gateway = new Gateway(store, Gateway.DEFAULT_CACHE_BYTES);
+        int port = gateway.start(0, Gateway.DEFAULT_THREADS);
+        System.out.println(storeName + " store, " + clients + " clients, " + seconds + "s per phase, " + writes + " comments/s");
+
+        Phase direct = run(store, homes, seconds, writes, null);
+        System.out.println(direct.summary("direct"));
+        Phase http = run(store, homes, seconds, writes, "http://localhost:" + port);
+        System.out.println(http.summary("gateway"));
+        ResponseCache cache = gateway.getCache();
+        System.out.println(String.format("gateway cache: hit rate=%.1f%% entries=%d size=%dKB evictions=%d",
+                100.0 * cache.getHits() / Math.max(1, cache.getHits() + cache.getMisses()), cache.count(), cache.size() / 1024,
+                cache.getEvictions()));
+        gateway.stop();
+    }
+
+    // runs one phase, against the store directly (null '_base') or through the gateway
+    private static Phase run(final PostStore _store, List<Long> _homes, int _seconds, final int _writes, final String _base)
+            throws InterruptedException
+    {
+        final Phase phase = new Phase();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < _homes.size(); i++)
+        {
+            final long home = _homes.get(i);
+            final Random random = new Random(i);
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Map<String, String> etags = new HashMap<>();
+                    while (running.get())
+                    {
+                        try
+                        {
+                            if (random.nextDouble() < REFRESH_SHARE)
+                            {
+                                for (int dx = -1; dx <= 1; dx++)
+                                {
+                                    for (int dy = -1; dy <= 1; dy++) tile(_store, GeoCell.NEIGHBOUR(home, dx, dy), _base, etags, phase);
+                                }
+                            }
+                            else
+                            {
+                                List<PostStore.Post> around = _store.postsInCell(home);
+                                if (!around.isEmpty()) thread(_store, around.get(random.nextInt(around.size())).docID, _base, etags, phase);
+                            }
+                        }
+                        catch (IOException ex) { phase.errors.incrementAndGet(); }
+                    }
+                }
+            }, "client-" + i));
+        }
+        if (_store instanceof MemoryStore && _writes > 0) threads.add(writer((MemoryStore)_store, _writes, running));
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(_seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) thread.join();
+        return phase;
+    }
+
+    private static void tile(PostStore _store, long _cell, String _base, Map<String, String> _etags, Phase _phase) throws IOException
+    {
+        long start = System.nanoTime();
+        if (_base == null)
+        {
+            long bytes = 0;
+            for (PostStore.Post post : _store.postsInCell(_cell)) bytes += Json.DOCUMENT(post, null).getBytes(StandardCharsets.UTF_8).length;
+            record(_phase, start, bytes, false);
+        }
+        else get(_base + "/tiles/" + _cell, _etags, _phase, start);
+    }
+
+    private static void thread(PostStore _store, String _docID, String _base, Map<String, String> _etags, Phase _phase) throws IOException
+    {
+        long start = System.nanoTime();
+        if (_base == null)
+        {
+            PostStore.Post post = _store.post(_docID);
+            List<PostStore.Comment> comments = _store.comments(_docID, 0, null, Integer.MAX_VALUE);
+            record(_phase, start, Json.DOCUMENT(post, comments).getBytes(StandardCharsets.UTF_8).length, false);
+        }
+        else get(_base + "/threads/" + _docID, _etags, _phase, start);
+    }
+
+    // sends a (conditional) request and records what came back
+    private static void get(String _url, Map<String, String> _etags, Phase _phase, long _start) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(_url).openConnection();
+        String etag = _etags.get(_url);
+        if (etag != null) connection.setRequestProperty("If-None-Match", etag);
+        int status = connection.getResponseCode();
+        long bytes = 0;
+        if (status == 200)
+        {
+            bytes = read(connection.getInputStream());
+            _etags.put(_url, connection.getHeaderField("ETag"));
+        }
+        else if (status != 304) throw new IOException("status " + status + " for " + _url);
+        record(_phase, _start, bytes + HEADER_BYTES, status == 304);
+    }
+
+    private static void record(Phase _phase, long _start, long _bytes, boolean _notModified)
+    {
+        _phase.record((System.nanoTime() - _start) / 1000);
+        _phase.requests.incrementAndGet();
+        _phase.bytes.addAndGet(_bytes);
+        if (_notModified) _phase.notModified.incrementAndGet();
+    }
+
+    private static long read(InputStream _in) throws IOException
+    {
+        try (InputStream in = _in)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+            return out.size();
+        }
+    }
+
+    // adds '_perSecond' comments a second to random posts until stopped
+    private static Thread writer(final MemoryStore _store, final int _perSecond, final AtomicBoolean _running)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Random random = new Random(-1);
+                List<String> ids = _store.postIDs();
+                long n = 0;
+                while (_running.get())
+                {
+                    String docID = ids.get(random.nextInt(ids.size()));
+                    _store.addComment(docID, MemoryStore.COMMENT("load" + System.nanoTime() + "_" + n++, System.currentTimeMillis(), random));
+                    try { Thread.sleep(1000 / _perSecond); }
+                    catch (InterruptedException ex) { return; }
+                }
+            }
+        }, "writer");
+    }
+
+    // the region cell each client stays in: the cell of a random post, so busy areas get more clients
+    private static List<Long> homes(PostStore _store, int _clients) throws IOException
+    {
+        List<Long> homes = new ArrayList<>();
+        Random random = new Random(7);
+        if (_store instanceof MemoryStore)
+        {
+            List<String> ids = ((MemoryStore)_store).postIDs();
+            for (int i = 0; i < _clients; i++) homes.add(_store.post(ids.get(random.nextInt(ids.size()))).cell);
+        }
+        else
+        {
+            // the emulator's posts are those written by the shard benchmark, around the same cities
+            for (int i = 0; i < _clients; i++)
+            {
+                double[] location = MemoryStore.RANDOM_LOCATION(random);
+                homes.add(GeoCell.ID(location[0], location[1], GeoCell.REGION_LEVEL));
+            }
+        }
+        return homes;
+    }
+}
@@ -0,0 +1,132 @@
+package michael.wilson.geochat.gateway;
+
+import java.util.List;
+
+/** Encodes the gateway's responses as JSON (hand written, the responses are small and flat) */
+public class Json
+{
+    /** Encodes a tile: the summaries of the posts in a region cell (what the map needs to draw and rank markers) */
+    public static String TILE(long _cell, List<PostStore.Post> _posts)
+    {
+        StringBuilder out = new StringBuilder(64 + _posts.size() * 192);
+        out.append("{\"cell\":").append(_cell).append(",\"posts\":[");
+        for (int i = 0; i < _posts.size(); i++)
+        {
+            if (i > 0) out.append(',');
+            summary(out, _posts.get(i));
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    /** Encodes a page of a thread
+     *
+     * @param _post - The post (only sent with the first page, null for later ones)
+     * @param _comments - The page's comments, oldest first
+     * @param _next - Cursor of the next page, null if this is the last one
+     */
+    public static String THREAD(PostStore.Post _post, List<PostStore.Comment> _comments, String _next)
+    {
+        StringBuilder out = new StringBuilder(128 + _comments.size() * 160);
+        out.append('{');
+        if (_post != null)
+        {
+            out.append("\"post\":");
+            summary(out, _post);
+            field(out, "body", _post.body);
+            field(out, "image", _post.image);
+            out.append("},");
+        }
+        out.append("\"comments\":[");
+        for (int i = 0; i < _comments.size(); i++)
+        {
+            if (i > 0) out.append(',');
+            comment(out, _comments.get(i));
+        }
+        out.append("],\"next\":");
+        if (_next == null) out.append("null");
+        else QUOTE(out, _next);
+        return out.append('}').toString();
+    }
+
+    /** Encodes a whole post document, the way a direct read returns it (used to compare transfer sizes)
+     *
+     * @param _post - The post
+     * @param _comments - Its comments, null if they are not read along with it
+     */
+    public static String DOCUMENT(PostStore.Post _post, List<PostStore.Comment> _comments)
+    {
+        StringBuilder out = new StringBuilder(256);
+        summary(out, _post);
+        field(out, "body", _post.body);
+        field(out, "image", _post.image);
+        out.append(",\"cell\":").append(_post.cell);
+        if (_comments != null)
+        {
+            out.append(",\"comments\":[");
+            for (int i = 0; i < _comments.size(); i++)
+            {
+                if (i > 0) out.append(',');
+                comment(out, _comments.get(i));
+            }
+            out.append(']');
+        }
+        return out.append('}').toString();
+    }
+
+    /** Appends a string as a JSON string literal (null as null) */
+    public static void QUOTE(StringBuilder _out, String _s)
+    {
+        if (_s == null)
+        {
+            _out.append("null");
+            return;
+        }
+        _out.append('"');
+        for (int i = 0; i < _s.length(); i++)
+        {
+            char c = _s.charAt(i);
+            switch (c)
+            {
+                case '"': _out.append("\\\""); break;
+                case '\\': _out.append("\\\\"); break;
+                case '\n': _out.append("\\n"); break;
+                case '\r': _out.append("\\r"); break;
+                case '\t': _out.append("\\t"); break;
+                default:
+                    if (c < 0x20) _out.append(String.format("\\u%04x", (int)c));
+                    else _out.append(c);
+            }
+        }
+        _out.append('"');
+    }
+
+    // appends an unterminated object holding a post's summary fields
+    private static void summary(StringBuilder _out, PostStore.Post _post)
+    {
+        _out.append("{\"id\":");
+        QUOTE(_out, _post.docID);
+        field(_out, "title", _post.title);
+        _out.append(",\"lat\":").append(_post.lat).append(",\"lng\":").append(_post.lng);
+        field(_out, "date", _post.date);
+        field(_out, "userID", _post.userID);
+        field(_out, "thumb", _post.thumb);
+        _out.append(",\"commentCount\":").append(_post.commentCount).append(",\"lastActivity\":").append(_post.lastActivity);
+    }
+
+    private static void comment(StringBuilder _out, PostStore.Comment _comment)
+    {
+        _out.append("{\"id\":");
+        QUOTE(_out, _comment.id);
+        field(_out, "text", _comment.text);
+        field(_out, "date", _comment.date);
+        field(_out, "user", _comment.user);
+        _out.append(",\"time\":").append(_comment.time).append('}');
+    }
+
+    private static void field(StringBuilder _out, String _name, String _value)
+    {
+        _out.append(",\"").append(_name).append("\":");
+        QUOTE(_out, _value);
+    }
+}
@@ -0,0 +1,184 @@
+package michael.wilson.geochat.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import michael.wilson.geochat.GeoCell;
+
+/** A 'PostStore' held in memory, which knows exactly when each tile and thread changes
+ * > Thread safe, writes replace a cell's or thread's list instead of changing it, so readers never see half a write
+ * > Every write bumps the version of the tile and thread it touches
+ */
+public class MemoryStore implements PostStore
+{
+    // a few busy cities, generated posts are clustered around them like in the real app
+    private static final double[][] CITIES = {{40.71, -74.00}, {51.51, -0.13}, {35.68, 139.69}, {-33.87, 151.21},
+            {48.86, 2.35}, {37.77, -122.42}, {19.43, -99.13}, {-23.55, -46.63}, {28.61, 77.21}, {1.35, 103.82}};
+
+    private final Map<String, Post> posts = new ConcurrentHashMap<>();
+    private final Map<Long, List<Post>> cells = new ConcurrentHashMap<>();
+    private final Map<String, List<Comment>> comments = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /** Adds (or replaces) a post */
+    public synchronized void addPost(Post _post)
+    {
+        _post.cell = GeoCell.ID(_post.lat, _post.lng, GeoCell.REGION_LEVEL);
+        Post old = posts.put(_post.docID, _post);
+        if (old != null) replaceInCell(old.cell, old, null);
+        replaceInCell(_post.cell, null, _post);
+        comments.putIfAbsent(_post.docID, Collections.<Comment>emptyList());
+        bump(PostStore.THREAD_KEY(_post.docID));
+    }
+
+    /** Adds a comment to a post (its time must not be older than the post's newest comment), and updates the post's activity */
+    public synchronized void addComment(String _docID, Comment _comment)
+    {
+        Post old = posts.get(_docID);
+        if (old == null) throw new IllegalArgumentException("no post " + _docID);
+        List<Comment> list = new ArrayList<>(comments.get(_docID));
+        list.add(_comment);
+        comments.put(_docID, Collections.unmodifiableList(list));
+
+        // posts are replaced, never changed, a reader may be serializing the old one
+        Post updated = copy(old);
+        updated.commentCount = old.commentCount + 1;
+        updated.lastActivity = _comment.time;
+        posts.put(_docID, updated);
+        replaceInCell(old.cell, old, updated);
+        bump(PostStore.THREAD_KEY(_docID));
+    }
+
+    public int postCount() { return posts.size(); }
+
+    /** Returns the ids of every post */
+    public List<String> postIDs() { return new ArrayList<>(posts.keySet()); }
+
+    @Override
+    public List<Post> postsInCell(long _cell)
+    {
+        List<Post> list = cells.get(_cell);
+        return list == null ? Collections.<Post>emptyList() : list;
+    }
+
+    @Override
+    public Post post(String _docID) { return posts.get(_docID); }
+
+    @Override
+    public List<Comment> comments(String _docID, long _afterTime, String _afterID, int _limit)
+    {
+        List<Comment> list = comments.get(_docID);
+        if (list == null) return Collections.emptyList();
+
+        // binary search for the first comment after the cursor
+        int lo = 0, hi = list.size();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (AFTER(list.get(mid), _afterTime, _afterID)) hi = mid;
+            else lo = mid + 1;
+        }
+        return new ArrayList<>(list.subList(lo, Math.min(list.size(), lo + _limit)));
+    }
+
+    @Override
+    public long version(String _key)
+    {
+        AtomicLong version = versions.get(_key);
+        return version == null ? 0 : version.get();
+    }
+
+    /** Returns true if a comment comes after a cursor (ordered by time, then id) */
+    public static boolean AFTER(Comment _comment, long _time, String _id)
+    {
+        if (_comment.time != _time) return _comment.time > _time;
+        return _id == null || _comment.id.compareTo(_id) > 0;
+    }
+
+    /** Fills a store with posts clustered around a few cities (busier cities first), some with long threads
+     *
+     * @param _posts - Number of posts
+     * @param _random - Source of randomness (seeded, so runs can be compared)
+     */
+    public static MemoryStore GENERATE(int _posts, Random _random)
+    {
+        MemoryStore store = new MemoryStore();
+        long time = 1580000000000L;
+        for (int i = 0; i < _posts; i++)
+        {
+            double[] location = RANDOM_LOCATION(_random);
+            Post post = new Post();
+            post.docID = "gen" + i;
+            post.title = "Generated post " + i;
+            post.body = "Generated by the gateway's memory store, about as long as a typical post body on the map. #" + i;
+            post.date = "01/01/2020";
+            post.userID = "device" + _random.nextInt(1000);
+            post.lat = location[0];
+            post.lng = location[1];
+            post.lastActivity = time;
+            store.addPost(post);
+
+            int count = _random.nextInt(20) == 0 ? 100 + _random.nextInt(400) : _random.nextInt(6);
+            for (int c = 0; c < count; c++) store.addComment(post.docID, COMMENT(post.docID + "c" + c, ++time, _random));
+        }
+        return store;
+    }
+
+    /** Returns a random location near one of the cities (busier cities first), like the posts of 'ShardBenchmark' */
+    public static double[] RANDOM_LOCATION(Random _random)
+    {
+        double[] city = CITIES[(int)(CITIES.length * Math.pow(_random.nextDouble(), 2))];
+        return new double[]{city[0] + _random.nextGaussian() * 0.3, city[1] + _random.nextGaussian() * 0.3};
+    }
+
+    /** Returns a generated comment */
+    public static Comment COMMENT(String _id, long _time, Random _random)
+    {
+        Comment comment = new Comment();
+        comment.id = _id;
+        comment.text = "Generated comment " + _random.nextInt(100000) + ", about as long as a typical reply in a busy thread.";
+        comment.date = "01/02/2020";
+        comment.user = "device" + _random.nextInt(1000);
+        comment.time = _time;
+        return comment;
+    }
+
+    // replaces a post in its cell's list ('_old' or '_new' may be null to only add or remove), and bumps the tile's version
+    private void replaceInCell(long _cell, Post _old, Post _new)
+    {
+        List<Post> list = new ArrayList<>(postsInCell(_cell));
+        if (_old != null) list.remove(_old);
+        if (_new != null) list.add(_new);
+        cells.put(_cell, Collections.unmodifiableList(list));
+        bump(PostStore.TILE_KEY(_cell));
+    }
+
+    private void bump(String _key)
+    {
+        AtomicLong version = versions.get(_key);
+        if (version == null) versions.put(_key, version = new AtomicLong());
+        version.incrementAndGet();
+    }
+
+    private static Post copy(Post _post)
+    {
+        Post copy = new Post();
+        copy.docID = _post.docID;
+        copy.title = _post.title;
+        copy.body = _post.body;
+        copy.date = _post.date;
+        copy.userID = _post.userID;
+        copy.thumb = _post.thumb;
+        copy.image = _post.image;
+        copy.lat = _post.lat;
+        copy.lng = _post.lng;
+        copy.commentCount = _post.commentCount;
+        copy.lastActivity = _post.lastActivity;
+        copy.cell = _post.cell;
+        return copy;
+    }
+}
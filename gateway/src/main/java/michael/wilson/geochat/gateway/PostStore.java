@@ -0,0 +1,56 @@
+package michael.wilson.geochat.gateway;
+
+import java.io.IOException;
+import java.util.List;
+
+/** Where the gateway reads posts and comments from (the Firestore emulator, or memory for tests and load runs) */
+public interface PostStore
+{
+    // Version of a key whose changes the store can not track, responses for it are cached for a short time only
+    long UNKNOWN_VERSION = -1;
+
+    /** A post, as stored */
+    class Post
+    {
+        public String docID, title, body, date, userID, thumb, image;
+        public double lat, lng;
+        public long commentCount, lastActivity, cell;
+    }
+
+    /** A comment, as stored */
+    class Comment
+    {
+        public String id, text, date, user;
+
+        // server time the comment was written, comments are ordered by it (then by id)
+        public long time;
+    }
+
+    /** Returns the posts in a region cell (see 'GeoCell.REGION_LEVEL') */
+    List<Post> postsInCell(long _cell) throws IOException;
+
+    /** Returns a post, or null if there is none with that id */
+    Post post(String _docID) throws IOException;
+
+    /** Returns a page of a post's comments, oldest first
+     *
+     * @param _docID - The post
+     * @param _afterTime - Only comments after this one are returned (0 and null for the first page)
+     * @param _afterID - Id of the comment the previous page ended with
+     * @param _limit - Largest number of comments returned
+     */
+    List<Comment> comments(String _docID, long _afterTime, String _afterID, int _limit) throws IOException;
+
+    /** Returns the version of a tile or thread, which changes whenever a post or comment in it does
+     *
+     * @param _key - 'TILE_KEY(...)' or 'THREAD_KEY(...)'
+     * @return The version, or 'UNKNOWN_VERSION'
+     */
+    long version(String _key);
+
+    /** Key of a tile for 'version(...)' */
+    static String TILE_KEY(long _cell) { return "tile:" + _cell; }
+
+    /** Key of a thread for 'version(...)' */
+    static String THREAD_KEY(String _docID) { return "thread:" + _docID; }
+}
@@ -0,0 +1,86 @@
+package michael.wilson.geochat.gateway;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A size-bounded LRU cache of encoded responses, shared by every client of the gateway
+ * > An entry remembers the store version it was built from, it is only served while the version is unchanged
+ * > Entries built from an 'UNKNOWN_VERSION' are served until they are 'ttlMillis' old
+ * > When the total size of the bodies goes over 'maxBytes', the least recently used entries are dropped
+ */
+public class ResponseCache
+{
+    /** An encoded response */
+    public static class Entry
+    {
+        public final byte[] body;
+        public final String etag;
+        public final long version, created;
+
+        public Entry(byte[] _body, String _etag, long _version, long _created)
+        {
+            this.body = _body;
+            this.etag = _etag;
+            this.version = _version;
+            this.created = _created;
+        }
+    }
+
+    private final long maxBytes, ttlMillis;
+    private long totalBytes;
+    private long hits, misses, evictions;
+
+    // request path (with its query) -> response, in access order (eldest first)
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    /** Constructor
+     *
+     * @param _maxBytes - Maximum total size of the cached bodies
+     * @param _ttlMillis - How long an entry of unknown version is served
+     */
+    public ResponseCache(long _maxBytes, long _ttlMillis)
+    {
+        this.maxBytes = _maxBytes;
+        this.ttlMillis = _ttlMillis;
+    }
+
+    /** Returns the cached response for a request, or null if there is none still valid
+     *
+     * @param _key - The request's path and query
+     * @param _version - Current store version of what the request reads
+     * @param _now - Current time in milliseconds
+     */
+    public synchronized Entry get(String _key, long _version, long _now)
+    {
+        Entry entry = entries.get(_key);
+        boolean valid = entry != null && entry.version == _version
+                && (_version != PostStore.UNKNOWN_VERSION || _now - entry.created < ttlMillis);
+        if (valid) hits++;
+        else misses++;
+        return valid ? entry : null;
+    }
+
+    /** Stores a response, replacing the previous one for the same request, then drops old entries if over the size limit */
+    public synchronized void put(String _key, Entry _entry)
+    {
+        if (_entry.body.length > maxBytes) return;
+        Entry old = entries.put(_key, _entry);
+        if (old != null) totalBytes -= old.body.length;
+        totalBytes += _entry.body.length;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext())
+        {
+            totalBytes -= it.next().getValue().body.length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long size() { return totalBytes; }
+    public synchronized int count() { return entries.size(); }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+}
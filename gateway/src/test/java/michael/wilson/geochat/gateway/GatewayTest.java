@@ -0,0 +1,146 @@
+package michael.wilson.geochat.gateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import michael.wilson.geochat.GeoCell;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the gateway's endpoints over HTTP, against a memory store: ETags and 304s, thread pages, and invalidation.
+ */
+public class GatewayTest
+{
+    private MemoryStore store;
+    private Gateway gateway;
+    private String base;
+
+    /** A response read over HTTP */
+    private static class Response
+    {
+        int status;
+        String body, etag, cacheControl;
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        store = new MemoryStore();
+        Random random = new Random(1);
+        for (int i = 0; i < 3; i++)
+        {
+            PostStore.Post post = new PostStore.Post();
+            post.docID = "p" + i;
+            post.title = "post " + i;
+            post.lat = 51.5 + i * 0.001;
+            post.lng = -0.12;
+            store.addPost(post);
+        }
+        for (int c = 0; c < 120; c++) store.addComment("p0", MemoryStore.COMMENT("c" + c, 1000 + c, random));
+        gateway = new Gateway(store, 1024 * 1024);
+        base = "http://localhost:" + gateway.start(0, 4);
+    }
+
+    @After
+    public void tearDown() { gateway.stop(); }
+
+    private Response get(String _path, String _ifNoneMatch) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(base + _path).openConnection();
+        if (_ifNoneMatch != null) connection.setRequestProperty("If-None-Match", _ifNoneMatch);
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.etag = connection.getHeaderField("ETag");
+        response.cacheControl = connection.getHeaderField("Cache-Control");
+        InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null)
+        {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+            in.close();
+        }
+        response.body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static long cell() { return GeoCell.ID(51.5, -0.12, GeoCell.REGION_LEVEL); }
+
+    @Test
+    public void unchangedTile_returns304() throws IOException
+    {
+        Response first = get("/tiles/" + cell(), null);
+        assertEquals(200, first.status);
+        assertTrue(first.body.contains("\"post 2\""));
+        assertEquals(Gateway.TILE_CACHE_CONTROL, first.cacheControl);
+
+        Response second = get("/tiles/" + cell(), first.etag);
+        assertEquals(304, second.status);
+        assertEquals("", second.body);
+        assertEquals(first.etag, second.etag);
+        assertEquals(1, gateway.getCache().getMisses());
+    }
+
+    @Test
+    public void newComment_changesTileAndThread() throws IOException
+    {
+        Response tile = get("/tiles/" + cell(), null);
+        Response thread = get("/threads/p1", null);
+
+        store.addComment("p1", MemoryStore.COMMENT("new", 5000, new Random(2)));
+
+        Response tileAfter = get("/tiles/" + cell(), tile.etag);
+        Response threadAfter = get("/threads/p1", thread.etag);
+        assertEquals(200, tileAfter.status);
+        assertNotEquals(tile.etag, tileAfter.etag);
+        assertEquals(200, threadAfter.status);
+        assertTrue(threadAfter.body.contains("\"new\""));
+    }
+
+    @Test
+    public void thread_isPaged() throws IOException
+    {
+        Response first = get("/threads/p0?limit=50", null);
+        assertEquals(Gateway.THREAD_CACHE_CONTROL, first.cacheControl);
+        assertTrue(first.body.startsWith("{\"post\":"));
+        assertTrue(first.body.contains("\"next\":\"1049_c49\""));
+
+        Response second = get("/threads/p0?limit=50&after=1049_c49", null);
+        assertFalse(second.body.contains("\"post\":"));
+        assertTrue(second.body.contains("\"c50\""));
+        assertFalse(second.body.contains("\"c49\""));
+
+        Response last = get("/threads/p0?limit=50&after=1099_c99", null);
+        assertTrue(last.body.contains("\"c119\""));
+        assertTrue(last.body.endsWith("\"next\":null}"));
+    }
+
+    @Test
+    public void badRequests_areRejected() throws IOException
+    {
+        assertEquals(404, get("/threads/missing", null).status);
+        assertEquals(400, get("/tiles/notacell", null).status);
+        assertEquals(400, get("/tiles/" + GeoCell.ID(51.5, -0.12, 4), null).status);
+        assertEquals(400, get("/threads/p0?after=garbage", null).status);
+        assertEquals(404, get("/nothing", null).status);
+    }
+
+    @Test
+    public void ifNoneMatch_understandsListsAndWeakTags()
+    {
+        assertTrue(Gateway.MATCHES("\"a\", W/\"b\"", "\"b\""));
+        assertTrue(Gateway.MATCHES("*", "\"b\""));
+        assertFalse(Gateway.MATCHES("\"a\"", "\"b\""));
+        assertFalse(Gateway.MATCHES(null, "\"b\""));
+    }
+}
@@ -0,0 +1,61 @@
+package michael.wilson.geochat.gateway;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the gateway's response cache: version checks, expiry of unknown versions, and eviction by size.
+ */
+public class ResponseCacheTest
+{
+    private static ResponseCache.Entry entry(int _size, long _version, long _created)
+    {
+        return new ResponseCache.Entry(new byte[_size], "\"e" + _version + "\"", _version, _created);
+    }
+
+    @Test
+    public void entry_isServedOnlyWhileVersionIsUnchanged()
+    {
+        ResponseCache cache = new ResponseCache(1000, 100);
+        cache.put("a", entry(10, 3, 0));
+
+        assertNotNull(cache.get("a", 3, 5000));
+        assertNull(cache.get("a", 4, 0));
+        assertNull(cache.get("b", 3, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void entryOfUnknownVersion_expires()
+    {
+        ResponseCache cache = new ResponseCache(1000, 100);
+        cache.put("a", entry(10, PostStore.UNKNOWN_VERSION, 1000));
+
+        assertNotNull(cache.get("a", PostStore.UNKNOWN_VERSION, 1099));
+        assertNull(cache.get("a", PostStore.UNKNOWN_VERSION, 1100));
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvictedFirst()
+    {
+        ResponseCache cache = new ResponseCache(100, 100);
+        cache.put("a", entry(40, 1, 0));
+        cache.put("b", entry(40, 1, 0));
+        cache.get("a", 1, 0);
+        cache.put("c", entry(40, 1, 0));
+
+        assertNotNull(cache.get("a", 1, 0));
+        assertNull(cache.get("b", 1, 0));
+        assertNotNull(cache.get("c", 1, 0));
+        assertEquals(80, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        // replacing an entry counts only its new size, and an entry larger than the whole cache is not kept
+        cache.put("a", entry(10, 2, 0));
+        assertEquals(50, cache.size());
+        cache.put("d", entry(200, 1, 0));
+        assertNull(cache.get("d", 1, 0));
+    }
+}
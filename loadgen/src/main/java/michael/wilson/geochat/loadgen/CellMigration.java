@@ -0,0 +1,85 @@
+package michael.wilson.geochat.loadgen;
+
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import michael.wilson.geochat.GeoCell;
+import michael.wilson.geochat.ShardRouter;
+
+/** One-off migration giving every post created before regions existed its region ('cell' field)
+ * > Such posts are only found by a full refresh, the map's region queries (see 'MapViewModel.fetchRegion(...)') miss them
+ * > Pages through the collection of posts created before sharding and every shard, and writes the cell of each post without
+ *   one, in batches (running it again only rewrites posts which still have none)
+ *
+ *   --project ID       project to migrate (default geochat-loadgen)
+ *   --collection NAME  base name of the post collections (default mcl)
+ *   --dry-run          only count the posts which need a cell
+ *   --production       required to run without 'FIRESTORE_EMULATOR_HOST' (uses the application default credentials)
+ */
+public class CellMigration
+{
+    private static final String CELL_KEY = "cell";
+
+    // documents read per page, and most writes in one batch (firestore's limit)
+    private static final int PAGE_SIZE = 500;
+
+    public static void main(String[] _args) throws Exception
+    {
+        String project = "geochat-loadgen", base = "mcl";
+        boolean dryRun = false, production = false;
+        for (int i = 0; i < _args.length; i++)
+        {
+            switch (_args[i])
+            {
+                case "--project": project = _args[++i]; break;
+                case "--collection": base = _args[++i]; break;
+                case "--dry-run": dryRun = true; break;
+                case "--production": production = true; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + _args[i]);
+            }
+        }
+        if (System.getenv("FIRESTORE_EMULATOR_HOST") == null && !production)
+        {
+            System.err.println("FIRESTORE_EMULATOR_HOST is not set, pass --production to migrate a real project.");
+            System.exit(1);
+        }
+        Firestore db = FirestoreOptions.getDefaultInstance().toBuilder().setProjectId(project).build().getService();
+
+        ShardRouter router = new ShardRouter(base, ShardRouter.DEFAULT_SHARD_COUNT);
+        long scanned = 0, missing = 0;
+        for (String collection : router.collectionsCovering(null, true))
+        {
+            QueryDocumentSnapshot last = null;
+            while (true)
+            {
+                Query page = db.collection(collection).select("lat", "lng", CELL_KEY).orderBy(FieldPath.documentId()).limit(PAGE_SIZE);
+                if (last != null) page = page.startAfter(last);
+                QuerySnapshot result = page.get().get();
+                if (result.isEmpty()) break;
+
+                WriteBatch batch = db.batch();
+                int writes = 0;
+                for (QueryDocumentSnapshot document : result)
+                {
+                    scanned++;
+                    last = document;
+                    Long cell = document.getLong(CELL_KEY);
+                    Double lat = document.getDouble("lat"), lng = document.getDouble("lng");
+                    if ((cell != null && cell != 0) || lat == null || lng == null) continue;
+                    missing++;
+                    batch.update(document.getReference(), CELL_KEY, GeoCell.ID(lat, lng, GeoCell.REGION_LEVEL));
+                    writes++;
+                }
+                if (writes > 0 && !dryRun) batch.commit().get();
+                if (result.size() < PAGE_SIZE) break;
+            }
+            System.out.println(collection + ": " + scanned + " posts scanned so far, " + missing + " without a cell");
+        }
+        System.out.println((dryRun ? "dry run, would have given " : "gave ") + missing + " of " + scanned + " posts their cell");
+        db.close();
+    }
+}
@@ -0,0 +1,64 @@
+package michael.wilson.geochat.loadgen;
+
+import java.util.Arrays;
+
+/** Collects latencies for one kind of operation and reports throughput and percentiles
+ * > Thread safe, every virtual client records into the same recorder
+ * > Latencies are kept in full (a load run records at most a few million operations)
+ */
+public class LatencyRecorder
+{
+    private long[] micros = new long[1024];
+    private int count, errors, contentionErrors;
+
+    /** Records a successful operation
+     *
+     * @param _micros - How long the operation took, in microseconds
+     */
+    public synchronized void record(long _micros)
+    {
+        if (count == micros.length) micros = Arrays.copyOf(micros, count * 2);
+        micros[count++] = _micros;
+    }
+
+    /** Records a failed operation
+     *
+     * @param _contention - True if the failure was caused by write contention (e.g. an aborted transaction)
+     */
+    public synchronized void recordError(boolean _contention)
+    {
+        errors++;
+        if (_contention) contentionErrors++;
+    }
+
+    public synchronized int getCount() {return count;}
+    public synchronized int getErrors() {return errors;}
+    public synchronized int getContentionErrors() {return contentionErrors;}
+
+    /** Returns the given percentile of the recorded latencies in microseconds (nearest rank), 0 if nothing was recorded
+     *
+     * @param _percentile - Percentile between 0 and 100
+     */
+    public synchronized long percentile(double _percentile)
+    {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(micros, count);
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(_percentile / 100.0 * count);
+        return sorted[Math.min(Math.max(rank, 1), count) - 1];
+    }
+
+    /** Returns the number of successful operations per second over the given duration */
+    public synchronized double throughput(long _elapsedMillis)
+    {
+        return _elapsedMillis <= 0 ? 0 : count * 1000.0 / _elapsedMillis;
+    }
+
+    /** Returns a one line summary: count, throughput, p50/p90/p99/max, and errors */
+    public synchronized String summary(String _name, long _elapsedMillis)
+    {
+        return String.format("%-8s ops=%-7d ops/s=%-8.1f p50=%-7.1fms p90=%-7.1fms p99=%-7.1fms max=%-7.1fms errors=%d (contention=%d)",
+                _name, count, throughput(_elapsedMillis), percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(100) / 1000.0, errors, contentionErrors);
+    }
+}
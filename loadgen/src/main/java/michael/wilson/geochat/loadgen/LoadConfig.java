@@ -0,0 +1,61 @@
+package michael.wilson.geochat.loadgen;
+
+/** Settings for a load run, parsed from command line arguments
+ *
+ *   --clients N        number of virtual clients (default 20)
+ *   --seconds N        how long to run (default 30)
+ *   --seed-posts N     posts created before the run starts (default 50)
+ *   --refresh W        relative weight of full map refreshes (default 10)
+ *   --post W           relative weight of post creation (default 2)
+ *   --comment W        relative weight of comments (default 8)
+ *   --think-ms N       pause between a client's operations (default 200)
+ *   --hot-skew X       how strongly comments favour a few hot posts, 0 = uniform (default 1.5)
+ *   --comment-mode M   subcollection (the app's comments sub-collection and sharded counter), or one of the comments array
+ *                      models before it: rmw (read-modify-write), transaction, or arrayunion (default subcollection)
+ *   --refresh-mode M   cells (the regions covering a viewport, as the app) or all (every post of every shard) (default cells)
+ *   --collection NAME  base name of the post collections, posts go to its shards NAME_0, NAME_1, ... (default mcl)
+ *   --project ID       project id used with the emulator (default geochat-loadgen)
+ */
+public class LoadConfig
+{
+    public enum CommentMode { SUBCOLLECTION, RMW, TRANSACTION, ARRAYUNION }
+    public enum RefreshMode { CELLS, ALL }
+
+    public int clients = 20, seconds = 30, seedPosts = 50, refreshWeight = 10, postWeight = 2, commentWeight = 8, thinkMillis = 200;
+    public double hotSkew = 1.5;
+    public CommentMode commentMode = CommentMode.SUBCOLLECTION;
+    public RefreshMode refreshMode = RefreshMode.CELLS;
+    public String collection = "mcl", project = "geochat-loadgen";
+
+    /** Parses command line arguments
+     *
+     * @param _args - Arguments in '--name value' pairs
+     * @return The parsed config
+     */
+    public static LoadConfig PARSE(String[] _args)
+    {
+        LoadConfig config = new LoadConfig();
+        for (int i = 0; i + 1 < _args.length; i += 2)
+        {
+            String name = _args[i], value = _args[i + 1];
+            switch (name)
+            {
+                case "--clients": config.clients = Integer.parseInt(value); break;
+                case "--seconds": config.seconds = Integer.parseInt(value); break;
+                case "--seed-posts": config.seedPosts = Integer.parseInt(value); break;
+                case "--refresh": config.refreshWeight = Integer.parseInt(value); break;
+                case "--post": config.postWeight = Integer.parseInt(value); break;
+                case "--comment": config.commentWeight = Integer.parseInt(value); break;
+                case "--think-ms": config.thinkMillis = Integer.parseInt(value); break;
+                case "--hot-skew": config.hotSkew = Double.parseDouble(value); break;
+                case "--comment-mode": config.commentMode = CommentMode.valueOf(value.toUpperCase()); break;
+                case "--refresh-mode": config.refreshMode = RefreshMode.valueOf(value.toUpperCase()); break;
+                case "--collection": config.collection = value; break;
+                case "--project": config.project = value; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+        if (_args.length % 2 != 0) throw new IllegalArgumentException("Missing value for " + _args[_args.length - 1]);
+        return config;
+    }
+}
@@ -0,0 +1,103 @@
+package michael.wilson.geochat.loadgen;
+
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import michael.wilson.geochat.ShardRouter;
+
+/** Runs N virtual clients against the local Firestore emulator and reports how the post collections hold up
+ * > Posts are spread over region shards of the collection, as in the app (see 'ShardRouter')
+ * > Seeds the shards with posts, then lets every client loop over refresh / post / comment (see 'VirtualClient')
+ * > Reports throughput, latency percentiles, and errors (contention errors separately) for each operation, and for the
+ *   activity counter's shard writes and roll-ups which comments set off
+ * > Afterwards reads every post back and counts acknowledged comments which are missing (lost updates)
+ *
+ * Only ever point this at the emulator ('FIRESTORE_EMULATOR_HOST'), never at the production project.
+ */
+public class LoadGenerator
+{
+    public static void main(String[] _args) throws Exception
+    {
+        if (System.getenv("FIRESTORE_EMULATOR_HOST") == null)
+        {
+            System.err.println("FIRESTORE_EMULATOR_HOST is not set, refusing to run against a real project.");
+            System.exit(1);
+        }
+        LoadConfig config = LoadConfig.PARSE(_args);
+        Firestore db = FirestoreOptions.getDefaultInstance().toBuilder().setProjectId(config.project).build().getService();
+
+        String runID = Long.toString(System.currentTimeMillis(), 36);
+        List<String> postIDs = new ArrayList<>();
+        Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+        LatencyRecorder refreshes = new LatencyRecorder(), posts = new LatencyRecorder(), comments = new LatencyRecorder();
+        LatencyRecorder shardWrites = new LatencyRecorder(), rollups = new LatencyRecorder();
+        ShardRouter router = new ShardRouter(config.collection, ShardRouter.DEFAULT_SHARD_COUNT);
+
+        // seed the shards so clients have something to read and comment on
+        Random random = new Random(1);
+        for (int i = 0; i < config.seedPosts; i++) postIDs.add(VirtualClient.CREATE_POST(db, router, runID, random));
+        System.out.println("run " + runID + ": seeded " + config.seedPosts + " posts, starting " + config.clients + " clients for "
+                + config.seconds + "s (comment mode " + config.commentMode + ", refresh mode " + config.refreshMode + ")");
+
+        List<VirtualClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < config.clients; i++)
+        {
+            VirtualClient client = new VirtualClient(i, db, router, config, runID, postIDs, acknowledged, refreshes, posts, comments,
+                    shardWrites, rollups);
+            Thread thread = new Thread(client, "client-" + i);
+            clients.add(client);
+            threads.add(thread);
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(config.seconds * 1000L);
+        for (VirtualClient client : clients) client.stop();
+        for (Thread thread : threads) thread.join();
+        long elapsed = System.currentTimeMillis() - start;
+
+        // read everything back and look for acknowledged comments which were overwritten
+        Set<String> present = new HashSet<>();
+        List<QueryDocumentSnapshot> documents = new ArrayList<>();
+        for (String collection : router.collectionsCovering(null, false))
+        {
+            documents.addAll(db.collection(collection).whereEqualTo(VirtualClient.RUN_KEY, runID).get().get().getDocuments());
+        }
+        for (QueryDocumentSnapshot document : documents)
+        {
+            if (config.commentMode == LoadConfig.CommentMode.SUBCOLLECTION)
+            {
+                for (QueryDocumentSnapshot comment : document.getReference().collection("comments").get().get())
+                {
+                    present.add(comment.getString("commentText"));
+                }
+                continue;
+            }
+            Object list = document.get("comments");
+            if (!(list instanceof List)) continue;
+            for (Object comment : (List<?>)list)
+            {
+                if (comment instanceof Map) present.add(String.valueOf(((Map<?, ?>)comment).get("commentText")));
+            }
+        }
+        int lost = 0;
+        for (String text : acknowledged) if (!present.contains(text)) lost++;
+
+        System.out.println();
+        System.out.println(refreshes.summary("refresh", elapsed));
+        System.out.println(posts.summary("post", elapsed));
+        System.out.println(comments.summary("comment", elapsed));
+        System.out.println(shardWrites.summary("shard", elapsed));
+        System.out.println(rollups.summary("rollup", elapsed));
+        System.out.println(String.format("lost comments: %d of %d acknowledged (%.2f%%)", lost, acknowledged.size(),
+                acknowledged.isEmpty() ? 0.0 : lost * 100.0 / acknowledged.size()));
+        db.close();
+    }
+}
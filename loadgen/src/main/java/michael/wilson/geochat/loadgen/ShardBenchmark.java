@@ -0,0 +1,197 @@
+package michael.wilson.geochat.loadgen;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import michael.wilson.geochat.GeoBounds;
+import michael.wilson.geochat.GeoCell;
+import michael.wilson.geochat.ShardRouter;
+
+/** Measures region sharding of the post collection against the local Firestore emulator, for several shard counts
+ * > Write phase: N writers create posts (clustered around a few cities) through 'ShardRouter' for a fixed time
+ * > Query phase: viewport queries are fanned out in parallel to the shards covering the viewport, then merged
+ * > Reports write throughput and latency, fan-out query latency, and the average number of shards each query touched
+ *
+ *   --shard-counts LIST  comma separated shard counts to compare (default 1,4,16,64), 1 is the unsharded baseline
+ *   --writers N          concurrent writers (default 16)
+ *   --seconds N          length of each write phase (default 15)
+ *   --queries N          viewport queries per shard count (default 300)
+ *   --viewport-deg X     height and width of a query viewport (default 0.5)
+ *   --project ID         project id used with the emulator (default geochat-loadgen)
+ *
+ * The emulator runs in a single process and does not reproduce production hotspotting (per-collection index write
+ * limits), so write numbers show routing overhead, and the fan-out cost of queries is what this mostly measures.
+ * Only ever point this at the emulator ('FIRESTORE_EMULATOR_HOST'), never at the production project.
+ */
+public class ShardBenchmark
+{
+    // a few busy cities, posts are clustered around them like in the real app
+    private static final double[][] CITIES = {{40.71, -74.00}, {51.51, -0.13}, {35.68, 139.69}, {-33.87, 151.21},
+            {48.86, 2.35}, {37.77, -122.42}, {19.43, -99.13}, {-23.55, -46.63}, {28.61, 77.21}, {1.35, 103.82}};
+
+    public static void main(String[] _args) throws Exception
+    {
+        if (System.getenv("FIRESTORE_EMULATOR_HOST") == null)
+        {
+            System.err.println("FIRESTORE_EMULATOR_HOST is not set, refusing to run against a real project.");
+            System.exit(1);
+        }
+        String shardCounts = "1,4,16,64", project = "geochat-loadgen";
+        int writers = 16, seconds = 15, queries = 300;
+        double viewport = 0.5;
+        for (int i = 0; i + 1 < _args.length; i += 2)
+        {
+            String name = _args[i], value = _args[i + 1];
+            switch (name)
+            {
+                case "--shard-counts": shardCounts = value; break;
+                case "--writers": writers = Integer.parseInt(value); break;
+                case "--seconds": seconds = Integer.parseInt(value); break;
+                case "--queries": queries = Integer.parseInt(value); break;
+                case "--viewport-deg": viewport = Double.parseDouble(value); break;
+                case "--project": project = value; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+
+        Firestore db = FirestoreOptions.getDefaultInstance().toBuilder().setProjectId(project).build().getService();
+        String runID = Long.toString(System.currentTimeMillis(), 36);
+        List<String> lines = new ArrayList<>();
+        for (String count : shardCounts.split(","))
+        {
+            ShardRouter router = new ShardRouter("shardbench_" + runID + "_" + count.trim(), Integer.parseInt(count.trim()));
+            lines.add(run(db, router, writers, seconds, queries, viewport));
+        }
+
+        System.out.println();
+        for (String line : lines) System.out.println(line);
+        db.close();
+    }
+
+    /** Picks a random post location, near one of 'CITIES' (busier cities first) */
+    public static double[] RANDOM_LOCATION(Random _random)
+    {
+        double[] city = CITIES[VirtualClient.PICK_SKEWED(_random, CITIES.length, 1.0)];
+        return new double[]{city[0] + _random.nextGaussian() * 0.3, city[1] + _random.nextGaussian() * 0.3};
+    }
+
+    // runs the write phase then the query phase for one shard count, and returns the summary line
+    private static String run(final Firestore _db, final ShardRouter _router, int _writers, int _seconds, int _queries, double _viewport)
+            throws Exception
+    {
+        final LatencyRecorder writes = new LatencyRecorder(), reads = new LatencyRecorder();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < _writers; w++)
+        {
+            final Random random = new Random(w * 31L + 1);
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    while (running.get())
+                    {
+                        long start = System.nanoTime();
+                        try
+                        {
+                            CREATE_POST(_db, _router, RANDOM_LOCATION(random), random).get();
+                            writes.record((System.nanoTime() - start) / 1000);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            return;
+                        }
+                        catch (Exception ex) { writes.recordError(VirtualClient.IS_CONTENTION(ex)); }
+                    }
+                }
+            }, "writer-" + w));
+        }
+        System.out.println(_router.getShardCount() + " shards: writing for " + _seconds + "s with " + _writers + " writers");
+        long writeStart = System.currentTimeMillis();
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(_seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) thread.join();
+        long writeElapsed = System.currentTimeMillis() - writeStart;
+
+        Random random = new Random(99);
+        long queryStart = System.currentTimeMillis();
+        long shardsTouched = 0, postsFound = 0;
+        for (int q = 0; q < _queries; q++)
+        {
+            double[] center = RANDOM_LOCATION(random);
+            GeoBounds bounds = new GeoBounds(center[0] - _viewport / 2, center[1] - _viewport / 2, center[0] + _viewport / 2,
+                    center[1] + _viewport / 2);
+            long start = System.nanoTime();
+            try
+            {
+                List<QueryDocumentSnapshot> found = FAN_OUT(_db, _router, bounds);
+                reads.record((System.nanoTime() - start) / 1000);
+                postsFound += found.size();
+                shardsTouched += _router.shardsCovering(bounds).length;
+            }
+            catch (Exception ex) { reads.recordError(VirtualClient.IS_CONTENTION(ex)); }
+        }
+        long queryElapsed = System.currentTimeMillis() - queryStart;
+
+        return String.format("shards=%-3d %s | %s | shards/query=%.2f posts/query=%.1f", _router.getShardCount(),
+                writes.summary("write", writeElapsed), reads.summary("query", queryElapsed), (double)shardsTouched / _queries,
+                (double)postsFound / _queries);
+    }
+
+    /** Creates a post in its shard, with the same fields as 'Toolkit.CREATE_POST(...)' */
+    public static ApiFuture<?> CREATE_POST(Firestore _db, ShardRouter _router, double[] _location, Random _random)
+    {
+        Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put("lat", _location[0]);
+        hashMap.put("lng", _location[1]);
+        hashMap.put("title", "Shard benchmark post " + _random.nextInt(100000));
+        hashMap.put("body", "Generated by the shard benchmark");
+        hashMap.put("date", "01/01/2020");
+        hashMap.put("userID", "loadgen-device");
+        hashMap.put("comments", new ArrayList<Map<String, Object>>());
+        hashMap.put("commentCount", 0L);
+        hashMap.put("lastActivity", System.currentTimeMillis());
+        hashMap.put("cell", GeoCell.ID(_location[0], _location[1], GeoCell.REGION_LEVEL));
+
+        int shard = _router.shardOf(_location[0], _location[1]);
+        CollectionReference collection = _db.collection(_router.collection(shard));
+        return collection.document(_router.newDocID(shard, collection.document().getId())).set(hashMap);
+    }
+
+    /** Queries every shard covering the bounds in parallel (latitude range on the server, longitude filtered here) and merges the results */
+    public static List<QueryDocumentSnapshot> FAN_OUT(Firestore _db, ShardRouter _router, GeoBounds _bounds) throws Exception
+    {
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        for (String name : _router.collectionsCovering(_bounds, false))
+        {
+            futures.add(_db.collection(name).whereGreaterThanOrEqualTo("lat", _bounds.getSouth())
+                    .whereLessThanOrEqualTo("lat", _bounds.getNorth()).get());
+        }
+
+        List<QueryDocumentSnapshot> merged = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (QuerySnapshot result : ApiFutures.allAsList(futures).get())
+        {
+            for (QueryDocumentSnapshot document : result)
+            {
+                Double lat = document.getDouble("lat"), lng = document.getDouble("lng");
+                if (lat != null && lng != null && _bounds.contains(lat, lng) && seen.add(document.getId())) merged.add(document);
+            }
+        }
+        return merged;
+    }
+}
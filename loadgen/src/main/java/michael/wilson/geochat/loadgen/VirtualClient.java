@@ -0,0 +1,378 @@
+package michael.wilson.geochat.loadgen;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import michael.wilson.geochat.GeoBounds;
+import michael.wilson.geochat.GeoCell;
+import michael.wilson.geochat.ShardRouter;
+
+/** One simulated app user, repeating the app's access patterns until told to stop
+ * > Refresh: queries the regions ('cell' field) covering a random viewport in parallel, each in its shard, like
+ *   'MapViewModel.fetchRegion(...)' (or reads every shard, like a zoomed out map, see 'LoadConfig.RefreshMode')
+ * > Post: creates a document in the shard of its location (see 'ShardRouter'), with the same fields as 'Toolkit.CREATE_POST(...)'
+ * > Comment: adds a document to the post's comments sub-collection, bumps a shard of its activity counter, then rolls the
+ *   shards up onto the post a little later, like 'DiscussionViewModel.submitComment(...)' and 'Toolkit.RECORD_ACTIVITY(...)'
+ *   (or rewrites a comments array in the post, with a plain read-modify-write, a transaction, or arrayUnion, to compare with
+ *   the data models before it, see 'LoadConfig.CommentMode')
+ * > The counter shard writes and roll-ups are not waited for (as in the app), their latencies and failures are recorded
+ *   separately
+ */
+public class VirtualClient implements Runnable
+{
+    // field marking documents created by a load run, so they can be told apart and cleaned up
+    public static final String RUN_KEY = "loadgenRun";
+
+    // where seeded and generated posts are placed (central London), and the size of a refresh's viewport
+    private static final double SOUTH = 51.4, WEST = -0.3, HEIGHT_DEG = 0.2, WIDTH_DEG = 0.4, VIEWPORT_DEG = 0.1;
+
+    // shards of each post's activity counter, as 'ShardedCounter.SHARDS' in the app
+    private static final int COUNTER_SHARDS = 8;
+
+    // how long a post's roll-up waits after a counter shard is written, as 'Toolkit.ROLLUP_DELAY_MS' in the app
+    private static final long ROLLUP_DELAY_MS = 10000;
+
+    // runs the delayed roll-ups of every client (daemon, so roll-ups still waiting when the run ends are dropped)
+    private static final ScheduledExecutorService ROLLUP_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable _r)
+        {
+            Thread thread = new Thread(_r, "rollups");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int id;
+    private final Firestore db;
+    private final ShardRouter router;
+    private final LoadConfig config;
+    private final String runID;
+    private final List<String> postIDs;
+    private final Set<String> acknowledgedComments;
+    private final LatencyRecorder refreshes, posts, comments, shardWrites, rollups;
+    private final Set<String> pendingRollups = ConcurrentHashMap.newKeySet();
+    private final Random random;
+    private volatile boolean running = true;
+    private int commentSeq;
+
+    public VirtualClient(int _id, Firestore _db, ShardRouter _router, LoadConfig _config, String _runID, List<String> _postIDs,
+                         Set<String> _acknowledgedComments, LatencyRecorder _refreshes, LatencyRecorder _posts, LatencyRecorder _comments,
+                         LatencyRecorder _shardWrites, LatencyRecorder _rollups)
+    {
+        this.id = _id;
+        this.db = _db;
+        this.router = _router;
+        this.config = _config;
+        this.runID = _runID;
+        this.postIDs = _postIDs;
+        this.acknowledgedComments = _acknowledgedComments;
+        this.refreshes = _refreshes;
+        this.posts = _posts;
+        this.comments = _comments;
+        this.shardWrites = _shardWrites;
+        this.rollups = _rollups;
+        this.random = new Random(_id * 7919L);
+    }
+
+    /** Asks the client to stop after its current operation */
+    public void stop() { running = false; }
+
+    @Override
+    public void run()
+    {
+        int total = config.refreshWeight + config.postWeight + config.commentWeight;
+        while (running)
+        {
+            int pick = random.nextInt(total);
+            long start = System.nanoTime();
+            LatencyRecorder recorder = null;
+            try
+            {
+                if (pick < config.refreshWeight)
+                {
+                    recorder = refreshes;
+                    refresh();
+                }
+                else if (pick < config.refreshWeight + config.postWeight)
+                {
+                    recorder = posts;
+                    createPost();
+                }
+                else
+                {
+                    recorder = comments;
+                    if (!comment()) continue;
+                }
+                recorder.record((System.nanoTime() - start) / 1000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException ex) { recorder.recordError(IS_CONTENTION(ex.getCause())); }
+            catch (RuntimeException ex) { recorder.recordError(IS_CONTENTION(ex)); }
+
+            try { Thread.sleep(config.thinkMillis); }
+            catch (InterruptedException ex) { return; }
+        }
+    }
+
+    /** Returns true if the given error was caused by write contention */
+    public static boolean IS_CONTENTION(Throwable _error)
+    {
+        for (Throwable t = _error; t != null; t = t.getCause())
+        {
+            if (t instanceof ApiException)
+            {
+                StatusCode.Code code = ((ApiException)t).getStatusCode().getCode();
+                return code == StatusCode.Code.ABORTED || code == StatusCode.Code.RESOURCE_EXHAUSTED;
+            }
+        }
+        return false;
+    }
+
+    // reads the posts of a random viewport region by region (or every shard), decoding every document like the app does
+    private void refresh() throws ExecutionException, InterruptedException
+    {
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        if (config.refreshMode == LoadConfig.RefreshMode.ALL)
+        {
+            for (String collection : router.collectionsCovering(null, false)) futures.add(db.collection(collection).get());
+        }
+        else
+        {
+            double south = SOUTH + random.nextDouble() * (HEIGHT_DEG - VIEWPORT_DEG), west = WEST + random.nextDouble() * (WIDTH_DEG - VIEWPORT_DEG);
+            long[] cells = GeoCell.COVERING(new GeoBounds(south, west, south + VIEWPORT_DEG, west + VIEWPORT_DEG), GeoCell.REGION_LEVEL, 16);
+
+            // a region lies inside a single shard
+            for (long cell : cells) futures.add(db.collection(router.collection(router.shardOfCell(cell))).whereEqualTo("cell", cell).get());
+        }
+        for (QuerySnapshot result : ApiFutures.allAsList(futures).get())
+        {
+            for (QueryDocumentSnapshot document : result) document.getData();
+        }
+    }
+
+    // creates a post with the same fields as the app
+    private void createPost() throws ExecutionException, InterruptedException
+    {
+        String id = CREATE_POST(db, router, runID, random);
+        synchronized (postIDs) { postIDs.add(id); }
+    }
+
+    /** Creates a post in the shard of its location, with the same fields (and the same kind of id) as 'Toolkit.CREATE_POST(...)'
+     *
+     * @return The new document's id
+     */
+    public static String CREATE_POST(Firestore _db, ShardRouter _router, String _runID, Random _random) throws ExecutionException, InterruptedException
+    {
+        double lat = SOUTH + _random.nextDouble() * HEIGHT_DEG, lng = WEST + _random.nextDouble() * WIDTH_DEG;
+        Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put("lat", lat);
+        hashMap.put("lng", lng);
+        hashMap.put("title", "Load test post " + _random.nextInt(100000));
+        hashMap.put("body", "Generated by the load generator");
+        hashMap.put("date", new SimpleDateFormat("dd/MM/yyyy").format(new Date()));
+        hashMap.put("userID", "loadgen-device");
+        hashMap.put("comments", new ArrayList<Map<String, Object>>());
+        hashMap.put("commentCount", 0L);
+        hashMap.put("lastActivity", System.currentTimeMillis());
+        hashMap.put("cell", GeoCell.ID(lat, lng, GeoCell.REGION_LEVEL));
+        hashMap.put(RUN_KEY, _runID);
+
+        int shard = _router.shardOf(lat, lng);
+        CollectionReference collection = _db.collection(_router.collection(shard));
+        DocumentReference doc = collection.document(_router.newDocID(shard, collection.document().getId()));
+        doc.set(hashMap).get();
+        return doc.getId();
+    }
+
+    // adds a comment to a (skewed) random post, returns false if there is no post to comment on yet
+    private boolean comment() throws ExecutionException, InterruptedException
+    {
+        String postID;
+        synchronized (postIDs)
+        {
+            if (postIDs.isEmpty()) return false;
+            postID = postIDs.get(PICK_SKEWED(random, postIDs.size(), config.hotSkew));
+        }
+        final DocumentReference docRef = db.collection(router.collectionOf(postID)).document(postID);
+        final String text = "lg-" + id + "-" + (commentSeq++);
+        final Map<String, Object> comment = new HashMap<>();
+        comment.put("commentText", text);
+        comment.put("commentDate", new SimpleDateFormat("dd/MM/yyyy").format(new Date()));
+        comment.put("commentUser", "loadgen-" + id);
+
+        switch (config.commentMode)
+        {
+            case SUBCOLLECTION:
+            {
+                // what the app does: each comment is its own document, timed by the server, and counted in a random shard
+                comment.put("commentTime", FieldValue.serverTimestamp());
+                docRef.collection("comments").add(comment).get();
+                acknowledgedComments.add(text);
+                recordActivity(docRef, random.nextInt(COUNTER_SHARDS));
+                return true;
+            }
+            case RMW:
+            {
+                // exactly what the app does: read, prepend, write the whole array back (no transaction)
+                DocumentSnapshot snapshot = docRef.get().get();
+                List<Object> list = new ArrayList<>();
+                list.add(comment);
+                Object existing = snapshot.get("comments");
+                if (existing instanceof List) list.addAll((List<?>)existing);
+                Map<String, Object> hashMap = new HashMap<>();
+                hashMap.put("comments", list);
+                docRef.update(hashMap).get();
+                break;
+            }
+            case TRANSACTION:
+            {
+                db.runTransaction(new Transaction.Function<Void>()
+                {
+                    @Override
+                    public Void updateCallback(Transaction _transaction) throws Exception
+                    {
+                        DocumentSnapshot snapshot = _transaction.get(docRef).get();
+                        List<Object> list = new ArrayList<>();
+                        list.add(comment);
+                        Object existing = snapshot.get("comments");
+                        if (existing instanceof List) list.addAll((List<?>)existing);
+                        _transaction.update(docRef, "comments", list);
+                        return null;
+                    }
+                }).get();
+                break;
+            }
+            case ARRAYUNION:
+                docRef.update("comments", FieldValue.arrayUnion(comment)).get();
+                break;
+        }
+        acknowledgedComments.add(text);
+        recordActivity(docRef, random.nextInt(COUNTER_SHARDS));
+        return true;
+    }
+
+    // bumps a shard of a post's activity counter, then (without waiting, as the app does not) schedules the post's roll-up
+    private void recordActivity(final DocumentReference _docRef, int _shard)
+    {
+        Map<String, Object> shard = new HashMap<>();
+        shard.put("count", FieldValue.increment(1));
+        shard.put("time", FieldValue.serverTimestamp());
+        final long start = System.nanoTime();
+        ApiFutures.addCallback(_docRef.collection("shards").document(Integer.toString(_shard)).set(shard, SetOptions.merge()),
+                new ApiFutureCallback<WriteResult>()
+        {
+            @Override
+            public void onSuccess(WriteResult _result)
+            {
+                shardWrites.record((System.nanoTime() - start) / 1000);
+                scheduleRollup(_docRef);
+            }
+
+            @Override
+            public void onFailure(Throwable _error) { shardWrites.recordError(IS_CONTENTION(_error)); }
+        }, MoreExecutors.directExecutor());
+    }
+
+    // rolls a post up after 'ROLLUP_DELAY_MS', unless this client already has a roll-up of it waiting, like 'Toolkit.SCHEDULE_ROLLUP(...)'
+    private void scheduleRollup(final DocumentReference _docRef)
+    {
+        if (!pendingRollups.add(_docRef.getId())) return;
+        ROLLUP_TIMER.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pendingRollups.remove(_docRef.getId());
+                rollupActivity(_docRef);
+            }
+        }, ROLLUP_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // sums the shards of a post's activity counter onto the post in a transaction which only moves the post's totals forward,
+    // like 'Toolkit.ROLLUP_ACTIVITY(...)'
+    private void rollupActivity(final DocumentReference _docRef)
+    {
+        final long start = System.nanoTime();
+        ApiFutures.addCallback(db.runTransaction(new Transaction.Function<Void>()
+        {
+            @Override
+            public Void updateCallback(Transaction _transaction) throws Exception
+            {
+                DocumentSnapshot post = _transaction.get(_docRef).get();
+                if (!post.exists()) return null;
+                long count = 0, lastActivity = 0;
+                for (int i = 0; i < COUNTER_SHARDS; i++)
+                {
+                    DocumentSnapshot shard = _transaction.get(_docRef.collection("shards").document(Integer.toString(i))).get();
+                    Long shardCount = shard.getLong("count");
+                    Object time = shard.get("time");
+                    count += shardCount != null ? shardCount : 0;
+                    if (time instanceof Timestamp) lastActivity = Math.max(lastActivity, ((Timestamp)time).toDate().getTime());
+                }
+                Long storedCount = post.getLong("commentCount"), storedActivity = post.getLong("lastActivity");
+                long stored = storedCount != null ? storedCount : 0, storedTime = storedActivity != null ? storedActivity : 0;
+                if (count > stored || lastActivity > storedTime)
+                {
+                    Map<String, Object> hashMap = new HashMap<>();
+                    hashMap.put("commentCount", Math.max(count, stored));
+                    hashMap.put("lastActivity", Math.max(lastActivity, storedTime));
+                    _transaction.update(_docRef, hashMap);
+                }
+                return null;
+            }
+        }), new ApiFutureCallback<Void>()
+        {
+            @Override
+            public void onSuccess(Void _v) { rollups.record((System.nanoTime() - start) / 1000); }
+
+            @Override
+            public void onFailure(Throwable _error) { rollups.recordError(IS_CONTENTION(_error)); }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /** Picks an index in [0, _n) where low indexes are more likely, mimicking a few hot threads
+     *
+     * @param _random - Random source
+     * @param _n - Number of items
+     * @param _skew - 0 for uniform, higher values concentrate picks on the first items
+     */
+    public static int PICK_SKEWED(Random _random, int _n, double _skew)
+    {
+        int index = (int)(_n * Math.pow(_random.nextDouble(), 1.0 + _skew));
+        return Math.min(index, _n - 1);
+    }
+}
@@ -0,0 +1,77 @@
+package michael.wilson.geochat.loadgen;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the load generator's statistics and helpers.
+ */
+public class LatencyRecorderTest
+{
+    @Test
+    public void percentiles_nearestRank()
+    {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 100; i >= 1; i--) recorder.record(i);
+
+        assertEquals(100, recorder.getCount());
+        assertEquals(50, recorder.percentile(50));
+        assertEquals(90, recorder.percentile(90));
+        assertEquals(99, recorder.percentile(99));
+        assertEquals(100, recorder.percentile(100));
+        assertEquals(1, recorder.percentile(0));
+    }
+
+    @Test
+    public void emptyAndErrors()
+    {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.recordError(true);
+        recorder.recordError(false);
+
+        assertEquals(0, recorder.percentile(50));
+        assertEquals(2, recorder.getErrors());
+        assertEquals(1, recorder.getContentionErrors());
+        assertEquals(0.0, recorder.throughput(1000), 0);
+    }
+
+    @Test
+    public void throughput_perSecond()
+    {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 0; i < 500; i++) recorder.record(10);
+
+        assertEquals(250.0, recorder.throughput(2000), 1e-9);
+    }
+
+    @Test
+    public void skewedPicks_favourHotPosts()
+    {
+        Random random = new Random(3);
+        int[] hits = new int[10];
+        for (int i = 0; i < 10000; i++) hits[VirtualClient.PICK_SKEWED(random, 10, 1.5)]++;
+
+        assertTrue(hits[0] > hits[9] * 5);
+        for (int i = 0; i < 1000; i++) assertEquals(0, VirtualClient.PICK_SKEWED(random, 1, 1.5));
+    }
+
+    @Test
+    public void config_parsesArguments()
+    {
+        LoadConfig config = LoadConfig.PARSE(new String[]{"--clients", "5", "--comment-mode", "arrayunion", "--hot-skew", "0"});
+
+        assertEquals(5, config.clients);
+        assertEquals(LoadConfig.CommentMode.ARRAYUNION, config.commentMode);
+        assertEquals(0.0, config.hotSkew, 0);
+        assertEquals("mcl", config.collection);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void config_rejectsUnknownArgument()
+    {
+        LoadConfig.PARSE(new String[]{"--bogus", "1"});
+    }
+}